@@ -0,0 +1,24 @@
+package com.atdev.paystubs_api.admission;
+
+import org.springframework.boot.actuate.endpoint.annotation.Endpoint;
+import org.springframework.boot.actuate.endpoint.annotation.ReadOperation;
+import org.springframework.stereotype.Component;
+
+/**
+ * {@code GET /actuator/admission}: current load and limits of {@link BatchAdmission}.
+ */
+@Component
+@Endpoint(id = "admission")
+public class AdmissionEndpoint {
+
+    private final BatchAdmission admission;
+
+    public AdmissionEndpoint(BatchAdmission admission) {
+        this.admission = admission;
+    }
+
+    @ReadOperation
+    public BatchAdmission.State state() {
+        return admission.state();
+    }
+}
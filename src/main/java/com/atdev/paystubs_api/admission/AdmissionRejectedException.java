@@ -0,0 +1,20 @@
+package com.atdev.paystubs_api.admission;
+
+import java.time.Duration;
+
+/**
+ * Thrown when a batch cannot be admitted because the queue is full or the wait timed out.
+ * Controllers answer {@code 429 Too Many Requests} with {@link #getRetryAfter()}.
+ */
+public class AdmissionRejectedException extends RuntimeException {
+    private final Duration retryAfter;
+
+    public AdmissionRejectedException(String message, Duration retryAfter) {
+        super(message);
+        this.retryAfter = retryAfter;
+    }
+
+    public Duration getRetryAfter() {
+        return retryAfter;
+    }
+}
@@ -0,0 +1,255 @@
+package com.atdev.paystubs_api.admission;
+
+import io.micrometer.core.instrument.FunctionCounter;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.binder.MeterBinder;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Service;
+import org.springframework.web.context.request.NativeWebRequest;
+import org.springframework.web.context.request.async.CallableProcessingInterceptor;
+import org.springframework.web.context.request.async.WebAsyncUtils;
+
+import java.time.Duration;
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.concurrent.Callable;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Caps how many batches run at once and how many CSV rows they hold in total. A batch that does
+ * not fit waits in a FIFO queue; once {@code app.admission.max-queued} batches are waiting, or a
+ * batch has waited {@code app.admission.queue-timeout}, it is rejected with
+ * {@link AdmissionRejectedException}. A batch larger than the whole row budget is admitted alone.
+ * <p>
+ * A request whose row count is only known once its CSV is parsed takes a slot first with
+ * {@link #admit()}, so a busy node rejects it before parsing, and adds its rows with
+ * {@link Permit#reserve(int)}.
+ */
+@Service
+public class BatchAdmission implements MeterBinder {
+    private final int maxConcurrent;
+    private final int maxRowsInFlight;
+    private final int maxQueued;
+    private final Duration queueTimeout;
+    private final Duration retryAfter;
+
+    private final ReentrantLock lock = new ReentrantLock();
+    private final Condition changed = lock.newCondition();
+    private final Deque<Waiter> queue = new ArrayDeque<>();
+    private final Deque<Waiter> reserving = new ArrayDeque<>();
+    private int running;
+    private int rowsInFlight;
+    private int boundedWaiters;
+    private long admitted;
+    private long rejected;
+
+    @Autowired
+    public BatchAdmission(@Value("${app.admission.max-concurrent:4}") int maxConcurrent,
+                          @Value("${app.admission.max-rows-in-flight:20000}") int maxRowsInFlight,
+                          @Value("${app.admission.max-queued:16}") int maxQueued,
+                          @Value("${app.admission.queue-timeout:PT30S}") Duration queueTimeout,
+                          @Value("${app.admission.retry-after:PT30S}") Duration retryAfter) {
+        this.maxConcurrent = maxConcurrent;
+        this.maxRowsInFlight = maxRowsInFlight;
+        this.maxQueued = maxQueued;
+        this.queueTimeout = queueTimeout;
+        this.retryAfter = retryAfter;
+    }
+
+    /**
+     * Admits a request-bound batch whose rows are not known yet, waiting in the bounded queue for
+     * a slot. The rows are added with {@link Permit#reserve(int)} once the CSV is parsed.
+     *
+     * @throws AdmissionRejectedException when the queue is full or the wait times out
+     */
+    public Permit admit() throws InterruptedException {
+        return acquire(0, true);
+    }
+
+    /**
+     * Admits a request-bound batch of {@code rows}, waiting in the bounded queue if needed.
+     *
+     * @throws AdmissionRejectedException when the queue is full or the wait times out
+     */
+    public Permit admit(int rows) throws InterruptedException {
+        return acquire(rows, true);
+    }
+
+    /**
+     * Admits background work that is already bounded by its own queue (e.g. async jobs), waiting
+     * as long as needed without counting against {@code max-queued}.
+     */
+    public Permit admitWhenAvailable(int rows) throws InterruptedException {
+        return acquire(rows, false);
+    }
+
+    public State state() {
+        lock.lock();
+        try {
+            return new State(running, rowsInFlight, queue.size(), admitted, rejected,
+                    maxConcurrent, maxRowsInFlight, maxQueued);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    @Override
+    public void bindTo(MeterRegistry registry) {
+        Gauge.builder("paystubs.admission.running", this, a -> a.state().running()).register(registry);
+        Gauge.builder("paystubs.admission.rows.in.flight", this, a -> a.state().rows_in_flight()).register(registry);
+        Gauge.builder("paystubs.admission.queued", this, a -> a.state().queued()).register(registry);
+        FunctionCounter.builder("paystubs.admission.admitted", this, a -> a.state().admitted()).register(registry);
+        FunctionCounter.builder("paystubs.admission.rejected", this, a -> a.state().rejected()).register(registry);
+    }
+
+    private Permit acquire(int rows, boolean bounded) throws InterruptedException {
+        int cost = Math.max(0, Math.min(rows, maxRowsInFlight));
+        lock.lock();
+        try {
+            if (queue.isEmpty() && fits(cost)) {
+                return grant(cost);
+            }
+            if (bounded && boundedWaiters >= maxQueued) {
+                rejected++;
+                throw new AdmissionRejectedException("Admission queue is full", retryAfter);
+            }
+
+            Waiter waiter = new Waiter();
+            queue.addLast(waiter);
+            if (bounded) {
+                boundedWaiters++;
+            }
+            boolean granted = false;
+            try {
+                long nanos = queueTimeout.toNanos();
+                while (queue.peekFirst() != waiter || !fits(cost)) {
+                    if (!bounded) {
+                        changed.await();
+                    } else if (nanos <= 0) {
+                        rejected++;
+                        throw new AdmissionRejectedException("Timed out waiting for admission", retryAfter);
+                    } else {
+                        nanos = changed.awaitNanos(nanos);
+                    }
+                }
+                granted = true;
+                return grant(cost);
+            } finally {
+                queue.remove(waiter);
+                if (bounded) {
+                    boundedWaiters--;
+                }
+                if (!granted) {
+                    // the next waiter may fit now that this one left the head of the queue
+                    changed.signalAll();
+                }
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private boolean fits(int cost) {
+        if (running >= maxConcurrent) {
+            return false;
+        }
+        return running == 0 || rowsInFlight + cost <= maxRowsInFlight;
+    }
+
+    /*
+     * The slot is already held, so the rows wait without a timeout: they only wait for batches
+     * that are running, in the order their CSVs were parsed.
+     */
+    private void reserve(Permit permit, int rows) throws InterruptedException {
+        int cost = Math.max(0, Math.min(rows, maxRowsInFlight));
+        lock.lock();
+        try {
+            if (permit.released.get()) {
+                throw new IllegalStateException("Permit is already closed");
+            }
+            Waiter waiter = new Waiter();
+            reserving.addLast(waiter);
+            try {
+                while (reserving.peekFirst() != waiter || (rowsInFlight > 0 && rowsInFlight + cost > maxRowsInFlight)) {
+                    changed.await();
+                }
+            } finally {
+                reserving.remove(waiter);
+                changed.signalAll();
+            }
+            rowsInFlight += cost;
+            permit.rows += cost;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private Permit grant(int cost) {
+        running++;
+        rowsInFlight += cost;
+        admitted++;
+        return new Permit(cost);
+    }
+
+    private void release(Permit permit) {
+        lock.lock();
+        try {
+            running--;
+            rowsInFlight -= permit.rows;
+            changed.signalAll();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    // compared by identity: each queued batch is its own entry
+    private static final class Waiter {}
+
+    /** Held while a batch runs; closing it (once) frees its slot and rows for the next batch. */
+    public final class Permit implements AutoCloseable {
+        // guarded by the admission lock
+        private int rows;
+        private final AtomicBoolean released = new AtomicBoolean();
+
+        private Permit(int rows) {
+            this.rows = rows;
+        }
+
+        /**
+         * Adds {@code rows} to the rows this permit holds, waiting until they fit the row budget.
+         * A batch larger than the whole budget waits until no other batch holds rows.
+         */
+        public Permit reserve(int rows) throws InterruptedException {
+            BatchAdmission.this.reserve(this, rows);
+            return this;
+        }
+
+        @Override
+        public void close() {
+            if (released.compareAndSet(false, true)) {
+                release(this);
+            }
+        }
+
+        /**
+         * Also closes the permit when the async request of {@code request} completes, times out or
+         * fails, for a permit handed to a response body that may never run.
+         */
+        public Permit closeOnCompletion(NativeWebRequest request) {
+            WebAsyncUtils.getAsyncManager(request).registerCallableInterceptor(this, new CallableProcessingInterceptor() {
+                @Override
+                public <T> void afterCompletion(NativeWebRequest req, Callable<T> task) {
+                    close();
+                }
+            });
+            return this;
+        }
+    }
+
+    public record State(int running, int rows_in_flight, int queued, long admitted, long rejected,
+                        int max_concurrent, int max_rows_in_flight, int max_queued) {}
+}
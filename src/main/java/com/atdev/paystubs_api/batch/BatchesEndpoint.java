@@ -0,0 +1,39 @@
+package com.atdev.paystubs_api.batch;
+
+import org.springframework.boot.actuate.endpoint.annotation.DeleteOperation;
+import org.springframework.boot.actuate.endpoint.annotation.Endpoint;
+import org.springframework.boot.actuate.endpoint.annotation.ReadOperation;
+import org.springframework.boot.actuate.endpoint.annotation.Selector;
+import org.springframework.boot.actuate.endpoint.web.WebEndpointResponse;
+import org.springframework.stereotype.Component;
+
+import java.util.List;
+import java.util.Map;
+
+/**
+ * {@code GET /actuator/batches}: batches being sent right now, with progress and deadline.
+ * {@code DELETE /actuator/batches/{id}}: aborts one; rows already being sent still finish.
+ */
+@Component
+@Endpoint(id = "batches")
+public class BatchesEndpoint {
+
+    private final RunningBatches batches;
+
+    public BatchesEndpoint(RunningBatches batches) {
+        this.batches = batches;
+    }
+
+    @ReadOperation
+    public Map<String, List<RunningBatch.State>> running() {
+        return Map.of("running", batches.states());
+    }
+
+    @DeleteOperation
+    public WebEndpointResponse<Map<String, Object>> abort(@Selector String id) {
+        if (!batches.abort(id)) {
+            return new WebEndpointResponse<>(Map.of("error", "Unknown or finished batch."), 404);
+        }
+        return new WebEndpointResponse<>(Map.of("id", id, "aborted", true), 202);
+    }
+}
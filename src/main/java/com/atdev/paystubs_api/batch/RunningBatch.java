@@ -0,0 +1,82 @@
+package com.atdev.paystubs_api.batch;
+
+import java.time.Clock;
+import java.time.Duration;
+import java.time.Instant;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * A batch being sent, registered with {@link RunningBatches} until closed. Senders ask
+ * {@link #stopped()} before starting each row: once the deadline has passed or the batch was
+ * {@linkplain #abort aborted}, rows not started yet are skipped, while rows already being sent
+ * finish, so every row ends up either sent, failed or reported as not sent.
+ */
+public final class RunningBatch implements AutoCloseable {
+    private final RunningBatches registry;
+    private final String id;
+    private final String company;
+    private final int total;
+    private final Duration timeout;
+    private final Instant startedAt;
+    private final Instant deadline;
+    private final Clock clock;
+    private final AtomicInteger done = new AtomicInteger();
+    private volatile String stopReason;
+
+    RunningBatch(RunningBatches registry, String id, String company, int total, Duration timeout, Clock clock) {
+        this.registry = registry;
+        this.id = id;
+        this.company = company;
+        this.total = total;
+        this.timeout = timeout;
+        this.clock = clock;
+        this.startedAt = clock.instant();
+        this.deadline = timeout == null ? null : startedAt.plus(timeout);
+    }
+
+    public String id() {
+        return id;
+    }
+
+    /** Whether rows not started yet should be skipped; checks the deadline on every call. */
+    public boolean stopped() {
+        if (stopReason == null && deadline != null && !clock.instant().isBefore(deadline)) {
+            stopReason = "deadline of " + timeout + " exceeded";
+        }
+        return stopReason != null;
+    }
+
+    /** Why the batch stopped early, or {@code null} while it may still run to the end. */
+    public String stopReason() {
+        return stopReason;
+    }
+
+    /** Counts rows that were sent or failed, for {@link #state()}. */
+    public void done(int rows) {
+        done.addAndGet(rows);
+    }
+
+    void abort() {
+        if (stopReason == null) {
+            stopReason = "aborted";
+        }
+    }
+
+    State state() {
+        return new State(id, company, total, done.get(), startedAt.toString(),
+                deadline == null ? null : deadline.toString(), stopReason);
+    }
+
+    @Override
+    public void close() {
+        registry.remove(this);
+    }
+
+    /**
+     * What {@code GET /actuator/batches} shows of a running batch.
+     *
+     * @param done rows sent or failed so far
+     * @param stop_reason set once the batch skips its remaining rows
+     */
+    public record State(String id, String company, int total, int done, String started_at, String deadline, String stop_reason) {}
+}
@@ -0,0 +1,67 @@
+package com.atdev.paystubs_api.batch;
+
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Service;
+
+import java.time.Clock;
+import java.time.Duration;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Batches currently being sent, each with an optional deadline, so an operator can see them and
+ * abort one. A batch without a timeout of its own gets {@code app.batch.timeout}; zero means none.
+ */
+@Service
+public class RunningBatches {
+    private final Duration defaultTimeout;
+    private final Clock clock;
+    private final Map<String, RunningBatch> running = new ConcurrentHashMap<>();
+
+    @Autowired
+    public RunningBatches(@Value("${app.batch.timeout:PT0S}") Duration defaultTimeout) {
+        this(defaultTimeout, Clock.systemUTC());
+    }
+
+    RunningBatches(Duration defaultTimeout, Clock clock) {
+        this.defaultTimeout = defaultTimeout;
+        this.clock = clock;
+    }
+
+    /**
+     * Registers a batch of {@code total} rows of {@code company}; close the returned batch when it
+     * ends. The deadline, from {@code timeout} or the default, is counted from now.
+     */
+    public RunningBatch start(String company, int total, Duration timeout) {
+        Duration budget = timeout != null && !timeout.isZero() ? timeout : defaultTimeout;
+        RunningBatch batch = new RunningBatch(this, UUID.randomUUID().toString(), company, total,
+                budget == null || budget.isZero() ? null : budget, clock);
+        running.put(batch.id(), batch);
+        return batch;
+    }
+
+    /** Makes the batch skip every row it has not started yet; false when no such batch is running. */
+    public boolean abort(String id) {
+        RunningBatch batch = running.get(id);
+        if (batch == null) {
+            return false;
+        }
+        batch.abort();
+        return true;
+    }
+
+    public List<RunningBatch.State> states() {
+        return running.values().stream()
+                .map(RunningBatch::state)
+                .sorted(Comparator.comparing(RunningBatch.State::started_at))
+                .toList();
+    }
+
+    void remove(RunningBatch batch) {
+        running.remove(batch.id(), batch);
+    }
+}
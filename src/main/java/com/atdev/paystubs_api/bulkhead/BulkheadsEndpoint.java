@@ -0,0 +1,25 @@
+package com.atdev.paystubs_api.bulkhead;
+
+import org.springframework.boot.actuate.endpoint.annotation.Endpoint;
+import org.springframework.boot.actuate.endpoint.annotation.ReadOperation;
+import org.springframework.stereotype.Component;
+
+/**
+ * {@code GET /actuator/bulkheads}: per-company limits, the shared overflow pool, and what every
+ * company with running batches holds, borrows and waits for.
+ */
+@Component
+@Endpoint(id = "bulkheads")
+public class BulkheadsEndpoint {
+
+    private final CompanyBulkheads bulkheads;
+
+    public BulkheadsEndpoint(CompanyBulkheads bulkheads) {
+        this.bulkheads = bulkheads;
+    }
+
+    @ReadOperation
+    public CompanyBulkheads.State state() {
+        return bulkheads.state();
+    }
+}
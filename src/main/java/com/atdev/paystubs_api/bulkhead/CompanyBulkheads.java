@@ -0,0 +1,255 @@
+package com.atdev.paystubs_api.bulkhead;
+
+import io.micrometer.core.instrument.FunctionCounter;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.binder.MeterBinder;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Service;
+
+import java.util.Comparator;
+import java.util.EnumMap;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.Supplier;
+
+/**
+ * Bounds how much of the node one company's batches take, so a large upload for one company
+ * cannot starve the others. Per company, across all its running batches, at most
+ * {@code app.bulkhead.render} PDFs are rendered, {@code app.bulkhead.send} messages are sent and
+ * {@code app.bulkhead.queue} messages are rendering or waiting to be sent at once. A company whose own
+ * limit is reached borrows from a shared overflow pool ({@code app.bulkhead.overflow-*}) and
+ * otherwise waits; a company with nothing running always finds its own limit free.
+ */
+@Service
+public class CompanyBulkheads implements MeterBinder {
+    private final boolean enabled;
+    private final Map<Kind, Integer> limits = new EnumMap<>(Kind.class);
+    private final Map<Kind, Integer> overflowLimits = new EnumMap<>(Kind.class);
+
+    private final ReentrantLock lock = new ReentrantLock();
+    private final Map<Kind, Condition> released = new EnumMap<>(Kind.class);
+    private final Map<String, Tenant> tenants = new HashMap<>();
+    private final Map<Kind, Integer> overflowUsed = new EnumMap<>(Kind.class);
+    private final Map<Kind, Long> borrowed = new EnumMap<>(Kind.class);
+    private final Map<Kind, Long> waitNanos = new EnumMap<>(Kind.class);
+
+    @Autowired
+    public CompanyBulkheads(@Value("${app.bulkhead.enabled:true}") boolean enabled,
+                            @Value("${app.bulkhead.render:2}") int render,
+                            @Value("${app.bulkhead.send:4}") int send,
+                            @Value("${app.bulkhead.queue:16}") int queue,
+                            @Value("${app.bulkhead.overflow-render:2}") int overflowRender,
+                            @Value("${app.bulkhead.overflow-send:4}") int overflowSend,
+                            @Value("${app.bulkhead.overflow-queue:16}") int overflowQueue) {
+        this.enabled = enabled;
+        limits.put(Kind.RENDER, Math.max(1, render));
+        limits.put(Kind.SEND, Math.max(1, send));
+        limits.put(Kind.QUEUE, Math.max(1, queue));
+        overflowLimits.put(Kind.RENDER, Math.max(0, overflowRender));
+        overflowLimits.put(Kind.SEND, Math.max(0, overflowSend));
+        overflowLimits.put(Kind.QUEUE, Math.max(0, overflowQueue));
+        for (Kind kind : Kind.values()) {
+            released.put(kind, lock.newCondition());
+            overflowUsed.put(kind, 0);
+            borrowed.put(kind, 0L);
+            waitNanos.put(kind, 0L);
+        }
+    }
+
+    /** Bulkheads that never wait, for callers that do not share the node. */
+    public static CompanyBulkheads unbounded() {
+        return new CompanyBulkheads(false, 1, 1, 1, 0, 0, 0);
+    }
+
+    /**
+     * Takes one unit of {@code kind} for {@code company}: from its own limit when free, else from
+     * the overflow pool, else waits for whichever frees first. Close the lease when done.
+     */
+    public Lease acquire(String company, Kind kind) throws InterruptedException {
+        if (!enabled) {
+            return Lease.NONE;
+        }
+        String key = company.trim().toLowerCase(Locale.ROOT);
+        lock.lock();
+        try {
+            Tenant tenant = tenants.computeIfAbsent(key, Tenant::new);
+            long start = 0;
+            try {
+                while (true) {
+                    if (tenant.used.get(kind) < limits.get(kind)) {
+                        tenant.used.merge(kind, 1, Integer::sum);
+                        return new Lease(this, tenant, kind, false);
+                    }
+                    if (overflowUsed.get(kind) < overflowLimits.get(kind)) {
+                        overflowUsed.merge(kind, 1, Integer::sum);
+                        tenant.borrowed.merge(kind, 1, Integer::sum);
+                        borrowed.merge(kind, 1L, Long::sum);
+                        return new Lease(this, tenant, kind, true);
+                    }
+                    if (start == 0) {
+                        start = System.nanoTime();
+                        tenant.waiting.merge(kind, 1, Integer::sum);
+                    }
+                    released.get(kind).await();
+                }
+            } finally {
+                if (start != 0) {
+                    tenant.waiting.merge(kind, -1, Integer::sum);
+                    waitNanos.merge(kind, System.nanoTime() - start, Long::sum);
+                }
+                forgetIfIdle(tenant);
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    public State state() {
+        lock.lock();
+        try {
+            List<CompanyState> companies = tenants.values().stream()
+                    .map(Tenant::state)
+                    .sorted(Comparator.comparing(CompanyState::company))
+                    .toList();
+            return new State(usage(limits), usage(overflowLimits), usage(overflowUsed), companies);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    @Override
+    public void bindTo(MeterRegistry registry) {
+        Gauge.builder("paystubs.bulkhead.companies", this, b -> b.read(() -> b.tenants.size())).register(registry);
+        for (Kind kind : Kind.values()) {
+            String tag = kind.name().toLowerCase(Locale.ROOT);
+            Gauge.builder("paystubs.bulkhead.overflow.used", this, b -> b.read(() -> b.overflowUsed.get(kind)))
+                    .tag("kind", tag).register(registry);
+            Gauge.builder("paystubs.bulkhead.waiting", this, b -> b.read(() -> b.waiting(kind)))
+                    .tag("kind", tag).register(registry);
+            FunctionCounter.builder("paystubs.bulkhead.borrowed", this, b -> b.read(() -> b.borrowed.get(kind)))
+                    .tag("kind", tag).register(registry);
+            FunctionCounter.builder("paystubs.bulkhead.wait.time", this,
+                            b -> b.read(() -> b.waitNanos.get(kind)) / (double) TimeUnit.SECONDS.toNanos(1))
+                    .tag("kind", tag).baseUnit("seconds").register(registry);
+        }
+    }
+
+    private void release(Tenant tenant, Kind kind, boolean overflow) {
+        lock.lock();
+        try {
+            if (overflow) {
+                overflowUsed.merge(kind, -1, Integer::sum);
+                tenant.borrowed.merge(kind, -1, Integer::sum);
+            } else {
+                tenant.used.merge(kind, -1, Integer::sum);
+            }
+            forgetIfIdle(tenant);
+            released.get(kind).signalAll();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private void forgetIfIdle(Tenant tenant) {
+        if (tenant.idle()) {
+            tenants.remove(tenant.company, tenant);
+        }
+    }
+
+    private int waiting(Kind kind) {
+        return tenants.values().stream().mapToInt(t -> t.waiting.get(kind)).sum();
+    }
+
+    private <N extends Number> N read(Supplier<N> value) {
+        lock.lock();
+        try {
+            return value.get();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private static Usage usage(Map<Kind, Integer> counts) {
+        return new Usage(counts.get(Kind.RENDER), counts.get(Kind.SEND), counts.get(Kind.QUEUE));
+    }
+
+    public enum Kind {
+        RENDER, SEND, QUEUE
+    }
+
+    // What one company holds right now; dropped once it holds and waits for nothing.
+    private static final class Tenant {
+        private final String company;
+        private final Map<Kind, Integer> used = zero();
+        private final Map<Kind, Integer> borrowed = zero();
+        private final Map<Kind, Integer> waiting = zero();
+
+        private Tenant(String company) {
+            this.company = company;
+        }
+
+        boolean idle() {
+            for (Kind kind : Kind.values()) {
+                if (used.get(kind) + borrowed.get(kind) + waiting.get(kind) > 0) {
+                    return false;
+                }
+            }
+            return true;
+        }
+
+        CompanyState state() {
+            return new CompanyState(company, usage(used), usage(borrowed), usage(waiting));
+        }
+
+        private static Map<Kind, Integer> zero() {
+            Map<Kind, Integer> counts = new EnumMap<>(Kind.class);
+            for (Kind kind : Kind.values()) {
+                counts.put(kind, 0);
+            }
+            return counts;
+        }
+    }
+
+    /** One unit of a company's render, send or queue capacity; closing it (once) gives it back. */
+    public static final class Lease implements AutoCloseable {
+        static final Lease NONE = new Lease(null, null, null, false);
+
+        private final CompanyBulkheads owner;
+        private final Tenant tenant;
+        private final Kind kind;
+        private final boolean overflow;
+        private final AtomicBoolean released = new AtomicBoolean();
+
+        private Lease(CompanyBulkheads owner, Tenant tenant, Kind kind, boolean overflow) {
+            this.owner = owner;
+            this.tenant = tenant;
+            this.kind = kind;
+            this.overflow = overflow;
+        }
+
+        @Override
+        public void close() {
+            if (owner != null && released.compareAndSet(false, true)) {
+                owner.release(tenant, kind, overflow);
+            }
+        }
+    }
+
+    public record Usage(int render, int send, int queue) {}
+
+    /**
+     * @param used     taken from the company's own limits
+     * @param borrowed taken from the overflow pool
+     */
+    public record CompanyState(String company, Usage used, Usage borrowed, Usage waiting) {}
+
+    public record State(Usage limits, Usage overflow_limits, Usage overflow_used, List<CompanyState> companies) {}
+}
@@ -0,0 +1,102 @@
+package com.atdev.paystubs_api.checkpoint;
+
+import com.atdev.paystubs_api.payment.FailedPaystub;
+import com.atdev.paystubs_api.payment.SentListener;
+import com.atdev.paystubs_api.payment.SentPaystub;
+import lombok.extern.slf4j.Slf4j;
+
+import java.io.IOException;
+import java.nio.file.Path;
+import java.util.BitSet;
+
+/**
+ * Progress of one checkpointed batch. Not thread-safe: the batch's send workers report outcomes
+ * concurrently, so callers must serialize them, as {@code PayrollService} does by reporting under
+ * its per-batch lock. Rows are marked as sent through {@link #tracking}, and every
+ * {@code interval} sent rows the set is saved.
+ * The batch ends with {@link #finish} when it ran to the end (or failed for good) and with
+ * {@link #release} when it was interrupted and should be resumed later.
+ */
+@Slf4j
+public final class Checkpoint {
+    /** For batches that are not checkpointed; every method does nothing. */
+    public static final Checkpoint NONE = new Checkpoint(null, null, null, 1, new BitSet(0));
+
+    private final CheckpointStore store;
+    private final String id;
+    private final Path dir;
+    private final int interval;
+    private final BitSet sent;
+    private int unsaved;
+    private boolean saveFailed;
+
+    Checkpoint(CheckpointStore store, String id, Path dir, int interval, BitSet sent) {
+        this.store = store;
+        this.id = id;
+        this.dir = dir;
+        this.interval = interval;
+        this.sent = sent;
+    }
+
+    public String id() {
+        return id;
+    }
+
+    Path dir() {
+        return dir;
+    }
+
+    /** Wraps {@code listener} so every sent row is recorded before {@code listener} sees it. */
+    public SentListener tracking(SentListener listener) {
+        if (store == null) {
+            return listener;
+        }
+        return new SentListener() {
+            @Override
+            public void onSent(int row, SentPaystub entry) throws Exception {
+                sent(row);
+                listener.onSent(row, entry);
+            }
+
+            @Override
+            public void onFailed(int row, FailedPaystub entry) throws Exception {
+                listener.onFailed(row, entry);
+            }
+        };
+    }
+
+    void sent(int row) {
+        sent.set(row);
+        if (++unsaved >= interval) {
+            save();
+        }
+    }
+
+    /** Deletes the checkpoint; nothing is left to resume. */
+    public void finish() {
+        if (store != null) {
+            store.finish(this);
+        }
+    }
+
+    /** Saves the latest progress and leaves the checkpoint on disk for a later resume. */
+    public void release() {
+        if (store != null) {
+            save();
+            store.release(this);
+        }
+    }
+
+    // A checkpoint that cannot be written must not fail the batch; it just resumes from further back.
+    private void save() {
+        unsaved = 0;
+        try {
+            store.saveProgress(dir, sent);
+        } catch (IOException e) {
+            if (!saveFailed) {
+                log.warn("Could not save checkpoint {}; a resume will repeat rows sent since the last save", id, e);
+                saveFailed = true;
+            }
+        }
+    }
+}
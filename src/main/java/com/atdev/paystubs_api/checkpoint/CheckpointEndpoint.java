@@ -0,0 +1,42 @@
+package com.atdev.paystubs_api.checkpoint;
+
+import com.atdev.paystubs_api.job.JobService;
+import com.atdev.paystubs_api.job.PayrollJob;
+import org.springframework.boot.actuate.endpoint.annotation.Endpoint;
+import org.springframework.boot.actuate.endpoint.annotation.ReadOperation;
+import org.springframework.boot.actuate.endpoint.annotation.Selector;
+import org.springframework.boot.actuate.endpoint.annotation.WriteOperation;
+import org.springframework.boot.actuate.endpoint.web.WebEndpointResponse;
+import org.springframework.stereotype.Component;
+
+import java.util.List;
+import java.util.Map;
+
+/**
+ * {@code GET /actuator/checkpoints}: interrupted batches waiting to be resumed.
+ * {@code POST /actuator/checkpoints/{id}}: resumes one of them as a background job.
+ */
+@Component
+@Endpoint(id = "checkpoints")
+public class CheckpointEndpoint {
+
+    private final CheckpointStore checkpoints;
+    private final JobService jobService;
+
+    public CheckpointEndpoint(CheckpointStore checkpoints, JobService jobService) {
+        this.checkpoints = checkpoints;
+        this.jobService = jobService;
+    }
+
+    @ReadOperation
+    public Map<String, List<String>> pending() {
+        return Map.of("pending", checkpoints.pending());
+    }
+
+    @WriteOperation
+    public WebEndpointResponse<Map<String, Object>> resume(@Selector String id) throws Exception {
+        return jobService.resume(id)
+                .map(job -> new WebEndpointResponse<Map<String, Object>>(Map.of("job_id", job.getId(), "total", job.getTotal()), 202))
+                .orElseGet(() -> new WebEndpointResponse<>(Map.of("error", "Unknown or already running checkpoint."), 404));
+    }
+}
@@ -0,0 +1,296 @@
+package com.atdev.paystubs_api.checkpoint;
+
+import com.atdev.paystubs_api.payment.Country;
+import com.atdev.paystubs_api.payment.PayrollRecord;
+import com.atdev.paystubs_api.payment.ProcessOptions;
+import com.atdev.paystubs_api.pipeline.Priority;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Service;
+import org.springframework.util.FileSystemUtils;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.Reader;
+import java.io.Writer;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.List;
+import java.util.Optional;
+import java.util.Properties;
+import java.util.Set;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.regex.Pattern;
+import java.util.stream.Stream;
+
+/**
+ * Keeps large batches resumable across restarts. {@link #begin} writes the parsed rows of a batch
+ * to {@code app.checkpoint.dir}, with the file offset of every {@code app.checkpoint.interval}-th
+ * row; the returned {@link Checkpoint} then saves which rows were sent every {@code interval}
+ * sends. A batch that ends in this process deletes its directory, so whatever is left at startup
+ * was interrupted and can be {@linkplain #claim claimed}, except directories a crash left before
+ * the batch was fully recorded, which are deleted at startup. Only the rows from the last fully sent
+ * block onwards are read back, skipping every row already recorded as sent.
+ *
+ * <p>Rows sent after the last save are sent again on resume, so at most {@code interval} rows per
+ * interrupted batch can be delivered twice.
+ */
+@Slf4j
+@Service
+public class CheckpointStore {
+    static final String BATCH = "batch.properties";
+    static final String ROWS = "rows.bin";
+    static final String INDEX = "rows.idx";
+    static final String PROGRESS = "progress.bin";
+
+    private static final Pattern ID = Pattern.compile("[0-9a-f]{8}-[0-9a-f]{4}-[0-9a-f]{4}-[0-9a-f]{4}-[0-9a-f]{12}");
+
+    private final boolean enabled;
+    private final Path dir;
+    private final int interval;
+    private final int minRows;
+    private final Set<String> active = ConcurrentHashMap.newKeySet();
+
+    public CheckpointStore(@Value("${app.checkpoint.enabled:true}") boolean enabled,
+                           @Value("${app.checkpoint.dir:checkpoints}") Path dir,
+                           @Value("${app.checkpoint.interval:500}") int interval,
+                           @Value("${app.checkpoint.min-rows:1000}") int minRows) {
+        this.enabled = enabled;
+        this.dir = dir;
+        this.interval = Math.max(1, interval);
+        this.minRows = minRows;
+        if (enabled) {
+            discardIncomplete();
+        }
+    }
+
+    // A begin that crashed before writing BATCH left rows nobody can resume; nothing else deletes them.
+    private void discardIncomplete() {
+        if (!Files.isDirectory(dir)) {
+            return;
+        }
+        List<Path> incomplete;
+        try (Stream<Path> dirs = Files.list(dir)) {
+            incomplete = dirs.filter(d -> ID.matcher(d.getFileName().toString()).matches())
+                    .filter(d -> Files.isDirectory(d) && !Files.exists(d.resolve(BATCH)))
+                    .toList();
+        } catch (IOException e) {
+            log.warn("Could not list checkpoints in {}", dir, e);
+            return;
+        }
+        if (incomplete.isEmpty()) {
+            return;
+        }
+        incomplete.forEach(CheckpointStore::delete);
+        log.warn("Deleted {} incomplete checkpoint(s) left in {} by an earlier run", incomplete.size(), dir);
+    }
+
+    /**
+     * Records a new batch, or returns {@link Checkpoint#NONE} when checkpointing is off, the batch
+     * has fewer than {@code app.checkpoint.min-rows} rows or the rows cannot be written.
+     */
+    public Checkpoint begin(Country country, String company, ProcessOptions options, List<PayrollRecord> rows) {
+        if (!enabled || rows.size() < minRows) {
+            return Checkpoint.NONE;
+        }
+        String id = UUID.randomUUID().toString();
+        Path batchDir = dir.resolve(id);
+        try {
+            Files.createDirectories(batchDir);
+            writeRows(batchDir, rows);
+            Properties batch = new Properties();
+            batch.setProperty("country", country.name());
+            batch.setProperty("company", company);
+            batch.setProperty("group_by_recipient", String.valueOf(options.groupByRecipient()));
+            batch.setProperty("priority", options.priority().name());
+            batch.setProperty("total", String.valueOf(rows.size()));
+            batch.setProperty("interval", String.valueOf(interval));
+            batch.setProperty("created_at", Instant.now().toString());
+            // written last, and renamed into place: a directory without it is an incomplete begin
+            Path tmp = batchDir.resolve(BATCH + ".tmp");
+            try (Writer out = Files.newBufferedWriter(tmp, StandardCharsets.UTF_8)) {
+                batch.store(out, null);
+            }
+            Files.move(tmp, batchDir.resolve(BATCH), StandardCopyOption.ATOMIC_MOVE);
+        } catch (IOException e) {
+            log.warn("Could not write checkpoint for {} rows of {}; the batch runs without one", rows.size(), company, e);
+            delete(batchDir);
+            return Checkpoint.NONE;
+        }
+        active.add(id);
+        return new Checkpoint(this, id, batchDir, interval, new BitSet(rows.size()));
+    }
+
+    /** Ids of interrupted batches that can be resumed, i.e. left on disk and not running here. */
+    public List<String> pending() {
+        if (!Files.isDirectory(dir)) {
+            return List.of();
+        }
+        try (Stream<Path> dirs = Files.list(dir)) {
+            return dirs.filter(d -> Files.isRegularFile(d.resolve(BATCH)))
+                    .map(d -> d.getFileName().toString())
+                    .filter(id -> ID.matcher(id).matches() && !active.contains(id))
+                    .sorted()
+                    .toList();
+        } catch (IOException e) {
+            log.warn("Could not list checkpoints in {}", dir, e);
+            return List.of();
+        }
+    }
+
+    /**
+     * Loads the rows of an interrupted batch that still have to be sent and marks the batch as
+     * running, so it cannot be claimed twice.
+     *
+     * @return empty when there is no such batch or it is already running
+     */
+    public Optional<ResumableBatch> claim(String id) throws IOException {
+        if (!ID.matcher(id).matches() || !Files.isRegularFile(dir.resolve(id).resolve(BATCH)) || !active.add(id)) {
+            return Optional.empty();
+        }
+        try {
+            return Optional.of(load(id));
+        } catch (IOException | RuntimeException e) {
+            active.remove(id);
+            throw e;
+        }
+    }
+
+    private ResumableBatch load(String id) throws IOException {
+        Path batchDir = dir.resolve(id);
+        Properties batch = new Properties();
+        try (Reader in = Files.newBufferedReader(batchDir.resolve(BATCH), StandardCharsets.UTF_8)) {
+            batch.load(in);
+        }
+        int total = Integer.parseInt(batch.getProperty("total"));
+        int batchInterval = Integer.parseInt(batch.getProperty("interval"));
+        BitSet sent = readProgress(batchDir);
+
+        // every row below the high-water mark was sent: start reading at the block holding it
+        int highWaterMark = sent.nextClearBit(0);
+        int firstBlock = Math.min(highWaterMark, total) / batchInterval;
+        List<Integer> rows = new ArrayList<>();
+        List<PayrollRecord> records = new ArrayList<>();
+        try (FileChannel channel = FileChannel.open(batchDir.resolve(ROWS), StandardOpenOption.READ)) {
+            channel.position(blockOffset(batchDir, firstBlock));
+            DataInputStream in = new DataInputStream(new BufferedInputStream(Channels.newInputStream(channel)));
+            for (int row = firstBlock * batchInterval; row < total; row++) {
+                PayrollRecord rec = RowCodec.read(in);
+                if (!sent.get(row)) {
+                    rows.add(row);
+                    records.add(rec);
+                }
+            }
+        }
+
+        Checkpoint checkpoint = new Checkpoint(this, id, batchDir, batchInterval, sent);
+        return new ResumableBatch(
+                id,
+                Country.valueOf(batch.getProperty("country")),
+                batch.getProperty("company"),
+                ProcessOptions.builder()
+                        .groupByRecipient(Boolean.parseBoolean(batch.getProperty("group_by_recipient")))
+                        // absent in checkpoints written before priorities
+                        .priority(Priority.fromValue(batch.getProperty("priority", "normal")))
+                        .build(),
+                total,
+                rows.stream().mapToInt(Integer::intValue).toArray(),
+                records,
+                checkpoint
+        );
+    }
+
+    // Saves the sent rows atomically: a crash mid-write leaves the previous save in place.
+    void saveProgress(Path batchDir, BitSet sent) throws IOException {
+        long[] words = sent.toLongArray();
+        ByteBuffer buffer = ByteBuffer.allocate(Integer.BYTES + words.length * Long.BYTES);
+        buffer.putInt(words.length);
+        for (long word : words) {
+            buffer.putLong(word);
+        }
+        buffer.flip();
+        Path tmp = batchDir.resolve(PROGRESS + ".tmp");
+        try (FileChannel channel = FileChannel.open(tmp, StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)) {
+            while (buffer.hasRemaining()) {
+                channel.write(buffer);
+            }
+            channel.force(false);
+        }
+        Files.move(tmp, batchDir.resolve(PROGRESS), StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+    }
+
+    void finish(Checkpoint checkpoint) {
+        delete(checkpoint.dir());
+        active.remove(checkpoint.id());
+    }
+
+    void release(Checkpoint checkpoint) {
+        active.remove(checkpoint.id());
+    }
+
+    private void writeRows(Path batchDir, List<PayrollRecord> rows) throws IOException {
+        long[] offsets = new long[(rows.size() + interval - 1) / interval];
+        try (FileChannel channel = FileChannel.open(batchDir.resolve(ROWS), StandardOpenOption.CREATE_NEW, StandardOpenOption.WRITE)) {
+            DataOutputStream out = new DataOutputStream(new BufferedOutputStream(Channels.newOutputStream(channel), 64 * 1024));
+            for (int row = 0; row < rows.size(); row++) {
+                if (row % interval == 0) {
+                    offsets[row / interval] = out.size();
+                }
+                RowCodec.write(out, rows.get(row));
+            }
+            out.flush();
+            channel.force(false);
+        }
+        ByteBuffer index = ByteBuffer.allocate(offsets.length * Long.BYTES);
+        index.asLongBuffer().put(offsets);
+        Files.write(batchDir.resolve(INDEX), index.array());
+    }
+
+    private long blockOffset(Path batchDir, int block) throws IOException {
+        try (FileChannel channel = FileChannel.open(batchDir.resolve(INDEX), StandardOpenOption.READ)) {
+            if ((long) block * Long.BYTES >= channel.size()) {
+                return Files.size(batchDir.resolve(ROWS));
+            }
+            ByteBuffer buffer = ByteBuffer.allocate(Long.BYTES);
+            channel.read(buffer, (long) block * Long.BYTES);
+            return buffer.flip().getLong();
+        }
+    }
+
+    private BitSet readProgress(Path batchDir) throws IOException {
+        Path progress = batchDir.resolve(PROGRESS);
+        if (!Files.isRegularFile(progress)) {
+            return new BitSet();
+        }
+        try (InputStream in = Files.newInputStream(progress)) {
+            DataInputStream data = new DataInputStream(in);
+            long[] words = new long[data.readInt()];
+            for (int i = 0; i < words.length; i++) {
+                words[i] = data.readLong();
+            }
+            return BitSet.valueOf(words);
+        }
+    }
+
+    private static void delete(Path batchDir) {
+        try {
+            FileSystemUtils.deleteRecursively(batchDir);
+        } catch (IOException e) {
+            log.warn("Could not delete checkpoint {}", batchDir, e);
+        }
+    }
+}
@@ -0,0 +1,22 @@
+package com.atdev.paystubs_api.checkpoint;
+
+import com.atdev.paystubs_api.payment.Country;
+import com.atdev.paystubs_api.payment.PayrollRecord;
+import com.atdev.paystubs_api.payment.ProcessOptions;
+
+import java.util.List;
+
+/**
+ * An interrupted batch claimed for resuming: the rows still to send, in CSV order, and their
+ * indexes in the original CSV ({@code rows[i]} is the row of {@code records.get(i)}).
+ */
+public record ResumableBatch(
+        String id,
+        Country country,
+        String company,
+        ProcessOptions options,
+        int total,
+        int[] rows,
+        List<PayrollRecord> records,
+        Checkpoint checkpoint
+) {}
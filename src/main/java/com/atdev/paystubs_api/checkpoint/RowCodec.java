@@ -0,0 +1,36 @@
+package com.atdev.paystubs_api.checkpoint;
+
+import com.atdev.paystubs_api.payment.PayrollRecord;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+
+/**
+ * Compact binary form of a parsed CSV row, used wherever rows are kept on disk to outlive the
+ * process: checkpoints and scheduled jobs.
+ */
+public final class RowCodec {
+    private RowCodec() {
+    }
+
+    public static void write(DataOutputStream out, PayrollRecord rec) throws IOException {
+        out.writeUTF(rec.fullName());
+        out.writeUTF(rec.email());
+        out.writeUTF(rec.position());
+        out.writeDouble(rec.healthDiscountAmount());
+        out.writeDouble(rec.socialDiscountAmount());
+        out.writeDouble(rec.taxesDiscountAmount());
+        out.writeDouble(rec.otherDiscountAmount());
+        out.writeDouble(rec.grossSalary());
+        out.writeDouble(rec.grossPayment());
+        out.writeDouble(rec.netPayment());
+        out.writeUTF(rec.period());
+    }
+
+    public static PayrollRecord read(DataInputStream in) throws IOException {
+        return new PayrollRecord(in.readUTF(), in.readUTF(), in.readUTF(),
+                in.readDouble(), in.readDouble(), in.readDouble(), in.readDouble(),
+                in.readDouble(), in.readDouble(), in.readDouble(), in.readUTF());
+    }
+}
@@ -0,0 +1,314 @@
+package com.atdev.paystubs_api.email;
+
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.binder.MeterBinder;
+import jakarta.activation.DataSource;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Service;
+import org.springframework.util.unit.DataSize;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Keeps rendered PDFs of large batches off the Java heap, so heap use and GC pauses do not grow
+ * with the number of paystubs in flight. PDFs are written page by page into direct buffers, up to
+ * {@code app.attachments.off-heap}; past that, pages come from memory-mapped temp files in
+ * {@code app.attachments.spill-dir}. JavaMail reads a {@link Stored} attachment straight from
+ * those pages while it writes the message.
+ *
+ * <p>Direct memory is reserved in segments as needed and kept for reuse; a spill file is dropped
+ * (it is deleted once mapped) when none of its pages is in use.
+ */
+@Slf4j
+@Service
+public class AttachmentStore implements MeterBinder {
+    static final int PAGE_SIZE = 8 * 1024;
+    private static final int SEGMENT_SIZE = 16 * 1024 * 1024;
+
+    private final boolean enabled;
+    private final int minRows;
+    private final long offHeapCapacity;
+    private final int directSegmentSize;
+    private final Path spillDir;
+
+    private final ReentrantLock lock = new ReentrantLock();
+    private final List<Segment> direct = new ArrayList<>();
+    private final List<Segment> spill = new ArrayList<>();
+    private boolean directExhausted;
+
+    public AttachmentStore(@Value("${app.attachments.enabled:true}") boolean enabled,
+                           @Value("${app.attachments.min-rows:1000}") int minRows,
+                           @Value("${app.attachments.off-heap:64MB}") DataSize offHeap,
+                           @Value("${app.attachments.spill-dir:${java.io.tmpdir}}") Path spillDir) {
+        this.enabled = enabled;
+        this.minRows = minRows;
+        this.offHeapCapacity = Math.max(0, offHeap.toBytes());
+        this.directSegmentSize = (int) (Math.min(SEGMENT_SIZE, offHeapCapacity) / PAGE_SIZE * PAGE_SIZE);
+        this.spillDir = spillDir;
+    }
+
+    /** Whether a batch of {@code rows} keeps its rendered PDFs here rather than on the heap. */
+    public boolean usedFor(int rows) {
+        return enabled && rows >= minRows;
+    }
+
+    /**
+     * Stores what {@code content} writes. Pages taken for content that fails are given back.
+     * Close the result once the mail is sent.
+     */
+    public Stored write(Content content) throws Exception {
+        PageOutput out = new PageOutput();
+        try {
+            content.writeTo(out);
+        } catch (Exception e) {
+            free(out.pages);
+            throw e;
+        }
+        return new Stored(out.pages, out.length);
+    }
+
+    public State state() {
+        lock.lock();
+        try {
+            return new State(offHeapCapacity, (long) direct.size() * directSegmentSize, used(direct), used(spill), spill.size());
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    @Override
+    public void bindTo(MeterRegistry registry) {
+        Gauge.builder("paystubs.attachments.off.heap.reserved", this, s -> s.state().off_heap_reserved_bytes())
+                .baseUnit("bytes").register(registry);
+        Gauge.builder("paystubs.attachments.off.heap.used", this, s -> s.state().off_heap_used_bytes())
+                .baseUnit("bytes").register(registry);
+        Gauge.builder("paystubs.attachments.spill.used", this, s -> s.state().spill_used_bytes())
+                .baseUnit("bytes").register(registry);
+        Gauge.builder("paystubs.attachments.spill.files", this, s -> s.state().spill_files()).register(registry);
+    }
+
+    private Page allocate() throws IOException {
+        lock.lock();
+        try {
+            Page page = take(direct);
+            if (page == null && !directExhausted && directSegmentSize > 0
+                    && (long) (direct.size() + 1) * directSegmentSize <= offHeapCapacity) {
+                try {
+                    direct.add(new Segment(ByteBuffer.allocateDirect(directSegmentSize), false));
+                    page = take(direct);
+                } catch (OutOfMemoryError e) {
+                    // -XX:MaxDirectMemorySize is below app.attachments.off-heap
+                    log.warn("Direct memory exhausted at {} bytes, spilling attachments to {}", direct.size() * (long) directSegmentSize, spillDir);
+                    directExhausted = true;
+                }
+            }
+            if (page == null) {
+                page = take(spill);
+            }
+            if (page == null) {
+                spill.add(new Segment(mapSpillFile(), true));
+                page = take(spill);
+            }
+            return page;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private void free(List<Page> pages) {
+        lock.lock();
+        try {
+            for (Page page : pages) {
+                Segment segment = page.segment();
+                segment.free[segment.freeCount++] = page.index();
+                if (segment.mapped && segment.freeCount == segment.free.length) {
+                    // unmapped by the GC; the file itself is already deleted
+                    spill.remove(segment);
+                }
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private ByteBuffer mapSpillFile() throws IOException {
+        Files.createDirectories(spillDir);
+        Path file = Files.createTempFile(spillDir, "paystubs-", ".spill");
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ, StandardOpenOption.WRITE,
+                StandardOpenOption.DELETE_ON_CLOSE)) {
+            return channel.map(FileChannel.MapMode.READ_WRITE, 0, SEGMENT_SIZE);
+        }
+    }
+
+    private static Page take(List<Segment> segments) {
+        for (Segment segment : segments) {
+            if (segment.freeCount > 0) {
+                int index = segment.free[--segment.freeCount];
+                return new Page(segment, index, segment.buffer.slice(index * PAGE_SIZE, PAGE_SIZE));
+            }
+        }
+        return null;
+    }
+
+    private static long used(List<Segment> segments) {
+        long pages = 0;
+        for (Segment segment : segments) {
+            pages += segment.free.length - segment.freeCount;
+        }
+        return pages * PAGE_SIZE;
+    }
+
+    /** Writes the content of one attachment, e.g. {@code out -> pdfService.render(..., out)}. */
+    @FunctionalInterface
+    public interface Content {
+        void writeTo(OutputStream out) throws Exception;
+    }
+
+    // A direct buffer or mapped file cut into pages, with a stack of the free ones.
+    private static final class Segment {
+        private final ByteBuffer buffer;
+        private final boolean mapped;
+        private final int[] free;
+        private int freeCount;
+
+        private Segment(ByteBuffer buffer, boolean mapped) {
+            this.buffer = buffer;
+            this.mapped = mapped;
+            this.free = new int[buffer.capacity() / PAGE_SIZE];
+            for (int i = 0; i < free.length; i++) {
+                free[i] = free.length - 1 - i;
+            }
+            this.freeCount = free.length;
+        }
+    }
+
+    private record Page(Segment segment, int index, ByteBuffer buffer) {}
+
+    private final class PageOutput extends OutputStream {
+        private final List<Page> pages = new ArrayList<>();
+        private int length;
+
+        @Override
+        public void write(int b) throws IOException {
+            page().put((byte) b);
+            length++;
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+            while (len > 0) {
+                ByteBuffer page = page();
+                int n = Math.min(len, page.remaining());
+                page.put(b, off, n);
+                off += n;
+                len -= n;
+                length += n;
+            }
+        }
+
+        private ByteBuffer page() throws IOException {
+            if (pages.isEmpty() || !pages.get(pages.size() - 1).buffer().hasRemaining()) {
+                pages.add(allocate());
+            }
+            return pages.get(pages.size() - 1).buffer();
+        }
+    }
+
+    /** A stored PDF, read from its pages each time the message is written. */
+    public final class Stored implements DataSource, AutoCloseable {
+        private final List<Page> pages;
+        private final int length;
+        private final AtomicBoolean released = new AtomicBoolean();
+
+        private Stored(List<Page> pages, int length) {
+            this.pages = pages;
+            this.length = length;
+        }
+
+        public int size() {
+            return length;
+        }
+
+        @Override
+        public InputStream getInputStream() throws IOException {
+            if (released.get()) {
+                throw new IOException("Attachment was already released");
+            }
+            return new InputStream() {
+                private int position;
+
+                @Override
+                public int read() {
+                    if (position >= length) {
+                        return -1;
+                    }
+                    byte b = pages.get(position / PAGE_SIZE).buffer().get(position % PAGE_SIZE);
+                    position++;
+                    return b & 0xff;
+                }
+
+                @Override
+                public int read(byte[] b, int off, int len) {
+                    if (len == 0) {
+                        return 0;
+                    }
+                    if (position >= length) {
+                        return -1;
+                    }
+                    int n = Math.min(len, Math.min(length - position, PAGE_SIZE - position % PAGE_SIZE));
+                    pages.get(position / PAGE_SIZE).buffer().get(position % PAGE_SIZE, b, off, n);
+                    position += n;
+                    return n;
+                }
+
+                @Override
+                public int available() {
+                    return length - position;
+                }
+            };
+        }
+
+        @Override
+        public OutputStream getOutputStream() throws IOException {
+            throw new IOException("Stored attachments are read-only");
+        }
+
+        @Override
+        public String getContentType() {
+            return PdfAttachment.CONTENT_TYPE;
+        }
+
+        @Override
+        public String getName() {
+            return "paystub.pdf";
+        }
+
+        /** Gives the pages back; the attachment cannot be read anymore. */
+        @Override
+        public void close() {
+            if (released.compareAndSet(false, true)) {
+                free(pages);
+            }
+        }
+    }
+
+    /**
+     * @param off_heap_reserved_bytes direct memory taken so far, kept for reuse
+     * @param spill_files             mapped temp files with pages in use
+     */
+    public record State(long off_heap_capacity_bytes, long off_heap_reserved_bytes, long off_heap_used_bytes,
+                        long spill_used_bytes, int spill_files) {}
+}
@@ -0,0 +1,55 @@
+package com.atdev.paystubs_api.email;
+
+import jakarta.annotation.PreDestroy;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+import java.time.Duration;
+
+/**
+ * Hands deferred mail back to the relay: every {@code app.mail.deferred.poll} it asks
+ * {@link EmailService#drainDeferred()} to send what the {@link MailCircuitBreaker} lets through,
+ * so the probe that closes the breaker does not have to wait for the next batch.
+ */
+@Slf4j
+@Component
+public class DeferredMailDrainer implements AutoCloseable {
+    private final EmailService emailService;
+    private final DeferredMailStore deferred;
+    private final Duration poll;
+    private final Thread drainer;
+
+    public DeferredMailDrainer(EmailService emailService, DeferredMailStore deferred,
+                               @Value("${app.mail.deferred.poll:1s}") Duration poll) {
+        this.emailService = emailService;
+        this.deferred = deferred;
+        this.poll = poll;
+        this.drainer = Thread.ofVirtual().name("deferred-mail").start(this::drain);
+    }
+
+    @PreDestroy
+    @Override
+    public void close() {
+        drainer.interrupt();
+    }
+
+    private void drain() {
+        while (!Thread.currentThread().isInterrupted()) {
+            try {
+                Thread.sleep(poll);
+                if (deferred.pending().isEmpty()) {
+                    continue;
+                }
+                int sent = emailService.drainDeferred();
+                if (sent > 0) {
+                    log.info("Sent {} deferred messages", sent);
+                }
+            } catch (InterruptedException e) {
+                return;
+            } catch (Exception e) {
+                log.warn("Could not send deferred mail", e);
+            }
+        }
+    }
+}
@@ -0,0 +1,167 @@
+package com.atdev.paystubs_api.email;
+
+import io.micrometer.core.instrument.FunctionCounter;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.binder.MeterBinder;
+import jakarta.mail.MessagingException;
+import jakarta.mail.internet.MimeMessage;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.context.ApplicationEventPublisher;
+import org.springframework.stereotype.Service;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.stream.Stream;
+
+/**
+ * Messages accepted while the {@link MailCircuitBreaker} is open, kept as {@code .eml} files in
+ * {@code app.mail.deferred.dir} until the relay is back. Files are named so that they sort in the
+ * order they were deferred, and are written under a temporary name, synced to disk and renamed, so
+ * a crash never leaves half a message to be sent nor loses one reported as deferred. They survive
+ * a restart. Once a message is delivered or
+ * refused for good, a {@link Resolved} event says so.
+ */
+@Slf4j
+@Service
+public class DeferredMailStore implements MeterBinder {
+    private static final String SUFFIX = ".eml";
+
+    private final Path dir;
+    private final ApplicationEventPublisher events;
+    private final AtomicLong seq = new AtomicLong();
+    private final AtomicLong deferred = new AtomicLong();
+    private final AtomicLong delivered = new AtomicLong();
+    private final AtomicLong undeliverable = new AtomicLong();
+
+    @Autowired
+    public DeferredMailStore(@Value("${app.mail.deferred.dir:deferred}") Path dir, ApplicationEventPublisher events) {
+        this.dir = dir;
+        this.events = events;
+    }
+
+    public DeferredMailStore(Path dir) {
+        this(dir, event -> {});
+    }
+
+    /**
+     * Keeps {@code messages} until the relay is back, all of them or, when one cannot be written,
+     * none.
+     *
+     * @return the file of each message, in order
+     */
+    public List<Path> defer(MimeMessage... messages) throws IOException, MessagingException {
+        Files.createDirectories(dir);
+        List<Path> files = new ArrayList<>(messages.length);
+        try {
+            for (MimeMessage message : messages) {
+                files.add(write(message));
+            }
+        } catch (IOException | MessagingException | RuntimeException e) {
+            for (Path file : files) {
+                Files.deleteIfExists(file);
+            }
+            throw e;
+        }
+        syncDirectory();
+        deferred.addAndGet(files.size());
+        return files;
+    }
+
+    private Path write(MimeMessage message) throws IOException, MessagingException {
+        String name = String.format("%013d-%09d", System.currentTimeMillis(), seq.incrementAndGet());
+        Path tmp = dir.resolve(name + ".tmp");
+        message.saveChanges();
+        try {
+            try (OutputStream out = Files.newOutputStream(tmp)) {
+                message.writeTo(out);
+            }
+            try (FileChannel channel = FileChannel.open(tmp, StandardOpenOption.WRITE)) {
+                channel.force(true);
+            }
+        } catch (IOException | MessagingException | RuntimeException e) {
+            Files.deleteIfExists(tmp);
+            throw e;
+        }
+        Path file = dir.resolve(name + SUFFIX);
+        Files.move(tmp, file, StandardCopyOption.ATOMIC_MOVE);
+        return file;
+    }
+
+    // Makes the renames durable, so a message reported as deferred is still there after a power loss.
+    private void syncDirectory() {
+        try (FileChannel directory = FileChannel.open(dir, StandardOpenOption.READ)) {
+            directory.force(true);
+        } catch (IOException e) {
+            // some platforms cannot open a directory; the renames are as durable as they get there
+            log.debug("Could not sync deferred mail directory {}", dir, e);
+        }
+    }
+
+    /** The deferred messages, oldest first. */
+    public List<Path> pending() throws IOException {
+        if (!Files.isDirectory(dir)) {
+            return List.of();
+        }
+        try (Stream<Path> files = Files.list(dir)) {
+            return files.filter(f -> f.getFileName().toString().endsWith(SUFFIX)).sorted().toList();
+        }
+    }
+
+    /** {@code file} was sent; forgets it. */
+    public void delivered(Path file) throws IOException {
+        Files.deleteIfExists(file);
+        delivered.incrementAndGet();
+        events.publishEvent(new Resolved(file, null));
+    }
+
+    /** The relay refused {@code file} for good; keeps it aside, renamed to {@code .failed}, for a look. */
+    public void undeliverable(Path file, Exception e) throws IOException {
+        Files.move(file, file.resolveSibling(file.getFileName() + ".failed"), StandardCopyOption.REPLACE_EXISTING);
+        undeliverable.incrementAndGet();
+        log.error("Deferred message {} was refused by the mail relay and is kept as .failed", file.getFileName(), e);
+        events.publishEvent(new Resolved(file, e));
+    }
+
+    public State state() throws IOException {
+        return new State(dir.toString(), pending().size(), deferred.get(), delivered.get(), undeliverable.get());
+    }
+
+    @Override
+    public void bindTo(MeterRegistry registry) {
+        Gauge.builder("paystubs.mail.deferred.pending", this, s -> {
+            try {
+                return s.pending().size();
+            } catch (IOException e) {
+                return Double.NaN;
+            }
+        }).register(registry);
+        FunctionCounter.builder("paystubs.mail.deferred", this, s -> s.deferred.get()).register(registry);
+        FunctionCounter.builder("paystubs.mail.deferred.delivered", this, s -> s.delivered.get()).register(registry);
+    }
+
+    /**
+     * Published once a deferred message is done with.
+     *
+     * @param file    the file {@link #defer} returned for it
+     * @param refused why the relay refused it for good; {@code null} when it was delivered
+     */
+    public record Resolved(Path file, Exception refused) {}
+
+    /**
+     * @param pending       messages waiting for the relay now
+     * @param deferred      messages deferred since startup
+     * @param undeliverable deferred messages the relay refused for good since startup
+     */
+    public record State(String dir, int pending, long deferred, long delivered, long undeliverable) {}
+}
@@ -0,0 +1,21 @@
+package com.atdev.paystubs_api.email;
+
+import com.atdev.paystubs_api.payment.PayrollRecord;
+import jakarta.activation.DataSource;
+
+import java.util.List;
+
+/**
+ * One outgoing message: the paystubs of a single recipient and their rendered PDFs, in the same order.
+ */
+public record Delivery(List<PayrollRecord> records, List<? extends DataSource> pdfs) {
+    public Delivery {
+        if (records.isEmpty() || records.size() != pdfs.size()) {
+            throw new IllegalArgumentException("Expected one PDF per record, got " + pdfs.size() + " for " + records.size());
+        }
+    }
+
+    public String email() {
+        return records.get(0).email();
+    }
+}
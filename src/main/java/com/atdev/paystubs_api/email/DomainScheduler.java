@@ -0,0 +1,55 @@
+package com.atdev.paystubs_api.email;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.function.Function;
+
+/**
+ * Orders pending messages so that mail for the same recipient domain goes out together. Items are
+ * bucketed by domain and the buckets are drained round-robin, at most {@code batchSize} items per
+ * turn, so one large domain cannot hold back the others.
+ */
+public final class DomainScheduler {
+    private DomainScheduler() {}
+
+    /**
+     * @return batches in send order; every batch holds items of a single domain, in their original order
+     */
+    public static <T> List<List<T>> interleave(List<T> items, Function<T, String> emailOf, int batchSize) {
+        if (batchSize < 1) {
+            throw new IllegalArgumentException("batchSize must be positive: " + batchSize);
+        }
+
+        Map<String, ArrayDeque<T>> buckets = new LinkedHashMap<>();
+        for (T item : items) {
+            buckets.computeIfAbsent(domainOf(emailOf.apply(item)), d -> new ArrayDeque<>()).add(item);
+        }
+
+        List<List<T>> batches = new ArrayList<>();
+        while (!buckets.isEmpty()) {
+            Iterator<ArrayDeque<T>> it = buckets.values().iterator();
+            while (it.hasNext()) {
+                ArrayDeque<T> bucket = it.next();
+                List<T> batch = new ArrayList<>(Math.min(batchSize, bucket.size()));
+                while (batch.size() < batchSize && !bucket.isEmpty()) {
+                    batch.add(bucket.poll());
+                }
+                batches.add(batch);
+                if (bucket.isEmpty()) {
+                    it.remove();
+                }
+            }
+        }
+        return batches;
+    }
+
+    public static String domainOf(String email) {
+        int at = email.lastIndexOf('@');
+        return at < 0 ? "" : email.substring(at + 1).toLowerCase(Locale.ROOT);
+    }
+}
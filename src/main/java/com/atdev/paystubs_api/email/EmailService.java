@@ -1,15 +1,21 @@
 package com.atdev.paystubs_api.email;
 
 import com.atdev.paystubs_api.payment.PayrollRecord;
+import jakarta.activation.DataSource;
 import jakarta.mail.internet.MimeMessage;
-import lombok.AllArgsConstructor;
 import org.springframework.beans.factory.annotation.Value;
-import org.springframework.core.io.ByteArrayResource;
+import org.springframework.mail.MailSendException;
 import org.springframework.mail.javamail.JavaMailSender;
-import org.springframework.mail.javamail.MimeMessageHelper;
 import org.springframework.stereotype.Service;
 
+import java.io.InputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
 import java.util.Locale;
+import java.util.Map;
 
 @Service
 public class EmailService {
@@ -17,20 +23,187 @@ public class EmailService {
     private String from;
 
     private final JavaMailSender mailSender;
+    private final SendLimiter limiter;
+    private final MailCircuitBreaker breaker;
+    private final DeferredMailStore deferred;
+    // Keyed by the client-supplied company, so only the most recently used are kept.
+    static final int MAX_TEMPLATES = 256;
+    private final Map<TemplateKey, MessageTemplate> templates = new LinkedHashMap<>(16, 0.75f, true) {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<TemplateKey, MessageTemplate> eldest) {
+            return size() > MAX_TEMPLATES;
+        }
+    };
 
-    public EmailService(JavaMailSender mailSender) {
+    public EmailService(JavaMailSender mailSender, SendLimiter limiter, MailCircuitBreaker breaker, DeferredMailStore deferred) {
         this.mailSender = mailSender;
+        this.limiter = limiter;
+        this.breaker = breaker;
+        this.deferred = deferred;
     }
 
     public void sendEmail(PayrollRecord rec, String company, byte[] pdf, Locale loc) throws Exception {
-        MimeMessage message = mailSender.createMimeMessage();
-        MimeMessageHelper helper = new MimeMessageHelper(message, true, "UTF-8");
-        helper.setFrom(from);
-        helper.setTo(rec.email());
-        String subject = (Locale.ENGLISH.equals(loc) ? "Paystub Payment" : "Comprobante de Pago") + " - " + company;
-        helper.setSubject(subject);
-        helper.setText((Locale.ENGLISH.equals(loc) ? "Please find attached your paystub." : "Adjunto su comprobante de pago."), false);
-        helper.addAttachment("paystub-" + rec.fullName().replaceAll("\\s+", "_") + ".pdf", new ByteArrayResource(pdf));
-        mailSender.send(message);
+        sendAttachment(rec, company, PdfAttachment.of(pdf), loc);
     }
+
+    /**
+     * Sends the paystub reading the PDF from {@code pdf} only while the message is written to the
+     * transport, e.g. a {@link PdfAttachment.Buffer} filled directly by the renderer.
+     *
+     * @throws MailDeferredException when the message was deferred instead of sent
+     */
+    public void sendAttachment(PayrollRecord rec, String company, DataSource pdf, Locale loc) throws Exception {
+        send(createMessage(rec, company, pdf, loc));
+    }
+
+    /**
+     * Sends all paystubs of one recipient in a single message, one attachment per record.
+     * {@code recs} and {@code pdfs} are parallel lists and every record must share the same email.
+     *
+     * @throws MailDeferredException when the message was deferred instead of sent
+     */
+    public void sendEmails(List<PayrollRecord> recs, String company, List<? extends DataSource> pdfs, Locale loc) throws Exception {
+        send(createMessage(new Delivery(recs, pdfs), company, loc));
+    }
+
+    /**
+     * Sends every delivery of {@code batch} over a single SMTP connection. Callers group the batch
+     * by recipient domain (see {@link DomainScheduler}) so the connection goes to one downstream path.
+     * Every send, single or batched, waits for room under the {@link SendLimiter}, and is deferred
+     * rather than sent while the {@link MailCircuitBreaker} is open.
+     *
+     * @return the deliveries the server refused, by index in {@code batch}; every other one was sent
+     * @throws MailDeferredException when the whole batch was deferred instead
+     */
+    public Map<Integer, Exception> sendBatch(List<Delivery> batch, String company, Locale loc) throws Exception {
+        MimeMessage[] messages = new MimeMessage[batch.size()];
+        for (int i = 0; i < messages.length; i++) {
+            messages[i] = createMessage(batch.get(i), company, loc);
+        }
+        try {
+            send(messages, () -> mailSender.send(messages));
+            return Map.of();
+        } catch (MailSendException e) {
+            Map<Object, Exception> failedMessages = e.getFailedMessages();
+            if (failedMessages.isEmpty()) {
+                throw e;
+            }
+            Map<Integer, Exception> refused = new HashMap<>();
+            for (int i = 0; i < messages.length; i++) {
+                Exception failure = failedMessages.get(messages[i]);
+                if (failure != null) {
+                    refused.put(i, failure);
+                }
+            }
+            return refused;
+        }
+    }
+
+    /**
+     * Sends deferred messages, oldest first, for as long as the breaker lets them through. The
+     * first one is the probe that closes an open breaker.
+     *
+     * @return how many were sent
+     */
+    public int drainDeferred() throws Exception {
+        int sent = 0;
+        for (Path file : deferred.pending()) {
+            MimeMessage message;
+            try (InputStream in = Files.newInputStream(file)) {
+                message = mailSender.createMimeMessage(in);
+            }
+            if (!breaker.allow()) {
+                break;
+            }
+            try {
+                limiter.send(1, () -> mailSender.send(message));
+            } catch (Exception e) {
+                if (MailFailures.interrupted(e)) {
+                    // stopped, e.g. at shutdown: the message stays deferred and is sent by the next drain
+                    breaker.failed(e);
+                    Thread.currentThread().interrupt();
+                    break;
+                }
+                if (breaker.failed(e)) {
+                    // still down: the rest waits for the next probe
+                    break;
+                }
+                deferred.undeliverable(file, e);
+                continue;
+            }
+            breaker.succeeded();
+            deferred.delivered(file);
+            sent++;
+        }
+        return sent;
+    }
+
+    private void send(MimeMessage message) throws Exception {
+        send(new MimeMessage[]{message}, () -> mailSender.send(message));
+    }
+
+    // Runs send, which hands messages to the relay, or while it is down, accepts them into the deferred store.
+    private void send(MimeMessage[] messages, SendLimiter.Send send) throws Exception {
+        if (!breaker.allow()) {
+            throw new MailDeferredException(deferred.defer(messages));
+        }
+        try {
+            limiter.send(messages.length, send);
+        } catch (Exception e) {
+            breaker.failed(e);
+            throw e;
+        }
+        breaker.succeeded();
+    }
+
+    MimeMessage createMessage(Delivery delivery, String company, Locale loc) throws Exception {
+        List<PayrollRecord> recs = delivery.records();
+        if (recs.size() == 1) {
+            return createMessage(recs.get(0), company, delivery.pdfs().get(0), loc);
+        }
+
+        Map<String, DataSource> attachments = new LinkedHashMap<>();
+        Map<String, Integer> seen = new HashMap<>();
+        for (int i = 0; i < recs.size(); i++) {
+            PayrollRecord rec = recs.get(i);
+            String name = MessageTemplate.attachmentName(rec.fullName(), rec.period());
+            int n = seen.merge(name, 1, Integer::sum);
+            if (n > 1) {
+                name = name.substring(0, name.length() - ".pdf".length()) + "-" + n + ".pdf";
+            }
+            attachments.put(name, delivery.pdfs().get(i));
+        }
+        return template(company, loc).fill(mailSender.createMimeMessage(), delivery.email(), attachments);
+    }
+
+    MimeMessage createMessage(PayrollRecord rec, String company, DataSource pdf, Locale loc) throws Exception {
+        return template(company, loc).fill(
+                mailSender.createMimeMessage(),
+                rec.email(),
+                Map.of(MessageTemplate.attachmentName(rec.fullName()), pdf)
+        );
+    }
+
+    private MessageTemplate template(String company, Locale loc) throws Exception {
+        TemplateKey key = new TemplateKey(company, loc);
+        MessageTemplate template;
+        synchronized (templates) {
+            template = templates.get(key);
+        }
+        if (template == null) {
+            template = MessageTemplate.of(from, company, loc);
+            synchronized (templates) {
+                templates.putIfAbsent(key, template);
+            }
+        }
+        return template;
+    }
+
+    int cachedTemplates() {
+        synchronized (templates) {
+            return templates.size();
+        }
+    }
+
+    private record TemplateKey(String company, Locale locale) {}
 }
@@ -0,0 +1,170 @@
+package com.atdev.paystubs_api.email;
+
+import io.micrometer.core.instrument.FunctionCounter;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.binder.MeterBinder;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Service;
+
+import java.time.Clock;
+import java.time.Duration;
+import java.time.Instant;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Stops talking to the SMTP relay while it is down. After {@code app.mail.breaker.failure-threshold}
+ * sends in a row find the relay down (see {@link MailFailures#relayDown}) the breaker opens, and
+ * sends are deferred right away instead of each waiting for the connect timeout. Once
+ * {@code app.mail.breaker.open-duration} has passed, one send is let through as a probe: if it
+ * reaches the relay the breaker closes, else it stays open for another round.
+ */
+@Slf4j
+@Service
+public class MailCircuitBreaker implements MeterBinder {
+    private final boolean enabled;
+    private final int failureThreshold;
+    private final Duration openDuration;
+    private final Clock clock;
+
+    private final ReentrantLock lock = new ReentrantLock();
+    private Status status = Status.CLOSED;
+    private int failures;
+    private Instant openedAt;
+    private long opened;
+
+    @Autowired
+    public MailCircuitBreaker(@Value("${app.mail.breaker.enabled:true}") boolean enabled,
+                              @Value("${app.mail.breaker.failure-threshold:5}") int failureThreshold,
+                              @Value("${app.mail.breaker.open-duration:30s}") Duration openDuration) {
+        this(enabled, failureThreshold, openDuration, Clock.systemUTC());
+    }
+
+    MailCircuitBreaker(boolean enabled, int failureThreshold, Duration openDuration, Clock clock) {
+        this.enabled = enabled;
+        this.failureThreshold = Math.max(1, failureThreshold);
+        this.openDuration = openDuration;
+        this.clock = clock;
+    }
+
+    /** A breaker that never opens, for callers that do not defer. */
+    public static MailCircuitBreaker disabled() {
+        return new MailCircuitBreaker(false, 1, Duration.ZERO);
+    }
+
+    /**
+     * Whether a send may go to the relay now. Once the breaker has been open long enough, the
+     * first caller gets {@code true} as the probe; it must report back with {@link #succeeded()} or
+     * {@link #failed}, and everyone else is turned away until it does.
+     */
+    public boolean allow() {
+        if (!enabled) {
+            return true;
+        }
+        lock.lock();
+        try {
+            if (status == Status.OPEN && !clock.instant().isBefore(openedAt.plus(openDuration))) {
+                status = Status.HALF_OPEN;
+                return true;
+            }
+            return status == Status.CLOSED;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /** A send reached the relay. */
+    public void succeeded() {
+        if (!enabled) {
+            return;
+        }
+        lock.lock();
+        try {
+            failures = 0;
+            if (status != Status.CLOSED) {
+                status = Status.CLOSED;
+                log.info("Mail relay reachable again; circuit breaker closed");
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * A send failed with {@code e}. A send interrupted or cancelled on this side says nothing
+     * about the relay and is not counted either way; if it was the probe, the next caller probes.
+     *
+     * @return whether it failed because the relay is down; other failures count as reaching it
+     */
+    public boolean failed(Throwable e) {
+        if (MailFailures.interrupted(e)) {
+            abandoned();
+            return false;
+        }
+        if (!MailFailures.relayDown(e)) {
+            succeeded();
+            return false;
+        }
+        if (!enabled) {
+            return true;
+        }
+        lock.lock();
+        try {
+            failures++;
+            if (status == Status.HALF_OPEN || (status == Status.CLOSED && failures >= failureThreshold)) {
+                status = Status.OPEN;
+                openedAt = clock.instant();
+                opened++;
+                log.warn("Mail relay down after {} failed sends; deferring mail for {}", failures, openDuration, e);
+            }
+            return true;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    // the probe never got an answer: back to open, and already due for another one
+    private void abandoned() {
+        if (!enabled) {
+            return;
+        }
+        lock.lock();
+        try {
+            if (status == Status.HALF_OPEN) {
+                status = Status.OPEN;
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    public State state() {
+        lock.lock();
+        try {
+            return new State(enabled, status, failures, failureThreshold, openedAt, opened);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    @Override
+    public void bindTo(MeterRegistry registry) {
+        Gauge.builder("paystubs.mail.breaker.open", this, b -> b.state().status() == Status.CLOSED ? 0 : 1)
+                .register(registry);
+        FunctionCounter.builder("paystubs.mail.breaker.opened", this, b -> b.state().opened()).register(registry);
+    }
+
+    public enum Status {
+        CLOSED, OPEN, HALF_OPEN
+    }
+
+    /**
+     * @param failures  sends in a row that found the relay down
+     * @param opened_at when the breaker last opened
+     * @param opened    times it opened since startup
+     */
+    public record State(boolean enabled, Status status, int failures, int failure_threshold, Instant opened_at,
+                        long opened) {}
+}
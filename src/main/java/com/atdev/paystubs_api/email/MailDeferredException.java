@@ -0,0 +1,23 @@
+package com.atdev.paystubs_api.email;
+
+import java.nio.file.Path;
+import java.util.List;
+
+/**
+ * Thrown instead of sending while the {@link MailCircuitBreaker} is open: the messages were not
+ * sent, but are kept in the {@link DeferredMailStore} and go out once the relay is back. Not a
+ * failure, so callers must not send them again.
+ */
+public class MailDeferredException extends Exception {
+    private final List<Path> files;
+
+    public MailDeferredException(List<Path> files) {
+        super("Mail relay down; " + files.size() + " message(s) deferred");
+        this.files = List.copyOf(files);
+    }
+
+    /** The deferred file of each message, in the order the messages were given. */
+    public List<Path> files() {
+        return files;
+    }
+}
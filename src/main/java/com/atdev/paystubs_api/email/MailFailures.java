@@ -0,0 +1,101 @@
+package com.atdev.paystubs_api.email;
+
+import org.eclipse.angus.mail.smtp.SMTPAddressFailedException;
+import org.eclipse.angus.mail.smtp.SMTPSendFailedException;
+import org.eclipse.angus.mail.smtp.SMTPSenderFailedException;
+import org.eclipse.angus.mail.util.MailConnectException;
+import org.springframework.mail.MailSendException;
+
+import java.io.InterruptedIOException;
+import java.net.ConnectException;
+import java.net.NoRouteToHostException;
+import java.net.SocketTimeoutException;
+import java.net.UnknownHostException;
+import java.nio.channels.ClosedByInterruptException;
+import java.util.ArrayDeque;
+import java.util.Collections;
+import java.util.Deque;
+import java.util.IdentityHashMap;
+import java.util.Set;
+import java.util.concurrent.CancellationException;
+import java.util.function.Predicate;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * Reads what went wrong from a failed send. Spring and JavaMail wrap the cause several times,
+ * and a batch send reports one failure per message, so every check looks at the whole chain.
+ */
+final class MailFailures {
+    private static final Pattern REPLY = Pattern.compile("^\\s*([2-5]\\d\\d)[ -].*", Pattern.DOTALL);
+
+    private MailFailures() {
+    }
+
+    /** Whether the send timed out reading or writing, or connecting. */
+    static boolean timedOut(Throwable e) {
+        return any(e, t -> t instanceof SocketTimeoutException);
+    }
+
+    /** Whether the server answered with a transient {@code 4xx} reply, e.g. a throttling one. */
+    static boolean transientReply(Throwable e) {
+        return any(e, t -> replyCode(t) / 100 == 4);
+    }
+
+    /**
+     * Whether the relay itself could not be used: no connection, a timeout, or {@code 421 Service
+     * not available}. A refused recipient or sender means the relay is up.
+     */
+    static boolean relayDown(Throwable e) {
+        return any(e, t -> t instanceof MailConnectException || t instanceof ConnectException
+                || t instanceof UnknownHostException || t instanceof NoRouteToHostException
+                || t instanceof SocketTimeoutException || replyCode(t) == 421);
+    }
+
+    /**
+     * Whether the send was stopped on this side, by an interrupt or a cancellation, before the
+     * relay had its say. A socket timeout is an {@link InterruptedIOException} too, but not one of these.
+     */
+    static boolean interrupted(Throwable e) {
+        return any(e, t -> t instanceof InterruptedException || t instanceof ClosedByInterruptException
+                || t instanceof CancellationException
+                || (t instanceof InterruptedIOException && !(t instanceof SocketTimeoutException)));
+    }
+
+    // the SMTP reply code carried by t, or read from the start of its message; -1 if it has none
+    private static int replyCode(Throwable t) {
+        int code = switch (t) {
+            case SMTPSendFailedException e -> e.getReturnCode();
+            case SMTPAddressFailedException e -> e.getReturnCode();
+            case SMTPSenderFailedException e -> e.getReturnCode();
+            default -> -1;
+        };
+        if (code >= 0 || t.getMessage() == null) {
+            return code;
+        }
+        Matcher reply = REPLY.matcher(t.getMessage());
+        return reply.matches() ? Integer.parseInt(reply.group(1)) : -1;
+    }
+
+    private static boolean any(Throwable e, Predicate<Throwable> test) {
+        Set<Throwable> seen = Collections.newSetFromMap(new IdentityHashMap<>());
+        Deque<Throwable> next = new ArrayDeque<>();
+        next.add(e);
+        while (!next.isEmpty()) {
+            Throwable t = next.poll();
+            if (!seen.add(t)) {
+                continue;
+            }
+            if (test.test(t)) {
+                return true;
+            }
+            if (t instanceof MailSendException send) {
+                next.addAll(send.getFailedMessages().values());
+            }
+            if (t.getCause() != null) {
+                next.add(t.getCause());
+            }
+        }
+        return false;
+    }
+}
@@ -0,0 +1,30 @@
+package com.atdev.paystubs_api.email;
+
+import org.springframework.boot.actuate.endpoint.annotation.Endpoint;
+import org.springframework.boot.actuate.endpoint.annotation.ReadOperation;
+import org.springframework.stereotype.Component;
+
+import java.io.IOException;
+import java.util.Map;
+
+/**
+ * {@code GET /actuator/mailrelay}: whether the circuit breaker in front of the SMTP relay is open,
+ * and the mail deferred while it was.
+ */
+@Component
+@Endpoint(id = "mailrelay")
+public class MailRelayEndpoint {
+
+    private final MailCircuitBreaker breaker;
+    private final DeferredMailStore deferred;
+
+    public MailRelayEndpoint(MailCircuitBreaker breaker, DeferredMailStore deferred) {
+        this.breaker = breaker;
+        this.deferred = deferred;
+    }
+
+    @ReadOperation
+    public Map<String, Object> state() throws IOException {
+        return Map.of("breaker", breaker.state(), "deferred", deferred.state());
+    }
+}
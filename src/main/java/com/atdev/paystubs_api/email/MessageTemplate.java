@@ -0,0 +1,109 @@
+package com.atdev.paystubs_api.email;
+
+import jakarta.activation.DataHandler;
+import jakarta.activation.DataSource;
+import jakarta.mail.MessagingException;
+import jakarta.mail.Part;
+import jakarta.mail.internet.InternetAddress;
+import jakarta.mail.internet.InternetHeaders;
+import jakarta.mail.internet.MimeBodyPart;
+import jakarta.mail.internet.MimeMessage;
+import jakarta.mail.internet.MimeMultipart;
+import jakarta.mail.internet.MimeUtility;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.Locale;
+import java.util.Map;
+import java.util.regex.Pattern;
+
+/**
+ * Static parts of a paystub email for one company and locale: sender, encoded subject and the
+ * pre-encoded text part. Built once and reused, so each message only adds its recipient and PDF.
+ */
+final class MessageTemplate {
+    private static final Pattern WHITESPACE = Pattern.compile("\\s+");
+    private static final String TEXT_CONTENT_TYPE = "text/plain; charset=UTF-8";
+    private static final String TEXT_ENCODING = "quoted-printable";
+
+    private final InternetAddress from;
+    private final String encodedSubject;
+    private final byte[] encodedText;
+    private final byte[] encodedGroupText;
+
+    private MessageTemplate(InternetAddress from, String encodedSubject, byte[] encodedText, byte[] encodedGroupText) {
+        this.from = from;
+        this.encodedSubject = encodedSubject;
+        this.encodedText = encodedText;
+        this.encodedGroupText = encodedGroupText;
+    }
+
+    static MessageTemplate of(String from, String company, Locale loc) throws MessagingException, IOException {
+        boolean en = Locale.ENGLISH.equals(loc);
+        String subject = (en ? "Paystub Payment" : "Comprobante de Pago") + " - " + company;
+        String text = en ? "Please find attached your paystub." : "Adjunto su comprobante de pago.";
+        String groupText = en ? "Please find attached your paystubs." : "Adjunto sus comprobantes de pago.";
+
+        return new MessageTemplate(
+                new InternetAddress(from),
+                MimeUtility.fold(9, MimeUtility.encodeText(subject, "UTF-8", null)),
+                encode(text),
+                encode(groupText)
+        );
+    }
+
+    static String attachmentName(String fullName) {
+        return "paystub-" + WHITESPACE.matcher(fullName).replaceAll("_") + ".pdf";
+    }
+
+    static String attachmentName(String fullName, String period) {
+        return "paystub-" + WHITESPACE.matcher(fullName).replaceAll("_") + "-" + WHITESPACE.matcher(period).replaceAll("_") + ".pdf";
+    }
+
+    /**
+     * @param attachments file name to PDF, in the order they should appear in the message
+     */
+    MimeMessage fill(MimeMessage message, String to, Map<String, ? extends DataSource> attachments) throws MessagingException {
+        message.setFrom(from);
+        message.setRecipient(MimeMessage.RecipientType.TO, new InternetAddress(to));
+        message.setHeader("Subject", encodedSubject);
+
+        MimeMultipart mixed = new MimeMultipart("mixed");
+        mixed.addBodyPart(textPart(attachments.size() > 1 ? encodedGroupText : encodedText));
+        for (Map.Entry<String, ? extends DataSource> attachment : attachments.entrySet()) {
+            mixed.addBodyPart(attachmentPart(attachment.getKey(), attachment.getValue()));
+        }
+        message.setContent(mixed);
+        return message;
+    }
+
+    private static byte[] encode(String text) throws MessagingException, IOException {
+        ByteArrayOutputStream body = new ByteArrayOutputStream();
+        try (OutputStream qp = MimeUtility.encode(body, TEXT_ENCODING)) {
+            qp.write(text.getBytes(StandardCharsets.UTF_8));
+        }
+        return body.toByteArray();
+    }
+
+    // Headers are copied per message because JavaMail rewrites them in place on saveChanges();
+    // the encoded body bytes are shared read-only.
+    private MimeBodyPart textPart(byte[] encoded) throws MessagingException {
+        InternetHeaders headers = new InternetHeaders();
+        headers.setHeader("Content-Type", TEXT_CONTENT_TYPE);
+        headers.setHeader("Content-Transfer-Encoding", TEXT_ENCODING);
+        return new MimeBodyPart(headers, encoded);
+    }
+
+    // Declaring base64 up front stops saveChanges() from reading the whole PDF to pick an encoding;
+    // on send the data source is piped through JavaMail's streaming encoder onto the socket.
+    private MimeBodyPart attachmentPart(String name, DataSource attachment) throws MessagingException {
+        MimeBodyPart part = new MimeBodyPart();
+        part.setDataHandler(new DataHandler(attachment));
+        part.setHeader("Content-Transfer-Encoding", "base64");
+        part.setDisposition(Part.ATTACHMENT);
+        part.setFileName(name);
+        return part;
+    }
+}
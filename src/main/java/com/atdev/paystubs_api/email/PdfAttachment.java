@@ -0,0 +1,71 @@
+package com.atdev.paystubs_api.email;
+
+import jakarta.activation.DataSource;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+
+/**
+ * Read-only view over rendered PDF bytes. JavaMail pulls it through its streaming base64 encoder
+ * straight onto the transport, so the bytes are never copied or held pre-encoded in memory.
+ */
+public final class PdfAttachment implements DataSource {
+    public static final String CONTENT_TYPE = "application/pdf";
+
+    private final byte[] bytes;
+    private final int length;
+
+    private PdfAttachment(byte[] bytes, int length) {
+        this.bytes = bytes;
+        this.length = length;
+    }
+
+    public static PdfAttachment of(byte[] pdf) {
+        return new PdfAttachment(pdf, pdf.length);
+    }
+
+    public static Buffer buffer() {
+        return new Buffer();
+    }
+
+    public int size() {
+        return length;
+    }
+
+    @Override
+    public InputStream getInputStream() {
+        return new ByteArrayInputStream(bytes, 0, length);
+    }
+
+    @Override
+    public OutputStream getOutputStream() throws IOException {
+        throw new IOException("PdfAttachment is read-only");
+    }
+
+    @Override
+    public String getContentType() {
+        return CONTENT_TYPE;
+    }
+
+    @Override
+    public String getName() {
+        return "paystub.pdf";
+    }
+
+    /**
+     * Render target whose internal array is handed to the attachment as-is instead of being
+     * copied by {@link ByteArrayOutputStream#toByteArray()}.
+     */
+    public static final class Buffer extends ByteArrayOutputStream {
+        private Buffer() {
+            super(32 * 1024);
+        }
+
+        public PdfAttachment toAttachment() {
+            return new PdfAttachment(buf, count);
+        }
+    }
+}
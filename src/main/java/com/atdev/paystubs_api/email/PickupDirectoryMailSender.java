@@ -0,0 +1,245 @@
+package com.atdev.paystubs_api.email;
+
+import jakarta.mail.MessagingException;
+import jakarta.mail.Session;
+import jakarta.mail.internet.MimeMessage;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
+import org.springframework.mail.MailException;
+import org.springframework.mail.MailParseException;
+import org.springframework.mail.MailSendException;
+import org.springframework.mail.SimpleMailMessage;
+import org.springframework.mail.javamail.JavaMailSender;
+import org.springframework.mail.javamail.MimeMailMessage;
+import org.springframework.stereotype.Component;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.stream.Stream;
+
+/**
+ * Delivers by writing each message as an RFC 822 {@code .eml} file into the pickup directory of a
+ * local MTA ({@code app.mail.pickup.dir}) instead of speaking SMTP; selected with
+ * {@code app.mail.transport=pickup}, it replaces the SMTP sender everywhere. A message is written
+ * to a staging directory next to the pickup directory and renamed into it, so the MTA never sees
+ * a partial file. With {@code app.mail.pickup.fsync}, a send returns only once its files are on
+ * disk. Files staged while one commit runs are committed together by the next, so concurrent
+ * senders share one directory sync per group rather than paying one each. Files a crash left in
+ * staging are deleted at startup: their send never returned, so they were reported as failed.
+ */
+@Slf4j
+@Component
+@ConditionalOnProperty(name = "app.mail.transport", havingValue = "pickup")
+public class PickupDirectoryMailSender implements JavaMailSender {
+    private final Path dir;
+    private final Path staging;
+    private final boolean fsync;
+    private final Session session = Session.getInstance(new Properties());
+
+    // files written to staging and not yet committed, in the order they were staged
+    private final ReentrantLock lock = new ReentrantLock();
+    private final List<Path> pending = new ArrayList<>();
+    private long seq;
+    private long staged;
+
+    private final ReentrantLock commitLock = new ReentrantLock();
+    private final Map<Path, IOException> failures = new ConcurrentHashMap<>();
+    private volatile long committed;
+
+    @Autowired
+    public PickupDirectoryMailSender(@Value("${app.mail.pickup.dir:pickup}") Path dir,
+                                     @Value("${app.mail.pickup.fsync:true}") boolean fsync) throws IOException {
+        this.dir = dir.toAbsolutePath();
+        this.staging = this.dir.resolveSibling(this.dir.getFileName() + ".tmp");
+        this.fsync = fsync;
+        Files.createDirectories(this.dir);
+        Files.createDirectories(staging);
+        discardLeftovers();
+        log.info("Delivering mail to pickup directory {}", this.dir);
+    }
+
+    @Override
+    public MimeMessage createMimeMessage() {
+        return new MimeMessage(session);
+    }
+
+    @Override
+    public MimeMessage createMimeMessage(InputStream contentStream) throws MailException {
+        try {
+            return new MimeMessage(session, contentStream);
+        } catch (MessagingException e) {
+            throw new MailParseException("Could not parse raw MIME content", e);
+        }
+    }
+
+    @Override
+    public void send(MimeMessage... mimeMessages) throws MailException {
+        Map<Object, Exception> failed = new LinkedHashMap<>();
+        Map<Path, MimeMessage> written = new LinkedHashMap<>();
+        long last = -1;
+        for (MimeMessage message : mimeMessages) {
+            try {
+                Staged file = stage(message);
+                written.put(file.path(), message);
+                last = file.seq();
+            } catch (IOException | MessagingException e) {
+                failed.put(message, e);
+            }
+        }
+        if (last >= 0) {
+            commit(last);
+        }
+        written.forEach((file, message) -> {
+            IOException e = failures.remove(file);
+            if (e != null) {
+                failed.put(message, e);
+            }
+        });
+        if (!failed.isEmpty()) {
+            throw new MailSendException(failed);
+        }
+    }
+
+    @Override
+    public void send(SimpleMailMessage... simpleMessages) throws MailException {
+        MimeMessage[] messages = new MimeMessage[simpleMessages.length];
+        for (int i = 0; i < simpleMessages.length; i++) {
+            MimeMailMessage message = new MimeMailMessage(createMimeMessage());
+            simpleMessages[i].copyTo(message);
+            messages[i] = message.getMimeMessage();
+        }
+        send(messages);
+    }
+
+    /** The pickup directory messages are written to. */
+    public Path dir() {
+        return dir;
+    }
+
+    // Writes message to the staging directory, where it waits for the next commit.
+    private Staged stage(MimeMessage message) throws IOException, MessagingException {
+        if (message.getSentDate() == null) {
+            message.setSentDate(new Date());
+        }
+        message.saveChanges();
+
+        lock.lock();
+        long n;
+        try {
+            n = ++seq;
+        } finally {
+            lock.unlock();
+        }
+        Path tmp = staging.resolve(String.format("%013d-%09d.eml", System.currentTimeMillis(), n));
+        try (OutputStream out = Files.newOutputStream(tmp, StandardOpenOption.CREATE_NEW, StandardOpenOption.WRITE)) {
+            message.writeTo(out);
+        } catch (IOException | MessagingException | RuntimeException e) {
+            Files.deleteIfExists(tmp);
+            throw e;
+        }
+
+        lock.lock();
+        try {
+            pending.add(tmp);
+            return new Staged(tmp, ++staged);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Moves every staged file up to the {@code upTo}th into the pickup directory. Whoever holds
+     * the commit lock takes all files staged so far, by any sender: with fsync, it forces each to
+     * disk, renames them, and syncs the directory once for all the renames. A sender that waited
+     * for the lock usually finds its files already committed. Failures are left in {@link #failures}.
+     */
+    private void commit(long upTo) {
+        if (committed >= upTo) {
+            return;
+        }
+        commitLock.lock();
+        try {
+            if (committed >= upTo) {
+                return;
+            }
+            List<Path> files;
+            long last;
+            lock.lock();
+            try {
+                files = new ArrayList<>(pending);
+                pending.clear();
+                last = staged;
+            } finally {
+                lock.unlock();
+            }
+
+            for (Path tmp : files) {
+                try {
+                    if (fsync) {
+                        try (FileChannel channel = FileChannel.open(tmp, StandardOpenOption.WRITE)) {
+                            channel.force(false);
+                        }
+                    }
+                    Files.move(tmp, dir.resolve(tmp.getFileName()), StandardCopyOption.ATOMIC_MOVE);
+                } catch (IOException e) {
+                    failures.put(tmp, e);
+                    deleteQuietly(tmp);
+                }
+            }
+            if (fsync) {
+                syncDirectory();
+            }
+            committed = last;
+        } finally {
+            commitLock.unlock();
+        }
+    }
+
+    // A staged file may be partial, and its row is already failed and retryable; delivering it could send it twice.
+    private void discardLeftovers() throws IOException {
+        List<Path> leftovers;
+        try (Stream<Path> files = Files.list(staging)) {
+            leftovers = files.toList();
+        }
+        if (leftovers.isEmpty()) {
+            return;
+        }
+        leftovers.forEach(PickupDirectoryMailSender::deleteQuietly);
+        log.warn("Deleted {} message(s) left uncommitted in {} by an earlier run", leftovers.size(), staging);
+    }
+
+    private void syncDirectory() {
+        try (FileChannel directory = FileChannel.open(dir, StandardOpenOption.READ)) {
+            directory.force(true);
+        } catch (IOException e) {
+            // some platforms cannot open a directory; the renames are as durable as they get there
+            log.debug("Could not sync pickup directory {}", dir, e);
+        }
+    }
+
+    private static void deleteQuietly(Path file) {
+        try {
+            Files.deleteIfExists(file);
+        } catch (IOException e) {
+            log.warn("Could not delete staged message {}", file, e);
+        }
+    }
+
+    private record Staged(Path path, long seq) {}
+}
@@ -0,0 +1,50 @@
+package com.atdev.paystubs_api.email;
+
+import org.springframework.boot.actuate.endpoint.annotation.DeleteOperation;
+import org.springframework.boot.actuate.endpoint.annotation.Endpoint;
+import org.springframework.boot.actuate.endpoint.annotation.ReadOperation;
+import org.springframework.boot.actuate.endpoint.annotation.WriteOperation;
+import org.springframework.boot.actuate.endpoint.web.WebEndpointResponse;
+import org.springframework.lang.Nullable;
+import org.springframework.stereotype.Component;
+
+import java.util.Map;
+
+/**
+ * {@code GET /actuator/sendlimit}: the adaptive SMTP send limit and what runs under it.
+ * {@code POST /actuator/sendlimit} with {@code {"limit": n}}: pins the limit at {@code n}, or with
+ * {@code "adaptive": true} sets it and lets it keep adapting, within {@code app.mail.limit.min}
+ * and {@code max}. {@code DELETE}: adapts again.
+ */
+@Component
+@Endpoint(id = "sendlimit")
+public class SendLimitEndpoint {
+
+    private final SendLimiter limiter;
+
+    public SendLimitEndpoint(SendLimiter limiter) {
+        this.limiter = limiter;
+    }
+
+    @ReadOperation
+    public SendLimiter.State state() {
+        return limiter.state();
+    }
+
+    @WriteOperation
+    public WebEndpointResponse<Object> set(int limit, @Nullable Boolean adaptive) {
+        SendLimiter.State state = limiter.state();
+        if (limit < state.min() || limit > state.max()) {
+            return new WebEndpointResponse<>(
+                    Map.of("error", "limit must be between " + state.min() + " and " + state.max() + "."), 400);
+        }
+        limiter.pin(limit, Boolean.TRUE.equals(adaptive));
+        return new WebEndpointResponse<>(limiter.state());
+    }
+
+    @DeleteOperation
+    public SendLimiter.State unpin() {
+        limiter.unpin();
+        return limiter.state();
+    }
+}
@@ -0,0 +1,241 @@
+package com.atdev.paystubs_api.email;
+
+import io.micrometer.core.instrument.FunctionCounter;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.binder.MeterBinder;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Service;
+
+import java.time.Duration;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.Supplier;
+
+/**
+ * Bounds how many SMTP sends run at once on the node, finding the bound by itself (AIMD). Every
+ * send that used most of the limit and came back within {@code app.mail.limit.latency-target} per
+ * message adds {@code 1/limit}, so the limit grows by one per full round of healthy sends. A send
+ * the server throttles (a {@code 4xx} reply) or that times out multiplies it by
+ * {@code app.mail.limit.backoff}, once per round: sends started before the cut do not cut again.
+ * Other failures, such as a refused recipient, leave it as is. The limit stays within
+ * {@code app.mail.limit.min} and {@code app.mail.limit.max}; {@link #pin} fixes it at runtime.
+ */
+@Slf4j
+@Service
+public class SendLimiter implements MeterBinder {
+    private final boolean enabled;
+    private final int min;
+    private final int max;
+    private final double backoff;
+    private final long latencyTargetNanos;
+
+    private final ReentrantLock lock = new ReentrantLock();
+    private final Condition released = lock.newCondition();
+    private double limit;
+    private boolean pinned;
+    private int inFlight;
+    private int waiting;
+    // bumped by every cut; sends started in an older round do not cut again
+    private long round;
+    private long increases;
+    private long throttled;
+    private long timeouts;
+
+    @Autowired
+    public SendLimiter(@Value("${app.mail.limit.enabled:true}") boolean enabled,
+                       @Value("${app.mail.limit.initial:4}") int initial,
+                       @Value("${app.mail.limit.min:1}") int min,
+                       @Value("${app.mail.limit.max:16}") int max,
+                       @Value("${app.mail.limit.backoff:0.5}") double backoff,
+                       @Value("${app.mail.limit.latency-target:2s}") Duration latencyTarget) {
+        this.enabled = enabled;
+        this.min = Math.max(1, min);
+        this.max = Math.max(this.min, max);
+        this.backoff = Math.min(Math.max(backoff, 0.1), 0.9);
+        this.latencyTargetNanos = latencyTarget.toNanos();
+        this.limit = Math.min(Math.max(initial, this.min), this.max);
+    }
+
+    /** A limiter that never waits, for callers that do not share the node. */
+    public static SendLimiter unbounded() {
+        return new SendLimiter(false, 1, 1, 1, 0.5, Duration.ZERO);
+    }
+
+    /**
+     * Runs {@code send}, which writes {@code messages} messages to the server, once fewer sends
+     * than the limit are in flight, and adjusts the limit by how it went.
+     */
+    public void send(int messages, Send send) throws Exception {
+        if (!enabled) {
+            send.run();
+            return;
+        }
+
+        long startedIn;
+        boolean full;
+        lock.lock();
+        try {
+            waiting++;
+            try {
+                while (inFlight >= current()) {
+                    released.await();
+                }
+            } finally {
+                waiting--;
+            }
+            inFlight++;
+            startedIn = round;
+            full = inFlight * 2 >= current();
+        } finally {
+            lock.unlock();
+        }
+
+        long start = System.nanoTime();
+        try {
+            send.run();
+            long perMessage = (System.nanoTime() - start) / Math.max(1, messages);
+            finished(startedIn, full && perMessage <= latencyTargetNanos ? Outcome.HEALTHY : Outcome.NEUTRAL);
+        } catch (Exception e) {
+            finished(startedIn, classify(e));
+            throw e;
+        }
+    }
+
+    /**
+     * Fixes the limit at {@code limit} until {@link #unpin()}, or sets it and keeps adapting from
+     * there. Either way it stays within the configured minimum and maximum.
+     */
+    public void pin(int limit, boolean adaptive) {
+        limit = Math.min(Math.max(limit, min), max);
+        lock.lock();
+        try {
+            this.limit = limit;
+            this.pinned = !adaptive;
+            round++;
+            released.signalAll();
+        } finally {
+            lock.unlock();
+        }
+        log.info("Send limit set to {}{}", limit, adaptive ? ", adapting from there" : " and pinned");
+    }
+
+    /** Lets the limit adapt again, starting from where it was pinned. */
+    public void unpin() {
+        lock.lock();
+        try {
+            pinned = false;
+            limit = Math.min(Math.max(limit, min), max);
+            released.signalAll();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    public State state() {
+        lock.lock();
+        try {
+            return new State(enabled, current(), pinned, min, max, inFlight, waiting, increases, throttled, timeouts);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    @Override
+    public void bindTo(MeterRegistry registry) {
+        Gauge.builder("paystubs.mail.limit", this, l -> l.read(l::current)).register(registry);
+        Gauge.builder("paystubs.mail.limit.in.flight", this, l -> l.read(() -> l.inFlight)).register(registry);
+        Gauge.builder("paystubs.mail.limit.waiting", this, l -> l.read(() -> l.waiting)).register(registry);
+        FunctionCounter.builder("paystubs.mail.limit.cuts", this, l -> l.read(() -> l.throttled))
+                .tag("reason", "throttled").register(registry);
+        FunctionCounter.builder("paystubs.mail.limit.cuts", this, l -> l.read(() -> l.timeouts))
+                .tag("reason", "timeout").register(registry);
+    }
+
+    /** Whether {@code e}, or any failure it wraps, is a transient {@code 4xx} reply or a timeout. */
+    static Outcome classify(Throwable e) {
+        if (MailFailures.timedOut(e)) {
+            return Outcome.TIMEOUT;
+        }
+        return MailFailures.transientReply(e) ? Outcome.THROTTLED : Outcome.NEUTRAL;
+    }
+
+    private void finished(long startedIn, Outcome outcome) {
+        lock.lock();
+        try {
+            inFlight--;
+            if (!pinned) {
+                switch (outcome) {
+                    case HEALTHY -> {
+                        if (limit < max) {
+                            limit = Math.min(max, limit + 1 / limit);
+                            increases++;
+                        }
+                    }
+                    case THROTTLED, TIMEOUT -> {
+                        if (startedIn == round) {
+                            cut(outcome);
+                        }
+                    }
+                    case NEUTRAL -> {
+                    }
+                }
+            }
+            released.signalAll();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private void cut(Outcome reason) {
+        double before = limit;
+        limit = Math.max(min, limit * backoff);
+        round++;
+        if (reason == Outcome.THROTTLED) {
+            throttled++;
+        } else {
+            timeouts++;
+        }
+        log.warn("Mail server {}; send limit cut from {} to {}", reason == Outcome.THROTTLED ? "throttled" : "timed out",
+                (int) before, (int) limit);
+    }
+
+    private int current() {
+        return (int) limit;
+    }
+
+    private <N extends Number> N read(Supplier<N> value) {
+        lock.lock();
+        try {
+            return value.get();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /** One SMTP send, of one message or of a whole connection's worth. */
+    @FunctionalInterface
+    public interface Send {
+        void run() throws Exception;
+    }
+
+    enum Outcome {
+        /** Sent, with the limit mostly used and within the latency target: room to grow. */
+        HEALTHY,
+        /** Sent slowly or with spare capacity, or failed for a reason unrelated to load. */
+        NEUTRAL,
+        THROTTLED,
+        TIMEOUT
+    }
+
+    /**
+     * @param pinned    whether the limit was fixed at runtime and does not adapt
+     * @param increases healthy sends that grew the limit since startup
+     * @param throttled cuts after a {@code 4xx} reply since startup
+     * @param timeouts  cuts after a timed-out send since startup
+     */
+    public record State(boolean enabled, int limit, boolean pinned, int min, int max, int in_flight, int waiting,
+                        long increases, long throttled, long timeouts) {}
+}
@@ -0,0 +1,32 @@
+package com.atdev.paystubs_api.job;
+
+import com.atdev.paystubs_api.job.dto.JobStatusResponse;
+import org.springframework.http.ResponseEntity;
+import org.springframework.web.bind.annotation.GetMapping;
+import org.springframework.web.bind.annotation.PathVariable;
+import org.springframework.web.bind.annotation.RequestMapping;
+import org.springframework.web.bind.annotation.RequestParam;
+import org.springframework.web.bind.annotation.RestController;
+
+import java.util.Map;
+
+@RestController
+@RequestMapping("/jobs")
+public class JobController {
+
+    private final JobService jobService;
+
+    public JobController(JobService jobService) {
+        this.jobService = jobService;
+    }
+
+    @GetMapping("/{id}")
+    public ResponseEntity<Object> status(
+            @PathVariable("id") String id,
+            @RequestParam(name = "summary", defaultValue = "false") boolean summary
+    ) {
+        return jobService.find(id)
+                .<ResponseEntity<Object>>map(job -> ResponseEntity.ok(JobStatusResponse.of(job, summary)))
+                .orElseGet(() -> ResponseEntity.status(404).body(Map.of("error", "Unknown job id.")));
+    }
+}
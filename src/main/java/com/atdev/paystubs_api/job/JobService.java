@@ -0,0 +1,302 @@
+package com.atdev.paystubs_api.job;
+
+import com.atdev.paystubs_api.admission.AdmissionRejectedException;
+import com.atdev.paystubs_api.admission.BatchAdmission;
+import com.atdev.paystubs_api.checkpoint.CheckpointStore;
+import com.atdev.paystubs_api.checkpoint.ResumableBatch;
+import com.atdev.paystubs_api.payment.BatchResult;
+import com.atdev.paystubs_api.payment.Country;
+import com.atdev.paystubs_api.payment.CsvService;
+import com.atdev.paystubs_api.payment.FailedPaystub;
+import com.atdev.paystubs_api.payment.PayrollRecord;
+import com.atdev.paystubs_api.payment.PayrollService;
+import com.atdev.paystubs_api.payment.ProcessOptions;
+import com.atdev.paystubs_api.payment.SentListener;
+import com.atdev.paystubs_api.payment.SentPaystub;
+import jakarta.annotation.PreDestroy;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.context.event.ApplicationReadyEvent;
+import org.springframework.context.event.EventListener;
+import org.springframework.stereotype.Service;
+import org.springframework.web.multipart.MultipartFile;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.time.Duration;
+import java.time.OffsetDateTime;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.UUID;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.stream.Stream;
+
+/**
+ * Runs {@code /process} submissions in the background on a dedicated, bounded executor so the
+ * HTTP request can return immediately. Finished jobs are kept for {@code app.jobs.retention}.
+ * Batches left unfinished by a previous run are resumed here too, see {@link CheckpointStore}.
+ *
+ * <p>A job with a {@linkplain ProcessOptions#sendAt() send time} has its PDFs rendered on the
+ * executor right away, into {@code app.schedule.dir}, and is released by the {@link TimingWheel}
+ * at that time, when only sending is left. It is saved there too, see {@link ScheduleStore}, and
+ * scheduled again at startup; one whose time passed while the application was down is sent then.
+ */
+@Slf4j
+@Service
+public class JobService {
+    private final PayrollService payrollService;
+    private final CsvService csvService;
+    private final BatchAdmission admission;
+    private final CheckpointStore checkpoints;
+    private final ExecutorService executor;
+    private final Duration retention;
+    private final TimingWheel wheel;
+    private final ScheduleStore schedules;
+    private final Map<String, PayrollJob> jobs = new ConcurrentHashMap<>();
+
+    @Value("${app.checkpoint.resume-on-startup:true}")
+    private boolean resumeOnStartup;
+
+    @Autowired
+    public JobService(PayrollService payrollService,
+                      CsvService csvService,
+                      BatchAdmission admission,
+                      CheckpointStore checkpoints,
+                      @Value("${app.jobs.threads:2}") int threads,
+                      @Value("${app.jobs.queue-capacity:50}") int queueCapacity,
+                      @Value("${app.jobs.retention:PT1H}") Duration retention,
+                      TimingWheel wheel,
+                      @Value("${app.schedule.dir:scheduled}") Path scheduleDir) {
+        this(payrollService, csvService, admission, checkpoints, newExecutor(threads, queueCapacity), retention, wheel, scheduleDir);
+    }
+
+    JobService(PayrollService payrollService, CsvService csvService, BatchAdmission admission, CheckpointStore checkpoints,
+               ExecutorService executor, Duration retention, TimingWheel wheel, Path scheduleDir) {
+        this.payrollService = payrollService;
+        this.csvService = csvService;
+        this.admission = admission;
+        this.checkpoints = checkpoints;
+        this.executor = executor;
+        this.retention = retention;
+        this.wheel = wheel;
+        this.schedules = new ScheduleStore(scheduleDir);
+    }
+
+    /**
+     * Parses the CSV on the calling thread, because the upload is released when the request ends,
+     * and queues the rendering and sending. With a send time, only the rendering is queued.
+     * Parsing holds an admission slot, given back once the CSV is read; the job is admitted again
+     * when it runs.
+     *
+     * @throws AdmissionRejectedException when no slot to parse in frees up
+     * @throws RejectedExecutionException when the job queue is full
+     */
+    public PayrollJob submit(Country country, String company, MultipartFile csv, ProcessOptions options) throws Exception {
+        List<PayrollRecord> rows;
+        try (BatchAdmission.Permit parsing = admission.admit()) {
+            rows = csvService.parse(csv);
+        }
+        evictExpired();
+
+        PayrollJob job = new PayrollJob(UUID.randomUUID().toString(), company, country, rows.size());
+        jobs.put(job.getId(), job);
+        try {
+            if (options.sendAt() != null) {
+                job.schedule(options.sendAt());
+                save(job, options, rows);
+                executor.execute(() -> prerender(job, rows, options));
+            } else {
+                executor.execute(() -> run(job, rows.size(),
+                        () -> payrollService.processRows(job.getCountry(), job.getCompany(), rows, options, listener(job))));
+            }
+        } catch (RejectedExecutionException e) {
+            jobs.remove(job.getId());
+            if (options.sendAt() != null) {
+                delete(schedules.dirOf(job.getId()));
+            }
+            throw e;
+        }
+        return job;
+    }
+
+    public Optional<PayrollJob> find(String id) {
+        return Optional.ofNullable(jobs.get(id));
+    }
+
+    /**
+     * Queues the rest of a batch interrupted by a restart, as a job with the checkpoint's id.
+     *
+     * @return empty when there is no such checkpoint or it is already running
+     * @throws RejectedExecutionException when the job queue is full; the checkpoint stays pending
+     */
+    public Optional<PayrollJob> resume(String checkpointId) throws IOException {
+        Optional<ResumableBatch> claimed = checkpoints.claim(checkpointId);
+        if (claimed.isEmpty()) {
+            return Optional.empty();
+        }
+        ResumableBatch batch = claimed.get();
+        evictExpired();
+
+        PayrollJob job = new PayrollJob(batch.id(), batch.company(), batch.country(), batch.records().size(),
+                batch.total() - batch.records().size());
+        jobs.put(job.getId(), job);
+        try {
+            executor.execute(() -> run(job, batch.records().size(), () -> payrollService.resume(batch, listener(job))));
+        } catch (RejectedExecutionException e) {
+            jobs.remove(job.getId());
+            batch.checkpoint().release();
+            throw e;
+        }
+        log.info("Resuming batch {} for {}: {} of {} rows left", batch.id(), batch.company(), batch.records().size(), batch.total());
+        return Optional.of(job);
+    }
+
+    /** Picks up batches a previous run of the application did not finish. */
+    @EventListener(ApplicationReadyEvent.class)
+    public void resumePending() {
+        if (!resumeOnStartup) {
+            return;
+        }
+        for (String id : checkpoints.pending()) {
+            try {
+                resume(id);
+            } catch (Exception e) {
+                log.error("Could not resume batch {}", id, e);
+            }
+        }
+    }
+
+    /**
+     * Schedules the jobs a previous run saved but did not send, under their old ids. A job whose
+     * send time passed while the application was down is sent right away. PDFs not rendered
+     * before the restart are rendered when sent.
+     */
+    @EventListener(ApplicationReadyEvent.class)
+    public void restoreSchedules() {
+        for (ScheduleStore.Saved saved : schedules.load()) {
+            if (jobs.containsKey(saved.jobId())) {
+                continue;
+            }
+            PayrollJob job = new PayrollJob(saved.jobId(), saved.company(), saved.country(), saved.rows().size());
+            job.schedule(saved.options().sendAt());
+            jobs.put(job.getId(), job);
+            arm(job, saved.rows(), saved.options());
+            log.info("Restored scheduled job {} for {}: {} rows to send at {}", job.getId(), job.getCompany(),
+                    saved.rows().size(), saved.options().sendAt());
+        }
+    }
+
+    @PreDestroy
+    void shutdown() {
+        executor.shutdown();
+    }
+
+    private void run(PayrollJob job, int rows, Callable<BatchResult> work) {
+        // the job queue is already bounded, so a job waits for its turn instead of being rejected
+        try (BatchAdmission.Permit permit = admission.admitWhenAvailable(rows)) {
+            job.start();
+            job.complete(work.call());
+        } catch (Exception e) {
+            log.error("Payroll job {} for {} failed", job.getId(), job.getCompany(), e);
+            job.fail(e);
+        }
+    }
+
+    // Without a saved copy the job still runs, but only in memory, so a restart loses it.
+    private void save(PayrollJob job, ProcessOptions options, List<PayrollRecord> rows) {
+        try {
+            schedules.save(job.getId(), job.getCountry(), job.getCompany(), options, rows);
+        } catch (IOException e) {
+            log.warn("Could not save scheduled job {} for {}; it is lost if the application stops before {}",
+                    job.getId(), job.getCompany(), options.sendAt(), e);
+        }
+    }
+
+    // Renders the PDFs now and hands the job to the wheel; they are rendered again at send time if this fails.
+    private void prerender(PayrollJob job, List<PayrollRecord> rows, ProcessOptions options) {
+        Path dir = schedules.dirOf(job.getId());
+        try {
+            payrollService.prerender(job.getCountry(), job.getCompany(), rows, dir);
+        } catch (InterruptedException e) {
+            // stopping: the saved job stays on disk and is scheduled again at the next start
+            Thread.currentThread().interrupt();
+            job.fail(e);
+            return;
+        } catch (Exception e) {
+            log.warn("Could not render job {} for {} ahead of time; it is rendered when sent", job.getId(), job.getCompany(), e);
+        }
+        arm(job, rows, options);
+    }
+
+    /*
+     * Once sending starts the saved job is dropped, so a restart mid-send does not send it again
+     * from the start; from then on it is resumed like any batch, from its checkpoint. The
+     * directory is deleted once the job ran, whatever its outcome.
+     */
+    private void arm(PayrollJob job, List<PayrollRecord> rows, ProcessOptions options) {
+        Path dir = schedules.dirOf(job.getId());
+        wheel.schedule(options.sendAt(), () -> {
+            try {
+                schedules.release(job.getId());
+                run(job, rows.size(), () -> payrollService.processPrerendered(job.getCountry(), job.getCompany(), rows,
+                        options, dir, listener(job)));
+            } finally {
+                delete(dir);
+            }
+        });
+    }
+
+    static void delete(Path dir) {
+        try (Stream<Path> files = Files.walk(dir)) {
+            for (Path file : files.sorted(Comparator.reverseOrder()).toList()) {
+                Files.deleteIfExists(file);
+            }
+        } catch (NoSuchFileException e) {
+            // nothing was rendered
+        } catch (IOException e) {
+            log.warn("Could not delete rendered PDFs in {}", dir, e);
+        }
+    }
+
+    private SentListener listener(PayrollJob job) {
+        return new SentListener() {
+            @Override
+            public void onSent(int row, SentPaystub sent) {
+                job.recordSent(sent);
+            }
+
+            @Override
+            public void onFailed(int row, FailedPaystub failed) {
+                job.recordFailed(failed);
+            }
+        };
+    }
+
+    private void evictExpired() {
+        OffsetDateTime cutoff = OffsetDateTime.now().minus(retention);
+        jobs.values().removeIf(job -> job.isFinished() && job.getCompletedAt().isBefore(cutoff));
+    }
+
+    private static ExecutorService newExecutor(int threads, int queueCapacity) {
+        AtomicInteger counter = new AtomicInteger();
+        return new ThreadPoolExecutor(threads, threads, 0L, TimeUnit.MILLISECONDS,
+                new ArrayBlockingQueue<>(queueCapacity),
+                r -> {
+                    Thread t = new Thread(r, "payroll-job-" + counter.incrementAndGet());
+                    t.setDaemon(true);
+                    return t;
+                });
+    }
+}
@@ -0,0 +1,10 @@
+package com.atdev.paystubs_api.job;
+
+public enum JobStatus {
+    // rendered ahead of time, or being rendered, until its send_at
+    SCHEDULED,
+    QUEUED,
+    RUNNING,
+    COMPLETED,
+    FAILED
+}
@@ -0,0 +1,151 @@
+package com.atdev.paystubs_api.job;
+
+import com.atdev.paystubs_api.payment.BatchResult;
+import com.atdev.paystubs_api.payment.Country;
+import com.atdev.paystubs_api.payment.FailedPaystub;
+import com.atdev.paystubs_api.payment.SentPaystub;
+
+import java.time.Instant;
+import java.time.OffsetDateTime;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Progress of one asynchronous {@code /process} submission. Updated by the worker thread and read
+ * by status requests, so every accessor is synchronized on the job.
+ */
+public class PayrollJob {
+    private final String id;
+    private final String company;
+    private final Country country;
+    private final int total;
+    private final int alreadySent;
+    private final OffsetDateTime createdAt = OffsetDateTime.now();
+
+    private JobStatus status = JobStatus.QUEUED;
+    private List<SentPaystub> sent = new ArrayList<>();
+    private List<FailedPaystub> failed = new ArrayList<>();
+    private String retryId;
+    private String error;
+    private OffsetDateTime completedAt;
+    private Instant sendAt;
+
+    public PayrollJob(String id, String company, Country country, int total) {
+        this(id, company, country, total, 0);
+    }
+
+    /**
+     * @param alreadySent rows of a resumed batch sent before the restart, not part of {@code total}
+     */
+    public PayrollJob(String id, String company, Country country, int total, int alreadySent) {
+        this.id = id;
+        this.company = company;
+        this.country = country;
+        this.total = total;
+        this.alreadySent = alreadySent;
+    }
+
+    public String getId() {
+        return id;
+    }
+
+    public String getCompany() {
+        return company;
+    }
+
+    public Country getCountry() {
+        return country;
+    }
+
+    public int getTotal() {
+        return total;
+    }
+
+    public int getAlreadySent() {
+        return alreadySent;
+    }
+
+    public OffsetDateTime getCreatedAt() {
+        return createdAt;
+    }
+
+    public synchronized JobStatus getStatus() {
+        return status;
+    }
+
+    /** Rows handed to the mail server; deferred ones are counted by {@link #getDeferredCount()}. */
+    public synchronized int getSentCount() {
+        return sent.size() - getDeferredCount();
+    }
+
+    public synchronized int getDeferredCount() {
+        return (int) sent.stream().filter(SentPaystub::deferred).count();
+    }
+
+    /** Entries in send order while running, in CSV order once completed, including deferred ones. */
+    public synchronized List<SentPaystub> getSent() {
+        return List.copyOf(sent);
+    }
+
+    public synchronized int getFailedCount() {
+        return failed.size();
+    }
+
+    /** Rows that could not be rendered or sent, in the same order as {@link #getSent()}. */
+    public synchronized List<FailedPaystub> getFailed() {
+        return List.copyOf(failed);
+    }
+
+    /** Set once the job completed with failed rows. */
+    public synchronized String getRetryId() {
+        return retryId;
+    }
+
+    public synchronized String getError() {
+        return error;
+    }
+
+    public synchronized OffsetDateTime getCompletedAt() {
+        return completedAt;
+    }
+
+    /** When a scheduled job starts sending; {@code null} for a job that sends right away. */
+    public synchronized Instant getSendAt() {
+        return sendAt;
+    }
+
+    public synchronized boolean isFinished() {
+        return status == JobStatus.COMPLETED || status == JobStatus.FAILED;
+    }
+
+    synchronized void schedule(Instant sendAt) {
+        this.sendAt = sendAt;
+        status = JobStatus.SCHEDULED;
+    }
+
+    synchronized void start() {
+        status = JobStatus.RUNNING;
+    }
+
+    synchronized void recordSent(SentPaystub entry) {
+        sent.add(entry);
+    }
+
+    synchronized void recordFailed(FailedPaystub entry) {
+        failed.add(entry);
+    }
+
+    synchronized void complete(BatchResult result) {
+        sent = new ArrayList<>(result.sent());
+        failed = new ArrayList<>(result.failed());
+        retryId = result.retryId();
+        status = JobStatus.COMPLETED;
+        completedAt = OffsetDateTime.now();
+    }
+
+    synchronized void fail(Exception e) {
+        error = e.getMessage() != null ? e.getMessage() : e.getClass().getSimpleName();
+        status = JobStatus.FAILED;
+        completedAt = OffsetDateTime.now();
+    }
+}
@@ -0,0 +1,154 @@
+package com.atdev.paystubs_api.job;
+
+import com.atdev.paystubs_api.checkpoint.RowCodec;
+import com.atdev.paystubs_api.payment.Country;
+import com.atdev.paystubs_api.payment.PayrollRecord;
+import com.atdev.paystubs_api.payment.ProcessOptions;
+import com.atdev.paystubs_api.pipeline.Priority;
+import lombok.extern.slf4j.Slf4j;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.Reader;
+import java.io.Writer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.time.Duration;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Properties;
+import java.util.stream.Stream;
+
+/**
+ * Keeps scheduled jobs across restarts. Next to the PDFs rendered ahead of time, the directory of
+ * a job holds its parsed rows and a {@code schedule.properties} with the send time, country,
+ * company and options. The properties are written last and renamed into place, so a directory
+ * without them was not saved completely.
+ */
+@Slf4j
+final class ScheduleStore {
+    static final String SCHEDULE = "schedule.properties";
+    static final String ROWS = "rows.bin";
+
+    private final Path dir;
+
+    ScheduleStore(Path dir) {
+        this.dir = dir;
+    }
+
+    Path dirOf(String jobId) {
+        return dir.resolve(jobId);
+    }
+
+    /** Writes the job to disk and syncs it before returning. */
+    void save(String jobId, Country country, String company, ProcessOptions options, List<PayrollRecord> rows) throws IOException {
+        Path jobDir = dirOf(jobId);
+        Files.createDirectories(jobDir);
+        try (FileChannel channel = FileChannel.open(jobDir.resolve(ROWS), StandardOpenOption.CREATE_NEW, StandardOpenOption.WRITE)) {
+            DataOutputStream out = new DataOutputStream(new BufferedOutputStream(Channels.newOutputStream(channel), 64 * 1024));
+            for (PayrollRecord rec : rows) {
+                RowCodec.write(out, rec);
+            }
+            out.flush();
+            channel.force(false);
+        }
+
+        Properties schedule = new Properties();
+        schedule.setProperty("send_at", options.sendAt().toString());
+        schedule.setProperty("country", country.name());
+        schedule.setProperty("company", company);
+        schedule.setProperty("group_by_recipient", String.valueOf(options.groupByRecipient()));
+        schedule.setProperty("priority", options.priority().name());
+        if (options.timeout() != null) {
+            schedule.setProperty("timeout_ms", String.valueOf(options.timeout().toMillis()));
+        }
+        schedule.setProperty("total", String.valueOf(rows.size()));
+        Path tmp = jobDir.resolve(SCHEDULE + ".tmp");
+        try (Writer out = Files.newBufferedWriter(tmp, StandardCharsets.UTF_8)) {
+            schedule.store(out, null);
+        }
+        try (FileChannel channel = FileChannel.open(tmp, StandardOpenOption.WRITE)) {
+            channel.force(true);
+        }
+        Files.move(tmp, jobDir.resolve(SCHEDULE), StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    /** Forgets the saved job once it starts sending; its rendered PDFs stay until it finished. */
+    void release(String jobId) {
+        Path jobDir = dirOf(jobId);
+        try {
+            Files.deleteIfExists(jobDir.resolve(SCHEDULE));
+            Files.deleteIfExists(jobDir.resolve(ROWS));
+        } catch (IOException e) {
+            log.warn("Could not delete saved schedule of job {}; it is sent again after a restart", jobId, e);
+        }
+    }
+
+    /**
+     * Reads back every job saved by an earlier run. Directories without a saved schedule, saved
+     * incompletely or left by a job that had started sending, are deleted; ones that cannot be read
+     * are left for an operator to look at.
+     */
+    List<Saved> load() {
+        if (!Files.isDirectory(dir)) {
+            return List.of();
+        }
+        List<Path> jobDirs;
+        try (Stream<Path> dirs = Files.list(dir)) {
+            jobDirs = dirs.filter(Files::isDirectory).sorted().toList();
+        } catch (IOException e) {
+            log.warn("Could not list scheduled jobs in {}", dir, e);
+            return List.of();
+        }
+
+        List<Saved> saved = new ArrayList<>();
+        for (Path jobDir : jobDirs) {
+            if (!Files.isRegularFile(jobDir.resolve(SCHEDULE))) {
+                log.warn("Scheduled job {} was not saved completely, or had started sending, before the restart; its files are deleted",
+                        jobDir.getFileName());
+                JobService.delete(jobDir);
+                continue;
+            }
+            try {
+                saved.add(read(jobDir));
+            } catch (IOException | RuntimeException e) {
+                log.error("Could not read scheduled job {}; it is left in {}", jobDir.getFileName(), jobDir, e);
+            }
+        }
+        return saved;
+    }
+
+    private Saved read(Path jobDir) throws IOException {
+        Properties schedule = new Properties();
+        try (Reader in = Files.newBufferedReader(jobDir.resolve(SCHEDULE), StandardCharsets.UTF_8)) {
+            schedule.load(in);
+        }
+        int total = Integer.parseInt(schedule.getProperty("total"));
+        List<PayrollRecord> rows = new ArrayList<>(total);
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(Files.newInputStream(jobDir.resolve(ROWS))))) {
+            for (int row = 0; row < total; row++) {
+                rows.add(RowCodec.read(in));
+            }
+        }
+        String timeoutMs = schedule.getProperty("timeout_ms");
+        ProcessOptions options = ProcessOptions.builder()
+                .groupByRecipient(Boolean.parseBoolean(schedule.getProperty("group_by_recipient")))
+                .timeout(timeoutMs == null ? null : Duration.ofMillis(Long.parseLong(timeoutMs)))
+                .priority(Priority.fromValue(schedule.getProperty("priority")))
+                .sendAt(Instant.parse(schedule.getProperty("send_at")))
+                .build();
+        return new Saved(jobDir.getFileName().toString(), Country.valueOf(schedule.getProperty("country")),
+                schedule.getProperty("company"), options, rows);
+    }
+
+    record Saved(String jobId, Country country, String company, ProcessOptions options, List<PayrollRecord> rows) {}
+}
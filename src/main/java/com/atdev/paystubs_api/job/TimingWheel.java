@@ -0,0 +1,140 @@
+package com.atdev.paystubs_api.job;
+
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.binder.MeterBinder;
+import jakarta.annotation.PreDestroy;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+import java.time.Clock;
+import java.time.Duration;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Runs tasks at a wall-clock time, such as the release of a {@code send_at} job. A hashed timing
+ * wheel: one thread ticks every {@code app.schedule.tick} and looks only at the bucket of that
+ * tick, so thousands of pending tasks cost nothing until they are due. A task lands in the bucket
+ * of the first tick at or after its time and runs there, on a virtual thread of its own, at most
+ * one tick late. A task found early, because the wall clock was set back, is put back.
+ */
+@Slf4j
+@Component
+public class TimingWheel implements MeterBinder, AutoCloseable {
+    private final long tickNanos;
+    private final List<List<Timeout>> buckets;
+    private final Clock clock;
+    private final long startNanos = System.nanoTime();
+    private final Thread ticker;
+
+    private final ReentrantLock lock = new ReentrantLock();
+    private long tick;
+    private int pending;
+
+    @Autowired
+    public TimingWheel(@Value("${app.schedule.tick:100ms}") Duration tick,
+                       @Value("${app.schedule.wheel-size:512}") int wheelSize) {
+        this(tick, wheelSize, Clock.systemUTC());
+    }
+
+    TimingWheel(Duration tick, int wheelSize, Clock clock) {
+        this.tickNanos = Math.max(1, tick.toNanos());
+        this.clock = clock;
+        this.buckets = new ArrayList<>(Math.max(1, wheelSize));
+        for (int i = 0; i < Math.max(1, wheelSize); i++) {
+            buckets.add(new ArrayList<>());
+        }
+        this.ticker = Thread.ofPlatform().daemon().name("timing-wheel").start(this::turn);
+    }
+
+    /** Runs {@code task} once {@code at} is reached; right away (on the next tick) when it already is. */
+    public void schedule(Instant at, Runnable task) {
+        lock.lock();
+        try {
+            long delay = Math.max(0, Duration.between(clock.instant(), at).toNanos());
+            long due = Math.max(tick + 1, Math.ceilDiv(System.nanoTime() - startNanos + delay, tickNanos));
+            buckets.get((int) (due % buckets.size())).add(new Timeout(at, due, task));
+            pending++;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /** Tasks waiting for their time. */
+    public int pending() {
+        lock.lock();
+        try {
+            return pending;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    @Override
+    public void bindTo(MeterRegistry registry) {
+        Gauge.builder("paystubs.schedule.pending", this, TimingWheel::pending).register(registry);
+    }
+
+    @PreDestroy
+    @Override
+    public void close() {
+        ticker.interrupt();
+    }
+
+    private void turn() {
+        try {
+            while (true) {
+                long next = startNanos + (tick + 1) * tickNanos;
+                for (long wait = next - System.nanoTime(); wait > 0; wait = next - System.nanoTime()) {
+                    Thread.sleep(Duration.ofNanos(wait));
+                }
+                for (Timeout timeout : advance()) {
+                    if (clock.instant().isBefore(timeout.at())) {
+                        schedule(timeout.at(), timeout.task());
+                    } else {
+                        Thread.ofVirtual().name("timing-wheel-task").start(() -> run(timeout.task()));
+                    }
+                }
+            }
+        } catch (InterruptedException e) {
+            // closed
+        }
+    }
+
+    // Moves to the next tick and takes the tasks due in it; the others in its bucket are due in a later turn.
+    private List<Timeout> advance() {
+        lock.lock();
+        try {
+            tick++;
+            List<Timeout> due = new ArrayList<>();
+            Iterator<Timeout> bucket = buckets.get((int) (tick % buckets.size())).iterator();
+            while (bucket.hasNext()) {
+                Timeout timeout = bucket.next();
+                if (timeout.tick() <= tick) {
+                    bucket.remove();
+                    due.add(timeout);
+                }
+            }
+            pending -= due.size();
+            return due;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private static void run(Runnable task) {
+        try {
+            task.run();
+        } catch (RuntimeException e) {
+            log.error("Scheduled task failed", e);
+        }
+    }
+
+    private record Timeout(Instant at, long tick, Runnable task) {}
+}
@@ -0,0 +1,73 @@
+package com.atdev.paystubs_api.job.dto;
+
+import com.atdev.paystubs_api.job.JobStatus;
+import com.atdev.paystubs_api.job.PayrollJob;
+import com.atdev.paystubs_api.payment.Country;
+import com.atdev.paystubs_api.payment.FailedPaystub;
+import com.atdev.paystubs_api.payment.SentPaystub;
+import com.fasterxml.jackson.annotation.JsonInclude;
+import lombok.AllArgsConstructor;
+import lombok.Builder;
+import lombok.Data;
+import lombok.NoArgsConstructor;
+
+import java.util.List;
+
+@Data
+@NoArgsConstructor
+@AllArgsConstructor
+@Builder
+public class JobStatusResponse {
+    private String job_id;
+    private JobStatus status;
+    private String company;
+    private Country country;
+    private int total;
+    private int sent_count;
+    private int failed_count;
+    // rows waiting for the mail relay, not counted as sent
+    @JsonInclude(JsonInclude.Include.NON_DEFAULT)
+    private int deferred_count;
+    // rows of a resumed batch sent before the restart
+    @JsonInclude(JsonInclude.Include.NON_DEFAULT)
+    private int already_sent;
+    private String created_at;
+    // jobs submitted with send_at
+    @JsonInclude(JsonInclude.Include.NON_NULL)
+    private String send_at;
+    private String completed_at;
+    private String error;
+    @JsonInclude(JsonInclude.Include.NON_NULL)
+    private String retry_id;
+    // left out with ?summary=true
+    @JsonInclude(JsonInclude.Include.NON_NULL)
+    private List<SentPaystub> sent;
+    private List<FailedPaystub> failed;
+
+    public static JobStatusResponse of(PayrollJob job) {
+        return of(job, false);
+    }
+
+    public static JobStatusResponse of(PayrollJob job, boolean summary) {
+        List<SentPaystub> sent = summary ? null : job.getSent();
+        List<FailedPaystub> failed = job.getFailed();
+        return JobStatusResponse.builder()
+                .job_id(job.getId())
+                .status(job.getStatus())
+                .company(job.getCompany())
+                .country(job.getCountry())
+                .total(job.getTotal())
+                .sent_count(job.getSentCount())
+                .failed_count(failed.size())
+                .deferred_count(job.getDeferredCount())
+                .already_sent(job.getAlreadySent())
+                .created_at(job.getCreatedAt().toString())
+                .send_at(job.getSendAt() != null ? job.getSendAt().toString() : null)
+                .completed_at(job.getCompletedAt() != null ? job.getCompletedAt().toString() : null)
+                .error(job.getError())
+                .retry_id(job.getRetryId())
+                .sent(sent)
+                .failed(failed)
+                .build();
+    }
+}
@@ -0,0 +1,84 @@
+package com.atdev.paystubs_api.payment;
+
+import com.atdev.paystubs_api.admission.BatchAdmission;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.http.ContentDisposition;
+import org.springframework.http.HttpHeaders;
+import org.springframework.http.MediaType;
+import org.springframework.http.ResponseEntity;
+import org.springframework.web.bind.annotation.PostMapping;
+import org.springframework.web.bind.annotation.RequestParam;
+import org.springframework.web.bind.annotation.RequestPart;
+import org.springframework.web.bind.annotation.RestController;
+import org.springframework.web.context.request.NativeWebRequest;
+import org.springframework.web.multipart.MultipartFile;
+import org.springframework.web.servlet.mvc.method.annotation.StreamingResponseBody;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+
+/**
+ * Returns the paystubs of a {@code /process} CSV as a ZIP download instead of emailing them.
+ * The archive is streamed with chunked encoding while it is being rendered.
+ */
+@Slf4j
+@RestController
+public class ArchiveController {
+
+    private static final MediaType APPLICATION_ZIP = MediaType.parseMediaType("application/zip");
+
+    private final CsvService csvService;
+    private final ArchiveService archiveService;
+    private final BatchAdmission admission;
+
+    public ArchiveController(CsvService csvService, ArchiveService archiveService, BatchAdmission admission) {
+        this.csvService = csvService;
+        this.archiveService = archiveService;
+        this.admission = admission;
+    }
+
+    @PostMapping(value = "/archive", consumes = MediaType.MULTIPART_FORM_DATA_VALUE)
+    public ResponseEntity<StreamingResponseBody> archive(
+            @RequestParam(name = "country", defaultValue = "do") String country,
+            @RequestParam(name = "company") String company,
+            @RequestPart("file") MultipartFile csv,
+            NativeWebRequest request
+    ) throws Exception {
+        Country target = Country.fromValue(country);
+        if (target == null) {
+            return ResponseEntity.badRequest()
+                    .contentType(MediaType.APPLICATION_JSON)
+                    .body(out -> out.write("{\"error\":\"Invalid country option.\"}".getBytes(StandardCharsets.UTF_8)));
+        }
+
+        // Admitted before parsing, so a busy node answers 429 without reading the CSV.
+        // closed by the body once it ran, or when the async request ends if the body never runs
+        BatchAdmission.Permit permit = admission.admit().closeOnCompletion(request);
+        // Parsed here: the upload is released once this handler returns.
+        List<PayrollRecord> rows;
+        try {
+            rows = csvService.parse(csv);
+            permit.reserve(rows.size());
+        } catch (Exception e) {
+            permit.close();
+            throw e;
+        }
+
+        return ResponseEntity.ok()
+                .contentType(APPLICATION_ZIP)
+                .header(HttpHeaders.CONTENT_DISPOSITION, ContentDisposition.attachment()
+                        .filename(company + "-paystubs.zip", StandardCharsets.UTF_8)
+                        .build().toString())
+                .header("X-Accel-Buffering", "no")
+                .body(out -> {
+                    try (permit) {
+                        archiveService.writeZip(target, company, rows, out);
+                    } catch (Exception e) {
+                        // the status line is already sent; failing the write leaves the client with a truncated archive
+                        log.error("Archive for {} failed", company, e);
+                        throw e instanceof IOException io ? io : new IOException(e);
+                    }
+                });
+    }
+}
@@ -0,0 +1,147 @@
+package com.atdev.paystubs_api.payment;
+
+import com.atdev.paystubs_api.payment.util.Labels;
+import jakarta.annotation.PreDestroy;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Service;
+
+import java.io.OutputStream;
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.zip.CRC32;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipOutputStream;
+
+/**
+ * Writes a ZIP with one paystub PDF per row. Rows are rendered in parallel on a shared pool, but
+ * at most {@code window} rendered entries per archive wait to be written and entries are written
+ * in CSV order, so memory depends on the window and not on the number of rows.
+ */
+@Service
+public class ArchiveService {
+    private final PdfService pdfService;
+    private final LogoService logoService;
+    private final ExecutorService renderers;
+    private final int window;
+
+    @Autowired
+    public ArchiveService(PdfService pdfService,
+                          LogoService logoService,
+                          @Value("${app.archive.render-threads:4}") int threads) {
+        this(pdfService, logoService, newExecutor(threads), threads * 2);
+    }
+
+    ArchiveService(PdfService pdfService, LogoService logoService, ExecutorService renderers, int window) {
+        this.pdfService = pdfService;
+        this.logoService = logoService;
+        this.renderers = renderers;
+        this.window = window;
+    }
+
+    /**
+     * Renders {@code rows} and writes them to {@code out} as a ZIP, entry by entry. Does not close
+     * {@code out}; if writing fails (e.g. the client disconnected) pending renders are cancelled.
+     */
+    public void writeZip(Country country, String company, List<PayrollRecord> rows, OutputStream out) throws Exception {
+        Locale locale = PayrollService.localeOf(country);
+        Map<String, String> labels = Labels.of(locale);
+        byte[] logo = logoService.loadLogo(company);
+
+        Deque<Future<Rendered>> pending = new ArrayDeque<>(window);
+        Map<String, Integer> suffixes = new HashMap<>();
+        Set<String> names = new HashSet<>();
+        ZipOutputStream zip = new ZipOutputStream(out);
+        try {
+            for (PayrollRecord rec : rows) {
+                if (pending.size() == window) {
+                    write(zip, pending.removeFirst());
+                }
+                String name = entryName(rec, suffixes, names);
+                pending.addLast(renderers.submit(() -> Rendered.of(name, pdfService.render(rec, company, logo, labels))));
+            }
+            while (!pending.isEmpty()) {
+                write(zip, pending.removeFirst());
+            }
+            zip.finish();
+            zip.flush();
+        } finally {
+            pending.forEach(f -> f.cancel(true));
+        }
+    }
+
+    @PreDestroy
+    void shutdown() {
+        renderers.shutdown();
+    }
+
+    private void write(ZipOutputStream zip, Future<Rendered> next) throws Exception {
+        Rendered rendered;
+        try {
+            rendered = next.get();
+        } catch (ExecutionException e) {
+            throw e.getCause() instanceof Exception cause ? cause : e;
+        }
+        zip.putNextEntry(rendered.entry());
+        zip.write(rendered.pdf());
+        zip.closeEntry();
+        // push each entry to the client as soon as it is complete
+        zip.flush();
+    }
+
+    /*
+     * paystub-<name>-<period>.pdf, with a -n suffix when the name is taken. Name and period come
+     * from the CSV, so anything but [A-Za-z0-9._-] becomes '_' and no entry can carry a path.
+     * Suffixed names are checked too: "Ana"/"x" twice and "Ana"/"x-2" would collide otherwise.
+     */
+    private static String entryName(PayrollRecord rec, Map<String, Integer> suffixes, Set<String> names) {
+        String base = "paystub-" + safe(String.valueOf(rec.fullName()))
+                + (rec.period() == null || rec.period().isBlank() ? "" : "-" + safe(rec.period()));
+        String name = base + ".pdf";
+        while (!names.add(name)) {
+            name = base + "-" + suffixes.merge(base, 2, (n, first) -> n + 1) + ".pdf";
+        }
+        return name;
+    }
+
+    private static String safe(String part) {
+        return part.trim().replaceAll("\\s+", "_").replaceAll("[^A-Za-z0-9._-]", "_");
+    }
+
+    private static ExecutorService newExecutor(int threads) {
+        AtomicInteger counter = new AtomicInteger();
+        return Executors.newFixedThreadPool(threads, r -> {
+            Thread t = new Thread(r, "archive-render-" + counter.incrementAndGet());
+            t.setDaemon(true);
+            return t;
+        });
+    }
+
+    /**
+     * A rendered PDF with its entry. PDFs are already compressed, so entries are STORED and the
+     * CRC is computed on the render thread, leaving the response thread only to copy bytes.
+     */
+    private record Rendered(ZipEntry entry, byte[] pdf) {
+        static Rendered of(String name, byte[] pdf) {
+            CRC32 crc = new CRC32();
+            crc.update(pdf);
+            ZipEntry entry = new ZipEntry(name);
+            entry.setMethod(ZipEntry.STORED);
+            entry.setSize(pdf.length);
+            entry.setCompressedSize(pdf.length);
+            entry.setCrc(crc.getValue());
+            return new Rendered(entry, pdf);
+        }
+    }
+}
@@ -0,0 +1,10 @@
+package com.atdev.paystubs_api.payment;
+
+import java.util.List;
+
+/**
+ * Per-row outcome of a batch, both lists in CSV order; {@code sent} includes deferred rows.
+ * {@code retryId} identifies the failed rows for a later retry, and deferred rows once the relay
+ * refuses them, and is {@code null} when every row was sent.
+ */
+public record BatchResult(List<SentPaystub> sent, List<FailedPaystub> failed, String retryId) {}
@@ -0,0 +1,18 @@
+package com.atdev.paystubs_api.payment;
+
+import com.fasterxml.jackson.annotation.JsonProperty;
+
+/**
+ * One row that could not be rendered or handed to the mail server. The rest of the batch carries
+ * on; the row can be sent again through {@code POST /process/{retry_id}/retry}.
+ */
+public record FailedPaystub(
+        int row,
+        String email,
+        @JsonProperty("full_name") String fullName,
+        String reason
+) {
+    static FailedPaystub of(int row, PayrollRecord rec, Exception e) {
+        return new FailedPaystub(row, rec.email(), rec.fullName(), e.getMessage() != null ? e.getMessage() : e.getClass().getSimpleName());
+    }
+}
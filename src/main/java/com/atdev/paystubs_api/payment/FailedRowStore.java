@@ -0,0 +1,223 @@
+package com.atdev.paystubs_api.payment;
+
+import com.atdev.paystubs_api.email.DeferredMailStore;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.context.event.EventListener;
+import org.springframework.stereotype.Service;
+
+import java.nio.file.Path;
+import java.time.Clock;
+import java.time.Duration;
+import java.time.Instant;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Optional;
+import java.util.TreeMap;
+import java.util.UUID;
+
+/**
+ * Keeps the rows of a batch that failed, so a retry sends only those rows again instead of the
+ * whole upload. Batches expire after {@code app.retry.ttl} and at most {@code app.retry.max-batches}
+ * are kept, evicting the oldest first. Rows deferred while the mail relay was down are remembered
+ * by their deferred file until it is delivered; if the relay refuses it, they become failed rows
+ * under the retry id of their batch. They expire and are evicted like failed batches, counted per
+ * batch; a message refused after that is only logged.
+ */
+@Slf4j
+@Service
+public class FailedRowStore {
+    private final int maxBatches;
+    private final Duration ttl;
+    private final Clock clock;
+    private final Map<String, Entry> batches = new LinkedHashMap<>();
+    private final Map<String, DeferredBatch> deferred = new LinkedHashMap<>();
+    private final Map<Path, String> deferredFiles = new HashMap<>();
+
+    @Autowired
+    public FailedRowStore(@Value("${app.retry.max-batches:1000}") int maxBatches,
+                          @Value("${app.retry.ttl:PT24H}") Duration ttl) {
+        this(maxBatches, ttl, Clock.systemUTC());
+    }
+
+    FailedRowStore(int maxBatches, Duration ttl, Clock clock) {
+        this.maxBatches = maxBatches;
+        this.ttl = ttl;
+        this.clock = clock;
+    }
+
+    /** Remembers the failed {@code rows} of a batch, keyed by CSV row index, and returns the retry id. */
+    public String save(Country country, String company, ProcessOptions options, Map<Integer, PayrollRecord> rows) {
+        return save(newId(), country, company, options, rows);
+    }
+
+    /** Same, under an id from {@link #newId()} that rows of the batch may already have been deferred with. */
+    public synchronized String save(String id, Country country, String company, ProcessOptions options, Map<Integer, PayrollRecord> rows) {
+        evict();
+        Entry entry = batches.get(id);
+        if (entry == null) {
+            batches.put(id, new Entry(country, company, options, new TreeMap<>(rows), clock.instant().plus(ttl)));
+        } else {
+            entry.rows.putAll(rows);
+            entry.expiresAt = clock.instant().plus(ttl);
+        }
+        return id;
+    }
+
+    /** A retry id for a batch; nothing is kept under it until rows are saved. */
+    public String newId() {
+        return UUID.randomUUID().toString();
+    }
+
+    /**
+     * Remembers {@code rows}, whose message was deferred as {@code file}, until the relay takes it.
+     * If it refuses it instead, they are saved as failed rows under {@code id}.
+     */
+    public synchronized void deferred(Path file, String id, Country country, String company, ProcessOptions options,
+                                      Map<Integer, PayrollRecord> rows) {
+        DeferredBatch batch = deferred.get(id);
+        if (batch == null) {
+            evict();
+            batch = new DeferredBatch(country, company, options);
+            deferred.put(id, batch);
+        }
+        batch.files.put(file, Map.copyOf(rows));
+        batch.expiresAt = clock.instant().plus(ttl);
+        deferredFiles.put(file, id);
+    }
+
+    @EventListener
+    public void resolved(DeferredMailStore.Resolved event) {
+        String id;
+        DeferredBatch batch;
+        Map<Integer, PayrollRecord> rows;
+        synchronized (this) {
+            id = deferredFiles.remove(event.file());
+            if (id == null) {
+                return;
+            }
+            batch = deferred.get(id);
+            rows = batch.files.remove(event.file());
+            if (batch.files.isEmpty()) {
+                deferred.remove(id);
+            }
+        }
+        if (event.refused() == null) {
+            return;
+        }
+        save(id, batch.country, batch.company, batch.options, rows);
+        log.warn("Deferred rows {} of {} were refused by the mail relay; retry them with {}",
+                new TreeMap<>(rows).keySet(), batch.company, id);
+    }
+
+    /**
+     * Removes the requested rows (every failed row when {@code rowIds} is empty) from the batch and
+     * returns them, so two concurrent retries never send the same row. The caller hands the rows
+     * that failed again back with {@link #restore}.
+     *
+     * @throws IllegalArgumentException when a requested row is not a failed row of the batch
+     */
+    public synchronized Optional<FailedBatch> take(String id, Collection<Integer> rowIds) {
+        evict();
+        Entry entry = batches.get(id);
+        if (entry == null) {
+            return Optional.empty();
+        }
+        TreeMap<Integer, PayrollRecord> taken = new TreeMap<>();
+        if (rowIds == null || rowIds.isEmpty()) {
+            taken.putAll(entry.rows);
+        } else {
+            for (int row : rowIds) {
+                PayrollRecord rec = entry.rows.get(row);
+                if (rec == null) {
+                    throw new IllegalArgumentException("Row " + row + " is not a failed row of this batch.");
+                }
+                taken.put(row, rec);
+            }
+        }
+        entry.rows.keySet().removeAll(taken.keySet());
+        return Optional.of(new FailedBatch(entry.country, entry.company, entry.options, taken));
+    }
+
+    /** Puts rows that failed again back under {@code id}; the batch is forgotten once none are left. */
+    public synchronized void restore(String id, FailedBatch batch, Map<Integer, PayrollRecord> stillFailed) {
+        Entry entry = batches.get(id);
+        if (entry == null) {
+            if (stillFailed.isEmpty()) {
+                return;
+            }
+            entry = new Entry(batch.country(), batch.company(), batch.options(), new TreeMap<>(), null);
+            batches.put(id, entry);
+        }
+        entry.rows.putAll(stillFailed);
+        entry.expiresAt = clock.instant().plus(ttl);
+        if (entry.rows.isEmpty()) {
+            batches.remove(id);
+        }
+    }
+
+    synchronized int size() {
+        return batches.size();
+    }
+
+    synchronized int deferredSize() {
+        return deferredFiles.size();
+    }
+
+    private void evict() {
+        Instant now = clock.instant();
+        batches.values().removeIf(entry -> !entry.expiresAt.isAfter(now));
+        Iterator<Entry> it = batches.values().iterator();
+        while (batches.size() >= maxBatches && it.hasNext()) {
+            it.next();
+            it.remove();
+        }
+
+        Iterator<DeferredBatch> deferredIt = deferred.values().iterator();
+        while (deferredIt.hasNext()) {
+            DeferredBatch batch = deferredIt.next();
+            if (deferred.size() >= maxBatches || !batch.expiresAt.isAfter(now)) {
+                deferredFiles.keySet().removeAll(batch.files.keySet());
+                deferredIt.remove();
+            }
+        }
+    }
+
+    /** Failed rows taken for a retry, keyed by their index in the original CSV. */
+    public record FailedBatch(Country country, String company, ProcessOptions options, Map<Integer, PayrollRecord> rows) {}
+
+    // Rows of one batch waiting for the relay, by deferred file.
+    private static final class DeferredBatch {
+        private final Country country;
+        private final String company;
+        private final ProcessOptions options;
+        private final Map<Path, Map<Integer, PayrollRecord>> files = new HashMap<>();
+        private Instant expiresAt;
+
+        private DeferredBatch(Country country, String company, ProcessOptions options) {
+            this.country = country;
+            this.company = company;
+            this.options = options;
+        }
+    }
+
+    private static final class Entry {
+        private final Country country;
+        private final String company;
+        private final ProcessOptions options;
+        private final TreeMap<Integer, PayrollRecord> rows;
+        private Instant expiresAt;
+
+        private Entry(Country country, String company, ProcessOptions options, TreeMap<Integer, PayrollRecord> rows, Instant expiresAt) {
+            this.country = country;
+            this.company = company;
+            this.options = options;
+            this.rows = rows;
+            this.expiresAt = expiresAt;
+        }
+    }
+}
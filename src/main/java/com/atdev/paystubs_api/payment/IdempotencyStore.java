@@ -0,0 +1,120 @@
+package com.atdev.paystubs_api.payment;
+
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Service;
+
+import java.time.Clock;
+import java.time.Duration;
+import java.time.Instant;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.RejectedExecutionException;
+
+/**
+ * Remembers {@code /process} submissions by {@code Idempotency-Key}. The first request with a key
+ * owns it and records its outcome; later requests with the same key wait for or reuse that outcome
+ * instead of sending the batch again. Finished submissions expire after {@code app.idempotency.ttl}
+ * and at most {@code app.idempotency.max-keys} are kept, evicting the oldest finished ones first.
+ */
+@Service
+public class IdempotencyStore {
+    private final int maxKeys;
+    private final Duration ttl;
+    private final Clock clock;
+    private final Map<String, Submission> submissions = new LinkedHashMap<>();
+
+    @Autowired
+    public IdempotencyStore(@Value("${app.idempotency.max-keys:1000}") int maxKeys,
+                            @Value("${app.idempotency.ttl:PT1H}") Duration ttl) {
+        this(maxKeys, ttl, Clock.systemUTC());
+    }
+
+    IdempotencyStore(int maxKeys, Duration ttl, Clock clock) {
+        this.maxKeys = maxKeys;
+        this.ttl = ttl;
+        this.clock = clock;
+    }
+
+    /**
+     * Returns the submission registered for {@code key}, registering a new one owned by the caller
+     * when there is none. An owner must end it with {@link #complete} or {@link #fail}.
+     *
+     * @throws RejectedExecutionException when the store is full of submissions still in flight
+     */
+    public synchronized Claim claim(String key, String fingerprint) {
+        evict();
+        Submission existing = submissions.get(key);
+        if (existing != null) {
+            return new Claim(existing, false);
+        }
+        if (submissions.size() >= maxKeys) {
+            throw new RejectedExecutionException("Idempotency store is full");
+        }
+        Submission created = new Submission(fingerprint);
+        submissions.put(key, created);
+        return new Claim(created, true);
+    }
+
+    public synchronized void complete(String key, Submission submission, Outcome outcome) {
+        submission.expiresAt = clock.instant().plus(ttl);
+        submission.outcome.complete(outcome);
+    }
+
+    /** Forgets {@code key} so a retry processes the request again, and fails the waiting duplicates. */
+    public synchronized void fail(String key, Submission submission, Throwable error) {
+        submissions.remove(key, submission);
+        submission.outcome.completeExceptionally(error);
+    }
+
+    synchronized int size() {
+        return submissions.size();
+    }
+
+    // Drops expired submissions, then the oldest finished ones while the store is full.
+    private void evict() {
+        Instant now = clock.instant();
+        submissions.values().removeIf(s -> s.expiresAt != null && !s.expiresAt.isAfter(now));
+        Iterator<Submission> it = submissions.values().iterator();
+        while (submissions.size() >= maxKeys && it.hasNext()) {
+            if (it.next().expiresAt != null) {
+                it.remove();
+            }
+        }
+    }
+
+    public record Claim(Submission submission, boolean owner) {}
+
+    /** The stored result of a submission: the synchronous response body, or the id of the async job. */
+    public record Outcome(Object body, String jobId) {
+        public static Outcome response(Object body) {
+            return new Outcome(body, null);
+        }
+
+        public static Outcome job(String jobId) {
+            return new Outcome(null, jobId);
+        }
+    }
+
+    public static final class Submission {
+        private final String fingerprint;
+        private final CompletableFuture<Outcome> outcome = new CompletableFuture<>();
+        private Instant expiresAt;
+
+        private Submission(String fingerprint) {
+            this.fingerprint = fingerprint;
+        }
+
+        /** Hash of the request that first used the key. */
+        public String fingerprint() {
+            return fingerprint;
+        }
+
+        /** Completes when the owner finishes; fails with the owner's exception. */
+        public CompletableFuture<Outcome> outcome() {
+            return outcome;
+        }
+    }
+}
@@ -1,56 +1,334 @@
 package com.atdev.paystubs_api.payment;
 
+import com.atdev.paystubs_api.batch.RunningBatches;
+import com.atdev.paystubs_api.job.JobService;
+import com.atdev.paystubs_api.job.PayrollJob;
+import com.atdev.paystubs_api.job.dto.JobStatusResponse;
 import com.atdev.paystubs_api.payment.dto.ProcessPaymentResponse;
+import com.atdev.paystubs_api.payment.dto.ProcessSummaryResponse;
+import com.atdev.paystubs_api.pipeline.Priority;
 import lombok.NoArgsConstructor;
+import org.springframework.http.HttpStatus;
 import org.springframework.http.MediaType;
 import org.springframework.http.ResponseEntity;
+import org.springframework.web.bind.annotation.PathVariable;
 import org.springframework.web.bind.annotation.PostMapping;
+import org.springframework.web.bind.annotation.RequestHeader;
 import org.springframework.web.bind.annotation.RequestMapping;
 import org.springframework.web.bind.annotation.RequestParam;
 import org.springframework.web.bind.annotation.RequestPart;
 import org.springframework.web.bind.annotation.RestController;
+import org.springframework.web.context.request.async.WebAsyncTask;
 import org.springframework.web.multipart.MultipartFile;
 
+import java.io.OutputStream;
+import java.net.URI;
+import java.nio.charset.StandardCharsets;
+import java.security.DigestInputStream;
+import java.security.MessageDigest;
+import java.time.Duration;
+import java.time.Instant;
 import java.time.OffsetDateTime;
+import java.time.format.DateTimeParseException;
+import java.util.HexFormat;
 import java.util.List;
 import java.util.Map;
+import java.util.Optional;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.RejectedExecutionException;
 
 @RestController
 @RequestMapping("/")
 public class PaymentController {
 
+    static final String IDEMPOTENCY_KEY = "Idempotency-Key";
+    static final String IDEMPOTENT_REPLAYED = "Idempotent-Replayed";
+
     private final PayrollService payrollService;
+    private final JobService jobService;
+    private final IdempotencyStore idempotencyStore;
+    private final RunningBatches batches;
 
-    public PaymentController(PayrollService payrollService) {
+    public PaymentController(PayrollService payrollService, JobService jobService, IdempotencyStore idempotencyStore, RunningBatches batches) {
         this.payrollService = payrollService;
+        this.jobService = jobService;
+        this.idempotencyStore = idempotencyStore;
+        this.batches = batches;
     }
 
+    /**
+     * Answered asynchronously, so the container reports a client that goes away before the batch
+     * finished, or a request that outlives {@code spring.mvc.async.request-timeout}; the batch it is
+     * sending is then aborted.
+     */
     @PostMapping(value = "/process", consumes = MediaType.MULTIPART_FORM_DATA_VALUE)
-    public ResponseEntity<Object> process(
+    public WebAsyncTask<ResponseEntity<Object>> process(
             @RequestParam(name = "country", defaultValue = "do") String country,
             @RequestParam(name = "credentials") String credentials,
             @RequestParam(name = "company") String company,
-            @RequestPart("file") MultipartFile csv
-    ) throws Exception {
+            @RequestPart("file") MultipartFile csv,
+            @RequestParam(name = "group_by_recipient", defaultValue = "false") boolean groupByRecipient,
+            @RequestParam(name = "async", defaultValue = "false") boolean async,
+            @RequestParam(name = "summary", defaultValue = "false") boolean summary,
+            @RequestParam(name = "timeout_ms", required = false) Long timeoutMs,
+            @RequestParam(name = "priority", defaultValue = "normal") String priority,
+            @RequestParam(name = "send_at", required = false) String sendAt,
+            @RequestHeader(name = IDEMPOTENCY_KEY, required = false) String idempotencyKey
+    ) {
+        RequestBatch batch = new RequestBatch(batches);
+        WebAsyncTask<ResponseEntity<Object>> task = new WebAsyncTask<>(() -> handle(country, credentials, company, csv,
+                groupByRecipient, async, summary, timeoutMs, priority, sendAt, idempotencyKey, batch));
+        task.onTimeout(batch::abandon);
+        task.onError(batch::abandon);
+        return task;
+    }
 
+    private ResponseEntity<Object> handle(String country, String credentials, String company, MultipartFile csv,
+                                          boolean groupByRecipient, boolean async, boolean summary, Long timeoutMs,
+                                          String priority, String sendAt, String idempotencyKey, RequestBatch batch) throws Exception {
         if(!validCountry(country)) {
             return ResponseEntity.badRequest().body(
                     Map.of("error", "Invalid country option.")
             );
         }
 
-        List<Map<String, Object>> results = payrollService.processCsvAndSend(Country.fromValue(country), credentials, company, csv);
+        if (timeoutMs != null && timeoutMs <= 0) {
+            return ResponseEntity.badRequest().body(
+                    Map.of("error", "timeout_ms must be positive.")
+            );
+        }
+
+        if (Priority.fromValue(priority) == null) {
+            return ResponseEntity.badRequest().body(
+                    Map.of("error", "Invalid priority option.")
+            );
+        }
+
+        Instant sendTime = null;
+        if (sendAt != null) {
+            try {
+                sendTime = OffsetDateTime.parse(sendAt).toInstant();
+            } catch (DateTimeParseException e) {
+                return ResponseEntity.badRequest().body(
+                        Map.of("error", "send_at must be an ISO-8601 date-time with offset.")
+                );
+            }
+            if (!sendTime.isAfter(Instant.now())) {
+                return ResponseEntity.badRequest().body(
+                        Map.of("error", "send_at must be in the future.")
+                );
+            }
+        }
+
+        ProcessOptions options = ProcessOptions.builder()
+                .groupByRecipient(groupByRecipient)
+                .timeout(timeoutMs == null ? null : Duration.ofMillis(timeoutMs))
+                .priority(Priority.fromValue(priority))
+                .sendAt(sendTime)
+                .build();
+
+        if (idempotencyKey == null || idempotencyKey.isBlank()) {
+            return process(country, credentials, company, csv, options, async, summary, null, null, batch);
+        }
+
+        String fingerprint = fingerprint(country, company, csv, options, async, summary);
+        IdempotencyStore.Claim claim;
+        try {
+            claim = idempotencyStore.claim(idempotencyKey, fingerprint);
+        } catch (RejectedExecutionException e) {
+            return ResponseEntity.status(HttpStatus.SERVICE_UNAVAILABLE).body(
+                    Map.of("error", "Too many requests in flight, try again later.")
+            );
+        }
+        if (!claim.owner()) {
+            return replay(claim.submission(), fingerprint, summary);
+        }
+
+        try {
+            return process(country, credentials, company, csv, options, async, summary, idempotencyKey, claim.submission(), batch);
+        } catch (Exception e) {
+            idempotencyStore.fail(idempotencyKey, claim.submission(), e);
+            throw e;
+        }
+    }
+
+    private ResponseEntity<Object> process(String country, String credentials, String company, MultipartFile csv,
+                                           ProcessOptions options, boolean async, boolean summary,
+                                           String idempotencyKey, IdempotencyStore.Submission submission, RequestBatch batch) throws Exception {
+        // a scheduled send always runs as a job
+        if (async || options.sendAt() != null) {
+            PayrollJob job;
+            try {
+                job = jobService.submit(Country.fromValue(country), company, csv, options);
+            } catch (RejectedExecutionException e) {
+                if (submission != null) {
+                    idempotencyStore.fail(idempotencyKey, submission, e);
+                }
+                return ResponseEntity.status(HttpStatus.SERVICE_UNAVAILABLE).body(
+                        Map.of("error", "Too many jobs queued, try again later.")
+                );
+            }
+            if (submission != null) {
+                idempotencyStore.complete(idempotencyKey, submission, IdempotencyStore.Outcome.job(job.getId()));
+            }
+            return accepted(job, summary);
+        }
+
+        Object response = summary
+                ? summarize(country, credentials, company, csv, options, batch)
+                : response(company, Country.fromValue(country),
+                        payrollService.processCsvAndSend(Country.fromValue(country), credentials, company, csv, options, batch));
 
-        ProcessPaymentResponse  response = ProcessPaymentResponse.builder()
-                .sent(results)
+        if (submission != null) {
+            idempotencyStore.complete(idempotencyKey, submission, IdempotencyStore.Outcome.response(response));
+        }
+        return ResponseEntity.ok(response);
+    }
+
+    private ProcessSummaryResponse summarize(String country, String credentials, String company, MultipartFile csv, ProcessOptions options,
+                                             SentListener listener) throws Exception {
+        OffsetDateTime startedAt = OffsetDateTime.now();
+        long start = System.nanoTime();
+        ProcessTotals totals = payrollService.processCsvAndCount(Country.fromValue(country), credentials, company, csv, options, listener);
+        return ProcessSummaryResponse.builder()
                 .company(company)
                 .country(Country.fromValue(country))
+                .total(totals.total())
+                .sent_count(totals.sent())
+                .failed_count(totals.failed().size())
+                .deferred_count(totals.deferred())
+                .retry_id(totals.retryId())
+                .started_at(startedAt.toString())
+                .processed_at(OffsetDateTime.now().toString())
+                .duration_ms((System.nanoTime() - start) / 1_000_000)
+                .failed(totals.failed())
                 .build();
+    }
 
-        return ResponseEntity.ok(response);
+    /**
+     * Sends the failed rows of an earlier {@code /process} call again, all of them or only
+     * {@code rows}. Rows that fail again can be retried with the same id.
+     */
+    @PostMapping("/process/{retry_id}/retry")
+    public ResponseEntity<Object> retry(
+            @PathVariable("retry_id") String retryId,
+            @RequestParam(name = "rows", required = false) List<Integer> rows
+    ) throws Exception {
+        Optional<PayrollService.Retry> retry;
+        try {
+            retry = payrollService.retryFailed(retryId, rows);
+        } catch (IllegalArgumentException e) {
+            return ResponseEntity.badRequest().body(
+                    Map.of("error", e.getMessage())
+            );
+        }
+        return retry
+                .<ResponseEntity<Object>>map(r -> ResponseEntity.ok(response(r.company(), r.country(), r.result())))
+                .orElseGet(() -> ResponseEntity.status(HttpStatus.NOT_FOUND).body(
+                        Map.of("error", "Unknown or expired retry id.")
+                ));
+    }
+
+    private ProcessPaymentResponse response(String company, Country country, BatchResult result) {
+        return ProcessPaymentResponse.builder()
+                .sent(result.sent())
+                .failed(result.failed())
+                .retry_id(result.retryId())
+                .company(company)
+                .country(country)
+                .build();
+    }
+
+    // Answers a repeated Idempotency-Key with the first request's outcome, waiting for it if still running.
+    private ResponseEntity<Object> replay(IdempotencyStore.Submission submission, String fingerprint, boolean summary) throws Exception {
+        if (!submission.fingerprint().equals(fingerprint)) {
+            return ResponseEntity.unprocessableEntity().body(
+                    Map.of("error", "Idempotency-Key was already used for a different request.")
+            );
+        }
+
+        IdempotencyStore.Outcome outcome;
+        try {
+            outcome = submission.outcome().get();
+        } catch (ExecutionException e) {
+            throw e.getCause() instanceof Exception cause ? cause : e;
+        }
+
+        if (outcome.jobId() != null) {
+            return jobService.find(outcome.jobId())
+                    .map(job -> withReplayHeader(accepted(job, summary)))
+                    .orElseGet(() -> ResponseEntity.status(HttpStatus.NOT_FOUND).body(
+                            Map.of("error", "Unknown job id.")
+                    ));
+        }
+        return withReplayHeader(ResponseEntity.ok(outcome.body()));
+    }
+
+    private ResponseEntity<Object> accepted(PayrollJob job, boolean summary) {
+        return ResponseEntity.accepted()
+                .location(URI.create("/jobs/" + job.getId()))
+                .body(JobStatusResponse.of(job, summary));
+    }
+
+    private ResponseEntity<Object> withReplayHeader(ResponseEntity<Object> response) {
+        return ResponseEntity.status(response.getStatusCode())
+                .headers(response.getHeaders())
+                .header(IDEMPOTENT_REPLAYED, "true")
+                .body(response.getBody());
+    }
+
+    // Same key with a different upload or options is a client error, not a replay.
+    private String fingerprint(String country, String company, MultipartFile csv, ProcessOptions options, boolean async, boolean summary) throws Exception {
+        MessageDigest digest = MessageDigest.getInstance("SHA-256");
+        for (String part : new String[]{country, company, String.valueOf(options), String.valueOf(async), String.valueOf(summary)}) {
+            digest.update(part.getBytes(StandardCharsets.UTF_8));
+            digest.update((byte) 0);
+        }
+        // streamed through the digest, so a large upload is never loaded into memory
+        try (DigestInputStream in = new DigestInputStream(csv.getInputStream(), digest)) {
+            in.transferTo(OutputStream.nullOutputStream());
+        }
+        return HexFormat.of().formatHex(digest.digest());
     }
 
     public boolean validCountry(String country) {
         return country.equals("do") || country.equals("USA");
     }
+
+    /**
+     * The batch a synchronous request sends. Once the request ends early, the batch is aborted
+     * right away, or as soon as it starts if it was still parsing or waiting for admission.
+     */
+    private static final class RequestBatch implements SentListener {
+        private final RunningBatches batches;
+        private String id;
+        private boolean abandoned;
+
+        private RequestBatch(RunningBatches batches) {
+            this.batches = batches;
+        }
+
+        @Override
+        public void onSent(int row, SentPaystub sent) {
+        }
+
+        @Override
+        public synchronized void onStarted(String batchId) {
+            id = batchId;
+            if (abandoned) {
+                batches.abort(batchId);
+            }
+        }
+
+        // the answer only reaches a client that timed out; one that went away gets nothing
+        synchronized ResponseEntity<Object> abandon() {
+            abandoned = true;
+            if (id != null) {
+                batches.abort(id);
+            }
+            return ResponseEntity.status(HttpStatus.SERVICE_UNAVAILABLE).body(
+                    Map.of("error", "Request ended before the batch finished; rows not sent yet were skipped.")
+            );
+        }
+    }
 }
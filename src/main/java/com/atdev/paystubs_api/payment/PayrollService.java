@@ -1,44 +1,711 @@
 package com.atdev.paystubs_api.payment;
 
+import com.atdev.paystubs_api.admission.BatchAdmission;
+import com.atdev.paystubs_api.batch.RunningBatch;
+import com.atdev.paystubs_api.batch.RunningBatches;
+import com.atdev.paystubs_api.checkpoint.Checkpoint;
+import com.atdev.paystubs_api.checkpoint.CheckpointStore;
+import com.atdev.paystubs_api.checkpoint.ResumableBatch;
+import com.atdev.paystubs_api.email.AttachmentStore;
+import com.atdev.paystubs_api.email.Delivery;
+import com.atdev.paystubs_api.email.DomainScheduler;
 import com.atdev.paystubs_api.email.EmailService;
+import com.atdev.paystubs_api.email.MailDeferredException;
+import com.atdev.paystubs_api.email.PdfAttachment;
 import com.atdev.paystubs_api.payment.util.Labels;
-import lombok.AllArgsConstructor;
+import com.atdev.paystubs_api.pipeline.Priority;
+import com.atdev.paystubs_api.pipeline.StagedPipeline;
+import com.atdev.paystubs_api.pipeline.StagedPipeline.Footprint;
+import jakarta.activation.DataSource;
+import lombok.RequiredArgsConstructor;
+import org.springframework.beans.factory.annotation.Value;
 import org.springframework.stereotype.Service;
 import org.springframework.web.multipart.MultipartFile;
 
-import java.time.OffsetDateTime;
+import java.io.OutputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
 import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Locale;
 import java.util.Map;
+import java.util.Optional;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.IntUnaryOperator;
+import java.util.stream.Collectors;
+import java.util.stream.IntStream;
 
 @Service
-@AllArgsConstructor
+@RequiredArgsConstructor
 public class PayrollService {
     private final CsvService csvService;
     private final PdfService pdfService;
     private final LogoService logoService;
     private final EmailService emailService;
+    private final BatchAdmission admission;
+    private final FailedRowStore failedRows;
+    private final CheckpointStore checkpoints;
+    private final RunningBatches batches;
+    private final StagedPipeline pipeline;
+    private final AttachmentStore attachments;
 
-    public List<Map<String, Object>> processCsvAndSend(Country country, String credentials, String company, MultipartFile csv) throws Exception {
-        Locale locale = switch (country.toString().toLowerCase()) {
+    /** Messages sent per SMTP connection when ordering by recipient domain; 0 keeps CSV order. */
+    @Value("${app.mail.domain-batch-size:0}")
+    private int domainBatchSize;
+
+    /** Send workers of a batch rendered ahead of time, which only has SMTP work left when released. */
+    @Value("${app.schedule.send-workers:16}")
+    private int prerenderedSendWorkers;
+
+    public BatchResult processCsvAndSend(Country country, String credentials, String company, MultipartFile csv) throws Exception {
+        return processCsvAndSend(country, credentials, company, csv, ProcessOptions.defaults());
+    }
+
+    public BatchResult processCsvAndSend(Country country, String credentials, String company, MultipartFile csv, ProcessOptions options) throws Exception {
+        return processCsvAndSend(country, credentials, company, csv, options, (row, entry) -> {});
+    }
+
+    /**
+     * Same as {@link #processCsvAndSend(Country, String, String, MultipartFile, ProcessOptions)},
+     * passing each entry to {@code listener} as soon as its row is done.
+     */
+    public BatchResult processCsvAndSend(Country country, String credentials, String company, MultipartFile csv, ProcessOptions options,
+                                         SentListener listener) throws Exception {
+        // admitted before parsing, so a busy node rejects the request without reading the CSV
+        try (BatchAdmission.Permit permit = admission.admit()) {
+            List<PayrollRecord> rows = csvService.parse(csv);
+            permit.reserve(rows.size());
+            return processRows(country, company, rows, options, listener);
+        }
+    }
+
+    /**
+     * Same as {@link #processCsvAndSend(Country, String, String, MultipartFile, ProcessOptions)} but
+     * only counts sent rows, so nothing per sent row outlives its send. Failed rows are still listed.
+     */
+    public ProcessTotals processCsvAndCount(Country country, String credentials, String company, MultipartFile csv, ProcessOptions options) throws Exception {
+        return processCsvAndCount(country, credentials, company, csv, options, (row, entry) -> {});
+    }
+
+    /**
+     * Same as {@link #processCsvAndCount(Country, String, String, MultipartFile, ProcessOptions)},
+     * passing each entry to {@code listener} as well.
+     */
+    public ProcessTotals processCsvAndCount(Country country, String credentials, String company, MultipartFile csv, ProcessOptions options,
+                                           SentListener listener) throws Exception {
+        int[] counts = {0, 0};
+        List<FailedPaystub> failed = new ArrayList<>();
+        List<PayrollRecord> rows;
+        String retryId;
+        try (BatchAdmission.Permit permit = admission.admit()) {
+            rows = csvService.parse(csv);
+            permit.reserve(rows.size());
+            retryId = sendRows(country, company, rows, options, new SentListener() {
+                @Override
+                public void onSent(int row, SentPaystub entry) throws Exception {
+                    counts[entry.deferred() ? 1 : 0]++;
+                    listener.onSent(row, entry);
+                }
+
+                @Override
+                public void onFailed(int row, FailedPaystub entry) throws Exception {
+                    failed.add(entry);
+                    listener.onFailed(row, entry);
+                }
+
+                @Override
+                public void onStarted(String batchId) throws Exception {
+                    listener.onStarted(batchId);
+                }
+            });
+        }
+        failed.sort(Comparator.comparingInt(FailedPaystub::row));
+        return new ProcessTotals(rows.size(), counts[0], counts[1], failed, retryId);
+    }
+
+    /**
+     * Renders and sends already parsed rows. {@code listener} receives each entry as soon as its
+     * row is done; the returned lists are in CSV order.
+     */
+    public BatchResult processRows(Country country, String company, List<PayrollRecord> rows, ProcessOptions options, SentListener listener) throws Exception {
+        Collector collector = new Collector(listener);
+        String retryId = sendRows(country, company, rows, options, collector);
+        return collector.result(retryId);
+    }
+
+    /**
+     * Renders and sends already parsed rows without keeping any per-row result; every entry is
+     * only passed to {@code listener}, in send order. A row that fails to render or send is
+     * reported to {@link SentListener#onFailed} and the batch carries on. Once the batch's
+     * {@linkplain ProcessOptions#timeout() deadline} passes or it is aborted through
+     * {@link RunningBatches}, rows not started yet are reported as failed with a "Not sent" reason.
+     * Rows deferred while the mail relay is down are reported as sent with a {@code deferred} status.
+     *
+     * @return the id to retry the failed rows with, and deferred rows the relay refuses later, or
+     * {@code null} when every row was sent
+     */
+    public String sendRows(Country country, String company, List<PayrollRecord> rows, ProcessOptions options, SentListener listener) throws Exception {
+        return sendRows(country, company, rows, options, listener, null);
+    }
+
+    /**
+     * Renders the PDF of every row into {@code dir} ahead of sending, at {@link Priority#LOW} so
+     * it gives way to batches being sent. The PDF of row {@code i} goes to {@code <i>.pdf}. A row
+     * that fails to render is left out; it is rendered again, and reported, when the batch is sent.
+     */
+    public void prerender(Country country, String company, List<PayrollRecord> rows, Path dir) throws Exception {
+        Map<String, String> labels = Labels.of(localeOf(country));
+        byte[] logo = logoService.loadLogo(company);
+        Files.createDirectories(dir);
+        pipeline.run(company, Priority.LOW, IntStream.range(0, rows.size()).boxed().toList(), Footprint.of(i -> 0, r -> 0L),
+                () -> false, i -> {},
+                i -> {
+                    Path tmp = dir.resolve(i + ".pdf.tmp");
+                    try (OutputStream out = Files.newOutputStream(tmp)) {
+                        pdfService.render(rows.get(i), company, logo, labels, out);
+                    } catch (Exception e) {
+                        Files.deleteIfExists(tmp);
+                        isolated(e);
+                        return null;
+                    }
+                    // a PDF is only found once complete
+                    Files.move(tmp, prerendered(dir, i), StandardCopyOption.ATOMIC_MOVE);
+                    return null;
+                },
+                nothing -> {});
+    }
+
+    /**
+     * Same as {@link #processRows}, for rows whose PDFs {@link #prerender} put in {@code dir}:
+     * they are read back instead of rendered, and the batch runs with
+     * {@code app.schedule.send-workers} send workers.
+     */
+    public BatchResult processPrerendered(Country country, String company, List<PayrollRecord> rows, ProcessOptions options,
+                                          Path dir, SentListener listener) throws Exception {
+        Collector collector = new Collector(listener);
+        String retryId = sendRows(country, company, rows, options, collector, dir);
+        return collector.result(retryId);
+    }
+
+    private String sendRows(Country country, String company, List<PayrollRecord> rows, ProcessOptions options, SentListener listener,
+                            Path prerendered) throws Exception {
+        Checkpoint checkpoint = checkpoints.begin(country, company, options, rows);
+        return sendCheckpointed(country, company, rows, i -> i, options, listener, checkpoint, prerendered);
+    }
+
+    /**
+     * Continues a batch interrupted by a restart, sending only the rows its checkpoint does not
+     * record as sent. Rows keep their index in the original CSV.
+     */
+    public BatchResult resume(ResumableBatch batch, SentListener listener) throws Exception {
+        Collector collector = new Collector(listener);
+        int[] rowIndexes = batch.rows();
+        String retryId = sendCheckpointed(batch.country(), batch.company(), batch.records(), i -> rowIndexes[i],
+                batch.options(), collector, batch.checkpoint(), null);
+        return collector.result(retryId);
+    }
+
+    /**
+     * Sends the failed rows of an earlier batch again, with the same country, company and options.
+     * Only {@code rowIds} are retried when given, otherwise every row still failed. Rows that fail
+     * again stay available under the same {@code retryId}.
+     *
+     * @return empty when {@code retryId} is unknown or expired
+     * @throws IllegalArgumentException when a requested row did not fail
+     */
+    public Optional<Retry> retryFailed(String retryId, List<Integer> rowIds) throws Exception {
+        Optional<FailedRowStore.FailedBatch> taken = failedRows.take(retryId, rowIds);
+        if (taken.isEmpty()) {
+            return Optional.empty();
+        }
+
+        FailedRowStore.FailedBatch batch = taken.get();
+        List<PayrollRecord> rows = List.copyOf(batch.rows().values());
+        int[] rowIndexes = batch.rows().keySet().stream().mapToInt(Integer::intValue).toArray();
+        Map<Integer, PayrollRecord> failed = new HashMap<>();
+        Collector collector = new Collector((row, entry) -> {});
+        Deferrals deferrals = new Deferrals(failedRows, retryId, batch.country(), batch.company(), batch.options());
+        try (BatchAdmission.Permit permit = admission.admit(rows.size());
+             RunningBatch running = batches.start(batch.company(), rows.size(), batch.options().timeout())) {
+            send(batch.country(), batch.company(), new Rows(rows, i -> rowIndexes[i], collector, failed, running, null, deferrals),
+                    batch.options());
+        } catch (Exception e) {
+            // nothing is known about the rows that were not reached, so all of them stay retryable
+            failedRows.restore(retryId, batch, batch.rows());
+            throw e;
+        }
+        failedRows.restore(retryId, batch, failed);
+        boolean pending = !failed.isEmpty() || deferrals.used();
+        return Optional.of(new Retry(batch.country(), batch.company(), collector.result(pending ? retryId : null)));
+    }
+
+    // The checkpoint is kept for a resume only when the batch is interrupted; otherwise it is done with.
+    private String sendCheckpointed(Country country, String company, List<PayrollRecord> rows, IntUnaryOperator csvRow,
+                                    ProcessOptions options, SentListener listener, Checkpoint checkpoint, Path prerendered) throws Exception {
+        Map<Integer, PayrollRecord> failed = new HashMap<>();
+        Deferrals deferrals = new Deferrals(failedRows, failedRows.newId(), country, company, options);
+        try (RunningBatch running = batches.start(company, rows.size(), options.timeout())) {
+            listener.onStarted(running.id());
+            send(country, company, new Rows(rows, csvRow, checkpoint.tracking(listener), failed, running, prerendered, deferrals), options);
+        } catch (InterruptedException e) {
+            checkpoint.release();
+            throw e;
+        } catch (Exception e) {
+            checkpoint.finish();
+            throw e;
+        }
+        checkpoint.finish();
+        if (!failed.isEmpty()) {
+            return failedRows.save(deferrals.retryId(), country, company, options, failed);
+        }
+        return deferrals.used() ? deferrals.retryId() : null;
+    }
+
+    private void send(Country country, String company, Rows rows, ProcessOptions options) throws Exception {
+        Locale locale = localeOf(country);
+        byte[] logo = logoService.loadLogo(company);
+        boolean offHeap = attachments.usedFor(rows.size());
+        Priority priority = options.priority();
+        int senders = rows.prerendered != null ? prerenderedSendWorkers : 0;
+        if (domainBatchSize > 0) {
+            sendByDomain(rows, company, priority, senders, logo, locale, options.groupByRecipient(), offHeap);
+            return;
+        }
+        if (options.groupByRecipient()) {
+            sendGroupedByRecipient(rows, company, priority, senders, logo, locale, offHeap);
+            return;
+        }
+
+        Map<String, String> labels = Labels.of(locale);
+        pipeline.run(company, priority, senders, IntStream.range(0, rows.size()).boxed().toList(), Footprint.of(i -> 1, Rendered::bytes),
+                rows::stopped, i -> rows.notSent(List.of(i)),
+                i -> {
+                    try {
+                        return offHeap
+                                ? new Rendered(i, null, attachments.write(out -> pdf(rows, i, company, logo, labels, out)))
+                                : new Rendered(i, buffered(rows, i, company, logo, labels), null);
+                    } catch (Exception e) {
+                        rows.failed(i, isolated(e));
+                        return null;
+                    }
+                },
+                rendered -> {
+                    PayrollRecord rec = rows.get(rendered.row());
+                    try {
+                        emailService.sendAttachment(rec, company, rendered.attachment(), locale);
+                    } catch (MailDeferredException e) {
+                        rows.deferred(List.of(rendered.row()), e.files().get(0));
+                        return;
+                    } catch (Exception e) {
+                        rows.failed(rendered.row(), isolated(e));
+                        return;
+                    }
+                    rows.sent(rendered.row());
+                });
+    }
+
+    static Locale localeOf(Country country) {
+        return switch (country.toString().toLowerCase()) {
             case "usa", "en", "us" -> Locale.ENGLISH;
             default -> new Locale("es", "DO");
         };
-        List<PayrollRecord> rows = csvService.parse(csv);
-        byte[] logo = logoService.loadLogo(company);
+    }
+
+    private void sendGroupedByRecipient(Rows rows, String company, Priority priority, int senders, byte[] logo, Locale locale, boolean offHeap) throws Exception {
+        Map<String, String> labels = Labels.of(locale);
+        pipeline.run(company, priority, senders, groupByRecipient(rows.records()), Footprint.of(List::size, Prepared::bytes), rows::stopped, rows::notSent,
+                group -> render(rows, group, company, logo, labels, offHeap),
+                prepared -> {
+                    try {
+                        emailService.sendEmails(prepared.delivery().records(), company, prepared.delivery().pdfs(), locale);
+                    } catch (MailDeferredException e) {
+                        rows.deferred(prepared.rows(), e.files().get(0));
+                        return;
+                    } catch (Exception e) {
+                        rows.failed(prepared.rows(), isolated(e));
+                        return;
+                    }
+                    rows.sent(prepared.rows());
+                });
+    }
+
+    // Messages go out in per-domain batches, each batch over one SMTP connection.
+    private void sendByDomain(Rows rows, String company, Priority priority, int senders, byte[] logo, Locale locale, boolean groupByRecipient,
+                              boolean offHeap) throws Exception {
+        Map<String, String> labels = Labels.of(locale);
+        List<List<Integer>> deliveries = groupByRecipient
+                ? groupByRecipient(rows.records())
+                : IntStream.range(0, rows.size()).mapToObj(List::of).toList();
+
+        pipeline.run(company, priority, senders, DomainScheduler.interleave(deliveries, d -> rows.get(d.get(0)).email(), domainBatchSize),
+                Footprint.of(batch -> batch.stream().mapToInt(List::size).sum(), DomainBatch::bytes),
+                rows::stopped,
+                batch -> rows.notSent(batch.stream().flatMap(List::stream).toList()),
+                batch -> {
+                    DomainBatch rendered = new DomainBatch(new ArrayList<>(batch.size()));
+                    try {
+                        for (List<Integer> delivery : batch) {
+                            Prepared p = render(rows, delivery, company, logo, labels, offHeap);
+                            if (p != null) {
+                                rendered.deliveries().add(p);
+                            }
+                        }
+                    } catch (Exception e) {
+                        rendered.close();
+                        throw e;
+                    }
+                    return rendered.deliveries().isEmpty() ? null : rendered;
+                },
+                rendered -> {
+                    List<Prepared> prepared = rendered.deliveries();
+                    Map<Integer, Exception> refused;
+                    try {
+                        refused = emailService.sendBatch(prepared.stream().map(Prepared::delivery).toList(), company, locale);
+                    } catch (MailDeferredException e) {
+                        for (int k = 0; k < prepared.size(); k++) {
+                            rows.deferred(prepared.get(k).rows(), e.files().get(k));
+                        }
+                        return;
+                    } catch (Exception e) {
+                        Exception cause = isolated(e);
+                        refused = new HashMap<>();
+                        for (int k = 0; k < prepared.size(); k++) {
+                            refused.put(k, cause);
+                        }
+                    }
+                    for (int k = 0; k < prepared.size(); k++) {
+                        Exception error = refused.get(k);
+                        if (error != null) {
+                            rows.failed(prepared.get(k).rows(), error);
+                        } else {
+                            rows.sent(prepared.get(k).rows());
+                        }
+                    }
+                });
+    }
+
+    // Row indexes per distinct (case-insensitive) email, in order of first appearance in the CSV.
+    private List<List<Integer>> groupByRecipient(List<PayrollRecord> rows) {
+        return new ArrayList<>(IntStream.range(0, rows.size()).boxed().collect(Collectors.groupingBy(
+                i -> rows.get(i).email().toLowerCase(Locale.ROOT),
+                LinkedHashMap::new,
+                Collectors.toList()
+        )).values());
+    }
+
+    // Renders one delivery; rows whose PDF fails are reported and left out of the message, null when none is left.
+    private Prepared render(Rows rows, List<Integer> delivery, String company, byte[] logo, Map<String, String> labels,
+                            boolean offHeap) throws Exception {
+        List<Integer> rendered = new ArrayList<>(delivery.size());
+        List<PayrollRecord> recs = new ArrayList<>(delivery.size());
+        List<DataSource> pdfs = new ArrayList<>(delivery.size());
+        long bytes = 0;
+        try {
+            for (int i : delivery) {
+                PayrollRecord rec = rows.get(i);
+                try {
+                    if (offHeap) {
+                        AttachmentStore.Stored pdf = attachments.write(out -> pdf(rows, i, company, logo, labels, out));
+                        pdfs.add(pdf);
+                        bytes += pdf.size();
+                    } else {
+                        PdfAttachment pdf = buffered(rows, i, company, logo, labels);
+                        pdfs.add(pdf);
+                        bytes += pdf.size();
+                    }
+                } catch (Exception e) {
+                    rows.failed(i, isolated(e));
+                    continue;
+                }
+                rendered.add(i);
+                recs.add(rec);
+            }
+        } catch (Exception e) {
+            close(pdfs);
+            throw e;
+        }
+        if (rendered.isEmpty()) {
+            return null;
+        }
+        return new Prepared(rendered, new Delivery(recs, pdfs), bytes);
+    }
+
+    // The row's PDF on the heap, in a buffer the attachment takes over without a copy.
+    private PdfAttachment buffered(Rows rows, int i, String company, byte[] logo, Map<String, String> labels) throws Exception {
+        PdfAttachment.Buffer buffer = PdfAttachment.buffer();
+        pdf(rows, i, company, logo, labels, buffer);
+        return buffer.toAttachment();
+    }
+
+    // The row's PDF, copied from the file when it was rendered ahead of time, otherwise rendered now.
+    private void pdf(Rows rows, int i, String company, byte[] logo, Map<String, String> labels, OutputStream out) throws Exception {
+        Path file = rows.prerendered(i);
+        if (file != null) {
+            Files.copy(file, out);
+        } else {
+            pdfService.render(rows.get(i), company, logo, labels, out);
+        }
+    }
+
+    private static Path prerendered(Path dir, int i) {
+        return dir.resolve(i + ".pdf");
+    }
+
+    private static void close(List<? extends DataSource> pdfs) {
+        for (DataSource pdf : pdfs) {
+            if (pdf instanceof AttachmentStore.Stored stored) {
+                stored.close();
+            }
+        }
+    }
+
+    // A row failure is isolated, but an interrupt still stops the whole batch.
+    private static Exception isolated(Exception e) throws InterruptedException {
+        if (e instanceof InterruptedException interrupted) {
+            throw interrupted;
+        }
+        return e;
+    }
+
+    /** Outcome of {@link #retryFailed}, with the country and company of the original batch. */
+    public record Retry(Country country, String company, BatchResult result) {}
+
+    // Closed by the pipeline once sent, giving off-heap PDFs back to the attachment store.
+    private record Prepared(List<Integer> rows, Delivery delivery, long bytes) implements AutoCloseable {
+        @Override
+        public void close() {
+            PayrollService.close(delivery.pdfs());
+        }
+    }
 
-        List<Map<String, Object>> sent = new ArrayList<>();
-        for (PayrollRecord rec : rows) {
-            byte[] pdf = pdfService.render(rec, company, logo, Labels.of(locale));
-            emailService.sendEmail(rec, company, pdf, locale);
-            sent.add(Map.of(
-                    "email", rec.email(),
-                    "full_name", rec.fullName(),
-                    "sent_at", OffsetDateTime.now().toString()
-            ));
+    private record DomainBatch(List<Prepared> deliveries) implements AutoCloseable {
+        long bytes() {
+            return deliveries.stream().mapToLong(Prepared::bytes).sum();
         }
 
-        return sent;
+        @Override
+        public void close() {
+            deliveries.forEach(Prepared::close);
+        }
+    }
+
+    // A rendered PDF, on the heap for small batches or in the attachment store for large ones.
+    private record Rendered(int row, PdfAttachment pdf, AttachmentStore.Stored stored) implements AutoCloseable {
+        long bytes() {
+            return stored != null ? stored.size() : pdf.size();
+        }
+
+        DataSource attachment() {
+            return stored != null ? stored : pdf;
+        }
+
+        @Override
+        public void close() {
+            if (stored != null) {
+                stored.close();
+            }
+        }
+    }
+
+    /*
+     * The rows being sent, how their positions map back to CSV rows, and where outcomes go.
+     * Outcomes are reported one at a time even when rows are sent concurrently, so listeners and
+     * the failed map need no locking of their own.
+     */
+    private static final class Rows {
+        private final List<PayrollRecord> records;
+        private final IntUnaryOperator csvRow;
+        private final SentListener listener;
+        private final Map<Integer, PayrollRecord> failed;
+        private final RunningBatch running;
+        private final Path prerendered;
+        private final Deferrals deferrals;
+        private final ReentrantLock lock = new ReentrantLock();
+        // positions whose outcome was reported
+        private final BitSet reported = new BitSet();
+
+        private Rows(List<PayrollRecord> records, IntUnaryOperator csvRow, SentListener listener,
+                     Map<Integer, PayrollRecord> failed, RunningBatch running, Path prerendered, Deferrals deferrals) {
+            this.records = records;
+            this.csvRow = csvRow;
+            this.listener = listener;
+            this.failed = failed;
+            this.running = running;
+            this.prerendered = prerendered;
+            this.deferrals = deferrals;
+        }
+
+        // The PDF rendered ahead of time for row i, or null when it has to be rendered now.
+        Path prerendered(int i) {
+            if (prerendered == null) {
+                return null;
+            }
+            Path file = PayrollService.prerendered(prerendered, i);
+            return Files.exists(file) ? file : null;
+        }
+
+        boolean stopped() {
+            return running.stopped();
+        }
+
+        List<PayrollRecord> records() {
+            return records;
+        }
+
+        int size() {
+            return records.size();
+        }
+
+        PayrollRecord get(int i) {
+            return records.get(i);
+        }
+
+        void sent(int i) throws Exception {
+            sent(List.of(i));
+        }
+
+        void sent(List<Integer> indexes) throws Exception {
+            lock.lock();
+            try {
+                for (int i : indexes) {
+                    int row = csvRow.applyAsInt(i);
+                    reported.set(i);
+                    listener.onSent(row, SentPaystub.of(row, records.get(i)));
+                }
+                running.done(indexes.size());
+            } finally {
+                lock.unlock();
+            }
+        }
+
+        // Rows whose message waits in the deferred store as file; recorded before they are reported.
+        void deferred(List<Integer> indexes, Path file) throws Exception {
+            lock.lock();
+            try {
+                Map<Integer, PayrollRecord> deferred = new HashMap<>();
+                for (int i : indexes) {
+                    deferred.put(csvRow.applyAsInt(i), records.get(i));
+                }
+                deferrals.record(file, deferred);
+                for (int i : indexes) {
+                    int row = csvRow.applyAsInt(i);
+                    reported.set(i);
+                    listener.onSent(row, SentPaystub.deferred(row, records.get(i)));
+                }
+                running.done(indexes.size());
+            } finally {
+                lock.unlock();
+            }
+        }
+
+        void failed(int i, Exception e) throws Exception {
+            failed(List.of(i), e);
+        }
+
+        void failed(List<Integer> indexes, Exception e) throws Exception {
+            lock.lock();
+            try {
+                for (int i : indexes) {
+                    int row = csvRow.applyAsInt(i);
+                    reported.set(i);
+                    failed.put(row, records.get(i));
+                    listener.onFailed(row, FailedPaystub.of(row, records.get(i), e));
+                }
+                running.done(indexes.size());
+            } finally {
+                lock.unlock();
+            }
+        }
+
+        /*
+         * Rows skipped because the batch stopped; they can be retried like any failed row. A delivery
+         * dropped after rendering may hold rows already reported, e.g. one whose PDF failed; those are left out.
+         */
+        void notSent(List<Integer> indexes) throws Exception {
+            List<Integer> skipped;
+            lock.lock();
+            try {
+                skipped = indexes.stream().filter(i -> !reported.get(i)).toList();
+            } finally {
+                lock.unlock();
+            }
+            if (!skipped.isEmpty()) {
+                failed(skipped, new CancellationException("Not sent: batch " + running.stopReason()));
+            }
+        }
+    }
+
+    /*
+     * Where the rows a batch deferred are recorded, under the retry id its failed rows get, so that
+     * rows whose message the relay refuses later can be retried with the rest.
+     */
+    private static final class Deferrals {
+        private final FailedRowStore store;
+        private final String retryId;
+        private final Country country;
+        private final String company;
+        private final ProcessOptions options;
+        private volatile boolean used;
+
+        private Deferrals(FailedRowStore store, String retryId, Country country, String company, ProcessOptions options) {
+            this.store = store;
+            this.retryId = retryId;
+            this.country = country;
+            this.company = company;
+            this.options = options;
+        }
+
+        void record(Path file, Map<Integer, PayrollRecord> rows) {
+            store.deferred(file, retryId, country, company, options, rows);
+            used = true;
+        }
+
+        String retryId() {
+            return retryId;
+        }
+
+        boolean used() {
+            return used;
+        }
+    }
+
+    // Keeps every outcome, passing it on to the caller's listener, and sorts them back into CSV order.
+    private static final class Collector implements SentListener {
+        private final SentListener listener;
+        private final List<SentPaystub> sent = new ArrayList<>();
+        private final List<FailedPaystub> failed = new ArrayList<>();
+
+        private Collector(SentListener listener) {
+            this.listener = listener;
+        }
+
+        @Override
+        public void onSent(int row, SentPaystub entry) throws Exception {
+            sent.add(entry);
+            listener.onSent(row, entry);
+        }
+
+        @Override
+        public void onFailed(int row, FailedPaystub entry) throws Exception {
+            failed.add(entry);
+            listener.onFailed(row, entry);
+        }
+
+        @Override
+        public void onStarted(String batchId) throws Exception {
+            listener.onStarted(batchId);
+        }
+
+        BatchResult result(String retryId) {
+            sent.sort(Comparator.comparingInt(SentPaystub::row));
+            failed.sort(Comparator.comparingInt(FailedPaystub::row));
+            return new BatchResult(sent, failed, retryId);
+        }
     }
 }
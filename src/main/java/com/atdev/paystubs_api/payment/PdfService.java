@@ -13,14 +13,24 @@ import com.lowagie.text.pdf.PdfWriter;
 import org.springframework.stereotype.Service;
 
 import java.io.ByteArrayOutputStream;
+import java.io.OutputStream;
 import java.util.Map;
 
 @Service
 public class PdfService {
     public byte[] render(PayrollRecord p, String company, byte[] logoBytes, Map<String, String> labels) throws Exception {
-        Document doc = new Document(PageSize.A4, 36, 36, 36, 36);
         ByteArrayOutputStream baos = new ByteArrayOutputStream();
-        PdfWriter.getInstance(doc, baos);
+        render(p, company, logoBytes, labels, baos);
+        return baos.toByteArray();
+    }
+
+    /**
+     * Writes the paystub straight into {@code out}, e.g. a {@code PdfAttachment.Buffer}, so the
+     * caller can send it without the extra copy made by {@link #render(PayrollRecord, String, byte[], Map)}.
+     */
+    public void render(PayrollRecord p, String company, byte[] logoBytes, Map<String, String> labels, OutputStream out) throws Exception {
+        Document doc = new Document(PageSize.A4, 36, 36, 36, 36);
+        PdfWriter.getInstance(doc, out);
         doc.open();
 
         // Main table with border
@@ -261,7 +271,6 @@ public class PdfService {
 
         doc.add(mainTable);
         doc.close();
-        return baos.toByteArray();
     }
 
     private PdfPCell cell(String t) {
@@ -0,0 +1,82 @@
+package com.atdev.paystubs_api.payment;
+
+import com.atdev.paystubs_api.payment.dto.PreviewRequest;
+import org.springframework.http.CacheControl;
+import org.springframework.http.ContentDisposition;
+import org.springframework.http.HttpHeaders;
+import org.springframework.http.HttpStatus;
+import org.springframework.http.MediaType;
+import org.springframework.http.ResponseEntity;
+import org.springframework.web.bind.annotation.PostMapping;
+import org.springframework.web.bind.annotation.RequestBody;
+import org.springframework.web.bind.annotation.RequestHeader;
+import org.springframework.web.bind.annotation.RequestParam;
+import org.springframework.web.bind.annotation.RequestPart;
+import org.springframework.web.bind.annotation.RestController;
+import org.springframework.web.multipart.MultipartFile;
+
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Renders one paystub and returns the PDF instead of emailing it, to check layouts and logos.
+ */
+@RestController
+public class PreviewController {
+
+    private final CsvService csvService;
+    private final PreviewService previewService;
+
+    public PreviewController(CsvService csvService, PreviewService previewService) {
+        this.csvService = csvService;
+        this.previewService = previewService;
+    }
+
+    @PostMapping(value = "/preview", consumes = MediaType.APPLICATION_JSON_VALUE)
+    public ResponseEntity<Object> preview(
+            @RequestParam(name = "country", defaultValue = "do") String country,
+            @RequestParam(name = "company") String company,
+            @RequestBody PreviewRequest record,
+            @RequestHeader(name = HttpHeaders.IF_NONE_MATCH, required = false) String ifNoneMatch
+    ) throws Exception {
+        return preview(country, company, record.toRecord(), ifNoneMatch);
+    }
+
+    @PostMapping(value = "/preview", consumes = MediaType.MULTIPART_FORM_DATA_VALUE)
+    public ResponseEntity<Object> previewCsv(
+            @RequestParam(name = "country", defaultValue = "do") String country,
+            @RequestParam(name = "company") String company,
+            @RequestPart("file") MultipartFile csv,
+            @RequestHeader(name = HttpHeaders.IF_NONE_MATCH, required = false) String ifNoneMatch
+    ) throws Exception {
+        List<PayrollRecord> rows = csvService.parse(csv);
+        if (rows.size() != 1) {
+            return ResponseEntity.badRequest().body(
+                    Map.of("error", "Preview expects exactly one row.")
+            );
+        }
+        return preview(country, company, rows.get(0), ifNoneMatch);
+    }
+
+    private ResponseEntity<Object> preview(String country, String company, PayrollRecord rec, String ifNoneMatch) throws Exception {
+        Country parsed = Country.fromValue(country);
+        if (parsed == null) {
+            return ResponseEntity.badRequest().body(
+                    Map.of("error", "Invalid country option.")
+            );
+        }
+
+        PreviewService.Preview preview = previewService.preview(parsed, company, rec, ifNoneMatch);
+        if (preview.notModified()) {
+            return ResponseEntity.status(HttpStatus.NOT_MODIFIED).eTag(preview.etag()).build();
+        }
+        return ResponseEntity.ok()
+                .eTag(preview.etag())
+                .cacheControl(CacheControl.noCache().cachePrivate())
+                .contentType(MediaType.APPLICATION_PDF)
+                .header(HttpHeaders.CONTENT_DISPOSITION, ContentDisposition.inline()
+                        .filename("paystub-" + String.valueOf(rec.fullName()).trim().replaceAll("\\s+", "_") + ".pdf")
+                        .build().toString())
+                .body(preview.pdf());
+    }
+}
@@ -0,0 +1,102 @@
+package com.atdev.paystubs_api.payment;
+
+import com.atdev.paystubs_api.payment.util.Labels;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Service;
+
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.util.HexFormat;
+import java.util.LinkedHashMap;
+import java.util.Locale;
+import java.util.Map;
+import java.util.UUID;
+
+/**
+ * Renders single paystubs for {@code /preview}. Renders are keyed by an ETag computed from the
+ * inputs (record, company, locale and logo bytes) rather than the PDF, whose metadata changes on
+ * every render, and the most recent ones are kept in a small LRU.
+ */
+@Service
+public class PreviewService {
+    // Changes on every start so a redeployed layout never matches an ETag cached by a client.
+    private static final byte[] INSTANCE_SALT = UUID.randomUUID().toString().getBytes(StandardCharsets.UTF_8);
+
+    private final PdfService pdfService;
+    private final LogoService logoService;
+    private final Map<String, byte[]> renders;
+
+    public PreviewService(PdfService pdfService,
+                          LogoService logoService,
+                          @Value("${app.preview.cache-size:32}") int cacheSize) {
+        this.pdfService = pdfService;
+        this.logoService = logoService;
+        this.renders = new LinkedHashMap<>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, byte[]> eldest) {
+                return size() > cacheSize;
+            }
+        };
+    }
+
+    /**
+     * Returns the paystub for {@code rec}, without rendering when {@code ifNoneMatch} already names
+     * the current version (the returned {@link Preview} then has no PDF) or when it was rendered recently.
+     */
+    public Preview preview(Country country, String company, PayrollRecord rec, String ifNoneMatch) throws Exception {
+        Locale locale = PayrollService.localeOf(country);
+        byte[] logo = logoService.loadLogo(company);
+        String etag = etag(company, locale, rec, logo);
+        if (matches(ifNoneMatch, etag)) {
+            return new Preview(etag, null);
+        }
+
+        byte[] pdf;
+        synchronized (renders) {
+            pdf = renders.get(etag);
+        }
+        if (pdf == null) {
+            pdf = pdfService.render(rec, company, logo, Labels.of(locale));
+            synchronized (renders) {
+                renders.put(etag, pdf);
+            }
+        }
+        return new Preview(etag, pdf);
+    }
+
+    static boolean matches(String ifNoneMatch, String etag) {
+        if (ifNoneMatch == null) {
+            return false;
+        }
+        for (String candidate : ifNoneMatch.split(",")) {
+            String tag = candidate.trim();
+            if (tag.startsWith("W/")) {
+                tag = tag.substring(2);
+            }
+            if (tag.equals("*") || tag.equals("\"" + etag + "\"")) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private String etag(String company, Locale locale, PayrollRecord rec, byte[] logo) throws Exception {
+        MessageDigest digest = MessageDigest.getInstance("SHA-256");
+        digest.update(INSTANCE_SALT);
+        for (String part : new String[]{company, locale.toLanguageTag(), rec.toString()}) {
+            digest.update(part.getBytes(StandardCharsets.UTF_8));
+            digest.update((byte) 0);
+        }
+        if (logo != null) {
+            digest.update(logo);
+        }
+        return HexFormat.of().formatHex(digest.digest(), 0, 16);
+    }
+
+    /** A rendered paystub and its ETag; {@code pdf} is {@code null} when the client copy is current. */
+    public record Preview(String etag, byte[] pdf) {
+        public boolean notModified() {
+            return pdf == null;
+        }
+    }
+}
@@ -0,0 +1,31 @@
+package com.atdev.paystubs_api.payment;
+
+import com.atdev.paystubs_api.pipeline.Priority;
+import lombok.Builder;
+
+import java.time.Duration;
+import java.time.Instant;
+
+/**
+ * Per-request switches for {@link PayrollService#processCsvAndSend}.
+ *
+ * @param groupByRecipient send every paystub that shares an email address in a single message
+ * @param timeout          time budget for sending, counted from when sending starts; rows not
+ *                         started by then are reported as not sent. {@code null} uses {@code app.batch.timeout}
+ * @param priority         rank among running batches for render and send slots; {@code null} means
+ *                         {@link Priority#NORMAL}
+ * @param sendAt           for jobs only: render the PDFs now and start sending at this time;
+ *                         {@code null} sends right away
+ */
+@Builder
+public record ProcessOptions(boolean groupByRecipient, Duration timeout, Priority priority, Instant sendAt) {
+    public ProcessOptions {
+        if (priority == null) {
+            priority = Priority.NORMAL;
+        }
+    }
+
+    public static ProcessOptions defaults() {
+        return builder().build();
+    }
+}
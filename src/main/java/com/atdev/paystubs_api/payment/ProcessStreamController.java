@@ -0,0 +1,189 @@
+package com.atdev.paystubs_api.payment;
+
+import com.atdev.paystubs_api.admission.BatchAdmission;
+import com.atdev.paystubs_api.pipeline.Priority;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.http.HttpHeaders;
+import org.springframework.http.MediaType;
+import org.springframework.http.ResponseEntity;
+import org.springframework.web.bind.annotation.PostMapping;
+import org.springframework.web.bind.annotation.RequestHeader;
+import org.springframework.web.bind.annotation.RequestParam;
+import org.springframework.web.bind.annotation.RequestPart;
+import org.springframework.web.bind.annotation.RestController;
+import org.springframework.web.context.request.NativeWebRequest;
+import org.springframework.web.multipart.MultipartFile;
+import org.springframework.web.servlet.mvc.method.annotation.StreamingResponseBody;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.UncheckedIOException;
+import java.time.Duration;
+import java.time.OffsetDateTime;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Streaming variant of {@code POST /process}, chosen with {@code Accept: application/x-ndjson} or
+ * {@code Accept: text/event-stream}. Each sent paystub is written and flushed as soon as its
+ * email is handed to the mail server, each failed row as a {@code failed} event and each row
+ * deferred while the relay is down as a {@code deferred} event, followed by a {@code summary}
+ * that lists the failed rows again; nothing is kept for the sent rows.
+ */
+@Slf4j
+@RestController
+public class ProcessStreamController {
+
+    private final CsvService csvService;
+    private final PayrollService payrollService;
+    private final BatchAdmission admission;
+    private final ObjectMapper objectMapper;
+
+    public ProcessStreamController(CsvService csvService, PayrollService payrollService, BatchAdmission admission, ObjectMapper objectMapper) {
+        this.csvService = csvService;
+        this.payrollService = payrollService;
+        this.admission = admission;
+        this.objectMapper = objectMapper;
+    }
+
+    @PostMapping(value = "/process",
+            consumes = MediaType.MULTIPART_FORM_DATA_VALUE,
+            produces = {MediaType.APPLICATION_NDJSON_VALUE, MediaType.TEXT_EVENT_STREAM_VALUE})
+    public ResponseEntity<StreamingResponseBody> process(
+            @RequestParam(name = "country", defaultValue = "do") String country,
+            @RequestParam(name = "credentials") String credentials,
+            @RequestParam(name = "company") String company,
+            @RequestPart("file") MultipartFile csv,
+            @RequestParam(name = "group_by_recipient", defaultValue = "false") boolean groupByRecipient,
+            @RequestParam(name = "timeout_ms", required = false) Long timeoutMs,
+            @RequestParam(name = "priority", defaultValue = "normal") String priority,
+            @RequestParam(name = "send_at", required = false) String sendAt,
+            @RequestHeader(name = PaymentController.IDEMPOTENCY_KEY, required = false) String idempotencyKey,
+            @RequestHeader(name = HttpHeaders.ACCEPT, required = false) String accept,
+            NativeWebRequest request
+    ) throws Exception {
+        Country target = Country.fromValue(country);
+        if (target == null) {
+            return ResponseEntity.badRequest()
+                    .contentType(MediaType.APPLICATION_JSON)
+                    .body(out -> objectMapper.writeValue(out, Map.of("error", "Invalid country option.")));
+        }
+        if (timeoutMs != null && timeoutMs <= 0) {
+            return ResponseEntity.badRequest()
+                    .contentType(MediaType.APPLICATION_JSON)
+                    .body(out -> objectMapper.writeValue(out, Map.of("error", "timeout_ms must be positive.")));
+        }
+        if (Priority.fromValue(priority) == null) {
+            return ResponseEntity.badRequest()
+                    .contentType(MediaType.APPLICATION_JSON)
+                    .body(out -> objectMapper.writeValue(out, Map.of("error", "Invalid priority option.")));
+        }
+        if (sendAt != null) {
+            // sending later would leave nothing to stream now; the JSON response schedules a job instead
+            return ResponseEntity.badRequest()
+                    .contentType(MediaType.APPLICATION_JSON)
+                    .body(out -> objectMapper.writeValue(out, Map.of("error", "send_at cannot be used with a streamed response.")));
+        }
+        if (idempotencyKey != null) {
+            // a stream cannot be replayed, and sending a retried one again is what the key is meant to prevent
+            return ResponseEntity.badRequest()
+                    .contentType(MediaType.APPLICATION_JSON)
+                    .body(out -> objectMapper.writeValue(out, Map.of("error", "Idempotency-Key cannot be used with a streamed response.")));
+        }
+
+        ProcessOptions options = ProcessOptions.builder()
+                .groupByRecipient(groupByRecipient)
+                .timeout(timeoutMs == null ? null : Duration.ofMillis(timeoutMs))
+                .priority(Priority.fromValue(priority))
+                .build();
+        StreamFormat format = StreamFormat.fromAccept(accept);
+        // Waits here, before the CSV is parsed and the status line is sent, so a rejection can still answer 429.
+        // closed by the body once it ran, or when the async request ends if the body never runs
+        BatchAdmission.Permit permit = admission.admit().closeOnCompletion(request);
+        // Parsed here: the upload is released once this handler returns.
+        List<PayrollRecord> rows;
+        try {
+            rows = csvService.parse(csv);
+            permit.reserve(rows.size());
+        } catch (Exception e) {
+            permit.close();
+            throw e;
+        }
+
+        return ResponseEntity.ok()
+                .contentType(format.mediaType)
+                .header(HttpHeaders.CACHE_CONTROL, "no-cache")
+                .header("X-Accel-Buffering", "no")
+                .body(out -> {
+                    try (permit) {
+                        stream(out, format, target, company, rows, options);
+                    }
+                });
+    }
+
+    void stream(OutputStream out, StreamFormat format, Country country, String company, List<PayrollRecord> rows, ProcessOptions options) throws IOException {
+        int[] counts = {0, 0, 0};
+        List<FailedPaystub> failed = new ArrayList<>();
+        String retryId;
+        try {
+            retryId = payrollService.sendRows(country, company, rows, options, new SentListener() {
+                @Override
+                public void onSent(int row, SentPaystub entry) {
+                    write(out, format, entry.status(), entry);
+                    counts[entry.deferred() ? 2 : 0]++;
+                }
+
+                @Override
+                public void onFailed(int row, FailedPaystub entry) {
+                    write(out, format, "failed", entry);
+                    counts[1]++;
+                    failed.add(entry);
+                }
+            });
+        } catch (UncheckedIOException e) {
+            // the client went away; the rest of the batch is abandoned with it
+            throw e.getCause();
+        } catch (Exception e) {
+            log.error("Streaming batch for {} failed after {} of {} rows", company, counts[0] + counts[1] + counts[2], rows.size(), e);
+            format.write(out, objectMapper, "error", Map.of(
+                    "error", e.getMessage() != null ? e.getMessage() : e.getClass().getSimpleName(),
+                    "sent_count", counts[0],
+                    "failed_count", counts[1],
+                    "deferred_count", counts[2]
+            ));
+            out.flush();
+            return;
+        }
+
+        Map<String, Object> summary = new LinkedHashMap<>();
+        summary.put("company", company);
+        summary.put("country", country);
+        summary.put("processed_at", OffsetDateTime.now().toString());
+        summary.put("total", rows.size());
+        summary.put("sent_count", counts[0]);
+        summary.put("failed_count", counts[1]);
+        if (counts[2] > 0) {
+            summary.put("deferred_count", counts[2]);
+        }
+        if (retryId != null) {
+            summary.put("retry_id", retryId);
+        }
+        failed.sort(Comparator.comparingInt(FailedPaystub::row));
+        summary.put("failed", failed);
+        format.write(out, objectMapper, "summary", summary);
+        out.flush();
+    }
+
+    private void write(OutputStream out, StreamFormat format, String event, Object entry) {
+        try {
+            format.write(out, objectMapper, event, entry);
+            out.flush();
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+}
@@ -0,0 +1,10 @@
+package com.atdev.paystubs_api.payment;
+
+import java.util.List;
+
+/**
+ * Row counts of a batch processed without keeping an entry per sent row. Only the
+ * {@code failed} rows are listed, in CSV order. {@code deferred} rows wait for the mail relay and
+ * are not counted as sent. {@code retryId} is {@code null} when no row failed or was deferred.
+ */
+public record ProcessTotals(int total, int sent, int deferred, List<FailedPaystub> failed, String retryId) {}
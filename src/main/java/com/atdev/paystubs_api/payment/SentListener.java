@@ -0,0 +1,28 @@
+package com.atdev.paystubs_api.payment;
+
+/**
+ * Receives each sent paystub as soon as its message has been handed to the mail server, and each
+ * row that failed. A row deferred while the relay is down is passed to {@link #onSent} too, with
+ * {@link SentPaystub#deferred()} set. Throwing stops the rest of the batch, e.g. when a streaming
+ * client has gone away.
+ */
+@FunctionalInterface
+public interface SentListener {
+    /**
+     * @param row zero-based index of the row in the submitted CSV
+     */
+    void onSent(int row, SentPaystub sent) throws Exception;
+
+    /**
+     * @param row zero-based index of the row in the submitted CSV
+     */
+    default void onFailed(int row, FailedPaystub failed) throws Exception {
+    }
+
+    /**
+     * Called before any row is sent, with the id the batch runs under; it can be passed to
+     * {@link com.atdev.paystubs_api.batch.RunningBatches#abort}.
+     */
+    default void onStarted(String batchId) throws Exception {
+    }
+}
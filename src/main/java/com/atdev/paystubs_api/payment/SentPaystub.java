@@ -0,0 +1,39 @@
+package com.atdev.paystubs_api.payment;
+
+import com.fasterxml.jackson.annotation.JsonInclude;
+import com.fasterxml.jackson.annotation.JsonProperty;
+
+import java.time.Instant;
+
+/**
+ * One paystub handed to the mail server, or with {@code status} {@code deferred}, kept for the
+ * relay while it is down: delivery is still pending and there is no {@code sentAt}. {@code sentAt}
+ * stays an {@link Instant} until the response is serialized, and is never formatted in summary responses.
+ */
+public record SentPaystub(
+        int row,
+        String email,
+        @JsonProperty("full_name") String fullName,
+        String status,
+        @JsonProperty("sent_at") @JsonInclude(JsonInclude.Include.NON_NULL) Instant sentAt
+) {
+    public static final String SENT = "sent";
+    public static final String DEFERRED = "deferred";
+
+    public SentPaystub(int row, String email, String fullName, Instant sentAt) {
+        this(row, email, fullName, SENT, sentAt);
+    }
+
+    static SentPaystub of(int row, PayrollRecord rec) {
+        return new SentPaystub(row, rec.email(), rec.fullName(), Instant.now());
+    }
+
+    static SentPaystub deferred(int row, PayrollRecord rec) {
+        return new SentPaystub(row, rec.email(), rec.fullName(), DEFERRED, null);
+    }
+
+    /** Whether the paystub waits in the deferred store rather than having reached the relay. */
+    public boolean deferred() {
+        return DEFERRED.equals(status);
+    }
+}
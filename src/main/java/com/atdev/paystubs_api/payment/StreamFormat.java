@@ -0,0 +1,45 @@
+package com.atdev.paystubs_api.payment;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import org.springframework.http.MediaType;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.Map;
+
+/**
+ * Wire formats for streamed {@code /process} progress. Every event has a name ({@code sent},
+ * {@code failed}, {@code summary} or {@code error}) and a JSON payload.
+ */
+public enum StreamFormat {
+    /** One JSON object per line, keyed by the event name: {@code {"sent":{...}}}. */
+    NDJSON(MediaType.APPLICATION_NDJSON) {
+        @Override
+        void write(OutputStream out, ObjectMapper mapper, String event, Object data) throws IOException {
+            out.write(mapper.writeValueAsBytes(Map.of(event, data)));
+            out.write('\n');
+        }
+    },
+    /** Server-Sent Events: {@code event: sent} followed by a {@code data:} line. */
+    SSE(MediaType.TEXT_EVENT_STREAM) {
+        @Override
+        void write(OutputStream out, ObjectMapper mapper, String event, Object data) throws IOException {
+            out.write(("event: " + event + "\ndata: ").getBytes(StandardCharsets.UTF_8));
+            out.write(mapper.writeValueAsBytes(data));
+            out.write("\n\n".getBytes(StandardCharsets.UTF_8));
+        }
+    };
+
+    public final MediaType mediaType;
+
+    StreamFormat(MediaType mediaType) {
+        this.mediaType = mediaType;
+    }
+
+    abstract void write(OutputStream out, ObjectMapper mapper, String event, Object data) throws IOException;
+
+    public static StreamFormat fromAccept(String accept) {
+        return accept != null && accept.contains(MediaType.TEXT_EVENT_STREAM_VALUE) ? SSE : NDJSON;
+    }
+}
@@ -0,0 +1,44 @@
+package com.atdev.paystubs_api.payment.dto;
+
+import com.atdev.paystubs_api.payment.PayrollRecord;
+import lombok.AllArgsConstructor;
+import lombok.Builder;
+import lombok.Data;
+import lombok.NoArgsConstructor;
+
+/**
+ * One payroll row for {@code /preview}, with the same field names as the CSV columns.
+ */
+@Data
+@NoArgsConstructor
+@AllArgsConstructor
+@Builder
+public class PreviewRequest {
+    private String full_name;
+    private String email;
+    private String position;
+    private double health_discount_amount;
+    private double social_discount_amount;
+    private double taxes_discount_amount;
+    private double other_discount_amount;
+    private double gross_salary;
+    private double gross_payment;
+    private double net_payment;
+    private String period;
+
+    public PayrollRecord toRecord() {
+        return new PayrollRecord(
+                full_name,
+                email,
+                position,
+                health_discount_amount,
+                social_discount_amount,
+                taxes_discount_amount,
+                other_discount_amount,
+                gross_salary,
+                gross_payment,
+                net_payment,
+                period
+        );
+    }
+}
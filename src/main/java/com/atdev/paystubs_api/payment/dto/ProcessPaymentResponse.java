@@ -1,6 +1,9 @@
 package com.atdev.paystubs_api.payment.dto;
 
 import com.atdev.paystubs_api.payment.Country;
+import com.atdev.paystubs_api.payment.FailedPaystub;
+import com.atdev.paystubs_api.payment.SentPaystub;
+import com.fasterxml.jackson.annotation.JsonInclude;
 import lombok.AllArgsConstructor;
 import lombok.Builder;
 import lombok.Data;
@@ -8,7 +11,6 @@ import lombok.NoArgsConstructor;
 
 import java.time.OffsetDateTime;
 import java.util.List;
-import java.util.Map;
 
 @Data
 @NoArgsConstructor
@@ -18,5 +20,9 @@ public class ProcessPaymentResponse {
     private String company;
     private Country country;
     private String processed_at = OffsetDateTime.now().toString();
-    private List<Map<String, Object>> sent;
+    private List<SentPaystub> sent;
+    private List<FailedPaystub> failed;
+    // only set when some rows failed; see POST /process/{retry_id}/retry
+    @JsonInclude(JsonInclude.Include.NON_NULL)
+    private String retry_id;
 }
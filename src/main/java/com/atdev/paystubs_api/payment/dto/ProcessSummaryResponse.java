@@ -0,0 +1,36 @@
+package com.atdev.paystubs_api.payment.dto;
+
+import com.atdev.paystubs_api.payment.Country;
+import com.atdev.paystubs_api.payment.FailedPaystub;
+import com.fasterxml.jackson.annotation.JsonInclude;
+import lombok.AllArgsConstructor;
+import lombok.Builder;
+import lombok.Data;
+import lombok.NoArgsConstructor;
+
+import java.util.List;
+
+/**
+ * Body of {@code /process?summary=true}: counts and timing, and only the failed rows, no entry per
+ * sent row.
+ */
+@Data
+@NoArgsConstructor
+@AllArgsConstructor
+@Builder
+public class ProcessSummaryResponse {
+    private String company;
+    private Country country;
+    private int total;
+    private int sent_count;
+    private int failed_count;
+    // rows waiting for the mail relay, not counted as sent
+    @JsonInclude(JsonInclude.Include.NON_DEFAULT)
+    private int deferred_count;
+    @JsonInclude(JsonInclude.Include.NON_NULL)
+    private String retry_id;
+    private String started_at;
+    private String processed_at;
+    private long duration_ms;
+    private List<FailedPaystub> failed;
+}
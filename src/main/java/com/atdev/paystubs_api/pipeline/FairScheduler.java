@@ -0,0 +1,259 @@
+package com.atdev.paystubs_api.pipeline;
+
+import io.micrometer.core.instrument.FunctionCounter;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.binder.MeterBinder;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Service;
+
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.EnumMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.Supplier;
+
+/**
+ * Shares the node's render and send slots among running batches. Every render and every send of
+ * every batch takes a slot; at most {@code app.scheduler.render-slots} PDFs render (by default one
+ * per core) and {@code app.scheduler.send-slots} messages are sent at once. While slots are free
+ * nobody waits. Once they are all taken, a freed slot goes to the waiting batch with the highest
+ * {@link Priority}, then to the one with the fewest items left (shortest remaining first), then to
+ * the one registered first, so a short correction run finishes in seconds next to a bulk payroll
+ * run instead of queueing behind it. The bulk run takes every slot nobody else waits for.
+ */
+@Service
+public class FairScheduler implements MeterBinder {
+    private static final Comparator<Waiter> ORDER = Comparator
+            .comparing((Waiter w) -> w.batch.priority)
+            .thenComparingInt(w -> w.batch.remaining)
+            .thenComparingLong(w -> w.batch.seq)
+            .thenComparingLong(w -> w.seq);
+
+    private final boolean enabled;
+    private final Map<Kind, Integer> slots = new EnumMap<>(Kind.class);
+
+    private final ReentrantLock lock = new ReentrantLock();
+    private final Map<Kind, Condition> released = new EnumMap<>(Kind.class);
+    private final Map<Kind, Integer> used = new EnumMap<>(Kind.class);
+    private final Map<Kind, List<Waiter>> waiting = new EnumMap<>(Kind.class);
+    private final Map<Kind, Long> waits = new EnumMap<>(Kind.class);
+    private final Map<Kind, Long> waitNanos = new EnumMap<>(Kind.class);
+    private final List<Batch> batches = new ArrayList<>();
+    private long seq;
+
+    @Autowired
+    public FairScheduler(@Value("${app.scheduler.enabled:true}") boolean enabled,
+                         @Value("${app.scheduler.render-slots:0}") int renderSlots,
+                         @Value("${app.scheduler.send-slots:16}") int sendSlots) {
+        this.enabled = enabled;
+        slots.put(Kind.RENDER, renderSlots > 0 ? renderSlots : Runtime.getRuntime().availableProcessors());
+        slots.put(Kind.SEND, Math.max(1, sendSlots));
+        for (Kind kind : Kind.values()) {
+            released.put(kind, lock.newCondition());
+            used.put(kind, 0);
+            waiting.put(kind, new ArrayList<>());
+            waits.put(kind, 0L);
+            waitNanos.put(kind, 0L);
+        }
+    }
+
+    /** A scheduler that never waits, for callers that do not share the node. */
+    public static FairScheduler unbounded() {
+        return new FairScheduler(false, 1, 1);
+    }
+
+    /** Registers a batch of {@code items} work items; close it when the batch ends. */
+    public Batch register(int items, Priority priority) {
+        lock.lock();
+        try {
+            Batch batch = new Batch(priority, items, seq++);
+            batches.add(batch);
+            return batch;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Takes a {@code kind} slot for one item of {@code batch}, waiting while all are taken and
+     * another waiting batch comes first. Close the slot when the item is done.
+     */
+    public Slot acquire(Batch batch, Kind kind) throws InterruptedException {
+        if (!enabled) {
+            return Slot.NONE;
+        }
+        lock.lock();
+        try {
+            List<Waiter> queue = waiting.get(kind);
+            if (queue.isEmpty() && used.get(kind) < slots.get(kind)) {
+                return grant(kind);
+            }
+
+            Waiter waiter = new Waiter(batch, seq++);
+            queue.add(waiter);
+            long start = System.nanoTime();
+            boolean granted = false;
+            try {
+                while (used.get(kind) >= slots.get(kind) || queue.stream().min(ORDER).orElseThrow() != waiter) {
+                    released.get(kind).await();
+                }
+                granted = true;
+                return grant(kind);
+            } finally {
+                queue.remove(waiter);
+                waits.merge(kind, 1L, Long::sum);
+                waitNanos.merge(kind, System.nanoTime() - start, Long::sum);
+                if (!granted) {
+                    // the next waiter may be first now
+                    released.get(kind).signalAll();
+                }
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    public State state() {
+        lock.lock();
+        try {
+            List<BatchState> running = batches.stream()
+                    .map(b -> new BatchState(b.priority, b.remaining, waiting(b, Kind.RENDER), waiting(b, Kind.SEND)))
+                    .toList();
+            return new State(slots.get(Kind.RENDER), slots.get(Kind.SEND), used.get(Kind.RENDER), used.get(Kind.SEND),
+                    waiting.get(Kind.RENDER).size(), waiting.get(Kind.SEND).size(),
+                    waits.values().stream().mapToLong(Long::longValue).sum(),
+                    waitNanos.values().stream().mapToLong(Long::longValue).sum() / (double) TimeUnit.SECONDS.toNanos(1),
+                    running);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    @Override
+    public void bindTo(MeterRegistry registry) {
+        for (Kind kind : Kind.values()) {
+            String tag = kind.name().toLowerCase(Locale.ROOT);
+            Gauge.builder("paystubs.scheduler.slots", this, s -> s.slots.get(kind)).tag("kind", tag).register(registry);
+            Gauge.builder("paystubs.scheduler.slots.used", this, s -> s.read(() -> s.used.get(kind)))
+                    .tag("kind", tag).register(registry);
+            Gauge.builder("paystubs.scheduler.waiting", this, s -> s.read(() -> s.waiting.get(kind).size()))
+                    .tag("kind", tag).register(registry);
+            FunctionCounter.builder("paystubs.scheduler.waits", this, s -> s.read(() -> s.waits.get(kind)))
+                    .tag("kind", tag).register(registry);
+            FunctionCounter.builder("paystubs.scheduler.wait.time", this,
+                            s -> s.read(() -> s.waitNanos.get(kind)) / (double) TimeUnit.SECONDS.toNanos(1))
+                    .tag("kind", tag).baseUnit("seconds").register(registry);
+        }
+    }
+
+    private Slot grant(Kind kind) {
+        used.merge(kind, 1, Integer::sum);
+        return new Slot(this, kind);
+    }
+
+    private void release(Kind kind) {
+        lock.lock();
+        try {
+            used.merge(kind, -1, Integer::sum);
+            released.get(kind).signalAll();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private int waiting(Batch batch, Kind kind) {
+        return (int) waiting.get(kind).stream().filter(w -> w.batch == batch).count();
+    }
+
+    private <N extends Number> N read(Supplier<N> value) {
+        lock.lock();
+        try {
+            return value.get();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    public enum Kind {
+        RENDER, SEND
+    }
+
+    // seq tells apart the waiting workers of one batch and keeps them in arrival order
+    private record Waiter(Batch batch, long seq) {}
+
+    /** A running batch and the items it has left, which rank it against the others. */
+    public final class Batch implements AutoCloseable {
+        private final Priority priority;
+        private final long seq;
+        private int remaining;
+
+        private Batch(Priority priority, int items, long seq) {
+            this.priority = priority;
+            this.remaining = items;
+            this.seq = seq;
+        }
+
+        /** Counts {@code items} as done, whether sent, failed or skipped. */
+        public void finished(int items) {
+            lock.lock();
+            try {
+                remaining = Math.max(0, remaining - items);
+                // a batch with fewer items left may now come first
+                for (Kind kind : Kind.values()) {
+                    released.get(kind).signalAll();
+                }
+            } finally {
+                lock.unlock();
+            }
+        }
+
+        @Override
+        public void close() {
+            lock.lock();
+            try {
+                batches.remove(this);
+            } finally {
+                lock.unlock();
+            }
+        }
+    }
+
+    /** A render or send slot; closing it (once) gives it back. */
+    public static final class Slot implements AutoCloseable {
+        static final Slot NONE = new Slot(null, null);
+
+        private final FairScheduler owner;
+        private final Kind kind;
+        private boolean released;
+
+        private Slot(FairScheduler owner, Kind kind) {
+            this.owner = owner;
+            this.kind = kind;
+        }
+
+        @Override
+        public void close() {
+            if (owner != null && !released) {
+                released = true;
+                owner.release(kind);
+            }
+        }
+    }
+
+    /**
+     * @param render_waiting workers of all batches waiting for a render slot
+     * @param waits          renders and sends that had to wait for a slot since startup
+     * @param batches        running batches, in the order they registered
+     */
+    public record State(int render_slots, int send_slots, int render_used, int send_used, int render_waiting,
+                        int send_waiting, long waits, double wait_seconds, List<BatchState> batches) {}
+
+    public record BatchState(Priority priority, int remaining, int waiting_render, int waiting_send) {}
+}
@@ -0,0 +1,172 @@
+package com.atdev.paystubs_api.pipeline;
+
+import io.micrometer.core.instrument.FunctionCounter;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.binder.MeterBinder;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Service;
+import org.springframework.util.unit.DataSize;
+
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Caps the bytes of rendered PDFs held by all batches together, from rendering until the mail is
+ * sent. A PDF's size is only known once rendered, so a renderer reserves an estimate first (the
+ * average size rendered so far, {@code app.pipeline.pdf-size-estimate} until then) and the
+ * reservation is corrected to the actual size afterwards. Renderers that do not fit wait in FIFO
+ * order; a reservation larger than the whole budget is granted alone. A budget of zero only counts.
+ */
+@Service
+public class MemoryBudget implements MeterBinder {
+    private final long budgetBytes;
+    private final long initialEstimate;
+
+    private final ReentrantLock lock = new ReentrantLock();
+    private final Condition changed = lock.newCondition();
+    private final Deque<Waiter> queue = new ArrayDeque<>();
+    private long usedBytes;
+    private long renderedBytes;
+    private long renderedPdfs;
+    private long waits;
+    private long waitNanos;
+
+    @Autowired
+    public MemoryBudget(@Value("${app.pipeline.memory-budget:64MB}") DataSize budget,
+                        @Value("${app.pipeline.pdf-size-estimate:64KB}") DataSize pdfSizeEstimate) {
+        this.budgetBytes = Math.max(0, budget.toBytes());
+        this.initialEstimate = Math.max(1, pdfSizeEstimate.toBytes());
+    }
+
+    /** Reserves the estimated size of {@code pdfs} PDFs, waiting until they fit in the budget. */
+    public Reservation reserve(int pdfs) throws InterruptedException {
+        lock.lock();
+        try {
+            long bytes = pdfs * estimate();
+            if (queue.isEmpty() && fits(bytes)) {
+                return grant(pdfs, bytes);
+            }
+
+            Waiter waiter = new Waiter();
+            queue.addLast(waiter);
+            long start = System.nanoTime();
+            boolean granted = false;
+            try {
+                while (queue.peekFirst() != waiter || !fits(bytes)) {
+                    changed.await();
+                }
+                granted = true;
+                return grant(pdfs, bytes);
+            } finally {
+                queue.remove(waiter);
+                waits++;
+                waitNanos += System.nanoTime() - start;
+                if (!granted) {
+                    // the next waiter may fit now that this one left the head of the queue
+                    changed.signalAll();
+                }
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    public State state() {
+        lock.lock();
+        try {
+            return new State(budgetBytes, usedBytes, queue.size(), waits, seconds(waitNanos), estimate());
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    @Override
+    public void bindTo(MeterRegistry registry) {
+        Gauge.builder("paystubs.pipeline.memory.used", this, b -> b.state().used_bytes()).baseUnit("bytes").register(registry);
+        Gauge.builder("paystubs.pipeline.memory.budget", this, b -> b.budgetBytes).baseUnit("bytes").register(registry);
+        Gauge.builder("paystubs.pipeline.memory.waiting", this, b -> b.state().waiting()).register(registry);
+        FunctionCounter.builder("paystubs.pipeline.memory.waits", this, b -> b.state().waits()).register(registry);
+        FunctionCounter.builder("paystubs.pipeline.memory.wait.time", this, b -> b.state().wait_seconds())
+                .baseUnit("seconds").register(registry);
+    }
+
+    private boolean fits(long bytes) {
+        return budgetBytes == 0 || usedBytes == 0 || usedBytes + bytes <= budgetBytes;
+    }
+
+    private Reservation grant(int pdfs, long bytes) {
+        usedBytes += bytes;
+        return new Reservation(pdfs, bytes);
+    }
+
+    private long estimate() {
+        return renderedPdfs == 0 ? initialEstimate : Math.max(1, renderedBytes / renderedPdfs);
+    }
+
+    private static double seconds(long nanos) {
+        return nanos / (double) TimeUnit.SECONDS.toNanos(1);
+    }
+
+    // compared by identity: each waiting renderer is its own entry
+    private static final class Waiter {}
+
+    /** Bytes held for rendered PDFs; closing it (once) gives them back to the budget. */
+    public final class Reservation implements AutoCloseable {
+        private final int pdfs;
+        private long bytes;
+        private boolean released;
+
+        private Reservation(int pdfs, long bytes) {
+            this.pdfs = pdfs;
+            this.bytes = bytes;
+        }
+
+        /**
+         * Replaces the estimate with the actual size of the rendered PDFs, without waiting: a
+         * reservation that turns out larger may take the budget over until it is closed.
+         */
+        public void resize(long actualBytes) {
+            lock.lock();
+            try {
+                if (released) {
+                    return;
+                }
+                renderedBytes += actualBytes;
+                renderedPdfs += pdfs;
+                usedBytes += actualBytes - bytes;
+                if (actualBytes < bytes) {
+                    changed.signalAll();
+                }
+                bytes = actualBytes;
+            } finally {
+                lock.unlock();
+            }
+        }
+
+        @Override
+        public void close() {
+            lock.lock();
+            try {
+                if (!released) {
+                    released = true;
+                    usedBytes -= bytes;
+                    changed.signalAll();
+                }
+            } finally {
+                lock.unlock();
+            }
+        }
+    }
+
+    /**
+     * @param waits              reservations that had to wait for the budget since startup
+     * @param pdf_estimate_bytes bytes reserved per PDF before it is rendered
+     */
+    public record State(long budget_bytes, long used_bytes, int waiting, long waits, double wait_seconds,
+                        long pdf_estimate_bytes) {}
+}
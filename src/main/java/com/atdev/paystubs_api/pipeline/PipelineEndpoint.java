@@ -0,0 +1,25 @@
+package com.atdev.paystubs_api.pipeline;
+
+import org.springframework.boot.actuate.endpoint.annotation.Endpoint;
+import org.springframework.boot.actuate.endpoint.annotation.ReadOperation;
+import org.springframework.stereotype.Component;
+
+/**
+ * {@code GET /actuator/pipeline}: workers, utilization and queue depth of the render and send
+ * stages of {@link StagedPipeline}.
+ */
+@Component
+@Endpoint(id = "pipeline")
+public class PipelineEndpoint {
+
+    private final StagedPipeline pipeline;
+
+    public PipelineEndpoint(StagedPipeline pipeline) {
+        this.pipeline = pipeline;
+    }
+
+    @ReadOperation
+    public StagedPipeline.State state() {
+        return pipeline.state();
+    }
+}
@@ -0,0 +1,19 @@
+package com.atdev.paystubs_api.pipeline;
+
+import java.util.Locale;
+
+/** How a batch ranks against other running batches for render and send slots, see {@link FairScheduler}. */
+public enum Priority {
+    HIGH, NORMAL, LOW;
+
+    /** The priority named {@code value} ({@code high}, {@code normal} or {@code low}), or {@code null}. */
+    public static Priority fromValue(String value) {
+        for (Priority priority : Priority.values()) {
+            if (priority.name().equals(value.toUpperCase(Locale.ROOT))) {
+                return priority;
+            }
+        }
+
+        return null;
+    }
+}
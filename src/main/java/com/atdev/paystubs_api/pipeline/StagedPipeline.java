@@ -0,0 +1,414 @@
+package com.atdev.paystubs_api.pipeline;
+
+import com.atdev.paystubs_api.bulkhead.CompanyBulkheads;
+import io.micrometer.core.instrument.FunctionCounter;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.binder.MeterBinder;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Service;
+
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.BooleanSupplier;
+import java.util.function.ToIntFunction;
+import java.util.function.ToLongFunction;
+
+/**
+ * Runs a batch as stages joined by a bounded queue. The rows are parsed up front (admission needs
+ * their count), render workers take them one item at a time and put what they rendered on the
+ * queue, and send workers take it off and send it. When sending falls behind, render workers block
+ * on the full queue instead of rendering ahead, so a batch holds at most
+ * {@code app.pipeline.queue-capacity} rendered items plus one per worker. Across batches, the
+ * bytes of rendered PDFs are capped by {@link MemoryBudget}: a render worker reserves them before
+ * rendering, waiting while the budget is used up, and they are given back once the item is sent.
+ * Every render, send and queued item also takes a lease from the batch company's
+ * {@link CompanyBulkheads}, so the batches of one company share its limits, and each render and
+ * send runs in a slot from the {@link FairScheduler}, which puts small batches ahead of large ones.
+ *
+ * <p>Workers and queue belong to one batch, on virtual threads that never outlive
+ * {@link #run}. The counters are shared by all batches and show, per stage, how much of its
+ * workers' time went into work rather than waiting on the queue, see {@link #state()}.
+ */
+@Service
+public class StagedPipeline implements MeterBinder {
+    private static final Object DONE = new Object();
+    private static final ThreadFactory RENDERERS = Thread.ofVirtual().name("payroll-render-", 0).factory();
+    private static final ThreadFactory SENDERS = Thread.ofVirtual().name("payroll-send-", 0).factory();
+
+    private final int renderWorkers;
+    private final int sendWorkers;
+    private final int queueCapacity;
+    private final MemoryBudget budget;
+    private final CompanyBulkheads bulkheads;
+    private final FairScheduler scheduler;
+
+    private final Stage render = new Stage();
+    private final Stage send = new Stage();
+    private final Set<BlockingQueue<Object>> queues = ConcurrentHashMap.newKeySet();
+
+    @Autowired
+    public StagedPipeline(@Value("${app.pipeline.render-workers:2}") int renderWorkers,
+                          @Value("${app.pipeline.send-workers:4}") int sendWorkers,
+                          @Value("${app.pipeline.queue-capacity:16}") int queueCapacity,
+                          MemoryBudget budget,
+                          CompanyBulkheads bulkheads,
+                          FairScheduler scheduler) {
+        this.renderWorkers = Math.max(1, renderWorkers);
+        this.sendWorkers = Math.max(1, sendWorkers);
+        this.queueCapacity = Math.max(1, queueCapacity);
+        this.budget = budget;
+        this.bulkheads = bulkheads;
+        this.scheduler = scheduler;
+    }
+
+    /**
+     * Renders and sends every item. Before an item is rendered, and again before it is sent,
+     * {@code stopped} is checked; once it is true the remaining items go to {@code skip} instead,
+     * including items already rendered and waiting on the queue, which are dropped unsent and give
+     * back what they hold. {@code render} may return {@code null} when there is nothing to send. A rendered
+     * item that is {@link AutoCloseable} is closed once sent, or when it is dropped because the
+     * pipeline failed.
+     * {@code footprint} tells how many PDFs an item renders and how many bytes they take once
+     * rendered, for the {@link MemoryBudget}; {@code priority} ranks the batch in the
+     * {@link FairScheduler}.
+     *
+     * <p>Row failures are expected to be handled inside the steps. An exception thrown by a step
+     * (an interrupt, or a listener that can no longer take results) interrupts every worker and is
+     * rethrown, as is an interrupt of the caller.
+     */
+    public <T, R> void run(String company, Priority priority, List<T> items, Footprint<T, R> footprint, BooleanSupplier stopped,
+                           Step<T> skip, Render<T, R> render, Step<R> send) throws Exception {
+        run(company, priority, 0, items, footprint, stopped, skip, render, send);
+    }
+
+    /**
+     * Same as {@link #run(String, Priority, List, Footprint, BooleanSupplier, Step, Render, Step)},
+     * with {@code sendWorkers} send workers instead of {@code app.pipeline.send-workers} when positive.
+     */
+    public <T, R> void run(String company, Priority priority, int sendWorkers, List<T> items, Footprint<T, R> footprint,
+                           BooleanSupplier stopped, Step<T> skip, Render<T, R> render, Step<R> send) throws Exception {
+        if (items.isEmpty()) {
+            return;
+        }
+        int renderers = Math.min(renderWorkers, items.size());
+        int senders = Math.min(sendWorkers > 0 ? sendWorkers : this.sendWorkers, items.size());
+        BlockingQueue<Object> queue = new ArrayBlockingQueue<>(queueCapacity);
+        AtomicInteger next = new AtomicInteger();
+        AtomicInteger rendering = new AtomicInteger(renderers);
+        AtomicReference<Exception> failure = new AtomicReference<>();
+
+        queues.add(queue);
+        try (FairScheduler.Batch batch = scheduler.register(items.size(), priority);
+             ExecutorService renderPool = Executors.newThreadPerTaskExecutor(RENDERERS);
+             ExecutorService sendPool = Executors.newThreadPerTaskExecutor(SENDERS)) {
+            Runnable abort = () -> {
+                renderPool.shutdownNow();
+                sendPool.shutdownNow();
+            };
+            try {
+                for (int w = 0; w < renderers; w++) {
+                    renderPool.execute(() -> renderLoop(company, batch, items, footprint, next, stopped, skip, render, queue, failure, abort, rendering, senders));
+                }
+                for (int w = 0; w < senders; w++) {
+                    sendPool.execute(() -> sendLoop(company, batch, queue, stopped, skip, send, failure, abort));
+                }
+            } catch (RejectedExecutionException e) {
+                // a worker already failed and shut both pools down
+                if (failure.get() == null) {
+                    throw e;
+                }
+            }
+        } finally {
+            queues.remove(queue);
+            // items left over when a worker failed are never sent
+            for (Object item : queue) {
+                if (item instanceof Held<?, ?> held) {
+                    held.release();
+                }
+            }
+        }
+
+        if (failure.get() != null) {
+            throw failure.get();
+        }
+        if (Thread.interrupted()) {
+            throw new InterruptedException();
+        }
+    }
+
+    private <T, R> void renderLoop(String company, FairScheduler.Batch batch, List<T> items, Footprint<T, R> footprint, AtomicInteger next,
+                                   BooleanSupplier stopped, Step<T> skip, Render<T, R> render, BlockingQueue<Object> queue,
+                                   AtomicReference<Exception> failure, Runnable abort, AtomicInteger rendering, int senders) {
+        this.render.workers.incrementAndGet();
+        try {
+            for (int i = next.getAndIncrement(); i < items.size() && failure.get() == null; i = next.getAndIncrement()) {
+                T item = items.get(i);
+                if (stopped.getAsBoolean()) {
+                    skip.run(item);
+                    batch.finished(1);
+                    continue;
+                }
+                long waiting = System.nanoTime();
+                MemoryBudget.Reservation reservation = budget.reserve(footprint.pdfs(item));
+                this.render.waited(waiting);
+                CompanyBulkheads.Lease queued = null;
+                Held<T, R> held = null;
+                try {
+                    if (stopped.getAsBoolean()) {
+                        // stopped while waiting for the budget
+                        reservation.close();
+                        skip.run(item);
+                        batch.finished(1);
+                        continue;
+                    }
+                    R rendered;
+                    long start;
+                    waiting = System.nanoTime();
+                    // the company's place on the queue is taken before rendering, so it bounds what it has rendered
+                    queued = bulkheads.acquire(company, CompanyBulkheads.Kind.QUEUE);
+                    try (CompanyBulkheads.Lease lease = bulkheads.acquire(company, CompanyBulkheads.Kind.RENDER);
+                         FairScheduler.Slot slot = scheduler.acquire(batch, FairScheduler.Kind.RENDER)) {
+                        this.render.waited(waiting);
+                        start = this.render.begin();
+                        try {
+                            rendered = render.render(item);
+                        } finally {
+                            start = this.render.end(start);
+                        }
+                    }
+                    if (rendered == null) {
+                        reservation.close();
+                        queued.close();
+                        batch.finished(1);
+                        continue;
+                    }
+                    held = new Held<>(item, rendered, reservation, queued);
+                    reservation.resize(footprint.bytes(rendered));
+                    queue.put(held);
+                    this.render.waited(start);
+                } catch (Exception e) {
+                    if (held != null) {
+                        held.release();
+                    } else {
+                        reservation.close();
+                        if (queued != null) {
+                            queued.close();
+                        }
+                    }
+                    throw e;
+                }
+            }
+        } catch (Exception e) {
+            fail(failure, e, abort);
+        } finally {
+            this.render.workers.decrementAndGet();
+            // after a failure the senders are interrupted instead, and may no longer drain the queue
+            if (rendering.decrementAndGet() == 0 && failure.get() == null) {
+                try {
+                    for (int s = 0; s < senders; s++) {
+                        queue.put(DONE);
+                    }
+                } catch (InterruptedException e) {
+                    // aborting: the senders are interrupted too
+                }
+            }
+        }
+    }
+
+    @SuppressWarnings("unchecked")
+    private <T, R> void sendLoop(String company, FairScheduler.Batch batch, BlockingQueue<Object> queue, BooleanSupplier stopped, Step<T> skip,
+                                 Step<R> send, AtomicReference<Exception> failure, Runnable abort) {
+        this.send.workers.incrementAndGet();
+        try {
+            while (true) {
+                long waiting = System.nanoTime();
+                Object item = queue.take();
+                if (item == DONE) {
+                    this.send.waited(waiting);
+                    return;
+                }
+                Held<T, R> held = (Held<T, R>) item;
+                try {
+                    if (stopped.getAsBoolean()) {
+                        // rendered, but the batch stopped while it was queued
+                        this.send.waited(waiting);
+                        skipped(held, skip, batch);
+                        continue;
+                    }
+                    try (CompanyBulkheads.Lease lease = bulkheads.acquire(company, CompanyBulkheads.Kind.SEND);
+                         FairScheduler.Slot slot = scheduler.acquire(batch, FairScheduler.Kind.SEND)) {
+                        // queued until it can be sent
+                        held.queued().close();
+                        this.send.waited(waiting);
+                        if (stopped.getAsBoolean()) {
+                            skipped(held, skip, batch);
+                            continue;
+                        }
+                        long start = this.send.begin();
+                        try {
+                            send.run(held.item());
+                        } finally {
+                            this.send.end(start);
+                        }
+                        batch.finished(1);
+                    }
+                } finally {
+                    held.release();
+                }
+            }
+        } catch (Exception e) {
+            fail(failure, e, abort);
+        } finally {
+            this.send.workers.decrementAndGet();
+        }
+    }
+
+    // A rendered item dropped unsent; the caller releases what it holds.
+    private static <T, R> void skipped(Held<T, R> held, Step<T> skip, FairScheduler.Batch batch) throws Exception {
+        skip.run(held.source());
+        batch.finished(1);
+    }
+
+    private static void fail(AtomicReference<Exception> failure, Exception e, Runnable abort) {
+        if (failure.compareAndSet(null, e)) {
+            abort.run();
+        }
+    }
+
+    public State state() {
+        return new State(render.state(), send.state(), queueDepth(), queues.size() * queueCapacity, budget.state(),
+                scheduler.state());
+    }
+
+    @Override
+    public void bindTo(MeterRegistry registry) {
+        for (String name : List.of("render", "send")) {
+            Stage stage = name.equals("render") ? render : send;
+            Gauge.builder("paystubs.pipeline.workers", stage, s -> s.workers.get()).tag("stage", name).register(registry);
+            Gauge.builder("paystubs.pipeline.busy", stage, s -> s.busy.get()).tag("stage", name).register(registry);
+            FunctionCounter.builder("paystubs.pipeline.items", stage, s -> s.items.sum()).tag("stage", name).register(registry);
+            FunctionCounter.builder("paystubs.pipeline.busy.time", stage, s -> seconds(s.busyNanos.sum()))
+                    .tag("stage", name).baseUnit("seconds").register(registry);
+            FunctionCounter.builder("paystubs.pipeline.wait.time", stage, s -> seconds(s.waitNanos.sum()))
+                    .tag("stage", name).baseUnit("seconds").register(registry);
+        }
+        Gauge.builder("paystubs.pipeline.queue.depth", this, StagedPipeline::queueDepth).register(registry);
+        Gauge.builder("paystubs.pipeline.queue.capacity", this, p -> p.queues.size() * p.queueCapacity).register(registry);
+    }
+
+    private int queueDepth() {
+        return queues.stream().mapToInt(BlockingQueue::size).sum();
+    }
+
+    private static double seconds(long nanos) {
+        return nanos / (double) TimeUnit.SECONDS.toNanos(1);
+    }
+
+    /** Renders one item; {@code null} when nothing is left to send. */
+    @FunctionalInterface
+    public interface Render<T, R> {
+        R render(T item) throws Exception;
+    }
+
+    @FunctionalInterface
+    public interface Step<T> {
+        void run(T item) throws Exception;
+    }
+
+    /** PDFs rendered for an item, and the bytes they take once rendered. */
+    public interface Footprint<T, R> {
+        int pdfs(T item);
+
+        long bytes(R rendered);
+
+        static <T, R> Footprint<T, R> of(ToIntFunction<T> pdfs, ToLongFunction<R> bytes) {
+            return new Footprint<>() {
+                @Override
+                public int pdfs(T item) {
+                    return pdfs.applyAsInt(item);
+                }
+
+                @Override
+                public long bytes(R rendered) {
+                    return bytes.applyAsLong(rendered);
+                }
+            };
+        }
+    }
+
+    // A rendered item on the queue, the item it was rendered from, the budget it holds until sent, and its company's queue lease while queued.
+    private record Held<T, R>(T source, R item, MemoryBudget.Reservation reservation, CompanyBulkheads.Lease queued) {
+        void release() {
+            reservation.close();
+            queued.close();
+            if (item instanceof AutoCloseable closeable) {
+                try {
+                    closeable.close();
+                } catch (Exception e) {
+                    throw new IllegalStateException("Could not release rendered item", e);
+                }
+            }
+        }
+    }
+
+    // Time a stage's workers spent working and waiting: render workers wait on the memory budget, the company's
+    // bulkheads, the scheduler and a full queue, send workers on an empty queue, the company's bulkheads and the scheduler.
+    private static final class Stage {
+        private final AtomicInteger workers = new AtomicInteger();
+        private final AtomicInteger busy = new AtomicInteger();
+        private final LongAdder items = new LongAdder();
+        private final LongAdder busyNanos = new LongAdder();
+        private final LongAdder waitNanos = new LongAdder();
+
+        long begin() {
+            busy.incrementAndGet();
+            return System.nanoTime();
+        }
+
+        // Returns the end of the work, where waiting for the queue starts.
+        long end(long start) {
+            long now = System.nanoTime();
+            busy.decrementAndGet();
+            items.increment();
+            busyNanos.add(now - start);
+            return now;
+        }
+
+        void waited(long since) {
+            waitNanos.add(System.nanoTime() - since);
+        }
+
+        StageState state() {
+            long busyTime = busyNanos.sum();
+            long waitTime = waitNanos.sum();
+            return new StageState(workers.get(), busy.get(), items.sum(), seconds(busyTime), seconds(waitTime),
+                    busyTime + waitTime == 0 ? 0 : busyTime / (double) (busyTime + waitTime));
+        }
+    }
+
+    /**
+     * Live load of both stages, summed over the batches running now, the PDF bytes they hold, and
+     * how the batches share render and send slots.
+     */
+    public record State(StageState render, StageState send, int queue_depth, int queue_capacity, MemoryBudget.State memory,
+                        FairScheduler.State scheduler) {}
+
+    /**
+     * @param utilization share of the stage's worker time spent working since startup; a stage
+     *                    close to 1 while the other waits is the one to give more workers
+     */
+    public record StageState(int workers, int busy, long items, double busy_seconds, double wait_seconds, double utilization) {}
+}
@@ -0,0 +1,28 @@
+package com.atdev.paystubs_api.admission;
+
+import org.junit.jupiter.api.Test;
+import org.springframework.http.HttpHeaders;
+import org.springframework.http.HttpStatus;
+import org.springframework.http.MediaType;
+import org.springframework.http.ResponseEntity;
+
+import java.time.Duration;
+import java.util.Map;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+class AdmissionExceptionHandlerTest {
+
+    @Test
+    void shouldAnswerTooManyRequestsWithRetryAfter() {
+        // When
+        ResponseEntity<Object> response = new AdmissionExceptionHandler().tooManyRequests(
+                new AdmissionRejectedException("Admission queue is full", Duration.ofSeconds(45)));
+
+        // Then
+        assertThat(response.getStatusCode()).isEqualTo(HttpStatus.TOO_MANY_REQUESTS);
+        assertThat(response.getHeaders().getFirst(HttpHeaders.RETRY_AFTER)).isEqualTo("45");
+        assertThat(response.getHeaders().getContentType()).isEqualTo(MediaType.APPLICATION_JSON);
+        assertThat(response.getBody()).isEqualTo(Map.of("error", "Too many batches in progress, try again later."));
+    }
+}
@@ -0,0 +1,163 @@
+package com.atdev.paystubs_api.admission;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.function.BooleanSupplier;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+class BatchAdmissionTest {
+
+    private final ExecutorService callers = Executors.newCachedThreadPool();
+
+    @AfterEach
+    void tearDown() {
+        callers.shutdownNow();
+    }
+
+    @Test
+    void shouldAdmitUpToConcurrencyLimitAndReleaseOnClose() throws Exception {
+        // Given
+        BatchAdmission admission = new BatchAdmission(2, 1000, 0, Duration.ofSeconds(1), Duration.ofSeconds(30));
+
+        // When
+        BatchAdmission.Permit first = admission.admit(10);
+        BatchAdmission.Permit second = admission.admit(10);
+
+        // Then
+        assertThat(admission.state().running()).isEqualTo(2);
+        assertThat(admission.state().rows_in_flight()).isEqualTo(20);
+        assertThrows(AdmissionRejectedException.class, () -> admission.admit(10));
+
+        first.close();
+        first.close();
+        assertThat(admission.state().running()).isEqualTo(1);
+        assertThat(admission.admit(10)).isNotNull();
+        second.close();
+    }
+
+    @Test
+    void shouldQueueWhenRowBudgetIsExhaustedAndAdmitInOrder() throws Exception {
+        // Given
+        BatchAdmission admission = new BatchAdmission(10, 100, 4, Duration.ofSeconds(5), Duration.ofSeconds(30));
+        BatchAdmission.Permit big = admission.admit(80);
+
+        // When
+        Future<BatchAdmission.Permit> large = callers.submit(() -> admission.admit(60));
+        awaitUntil(() -> admission.state().queued() == 1);
+        Future<BatchAdmission.Permit> small = callers.submit(() -> admission.admit(10));
+        awaitUntil(() -> admission.state().queued() == 2);
+
+        // Then
+        assertThat(large.isDone()).isFalse();
+        assertThat(small.isDone()).isFalse();
+        big.close();
+        large.get(1, TimeUnit.SECONDS);
+        small.get(1, TimeUnit.SECONDS);
+        assertThat(admission.state().rows_in_flight()).isEqualTo(70);
+    }
+
+    @Test
+    void shouldRejectWhenQueueIsFull() throws Exception {
+        // Given
+        BatchAdmission admission = new BatchAdmission(1, 100, 1, Duration.ofSeconds(5), Duration.ofSeconds(12));
+        BatchAdmission.Permit running = admission.admit(1);
+        callers.submit(() -> admission.admit(1));
+        awaitUntil(() -> admission.state().queued() == 1);
+
+        // When
+        AdmissionRejectedException e = assertThrows(AdmissionRejectedException.class, () -> admission.admit(1));
+
+        // Then
+        assertThat(e.getRetryAfter()).isEqualTo(Duration.ofSeconds(12));
+        assertThat(admission.state().rejected()).isEqualTo(1);
+        running.close();
+    }
+
+    @Test
+    void shouldRejectAfterQueueTimeout() throws Exception {
+        // Given
+        BatchAdmission admission = new BatchAdmission(1, 100, 4, Duration.ofMillis(50), Duration.ofSeconds(30));
+        BatchAdmission.Permit running = admission.admit(1);
+
+        // When/Then
+        assertThrows(AdmissionRejectedException.class, () -> admission.admit(1));
+        assertThat(admission.state().queued()).isZero();
+        running.close();
+    }
+
+    @Test
+    void shouldAdmitBatchLargerThanBudgetWhenAlone() throws Exception {
+        // Given
+        BatchAdmission admission = new BatchAdmission(4, 100, 4, Duration.ofSeconds(1), Duration.ofSeconds(30));
+
+        // When
+        BatchAdmission.Permit permit = admission.admit(5000);
+
+        // Then
+        assertThat(admission.state().rows_in_flight()).isEqualTo(100);
+        permit.close();
+        assertThat(admission.state().rows_in_flight()).isZero();
+    }
+
+    @Test
+    void shouldLetBackgroundWorkWaitBeyondQueueBound() throws Exception {
+        // Given
+        BatchAdmission admission = new BatchAdmission(4, 10, 0, Duration.ofMillis(10), Duration.ofSeconds(30));
+        BatchAdmission.Permit running = admission.admit(10);
+
+        // When
+        List<Future<BatchAdmission.Permit>> jobs = new ArrayList<>();
+        for (int i = 0; i < 3; i++) {
+            jobs.add(callers.submit(() -> admission.admitWhenAvailable(1)));
+        }
+        awaitUntil(() -> admission.state().queued() == 3);
+        running.close();
+
+        // Then
+        for (Future<BatchAdmission.Permit> job : jobs) {
+            job.get(1, TimeUnit.SECONDS).close();
+        }
+        assertThat(admission.state().admitted()).isEqualTo(4);
+    }
+
+    @Test
+    void shouldHoldSlotBeforeRowsAreKnownAndWaitForTheirBudget() throws Exception {
+        // Given
+        BatchAdmission admission = new BatchAdmission(4, 100, 0, Duration.ofSeconds(1), Duration.ofSeconds(30));
+        BatchAdmission.Permit running = admission.admit(80);
+        BatchAdmission.Permit parsing = admission.admit();
+        assertThat(admission.state().running()).isEqualTo(2);
+        assertThat(admission.state().rows_in_flight()).isEqualTo(80);
+
+        // When
+        Future<BatchAdmission.Permit> reserved = callers.submit(() -> parsing.reserve(50));
+        Thread.sleep(50);
+
+        // Then
+        assertThat(reserved.isDone()).isFalse();
+        running.close();
+        reserved.get(1, TimeUnit.SECONDS);
+        assertThat(admission.state().rows_in_flight()).isEqualTo(50);
+        parsing.close();
+        assertThat(admission.state().rows_in_flight()).isZero();
+        assertThat(admission.state().running()).isZero();
+    }
+
+    private void awaitUntil(BooleanSupplier condition) throws InterruptedException {
+        long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(5);
+        while (!condition.getAsBoolean()) {
+            assertThat(System.nanoTime()).as("condition not met in time").isLessThan(deadline);
+            Thread.sleep(5);
+        }
+    }
+}
@@ -0,0 +1,122 @@
+package com.atdev.paystubs_api.batch;
+
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import java.time.Clock;
+import java.time.Duration;
+import java.time.Instant;
+import java.time.ZoneId;
+import java.time.ZoneOffset;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+class RunningBatchesTest {
+
+    private MutableClock clock;
+    private RunningBatches batches;
+
+    @BeforeEach
+    void setUp() {
+        clock = new MutableClock();
+        batches = new RunningBatches(Duration.ofMinutes(10), clock);
+    }
+
+    @Test
+    void shouldStopBatchOnceItsOwnTimeoutPasses() {
+        // Given
+        RunningBatch batch = batches.start("TestCompany", 100, Duration.ofSeconds(30));
+
+        // When
+        clock.advance(Duration.ofSeconds(29));
+        boolean beforeDeadline = batch.stopped();
+        clock.advance(Duration.ofSeconds(1));
+
+        // Then
+        assertThat(beforeDeadline).isFalse();
+        assertThat(batch.stopped()).isTrue();
+        assertThat(batch.stopReason()).isEqualTo("deadline of PT30S exceeded");
+    }
+
+    @Test
+    void shouldUseDefaultTimeoutWhenBatchHasNone() {
+        // Given
+        RunningBatch batch = batches.start("TestCompany", 100, null);
+
+        // When
+        clock.advance(Duration.ofMinutes(10));
+
+        // Then
+        assertThat(batch.stopped()).isTrue();
+        assertThat(batches.states()).singleElement()
+                .satisfies(state -> assertThat(state.deadline()).isEqualTo("2024-01-15T10:10:00Z"));
+    }
+
+    @Test
+    void shouldNeverStopWithoutAnyTimeout() {
+        // Given
+        RunningBatch batch = new RunningBatches(Duration.ZERO, clock).start("TestCompany", 100, null);
+
+        // When
+        clock.advance(Duration.ofDays(1));
+
+        // Then
+        assertThat(batch.stopped()).isFalse();
+        assertThat(batch.state().deadline()).isNull();
+    }
+
+    @Test
+    void shouldAbortRunningBatchById() {
+        // Given
+        RunningBatch batch = batches.start("TestCompany", 100, null);
+        batch.done(40);
+
+        // When
+        boolean aborted = batches.abort(batch.id());
+
+        // Then
+        assertThat(aborted).isTrue();
+        assertThat(batch.stopped()).isTrue();
+        assertThat(batches.states()).singleElement()
+                .satisfies(state -> {
+                    assertThat(state.done()).isEqualTo(40);
+                    assertThat(state.stop_reason()).isEqualTo("aborted");
+                });
+    }
+
+    @Test
+    void shouldForgetBatchOnceClosed() {
+        // Given
+        RunningBatch batch = batches.start("TestCompany", 100, null);
+
+        // When
+        batch.close();
+
+        // Then
+        assertThat(batches.states()).isEmpty();
+        assertThat(batches.abort(batch.id())).isFalse();
+    }
+
+    private static class MutableClock extends Clock {
+        private Instant now = Instant.parse("2024-01-15T10:00:00Z");
+
+        void advance(Duration duration) {
+            now = now.plus(duration);
+        }
+
+        @Override
+        public ZoneId getZone() {
+            return ZoneOffset.UTC;
+        }
+
+        @Override
+        public Clock withZone(ZoneId zone) {
+            return this;
+        }
+
+        @Override
+        public Instant instant() {
+            return now;
+        }
+    }
+}
@@ -0,0 +1,101 @@
+package com.atdev.paystubs_api.bulkhead;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+class CompanyBulkheadsTest {
+
+    @Test
+    void shouldBorrowFromOverflowOnceOwnLimitIsUsed() throws Exception {
+        // Given
+        CompanyBulkheads bulkheads = new CompanyBulkheads(true, 1, 1, 1, 1, 0, 0);
+
+        // When
+        CompanyBulkheads.Lease own = bulkheads.acquire("Acme", CompanyBulkheads.Kind.RENDER);
+        CompanyBulkheads.Lease borrowed = bulkheads.acquire("acme ", CompanyBulkheads.Kind.RENDER);
+
+        // Then
+        CompanyBulkheads.State state = bulkheads.state();
+        assertThat(state.companies()).singleElement().satisfies(company -> {
+            assertThat(company.company()).isEqualTo("acme");
+            assertThat(company.used().render()).isEqualTo(1);
+            assertThat(company.borrowed().render()).isEqualTo(1);
+        });
+        assertThat(state.overflow_used().render()).isEqualTo(1);
+        borrowed.close();
+        borrowed.close();
+        own.close();
+        assertThat(bulkheads.state().overflow_used().render()).isZero();
+        assertThat(bulkheads.state().companies()).isEmpty();
+    }
+
+    @Test
+    void shouldWaitWhenOwnLimitAndOverflowAreUsed() throws Exception {
+        // Given
+        CompanyBulkheads bulkheads = new CompanyBulkheads(true, 1, 1, 1, 0, 0, 0);
+        CompanyBulkheads.Lease held = bulkheads.acquire("Acme", CompanyBulkheads.Kind.SEND);
+        AtomicReference<CompanyBulkheads.Lease> next = new AtomicReference<>();
+
+        // When
+        Thread waiter = Thread.ofVirtual().start(() -> {
+            try {
+                next.set(bulkheads.acquire("Acme", CompanyBulkheads.Kind.SEND));
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        });
+        waitUntilWaiting(bulkheads, 1);
+        held.close();
+        waiter.join(TimeUnit.SECONDS.toMillis(5));
+
+        // Then
+        assertThat(next.get()).isNotNull();
+        assertThat(bulkheads.state().companies()).singleElement()
+                .satisfies(company -> assertThat(company.waiting().send()).isZero());
+    }
+
+    @Test
+    void shouldNotMakeOtherCompaniesWait() throws Exception {
+        // Given: the large company holds its own limit and the whole overflow pool
+        CompanyBulkheads bulkheads = new CompanyBulkheads(true, 2, 2, 2, 1, 1, 1);
+        for (int i = 0; i < 3; i++) {
+            bulkheads.acquire("Large", CompanyBulkheads.Kind.QUEUE);
+        }
+
+        // When
+        CompanyBulkheads.Lease small = bulkheads.acquire("Small", CompanyBulkheads.Kind.QUEUE);
+
+        // Then
+        assertThat(small).isNotNull();
+        assertThat(bulkheads.state().companies()).extracting(CompanyBulkheads.CompanyState::company)
+                .containsExactly("large", "small");
+    }
+
+    @Test
+    void shouldNeverWaitWhenDisabled() throws Exception {
+        // Given
+        CompanyBulkheads bulkheads = CompanyBulkheads.unbounded();
+
+        // When
+        for (int i = 0; i < 100; i++) {
+            bulkheads.acquire("Acme", CompanyBulkheads.Kind.RENDER);
+        }
+
+        // Then
+        assertThat(bulkheads.state().companies()).isEmpty();
+    }
+
+    private static void waitUntilWaiting(CompanyBulkheads bulkheads, int waiting) throws InterruptedException {
+        long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(5);
+        while (bulkheads.state().companies().stream().mapToInt(c -> c.waiting().send()).sum() < waiting) {
+            if (System.nanoTime() > deadline) {
+                throw new AssertionError("no waiter within 5s");
+            }
+            Thread.sleep(10);
+        }
+    }
+}
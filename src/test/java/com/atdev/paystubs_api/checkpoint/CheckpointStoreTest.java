@@ -0,0 +1,143 @@
+package com.atdev.paystubs_api.checkpoint;
+
+import com.atdev.paystubs_api.payment.Country;
+import com.atdev.paystubs_api.payment.PayrollRecord;
+import com.atdev.paystubs_api.payment.ProcessOptions;
+import com.atdev.paystubs_api.payment.SentListener;
+import com.atdev.paystubs_api.payment.SentPaystub;
+import com.atdev.paystubs_api.pipeline.Priority;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.Instant;
+import java.util.List;
+import java.util.stream.IntStream;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+class CheckpointStoreTest {
+
+    @TempDir
+    Path dir;
+
+    private CheckpointStore store;
+    private List<PayrollRecord> rows;
+
+    @BeforeEach
+    void setUp() {
+        store = new CheckpointStore(true, dir, 4, 5);
+        rows = IntStream.range(0, 10)
+                .mapToObj(i -> new PayrollRecord("Employee " + i, "employee" + i + "@example.com", "Engineer",
+                        100.0, 200.0, 300.0, 50.0, 5000.0 + i, 4500.0, 3850.0, "2024-01"))
+                .toList();
+    }
+
+    @Test
+    void shouldSkipBatchesBelowMinimumSize() {
+        // When
+        Checkpoint checkpoint = store.begin(Country.DO, "TestCompany", ProcessOptions.defaults(), rows.subList(0, 4));
+
+        // Then
+        assertThat(checkpoint).isSameAs(Checkpoint.NONE);
+        assertThat(store.pending()).isEmpty();
+    }
+
+    @Test
+    void shouldNotOfferRunningBatchForResume() {
+        // When
+        Checkpoint checkpoint = store.begin(Country.DO, "TestCompany", ProcessOptions.defaults(), rows);
+
+        // Then
+        assertThat(Files.isDirectory(dir.resolve(checkpoint.id()))).isTrue();
+        assertThat(store.pending()).isEmpty();
+    }
+
+    @Test
+    void shouldResumeFromLastSavedRows() throws Exception {
+        // Given
+        Checkpoint checkpoint = store.begin(Country.US, "TestCompany",
+                ProcessOptions.builder().groupByRecipient(true).priority(Priority.HIGH).build(), rows);
+        SentListener tracking = checkpoint.tracking((row, entry) -> {});
+        for (int row : new int[]{0, 1, 2, 3, 4, 6, 7, 8}) {
+            tracking.onSent(row, new SentPaystub(row, rows.get(row).email(), rows.get(row).fullName(), Instant.now()));
+        }
+        // a new process knows nothing about the batch
+        CheckpointStore restarted = new CheckpointStore(true, dir, 4, 5);
+
+        // When
+        ResumableBatch batch = restarted.claim(restarted.pending().get(0)).orElseThrow();
+
+        // Then
+        assertThat(batch.country()).isEqualTo(Country.US);
+        assertThat(batch.company()).isEqualTo("TestCompany");
+        assertThat(batch.options().groupByRecipient()).isTrue();
+        assertThat(batch.options().priority()).isEqualTo(Priority.HIGH);
+        assertThat(batch.total()).isEqualTo(10);
+        assertThat(batch.rows()).containsExactly(5, 9);
+        assertThat(batch.records()).containsExactly(rows.get(5), rows.get(9));
+    }
+
+    @Test
+    void shouldSendAgainRowsNotSavedYet() throws Exception {
+        // Given
+        Checkpoint checkpoint = store.begin(Country.DO, "TestCompany", ProcessOptions.defaults(), rows);
+        SentListener tracking = checkpoint.tracking((row, entry) -> {});
+        for (int row = 0; row < 6; row++) {
+            tracking.onSent(row, new SentPaystub(row, rows.get(row).email(), rows.get(row).fullName(), Instant.now()));
+        }
+
+        // When
+        ResumableBatch batch = new CheckpointStore(true, dir, 4, 5).claim(checkpoint.id()).orElseThrow();
+
+        // Then
+        assertThat(batch.rows()).containsExactly(4, 5, 6, 7, 8, 9);
+    }
+
+    @Test
+    void shouldSaveProgressOnReleaseAndDeleteOnFinish() throws Exception {
+        // Given
+        Checkpoint checkpoint = store.begin(Country.DO, "TestCompany", ProcessOptions.defaults(), rows);
+        checkpoint.tracking((row, entry) -> {})
+                .onSent(9, new SentPaystub(9, rows.get(9).email(), rows.get(9).fullName(), Instant.now()));
+
+        // When
+        checkpoint.release();
+
+        // Then
+        assertThat(store.pending()).containsExactly(checkpoint.id());
+        ResumableBatch batch = store.claim(checkpoint.id()).orElseThrow();
+        assertThat(batch.rows()).hasSize(9).doesNotContain(9);
+        assertThat(store.claim(checkpoint.id())).isEmpty();
+
+        batch.checkpoint().finish();
+        assertThat(Files.exists(dir.resolve(checkpoint.id()))).isFalse();
+        assertThat(store.pending()).isEmpty();
+    }
+
+    @Test
+    void shouldDeleteIncompleteCheckpointsAtStartup() throws Exception {
+        // Given: a crash before batch.properties was written, next to a complete checkpoint
+        Path incomplete = Files.createDirectories(dir.resolve("0b9d7e3a-1c2f-4a5b-8c6d-7e8f9a0b1c2d"));
+        Files.write(incomplete.resolve(CheckpointStore.ROWS), new byte[16]);
+        Path unrelated = Files.createDirectories(dir.resolve("notes"));
+        Checkpoint complete = store.begin(Country.US, "TestCompany", ProcessOptions.defaults(), rows);
+        complete.release();
+
+        // When
+        CheckpointStore restarted = new CheckpointStore(true, dir, 4, 5);
+
+        // Then
+        assertThat(incomplete).doesNotExist();
+        assertThat(unrelated).exists();
+        assertThat(restarted.pending()).containsExactly(complete.id());
+    }
+
+    @Test
+    void shouldRejectIdsOutsideCheckpointDirectory() throws Exception {
+        // When/Then
+        assertThat(store.claim("../etc")).isEmpty();
+    }
+}
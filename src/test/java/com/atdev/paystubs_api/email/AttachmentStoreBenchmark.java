@@ -0,0 +1,122 @@
+package com.atdev.paystubs_api.email;
+
+import jakarta.activation.DataSource;
+import org.springframework.util.unit.DataSize;
+
+import java.io.InputStream;
+import java.lang.management.GarbageCollectorMXBean;
+import java.lang.management.ManagementFactory;
+import java.nio.file.Path;
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.Deque;
+import java.util.Locale;
+import java.util.Random;
+
+/**
+ * Heap harness for rendered attachments: pushes {@code N} PDFs of {@code pdfKb} through a FIFO of
+ * {@code inFlight} attachments (standing in for the pipeline queue and the memory budget), each
+ * read once like JavaMail does when sending, and reports the peak heap used and the GC collections
+ * and time. In {@code heap} mode every PDF is a {@code byte[]}; in {@code off-heap} mode it goes
+ * to an {@link AttachmentStore}, spilling to {@code spillDir} past {@code offHeapMb}.
+ *
+ * <p>Configure with system properties, e.g. {@code -Dpaystubs=1000,10000,100000,1000000
+ * -DpdfKb=24 -DinFlight=4096 -DoffHeapMb=64 -DspillDir=target}. Run with a fixed heap (e.g.
+ * {@code -Xmx512m}) so the heap figures compare across runs.
+ */
+public class AttachmentStoreBenchmark {
+
+    public static void main(String[] args) throws Exception {
+        int[] levels = Arrays.stream(System.getProperty("paystubs", "1000,10000,100000,1000000").split(","))
+                .mapToInt(level -> Integer.parseInt(level.trim()))
+                .toArray();
+        int pdfKb = Integer.getInteger("pdfKb", 24);
+        int inFlight = Integer.getInteger("inFlight", 4096);
+        DataSize offHeap = DataSize.ofMegabytes(Long.getLong("offHeapMb", 64));
+        Path spillDir = Path.of(System.getProperty("spillDir", "target"));
+
+        byte[] pdf = new byte[pdfKb * 1024];
+        new Random(42).nextBytes(pdf);
+        AttachmentStore store = new AttachmentStore(true, 0, offHeap, spillDir);
+        for (int paystubs : levels) {
+            System.out.println(run(Mode.HEAP, paystubs, inFlight, pdf, store));
+            System.out.println(run(Mode.OFF_HEAP, paystubs, inFlight, pdf, store));
+        }
+    }
+
+    static Result run(Mode mode, int paystubs, int inFlight, byte[] pdf, AttachmentStore store) throws Exception {
+        System.gc();
+        long gcCount = gcCount();
+        long gcMillis = gcMillis();
+        long peakHeap = 0;
+        byte[] sink = new byte[8192];
+
+        long start = System.nanoTime();
+        Deque<DataSource> queue = new ArrayDeque<>(inFlight);
+        for (int i = 0; i < paystubs; i++) {
+            queue.addLast(mode == Mode.HEAP
+                    ? PdfAttachment.of(pdf.clone())
+                    : store.write(out -> out.write(pdf)));
+            if (queue.size() == inFlight) {
+                send(queue.removeFirst(), sink);
+            }
+            if (i % 1000 == 0) {
+                peakHeap = Math.max(peakHeap, heapUsed());
+            }
+        }
+        while (!queue.isEmpty()) {
+            send(queue.removeFirst(), sink);
+        }
+        long elapsed = System.nanoTime() - start;
+
+        return new Result(mode, paystubs, inFlight, elapsed / 1e9, peakHeap,
+                gcCount() - gcCount, gcMillis() - gcMillis, store.state());
+    }
+
+    // Reads the attachment the way JavaMail's base64 encoder does, then gives it back.
+    private static void send(DataSource pdf, byte[] sink) throws Exception {
+        try (InputStream in = pdf.getInputStream()) {
+            while (in.read(sink) >= 0) {
+                // discarded
+            }
+        }
+        if (pdf instanceof AttachmentStore.Stored stored) {
+            stored.close();
+        }
+    }
+
+    private static long heapUsed() {
+        return ManagementFactory.getMemoryMXBean().getHeapMemoryUsage().getUsed();
+    }
+
+    private static long gcCount() {
+        return ManagementFactory.getGarbageCollectorMXBeans().stream().mapToLong(GarbageCollectorMXBean::getCollectionCount).sum();
+    }
+
+    private static long gcMillis() {
+        return ManagementFactory.getGarbageCollectorMXBeans().stream().mapToLong(GarbageCollectorMXBean::getCollectionTime).sum();
+    }
+
+    enum Mode {
+        HEAP("heap"),
+        OFF_HEAP("off-heap");
+
+        private final String label;
+
+        Mode(String label) {
+            this.label = label;
+        }
+    }
+
+    record Result(Mode mode, int paystubs, int inFlight, double seconds, long peakHeap, long collections, long gcMillis,
+                  AttachmentStore.State store) {
+        @Override
+        public String toString() {
+            return String.format(Locale.ROOT,
+                    "mode=%-8s paystubs=%-8d in_flight=%d time=%.1f s peak_heap=%.0f MB gc_collections=%d gc_time=%d ms "
+                            + "off_heap_reserved=%.0f MB",
+                    mode.label, paystubs, inFlight, seconds, peakHeap / 1048576.0, collections, gcMillis,
+                    store.off_heap_reserved_bytes() / 1048576.0);
+        }
+    }
+}
@@ -0,0 +1,117 @@
+package com.atdev.paystubs_api.email;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import org.springframework.util.unit.DataSize;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.Path;
+import java.util.Random;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+class AttachmentStoreTest {
+
+    @TempDir
+    Path spillDir;
+
+    @Test
+    void shouldReadBackPdfWrittenAcrossPages() throws Exception {
+        // Given
+        AttachmentStore store = new AttachmentStore(true, 1000, DataSize.ofKilobytes(64), spillDir);
+        byte[] pdf = bytes(3 * AttachmentStore.PAGE_SIZE + 123);
+
+        // When
+        AttachmentStore.Stored stored = store.write(out -> {
+            out.write(pdf[0]);
+            out.write(pdf, 1, pdf.length - 1);
+        });
+
+        // Then
+        assertThat(stored.size()).isEqualTo(pdf.length);
+        assertThat(read(stored)).isEqualTo(pdf);
+        assertThat(read(stored)).isEqualTo(pdf);
+        assertThat(stored.getContentType()).isEqualTo("application/pdf");
+        assertThat(store.state().off_heap_used_bytes()).isEqualTo(4L * AttachmentStore.PAGE_SIZE);
+        assertThat(store.state().spill_files()).isZero();
+    }
+
+    @Test
+    void shouldSpillToMappedFileOnceOffHeapIsFull() throws Exception {
+        // Given: room for two pages off the heap
+        AttachmentStore store = new AttachmentStore(true, 1000, DataSize.ofBytes(2L * AttachmentStore.PAGE_SIZE), spillDir);
+        byte[] pdf = bytes(AttachmentStore.PAGE_SIZE + 1);
+        AttachmentStore.Stored first = store.write(out -> out.write(pdf));
+
+        // When
+        AttachmentStore.Stored second = store.write(out -> out.write(pdf));
+
+        // Then
+        assertThat(read(second)).isEqualTo(pdf);
+        assertThat(store.state().off_heap_used_bytes()).isEqualTo(2L * AttachmentStore.PAGE_SIZE);
+        assertThat(store.state().spill_used_bytes()).isEqualTo(2L * AttachmentStore.PAGE_SIZE);
+        assertThat(store.state().spill_files()).isEqualTo(1);
+        second.close();
+        first.close();
+        assertThat(store.state().spill_files()).isZero();
+        assertThat(store.state().off_heap_used_bytes()).isZero();
+        assertThat(store.state().off_heap_reserved_bytes()).isEqualTo(2L * AttachmentStore.PAGE_SIZE);
+    }
+
+    @Test
+    void shouldGiveBackPagesOfContentThatFails() {
+        // Given
+        AttachmentStore store = new AttachmentStore(true, 1000, DataSize.ofKilobytes(64), spillDir);
+
+        // When
+        IOException e = assertThrows(IOException.class, () -> store.write(out -> {
+            out.write(bytes(AttachmentStore.PAGE_SIZE * 2));
+            throw new IOException("render failed");
+        }));
+
+        // Then
+        assertThat(e).hasMessage("render failed");
+        assertThat(store.state().off_heap_used_bytes()).isZero();
+    }
+
+    @Test
+    void shouldNotReadReleasedAttachment() throws Exception {
+        // Given
+        AttachmentStore store = new AttachmentStore(true, 1000, DataSize.ofKilobytes(64), spillDir);
+        AttachmentStore.Stored stored = store.write(out -> out.write(bytes(10)));
+
+        // When
+        stored.close();
+        stored.close();
+
+        // Then
+        assertThrows(IOException.class, stored::getInputStream);
+        assertThat(store.state().off_heap_used_bytes()).isZero();
+    }
+
+    @Test
+    void shouldOnlyBeUsedForLargeBatches() {
+        // Given
+        AttachmentStore store = new AttachmentStore(true, 1000, DataSize.ofKilobytes(64), spillDir);
+        AttachmentStore disabled = new AttachmentStore(false, 1000, DataSize.ofKilobytes(64), spillDir);
+
+        // Then
+        assertThat(store.usedFor(999)).isFalse();
+        assertThat(store.usedFor(1000)).isTrue();
+        assertThat(disabled.usedFor(1_000_000)).isFalse();
+    }
+
+    private static byte[] read(AttachmentStore.Stored stored) throws IOException {
+        try (InputStream in = stored.getInputStream()) {
+            return in.readAllBytes();
+        }
+    }
+
+    private static byte[] bytes(int length) {
+        byte[] bytes = new byte[length];
+        new Random(42).nextBytes(bytes);
+        return bytes;
+    }
+}
@@ -0,0 +1,86 @@
+package com.atdev.paystubs_api.email;
+
+import jakarta.mail.Session;
+import jakarta.mail.internet.MimeMessage;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Properties;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+class DeferredMailStoreTest {
+
+    @TempDir
+    Path dir;
+
+    @Test
+    void shouldKeepMessagesInOrderTheyWereDeferred() throws Exception {
+        // Given
+        DeferredMailStore store = new DeferredMailStore(dir.resolve("deferred"));
+
+        // When
+        store.defer(message("first"));
+        store.defer(message("second"));
+
+        // Then
+        List<Path> pending = store.pending();
+        assertThat(pending).hasSize(2);
+        assertThat(Files.readString(pending.get(0))).contains("Subject: first");
+        assertThat(Files.readString(pending.get(1))).contains("Subject: second");
+        assertThat(store.state().deferred()).isEqualTo(2);
+    }
+
+    @Test
+    void shouldForgetDeliveredAndSetAsideUndeliverableMessages() throws Exception {
+        // Given
+        DeferredMailStore store = new DeferredMailStore(dir);
+        store.defer(message("first"));
+        store.defer(message("second"));
+        List<Path> pending = store.pending();
+
+        // When
+        store.delivered(pending.get(0));
+        store.undeliverable(pending.get(1), new IllegalStateException("550 No such user"));
+
+        // Then
+        assertThat(store.pending()).isEmpty();
+        assertThat(pending.get(1).resolveSibling(pending.get(1).getFileName() + ".failed")).exists();
+        assertThat(store.state()).extracting(DeferredMailStore.State::delivered, DeferredMailStore.State::undeliverable)
+                .containsExactly(1L, 1L);
+    }
+
+    @Test
+    void shouldPublishWhenDeferredMessageIsDeliveredOrRefused() throws Exception {
+        // Given
+        List<Object> events = new ArrayList<>();
+        DeferredMailStore store = new DeferredMailStore(dir, events::add);
+        List<Path> files = store.defer(message("first"), message("second"));
+        IllegalStateException refusal = new IllegalStateException("550 No such user");
+
+        // When
+        store.delivered(files.get(0));
+        store.undeliverable(files.get(1), refusal);
+
+        // Then
+        assertThat(events).containsExactly(
+                new DeferredMailStore.Resolved(files.get(0), null),
+                new DeferredMailStore.Resolved(files.get(1), refusal));
+    }
+
+    @Test
+    void shouldHaveNothingPendingBeforeFirstDeferral() throws Exception {
+        assertThat(new DeferredMailStore(dir.resolve("missing")).pending()).isEmpty();
+    }
+
+    private static MimeMessage message(String subject) throws Exception {
+        MimeMessage message = new MimeMessage(Session.getInstance(new Properties()));
+        message.setSubject(subject);
+        message.setText("body");
+        return message;
+    }
+}
@@ -0,0 +1,76 @@
+package com.atdev.paystubs_api.email;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.List;
+import java.util.function.Function;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+class DomainSchedulerTest {
+
+    @Test
+    void shouldBatchByDomainKeepingOriginalOrderWithinDomain() {
+        // Given
+        List<String> emails = List.of("a1@a.com", "b1@b.com", "a2@a.com", "b2@b.com", "a3@a.com");
+
+        // When
+        List<List<String>> batches = DomainScheduler.interleave(emails, Function.identity(), 10);
+
+        // Then
+        assertThat(batches).containsExactly(
+                List.of("a1@a.com", "a2@a.com", "a3@a.com"),
+                List.of("b1@b.com", "b2@b.com")
+        );
+    }
+
+    @Test
+    void shouldInterleaveBucketsSoLargeDomainDoesNotStarveOthers() {
+        // Given
+        List<String> emails = List.of(
+                "a1@big.com", "a2@big.com", "a3@big.com", "a4@big.com", "a5@big.com",
+                "s1@small.com", "o1@other.com"
+        );
+
+        // When
+        List<List<String>> batches = DomainScheduler.interleave(emails, Function.identity(), 2);
+
+        // Then
+        assertThat(batches).containsExactly(
+                List.of("a1@big.com", "a2@big.com"),
+                List.of("s1@small.com"),
+                List.of("o1@other.com"),
+                List.of("a3@big.com", "a4@big.com"),
+                List.of("a5@big.com")
+        );
+    }
+
+    @Test
+    void shouldTreatDomainsCaseInsensitively() {
+        // When
+        List<List<String>> batches = DomainScheduler.interleave(
+                List.of("a@Example.com", "b@example.COM"), Function.identity(), 5);
+
+        // Then
+        assertThat(batches).hasSize(1);
+    }
+
+    @Test
+    void shouldReturnNoBatchesForNoItems() {
+        assertThat(DomainScheduler.interleave(List.<String>of(), Function.identity(), 5)).isEmpty();
+    }
+
+    @Test
+    void shouldRejectNonPositiveBatchSize() {
+        assertThrows(IllegalArgumentException.class, () ->
+                DomainScheduler.interleave(List.of("a@a.com"), Function.identity(), 0)
+        );
+    }
+
+    @Test
+    void shouldExtractDomain() {
+        assertThat(DomainScheduler.domainOf("John@Example.COM")).isEqualTo("example.com");
+        assertThat(DomainScheduler.domainOf("no-domain")).isEmpty();
+    }
+}
@@ -2,18 +2,31 @@ package com.atdev.paystubs_api.email;
 
 import com.atdev.paystubs_api.payment.PayrollRecord;
 import jakarta.mail.MessagingException;
+import jakarta.mail.Session;
+import jakarta.mail.internet.InternetAddress;
+import jakarta.mail.internet.MimeBodyPart;
 import jakarta.mail.internet.MimeMessage;
+import jakarta.mail.internet.MimeMultipart;
 import org.junit.jupiter.api.BeforeEach;
 import org.junit.jupiter.api.Test;
 import org.junit.jupiter.api.extension.ExtendWith;
+import org.junit.jupiter.api.io.TempDir;
 import org.mockito.ArgumentCaptor;
 import org.mockito.Mock;
 import org.mockito.junit.jupiter.MockitoExtension;
+import org.springframework.mail.MailSendException;
 import org.springframework.mail.javamail.JavaMailSender;
 import org.springframework.mail.javamail.MimeMessageHelper;
 import org.springframework.test.util.ReflectionTestUtils;
 
+import java.io.InputStream;
+import java.net.ConnectException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.Duration;
+import java.util.List;
 import java.util.Locale;
+import java.util.Properties;
 
 import static org.assertj.core.api.Assertions.assertThat;
 import static org.junit.jupiter.api.Assertions.assertThrows;
@@ -29,6 +42,9 @@ class EmailServiceTest {
     @Mock
     private MimeMessage mimeMessage;
 
+    @TempDir
+    Path deferredDir;
+
     private EmailService emailService;
 
     private PayrollRecord testRecord;
@@ -36,7 +52,8 @@ class EmailServiceTest {
 
     @BeforeEach
     void setUp() {
-        emailService = new EmailService(mailSender);
+        emailService = new EmailService(mailSender, SendLimiter.unbounded(), MailCircuitBreaker.disabled(),
+                new DeferredMailStore(deferredDir));
         ReflectionTestUtils.setField(emailService, "from", "noreply@company.com");
 
         testRecord = new PayrollRecord(
@@ -192,4 +209,229 @@ class EmailServiceTest {
         // Then
         verify(mailSender).send(mimeMessage);
     }
+
+    @Test
+    void shouldBuildMessageFromTemplate() throws Exception {
+        // Given
+        MimeMessage real = new MimeMessage(Session.getInstance(new Properties()));
+        when(mailSender.createMimeMessage()).thenReturn(real);
+
+        // When
+        emailService.sendEmail(testRecord, "TestCompany", testPdf, Locale.ENGLISH);
+
+        // Then
+        ArgumentCaptor<MimeMessage> captor = ArgumentCaptor.forClass(MimeMessage.class);
+        verify(mailSender).send(captor.capture());
+        MimeMessage sent = captor.getValue();
+        assertThat(sent.getSubject()).isEqualTo("Paystub Payment - TestCompany");
+        assertThat(sent.getFrom()).containsExactly(new InternetAddress("noreply@company.com"));
+        assertThat(sent.getAllRecipients()).containsExactly(new InternetAddress("john@example.com"));
+
+        MimeMultipart content = (MimeMultipart) sent.getContent();
+        assertThat(content.getCount()).isEqualTo(2);
+        assertThat(content.getBodyPart(0).getContent()).isEqualTo("Please find attached your paystub.");
+        assertThat(content.getBodyPart(1).getFileName()).isEqualTo("paystub-John_Doe.pdf");
+    }
+
+    @Test
+    void shouldReuseTemplateForSameCompanyAndLocale() throws Exception {
+        // Given
+        Session session = Session.getInstance(new Properties());
+        when(mailSender.createMimeMessage())
+                .thenReturn(new MimeMessage(session), new MimeMessage(session));
+        PayrollRecord other = new PayrollRecord(
+                "Jane  Smith",
+                "jane@example.com",
+                "Manager",
+                100.0, 200.0, 300.0, 50.0, 5000.0, 4500.0, 3850.0,
+                "2024-01"
+        );
+
+        // When
+        emailService.sendEmail(testRecord, "TestCompany", testPdf, new Locale("es", "DO"));
+        emailService.sendEmail(other, "TestCompany", testPdf, new Locale("es", "DO"));
+
+        // Then
+        ArgumentCaptor<MimeMessage> captor = ArgumentCaptor.forClass(MimeMessage.class);
+        verify(mailSender, times(2)).send(captor.capture());
+        MimeMessage second = captor.getAllValues().get(1);
+        assertThat(second.getSubject()).isEqualTo("Comprobante de Pago - TestCompany");
+        assertThat(second.getAllRecipients()).containsExactly(new InternetAddress("jane@example.com"));
+        assertThat(((MimeMultipart) second.getContent()).getBodyPart(1).getFileName())
+                .isEqualTo("paystub-Jane_Smith.pdf");
+    }
+
+    @Test
+    void shouldKeepOnlyRecentlyUsedTemplates() throws Exception {
+        // Given
+        Session session = Session.getInstance(new Properties());
+        when(mailSender.createMimeMessage()).thenAnswer(invocation -> new MimeMessage(session));
+
+        // When
+        for (int i = 0; i < EmailService.MAX_TEMPLATES + 10; i++) {
+            emailService.sendEmail(testRecord, "Company " + i, testPdf, Locale.ENGLISH);
+        }
+
+        // Then
+        assertThat(emailService.cachedTemplates()).isEqualTo(EmailService.MAX_TEMPLATES);
+    }
+
+    @Test
+    void shouldStreamAttachmentAsBase64Pdf() throws Exception {
+        // Given
+        MimeMessage real = new MimeMessage(Session.getInstance(new Properties()));
+        when(mailSender.createMimeMessage()).thenReturn(real);
+        PdfAttachment.Buffer buffer = PdfAttachment.buffer();
+        buffer.write(testPdf);
+
+        // When
+        emailService.sendAttachment(testRecord, "TestCompany", buffer.toAttachment(), Locale.ENGLISH);
+
+        // Then
+        real.saveChanges();
+        MimeBodyPart attachment = (MimeBodyPart) ((MimeMultipart) real.getContent()).getBodyPart(1);
+        assertThat(attachment.getEncoding()).isEqualTo("base64");
+        assertThat(attachment.getContentType()).startsWith("application/pdf");
+        assertThat(attachment.getInputStream().readAllBytes()).isEqualTo(testPdf);
+    }
+
+    @Test
+    void shouldSendAllPaystubsOfRecipientInOneMessage() throws Exception {
+        // Given
+        MimeMessage real = new MimeMessage(Session.getInstance(new Properties()));
+        when(mailSender.createMimeMessage()).thenReturn(real);
+        PayrollRecord february = new PayrollRecord(
+                "John Doe", "john@example.com", "Engineer",
+                100.0, 200.0, 300.0, 50.0, 5000.0, 4500.0, 3850.0,
+                "2024-02"
+        );
+        List<PayrollRecord> recs = List.of(testRecord, february, testRecord);
+        List<PdfAttachment> pdfs = List.of(PdfAttachment.of(testPdf), PdfAttachment.of(testPdf), PdfAttachment.of(testPdf));
+
+        // When
+        emailService.sendEmails(recs, "TestCompany", pdfs, Locale.ENGLISH);
+
+        // Then
+        verify(mailSender, times(1)).send(real);
+        MimeMultipart content = (MimeMultipart) real.getContent();
+        assertThat(content.getCount()).isEqualTo(4);
+        assertThat(content.getBodyPart(0).getContent()).isEqualTo("Please find attached your paystubs.");
+        assertThat(content.getBodyPart(1).getFileName()).isEqualTo("paystub-John_Doe-2024-01.pdf");
+        assertThat(content.getBodyPart(2).getFileName()).isEqualTo("paystub-John_Doe-2024-02.pdf");
+        assertThat(content.getBodyPart(3).getFileName()).isEqualTo("paystub-John_Doe-2024-01-2.pdf");
+    }
+
+    @Test
+    void shouldRejectMismatchedRecordsAndAttachments() {
+        assertThrows(IllegalArgumentException.class, () ->
+                emailService.sendEmails(List.of(testRecord), "TestCompany", List.of(), Locale.ENGLISH)
+        );
+        verify(mailSender, never()).send(any(MimeMessage.class));
+    }
+
+    @Test
+    void shouldDeferMessagesWhileRelayIsDown() throws Exception {
+        // Given: the breaker opens after one failure and stays open
+        MailCircuitBreaker breaker = new MailCircuitBreaker(true, 1, Duration.ofHours(1));
+        DeferredMailStore deferred = new DeferredMailStore(deferredDir);
+        emailService = new EmailService(mailSender, SendLimiter.unbounded(), breaker, deferred);
+        ReflectionTestUtils.setField(emailService, "from", "noreply@company.com");
+        when(mailSender.createMimeMessage()).thenAnswer(inv -> new MimeMessage(Session.getInstance(new Properties())));
+        doThrow(relayDown()).when(mailSender).send(any(MimeMessage.class));
+
+        // When
+        assertThrows(MailSendException.class, () -> emailService.sendEmail(testRecord, "TestCompany", testPdf, Locale.ENGLISH));
+        MailDeferredException e = assertThrows(MailDeferredException.class,
+                () -> emailService.sendEmail(testRecord, "TestCompany", testPdf, Locale.ENGLISH));
+
+        // Then
+        verify(mailSender, times(1)).send(any(MimeMessage.class));
+        assertThat(breaker.state().status()).isEqualTo(MailCircuitBreaker.Status.OPEN);
+        assertThat(deferred.pending()).containsExactlyElementsOf(e.files());
+        assertThat(Files.readString(e.files().get(0))).contains("To: john@example.com");
+    }
+
+    @Test
+    void shouldSendDeferredMessagesOnceProbeReachesRelay() throws Exception {
+        // Given: two deferred messages, and a breaker open long enough to probe
+        MailCircuitBreaker breaker = new MailCircuitBreaker(true, 1, Duration.ZERO);
+        DeferredMailStore deferred = new DeferredMailStore(deferredDir);
+        emailService = new EmailService(mailSender, SendLimiter.unbounded(), breaker, deferred);
+        deferred.defer(text("body"));
+        deferred.defer(text("body"));
+        breaker.failed(relayDown());
+        when(mailSender.createMimeMessage(any(InputStream.class))).thenReturn(mimeMessage);
+
+        // When
+        int sent = emailService.drainDeferred();
+
+        // Then
+        assertThat(sent).isEqualTo(2);
+        verify(mailSender, times(2)).send(mimeMessage);
+        assertThat(deferred.pending()).isEmpty();
+        assertThat(breaker.state().status()).isEqualTo(MailCircuitBreaker.Status.CLOSED);
+    }
+
+    @Test
+    void shouldKeepDeferredMessagesWhenProbeFails() throws Exception {
+        // Given
+        MailCircuitBreaker breaker = new MailCircuitBreaker(true, 1, Duration.ZERO);
+        DeferredMailStore deferred = new DeferredMailStore(deferredDir);
+        emailService = new EmailService(mailSender, SendLimiter.unbounded(), breaker, deferred);
+        deferred.defer(text("body"));
+        deferred.defer(text("body"));
+        breaker.failed(relayDown());
+        when(mailSender.createMimeMessage(any(InputStream.class))).thenReturn(mimeMessage);
+        doThrow(relayDown()).when(mailSender).send(mimeMessage);
+
+        // When
+        int sent = emailService.drainDeferred();
+
+        // Then
+        assertThat(sent).isZero();
+        verify(mailSender, times(1)).send(mimeMessage);
+        assertThat(deferred.pending()).hasSize(2);
+        assertThat(breaker.state().status()).isEqualTo(MailCircuitBreaker.Status.OPEN);
+    }
+
+    @Test
+    void shouldKeepDeferredMessagesWhenDrainIsInterrupted() throws Exception {
+        // Given: the probe is interrupted, as at shutdown
+        MailCircuitBreaker breaker = new MailCircuitBreaker(true, 1, Duration.ZERO);
+        DeferredMailStore deferred = new DeferredMailStore(deferredDir);
+        emailService = new EmailService(mailSender, SendLimiter.unbounded(), breaker, deferred);
+        deferred.defer(text("body"));
+        deferred.defer(text("body"));
+        breaker.failed(relayDown());
+        when(mailSender.createMimeMessage(any(InputStream.class))).thenReturn(mimeMessage);
+        doAnswer(inv -> {
+            throw new InterruptedException();
+        }).when(mailSender).send(mimeMessage);
+
+        // When
+        int sent;
+        try {
+            sent = emailService.drainDeferred();
+        } finally {
+            assertThat(Thread.interrupted()).isTrue();
+        }
+
+        // Then
+        assertThat(sent).isZero();
+        verify(mailSender, times(1)).send(mimeMessage);
+        assertThat(deferred.pending()).hasSize(2);
+        assertThat(deferred.state().undeliverable()).isZero();
+        assertThat(breaker.state().status()).isEqualTo(MailCircuitBreaker.Status.OPEN);
+    }
+
+    private static MimeMessage text(String body) throws Exception {
+        MimeMessage message = new MimeMessage(Session.getInstance(new Properties()));
+        message.setText(body);
+        return message;
+    }
+
+    private static MailSendException relayDown() {
+        return new MailSendException("Mail server connection failed",
+                new MessagingException("Could not connect to SMTP host", new ConnectException("Connection refused")));
+    }
 }
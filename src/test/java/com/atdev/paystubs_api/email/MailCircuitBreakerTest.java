@@ -0,0 +1,138 @@
+package com.atdev.paystubs_api.email;
+
+import jakarta.mail.MessagingException;
+import jakarta.mail.internet.InternetAddress;
+import org.eclipse.angus.mail.smtp.SMTPAddressFailedException;
+import org.junit.jupiter.api.Test;
+import org.springframework.mail.MailSendException;
+
+import java.io.InterruptedIOException;
+import java.net.SocketTimeoutException;
+import java.time.Duration;
+import java.util.Map;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+class MailCircuitBreakerTest {
+
+    private static final Exception TIMEOUT = new MailSendException("Mail server connection failed",
+            new MessagingException("Exception reading response", new SocketTimeoutException("Read timed out")));
+
+    @Test
+    void shouldOpenAfterConsecutiveRelayFailures() throws Exception {
+        // Given
+        MailCircuitBreaker breaker = new MailCircuitBreaker(true, 3, Duration.ofHours(1));
+
+        // When
+        breaker.failed(TIMEOUT);
+        breaker.failed(TIMEOUT);
+        boolean allowedBeforeOpening = breaker.allow();
+        breaker.failed(TIMEOUT);
+
+        // Then
+        assertThat(allowedBeforeOpening).isTrue();
+        assertThat(breaker.allow()).isFalse();
+        assertThat(breaker.state().status()).isEqualTo(MailCircuitBreaker.Status.OPEN);
+        assertThat(breaker.state().opened()).isEqualTo(1);
+    }
+
+    @Test
+    void shouldNotCountRefusedRecipientAsRelayFailure() throws Exception {
+        // Given
+        MailCircuitBreaker breaker = new MailCircuitBreaker(true, 2, Duration.ofHours(1));
+        MailSendException refused = new MailSendException(Map.of(new Object(),
+                new SMTPAddressFailedException(new InternetAddress("john@example.com"), "RCPT TO", 550, "550 No such user")));
+
+        // When
+        breaker.failed(TIMEOUT);
+        boolean relayDown = breaker.failed(refused);
+        breaker.failed(TIMEOUT);
+
+        // Then
+        assertThat(relayDown).isFalse();
+        assertThat(breaker.state().status()).isEqualTo(MailCircuitBreaker.Status.CLOSED);
+        assertThat(breaker.state().failures()).isEqualTo(1);
+    }
+
+    @Test
+    void shouldLetOneProbeThroughOnceOpenDurationPassed() {
+        // Given
+        MailCircuitBreaker breaker = new MailCircuitBreaker(true, 1, Duration.ZERO);
+        breaker.failed(TIMEOUT);
+
+        // When
+        boolean probe = breaker.allow();
+        boolean other = breaker.allow();
+        breaker.succeeded();
+
+        // Then
+        assertThat(probe).isTrue();
+        assertThat(other).isFalse();
+        assertThat(breaker.allow()).isTrue();
+        assertThat(breaker.state().status()).isEqualTo(MailCircuitBreaker.Status.CLOSED);
+    }
+
+    @Test
+    void shouldOpenAgainWhenProbeFails() {
+        // Given
+        MailCircuitBreaker breaker = new MailCircuitBreaker(true, 5, Duration.ZERO);
+        for (int i = 0; i < 5; i++) {
+            breaker.failed(TIMEOUT);
+        }
+
+        // When
+        breaker.allow();
+        breaker.failed(TIMEOUT);
+
+        // Then
+        assertThat(breaker.state().status()).isEqualTo(MailCircuitBreaker.Status.OPEN);
+        assertThat(breaker.state().opened()).isEqualTo(2);
+    }
+
+    @Test
+    void shouldNotCountInterruptedSendEitherWay() {
+        // Given
+        MailCircuitBreaker breaker = new MailCircuitBreaker(true, 2, Duration.ofHours(1));
+        breaker.failed(TIMEOUT);
+
+        // When
+        boolean relayDown = breaker.failed(new MailSendException("Mail server connection failed",
+                new MessagingException("Exception writing", new InterruptedIOException())));
+
+        // Then
+        assertThat(relayDown).isFalse();
+        assertThat(breaker.state().status()).isEqualTo(MailCircuitBreaker.Status.CLOSED);
+        assertThat(breaker.state().failures()).isEqualTo(1);
+    }
+
+    @Test
+    void shouldHandProbeBackWhenItIsInterrupted() {
+        // Given
+        MailCircuitBreaker breaker = new MailCircuitBreaker(true, 1, Duration.ZERO);
+        breaker.failed(TIMEOUT);
+        breaker.allow();
+
+        // When
+        breaker.failed(new InterruptedException());
+
+        // Then
+        assertThat(breaker.state().status()).isEqualTo(MailCircuitBreaker.Status.OPEN);
+        assertThat(breaker.state().opened()).isEqualTo(1);
+        assertThat(breaker.allow()).isTrue();
+    }
+
+    @Test
+    void shouldNeverOpenWhenDisabled() {
+        // Given
+        MailCircuitBreaker breaker = MailCircuitBreaker.disabled();
+
+        // When
+        for (int i = 0; i < 10; i++) {
+            breaker.failed(TIMEOUT);
+        }
+
+        // Then
+        assertThat(breaker.allow()).isTrue();
+        assertThat(breaker.state().status()).isEqualTo(MailCircuitBreaker.Status.CLOSED);
+    }
+}
@@ -0,0 +1,134 @@
+package com.atdev.paystubs_api.email;
+
+import com.atdev.paystubs_api.payment.PayrollRecord;
+import org.eclipse.angus.mail.smtp.SMTPSendFailedException;
+import org.springframework.mail.MailSendException;
+import org.springframework.mail.javamail.JavaMailSenderImpl;
+import org.springframework.test.util.ReflectionTestUtils;
+
+import java.nio.file.Path;
+import java.time.Duration;
+import java.util.Arrays;
+import java.util.Locale;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * End-to-end mail throughput harness: drives the real {@link EmailService} through
+ * {@link JavaMailSenderImpl} against an in-process {@link SmtpSink} and reports messages per
+ * second, p50/p99 send latency and how many sends needed retries.
+ *
+ * <p>Transient failures (4xx replies, dropped connections) are retried up to {@code attempts}
+ * times; permanent 5xx failures are not. Latency covers all attempts of a message. Configure with
+ * system properties, e.g.
+ * {@code -Dmessages=2000 -Dthreads=8 -DlatencyMs=5 -DtransientRate=0.02 -DpermanentRate=0.005
+ * -DdropRate=0.01 -Dattempts=3}.
+ */
+public class MailThroughputBenchmark {
+
+    public static void main(String[] args) throws Exception {
+        int messages = Integer.getInteger("messages", 2000);
+        int threads = Integer.getInteger("threads", 8);
+        int attempts = Integer.getInteger("attempts", 3);
+        int pdfKb = Integer.getInteger("pdfKb", 48);
+
+        try (SmtpSink sink = SmtpSink.start()
+                .latency(Duration.ofMillis(Long.getLong("latencyMs", 0)))
+                .transientFailureRate(Double.parseDouble(System.getProperty("transientRate", "0")))
+                .permanentFailureRate(Double.parseDouble(System.getProperty("permanentRate", "0")))
+                .dropRate(Double.parseDouble(System.getProperty("dropRate", "0")))) {
+
+            Result result = run(sink, messages, threads, attempts, new byte[pdfKb * 1024]);
+            System.out.println(result);
+        }
+    }
+
+    static Result run(SmtpSink sink, int messages, int threads, int attempts, byte[] pdf) throws Exception {
+        JavaMailSenderImpl mailSender = new JavaMailSenderImpl();
+        mailSender.setHost("localhost");
+        mailSender.setPort(sink.port());
+        mailSender.getJavaMailProperties().setProperty("mail.smtp.localhost", "localhost");
+        EmailService emailService = new EmailService(mailSender, SendLimiter.unbounded(), MailCircuitBreaker.disabled(),
+                new DeferredMailStore(Path.of("target", "deferred")));
+        ReflectionTestUtils.setField(emailService, "from", "no-reply@example.com");
+
+        long[] latencies = new long[messages];
+        AtomicInteger retried = new AtomicInteger();
+        AtomicInteger retries = new AtomicInteger();
+        AtomicInteger failed = new AtomicInteger();
+
+        long start = System.nanoTime();
+        try (ExecutorService pool = Executors.newFixedThreadPool(threads)) {
+            for (int i = 0; i < messages; i++) {
+                int id = i;
+                pool.execute(() -> {
+                    PayrollRecord rec = new PayrollRecord("Employee " + id, "employee" + id + "@example.com", "Engineer",
+                            100.0, 200.0, 300.0, 50.0, 5000.0, 4500.0, 3850.0, "2024-01");
+                    long t0 = System.nanoTime();
+                    int attempt = 1;
+                    while (true) {
+                        try {
+                            emailService.sendEmail(rec, "AcmeCorp", pdf, Locale.ENGLISH);
+                            break;
+                        } catch (Exception e) {
+                            if (attempt >= attempts || isPermanent(e)) {
+                                failed.incrementAndGet();
+                                break;
+                            }
+                            if (attempt == 1) {
+                                retried.incrementAndGet();
+                            }
+                            retries.incrementAndGet();
+                            attempt++;
+                        }
+                    }
+                    latencies[id] = System.nanoTime() - t0;
+                });
+            }
+            pool.shutdown();
+            pool.awaitTermination(1, TimeUnit.HOURS);
+        }
+        long elapsed = System.nanoTime() - start;
+
+        Arrays.sort(latencies);
+        return new Result(messages, threads, sink.delivered(), failed.get(), retried.get(), retries.get(),
+                messages / (elapsed / 1e9), percentile(latencies, 0.50), percentile(latencies, 0.99), sink.connections());
+    }
+
+    static boolean isPermanent(Throwable e) {
+        if (e instanceof MailSendException send) {
+            for (Exception failure : send.getMessageExceptions()) {
+                if (isPermanent(failure)) {
+                    return true;
+                }
+            }
+        }
+        for (Throwable t = e; t != null; t = t.getCause()) {
+            if (t instanceof SMTPSendFailedException smtp) {
+                return smtp.getReturnCode() >= 500;
+            }
+        }
+        return false;
+    }
+
+    private static Duration percentile(long[] sorted, double p) {
+        if (sorted.length == 0) {
+            return Duration.ZERO;
+        }
+        return Duration.ofNanos(sorted[(int) Math.min(sorted.length - 1, Math.ceil(p * sorted.length) - 1)]);
+    }
+
+    record Result(int messages, int threads, int delivered, int failed, int retriedMessages, int retries,
+                  double messagesPerSecond, Duration p50, Duration p99, int connections) {
+        @Override
+        public String toString() {
+            return String.format(Locale.ROOT,
+                    "messages=%d threads=%d delivered=%d failed=%d retried_messages=%d retries=%d%n"
+                            + "throughput=%.1f msg/s p50=%.2f ms p99=%.2f ms smtp_connections=%d",
+                    messages, threads, delivered, failed, retriedMessages, retries,
+                    messagesPerSecond, p50.toNanos() / 1e6, p99.toNanos() / 1e6, connections);
+        }
+    }
+}
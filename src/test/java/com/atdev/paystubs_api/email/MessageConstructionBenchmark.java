@@ -0,0 +1,86 @@
+package com.atdev.paystubs_api.email;
+
+import com.atdev.paystubs_api.payment.PayrollRecord;
+import jakarta.mail.internet.MimeMessage;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+import org.springframework.core.io.ByteArrayResource;
+import org.springframework.mail.javamail.JavaMailSenderImpl;
+import org.springframework.mail.javamail.MimeMessageHelper;
+import org.springframework.test.util.ReflectionTestUtils;
+
+import java.nio.file.Path;
+import java.util.Locale;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Compares the cost of building one paystub message with {@link MimeMessageHelper} on every call
+ * (the previous implementation) against the cached {@link MessageTemplate} path. Both variants
+ * finish with {@code saveChanges()}, which is what {@code JavaMailSenderImpl} does before writing.
+ *
+ * <p>Run with {@code ./mvnw test-compile exec:java
+ * -Dexec.mainClass=com.atdev.paystubs_api.email.MessageConstructionBenchmark}.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class MessageConstructionBenchmark {
+
+    private static final String FROM = "no-reply@example.com";
+    private static final String COMPANY = "AcmeCorp";
+
+    private JavaMailSenderImpl mailSender;
+    private EmailService emailService;
+    private PayrollRecord rec;
+    private byte[] pdf;
+
+    @Setup
+    public void setUp() {
+        mailSender = new JavaMailSenderImpl();
+        emailService = new EmailService(mailSender, SendLimiter.unbounded(), MailCircuitBreaker.disabled(),
+                new DeferredMailStore(Path.of("target", "deferred")));
+        ReflectionTestUtils.setField(emailService, "from", FROM);
+        rec = new PayrollRecord("John Middle Doe", "john@example.com", "Engineer",
+                100.0, 200.0, 300.0, 50.0, 5000.0, 4500.0, 3850.0, "2024-01");
+        pdf = new byte[48 * 1024];
+    }
+
+    @Benchmark
+    public MimeMessage helperPerMessage() throws Exception {
+        MimeMessage message = mailSender.createMimeMessage();
+        MimeMessageHelper helper = new MimeMessageHelper(message, true, "UTF-8");
+        helper.setFrom(FROM);
+        helper.setTo(rec.email());
+        helper.setSubject("Paystub Payment - " + COMPANY);
+        helper.setText("Please find attached your paystub.", false);
+        helper.addAttachment("paystub-" + rec.fullName().replaceAll("\\s+", "_") + ".pdf", new ByteArrayResource(pdf));
+        message.saveChanges();
+        return message;
+    }
+
+    @Benchmark
+    public MimeMessage cachedTemplate() throws Exception {
+        MimeMessage message = emailService.createMessage(rec, COMPANY, PdfAttachment.of(pdf), Locale.ENGLISH);
+        message.saveChanges();
+        return message;
+    }
+
+    public static void main(String[] args) throws Exception {
+        new Runner(new OptionsBuilder()
+                .include(MessageConstructionBenchmark.class.getSimpleName())
+                .build()).run();
+    }
+}
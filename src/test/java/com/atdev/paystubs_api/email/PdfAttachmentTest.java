@@ -0,0 +1,57 @@
+package com.atdev.paystubs_api.email;
+
+import org.junit.jupiter.api.Test;
+
+import java.io.IOException;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+class PdfAttachmentTest {
+
+    @Test
+    void shouldExposeWrappedBytes() throws Exception {
+        // Given
+        byte[] pdf = "pdf-content".getBytes();
+
+        // When
+        PdfAttachment attachment = PdfAttachment.of(pdf);
+
+        // Then
+        assertThat(attachment.size()).isEqualTo(pdf.length);
+        assertThat(attachment.getContentType()).isEqualTo("application/pdf");
+        assertThat(attachment.getInputStream().readAllBytes()).isEqualTo(pdf);
+    }
+
+    @Test
+    void shouldOnlyExposeWrittenPartOfBuffer() throws Exception {
+        // Given
+        PdfAttachment.Buffer buffer = PdfAttachment.buffer();
+        buffer.write("%PDF-1.4".getBytes());
+
+        // When
+        PdfAttachment attachment = buffer.toAttachment();
+
+        // Then
+        assertThat(attachment.size()).isEqualTo(8);
+        assertThat(attachment.getInputStream().readAllBytes()).isEqualTo("%PDF-1.4".getBytes());
+    }
+
+    @Test
+    void shouldAllowRepeatedReads() throws Exception {
+        // Given
+        PdfAttachment attachment = PdfAttachment.of("abc".getBytes());
+
+        // When
+        byte[] first = attachment.getInputStream().readAllBytes();
+        byte[] second = attachment.getInputStream().readAllBytes();
+
+        // Then
+        assertThat(first).isEqualTo(second);
+    }
+
+    @Test
+    void shouldBeReadOnly() {
+        assertThrows(IOException.class, () -> PdfAttachment.of(new byte[0]).getOutputStream());
+    }
+}
@@ -0,0 +1,124 @@
+package com.atdev.paystubs_api.email;
+
+import jakarta.mail.Message;
+import jakarta.mail.internet.InternetAddress;
+import jakarta.mail.internet.MimeMessage;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import org.springframework.mail.MailSendException;
+
+import java.io.InputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Stream;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+class PickupDirectoryMailSenderTest {
+
+    @TempDir
+    Path root;
+
+    @Test
+    void shouldWriteMessageAsEmlFileIntoPickupDirectory() throws Exception {
+        // Given
+        PickupDirectoryMailSender sender = new PickupDirectoryMailSender(root.resolve("pickup"), true);
+
+        // When
+        sender.send(message(sender, "Your paystub"));
+
+        // Then
+        assertThat(files(root.resolve("pickup"))).singleElement().satisfies(file -> {
+            assertThat(file.getFileName().toString()).endsWith(".eml");
+            assertThat(Files.readString(file)).contains("To: john@example.com", "Subject: Your paystub", "Date: ");
+        });
+        assertThat(files(root.resolve("pickup.tmp"))).isEmpty();
+    }
+
+    @Test
+    void shouldWriteEveryMessageOfBatchInOrder() throws Exception {
+        // Given
+        PickupDirectoryMailSender sender = new PickupDirectoryMailSender(root.resolve("pickup"), false);
+
+        // When
+        sender.send(message(sender, "first"), message(sender, "second"), message(sender, "third"));
+
+        // Then
+        List<String> subjects = new ArrayList<>();
+        for (Path file : files(sender.dir())) {
+            try (InputStream in = Files.newInputStream(file)) {
+                subjects.add(sender.createMimeMessage(in).getSubject());
+            }
+        }
+        assertThat(subjects).containsExactly("first", "second", "third");
+    }
+
+    @Test
+    void shouldCommitConcurrentSendsWithoutLosingAny() throws Exception {
+        // Given
+        PickupDirectoryMailSender sender = new PickupDirectoryMailSender(root.resolve("pickup"), true);
+        List<Thread> senders = new ArrayList<>();
+
+        // When
+        for (int i = 0; i < 50; i++) {
+            MimeMessage message = message(sender, "paystub " + i);
+            senders.add(Thread.ofVirtual().start(() -> sender.send(message)));
+        }
+        for (Thread thread : senders) {
+            thread.join(TimeUnit.SECONDS.toMillis(10));
+        }
+
+        // Then
+        assertThat(files(sender.dir())).hasSize(50);
+        assertThat(files(root.resolve("pickup.tmp"))).isEmpty();
+    }
+
+    @Test
+    void shouldReportMessageThatCannotBeWrittenAndWriteTheRest() throws Exception {
+        // Given: a message without content cannot be serialized
+        PickupDirectoryMailSender sender = new PickupDirectoryMailSender(root.resolve("pickup"), true);
+        MimeMessage broken = sender.createMimeMessage();
+        MimeMessage good = message(sender, "good");
+
+        // When
+        MailSendException e = assertThrows(MailSendException.class, () -> sender.send(broken, good));
+
+        // Then
+        assertThat(e.getFailedMessages()).containsOnlyKeys(broken);
+        assertThat(files(sender.dir())).hasSize(1);
+        assertThat(files(root.resolve("pickup.tmp"))).isEmpty();
+    }
+
+    @Test
+    void shouldDeleteMessagesLeftInStagingByEarlierRun() throws Exception {
+        // Given: a crash left a half-written message in staging
+        Files.createDirectories(root.resolve("pickup.tmp"));
+        Files.writeString(root.resolve("pickup.tmp").resolve("0000000000001-000000001.eml"), "To: john@example.com\r\nSubj");
+
+        // When
+        PickupDirectoryMailSender sender = new PickupDirectoryMailSender(root.resolve("pickup"), true);
+
+        // Then
+        assertThat(files(root.resolve("pickup.tmp"))).isEmpty();
+        assertThat(files(sender.dir())).isEmpty();
+    }
+
+    private static MimeMessage message(PickupDirectoryMailSender sender, String subject) throws Exception {
+        MimeMessage message = sender.createMimeMessage();
+        message.setFrom(new InternetAddress("noreply@company.com"));
+        message.setRecipient(Message.RecipientType.TO, new InternetAddress("john@example.com"));
+        message.setSubject(subject);
+        message.setText("Please find attached your paystub.");
+        return message;
+    }
+
+    private static List<Path> files(Path dir) throws Exception {
+        try (Stream<Path> files = Files.list(dir)) {
+            return files.sorted().toList();
+        }
+    }
+}
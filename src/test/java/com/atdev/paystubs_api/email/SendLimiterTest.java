@@ -0,0 +1,191 @@
+package com.atdev.paystubs_api.email;
+
+import jakarta.mail.MessagingException;
+import jakarta.mail.internet.InternetAddress;
+import org.eclipse.angus.mail.smtp.SMTPAddressFailedException;
+import org.junit.jupiter.api.Test;
+import org.springframework.mail.MailSendException;
+
+import java.net.SocketTimeoutException;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+class SendLimiterTest {
+
+    @Test
+    void shouldGrowByOnePerRoundOfHealthySends() throws Exception {
+        // Given
+        SendLimiter limiter = new SendLimiter(true, 2, 1, 10, 0.5, Duration.ofSeconds(1));
+
+        // When: 1/2 + 1/2.5 + 1/2.9 takes 2 past 3
+        for (int i = 0; i < 3; i++) {
+            limiter.send(1, () -> {});
+        }
+
+        // Then
+        assertThat(limiter.state().limit()).isEqualTo(3);
+        assertThat(limiter.state().increases()).isEqualTo(3);
+        assertThat(limiter.state().in_flight()).isZero();
+    }
+
+    @Test
+    void shouldNotGrowOnSlowSends() throws Exception {
+        // Given
+        SendLimiter limiter = new SendLimiter(true, 2, 1, 10, 0.5, Duration.ZERO);
+
+        // When
+        limiter.send(1, () -> Thread.sleep(5));
+
+        // Then
+        assertThat(limiter.state().limit()).isEqualTo(2);
+        assertThat(limiter.state().increases()).isZero();
+    }
+
+    @Test
+    void shouldCutOnceForThrottlingOfSendsStartedInSameRound() throws Exception {
+        // Given
+        SendLimiter limiter = new SendLimiter(true, 8, 1, 16, 0.5, Duration.ofSeconds(1));
+        CountDownLatch started = new CountDownLatch(2);
+        CountDownLatch refuse = new CountDownLatch(1);
+        List<Thread> senders = new ArrayList<>();
+
+        // When
+        for (int i = 0; i < 2; i++) {
+            senders.add(Thread.ofVirtual().start(() -> {
+                try {
+                    limiter.send(1, () -> {
+                        started.countDown();
+                        refuse.await();
+                        throw new MailSendException("Failed messages", new MessagingException("451 4.7.1 Try again later"));
+                    });
+                } catch (Exception e) {
+                    // expected
+                }
+            }));
+        }
+        assertThat(started.await(5, TimeUnit.SECONDS)).isTrue();
+        refuse.countDown();
+        for (Thread sender : senders) {
+            sender.join(TimeUnit.SECONDS.toMillis(5));
+        }
+
+        // Then
+        assertThat(limiter.state().limit()).isEqualTo(4);
+        assertThat(limiter.state().throttled()).isEqualTo(1);
+    }
+
+    @Test
+    void shouldCutOnTimeoutButNotOnRefusedRecipient() throws Exception {
+        // Given
+        SendLimiter limiter = new SendLimiter(true, 8, 1, 16, 0.5, Duration.ofSeconds(1));
+        MailSendException refused = new MailSendException(Map.of(new Object(),
+                new SMTPAddressFailedException(new InternetAddress("john@example.com"), "RCPT TO", 550, "550 No such user")));
+        MailSendException timedOut = new MailSendException("Mail server connection failed",
+                new MessagingException("Exception reading response", new SocketTimeoutException("Read timed out")));
+
+        // When
+        assertThrows(MailSendException.class, () -> limiter.send(1, () -> {
+            throw refused;
+        }));
+        int afterRefusal = limiter.state().limit();
+        assertThrows(MailSendException.class, () -> limiter.send(1, () -> {
+            throw timedOut;
+        }));
+
+        // Then
+        assertThat(afterRefusal).isEqualTo(8);
+        assertThat(limiter.state().limit()).isEqualTo(4);
+        assertThat(limiter.state().timeouts()).isEqualTo(1);
+    }
+
+    @Test
+    void shouldHoldPinnedLimitUntilReleased() throws Exception {
+        // Given
+        SendLimiter limiter = new SendLimiter(true, 8, 1, 16, 0.5, Duration.ofSeconds(1));
+        limiter.pin(1, false);
+        CountDownLatch sending = new CountDownLatch(1);
+        CountDownLatch finish = new CountDownLatch(1);
+        Thread first = Thread.ofVirtual().start(() -> {
+            try {
+                limiter.send(1, () -> {
+                    sending.countDown();
+                    finish.await();
+                    throw new MessagingException("421 4.7.0 Too many connections");
+                });
+            } catch (Exception e) {
+                // expected
+            }
+        });
+        assertThat(sending.await(5, TimeUnit.SECONDS)).isTrue();
+
+        // When
+        Thread second = Thread.ofVirtual().start(() -> {
+            try {
+                limiter.send(1, () -> {});
+            } catch (Exception e) {
+                throw new IllegalStateException(e);
+            }
+        });
+        waitUntilWaiting(limiter, 1);
+        finish.countDown();
+        first.join(TimeUnit.SECONDS.toMillis(5));
+        second.join(TimeUnit.SECONDS.toMillis(5));
+
+        // Then
+        assertThat(limiter.state().limit()).isEqualTo(1);
+        assertThat(limiter.state().pinned()).isTrue();
+        assertThat(limiter.state().throttled()).isZero();
+        limiter.unpin();
+        limiter.send(1, () -> {});
+        assertThat(limiter.state().pinned()).isFalse();
+        assertThat(limiter.state().limit()).isEqualTo(2);
+    }
+
+    @Test
+    void shouldKeepPinnedLimitWithinConfiguredBounds() {
+        // Given
+        SendLimiter limiter = new SendLimiter(true, 8, 2, 16, 0.5, Duration.ofSeconds(1));
+
+        // When
+        limiter.pin(100, true);
+
+        // Then
+        assertThat(limiter.state().limit()).isEqualTo(16);
+
+        // When
+        limiter.pin(1, false);
+
+        // Then
+        assertThat(limiter.state().limit()).isEqualTo(2);
+    }
+
+    @Test
+    void shouldNeverWaitWhenDisabled() throws Exception {
+        // Given
+        SendLimiter limiter = SendLimiter.unbounded();
+
+        // When
+        limiter.send(1, () -> {});
+
+        // Then
+        assertThat(limiter.state().enabled()).isFalse();
+        assertThat(limiter.state().increases()).isZero();
+    }
+
+    private static void waitUntilWaiting(SendLimiter limiter, int waiting) throws InterruptedException {
+        long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(5);
+        while (limiter.state().waiting() < waiting) {
+            if (System.nanoTime() > deadline) {
+                throw new AssertionError("no waiter within 5s");
+            }
+            Thread.sleep(10);
+        }
+    }
+}
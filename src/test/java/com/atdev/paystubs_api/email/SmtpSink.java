@@ -0,0 +1,215 @@
+package com.atdev.paystubs_api.email;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.time.Duration;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Minimal in-process SMTP server for tests and benchmarks. Accepts any sender and recipient and
+ * counts delivered messages. It can delay the reply to each message, reject messages with random
+ * 4xx/5xx replies or drop the connection before replying, using a seeded random so runs repeat.
+ *
+ * <p>Connections are served on platform threads: clients sending from virtual threads may pin
+ * every carrier while they wait for a reply, which must not starve the server side.
+ */
+public class SmtpSink implements AutoCloseable {
+    private final ServerSocket server;
+    private final ExecutorService connectionThreads = Executors.newCachedThreadPool(Thread.ofPlatform().name("smtp-sink-", 0).daemon().factory());
+    private final Random random;
+
+    private final AtomicInteger connections = new AtomicInteger();
+    private final AtomicInteger delivered = new AtomicInteger();
+    private final AtomicInteger transientFailures = new AtomicInteger();
+    private final AtomicInteger permanentFailures = new AtomicInteger();
+    private final AtomicInteger drops = new AtomicInteger();
+    private final ConcurrentLinkedQueue<String> messages = new ConcurrentLinkedQueue<>();
+
+    private volatile Duration latency = Duration.ZERO;
+    private volatile double transientFailureRate;
+    private volatile double permanentFailureRate;
+    private volatile double dropRate;
+    private volatile boolean keepMessages;
+
+    private SmtpSink(long seed) throws IOException {
+        this.server = new ServerSocket(0, 512, InetAddress.getLoopbackAddress());
+        this.random = new Random(seed);
+        Thread.ofPlatform().name("smtp-sink-accept").daemon().start(this::acceptLoop);
+    }
+
+    public static SmtpSink start() throws IOException {
+        return new SmtpSink(42);
+    }
+
+    public static SmtpSink start(long seed) throws IOException {
+        return new SmtpSink(seed);
+    }
+
+    public int port() {
+        return server.getLocalPort();
+    }
+
+    /** Delay before answering the end of each message, standing in for relay queueing and scanning. */
+    public SmtpSink latency(Duration latency) {
+        this.latency = latency;
+        return this;
+    }
+
+    /** Share of messages answered with {@code 451}, which senders are expected to retry. */
+    public SmtpSink transientFailureRate(double rate) {
+        this.transientFailureRate = rate;
+        return this;
+    }
+
+    /** Share of messages answered with {@code 554}, which senders must not retry. */
+    public SmtpSink permanentFailureRate(double rate) {
+        this.permanentFailureRate = rate;
+        return this;
+    }
+
+    /** Share of messages whose connection is closed after the data is received, without a reply. */
+    public SmtpSink dropRate(double rate) {
+        this.dropRate = rate;
+        return this;
+    }
+
+    public SmtpSink keepMessages(boolean keep) {
+        this.keepMessages = keep;
+        return this;
+    }
+
+    public int connections() {
+        return connections.get();
+    }
+
+    public int delivered() {
+        return delivered.get();
+    }
+
+    public int transientFailures() {
+        return transientFailures.get();
+    }
+
+    public int permanentFailures() {
+        return permanentFailures.get();
+    }
+
+    public int drops() {
+        return drops.get();
+    }
+
+    /** Raw DATA sections of delivered messages, only recorded with {@link #keepMessages(boolean)}. */
+    public List<String> messages() {
+        return List.copyOf(messages);
+    }
+
+    @Override
+    public void close() throws IOException {
+        server.close();
+        connectionThreads.shutdownNow();
+    }
+
+    private void acceptLoop() {
+        while (!server.isClosed()) {
+            try {
+                Socket socket = server.accept();
+                socket.setTcpNoDelay(true);
+                connectionThreads.execute(() -> serve(socket));
+            } catch (IOException e) {
+                return;
+            }
+        }
+    }
+
+    private void serve(Socket socket) {
+        connections.incrementAndGet();
+        try (socket;
+             BufferedReader in = new BufferedReader(new InputStreamReader(socket.getInputStream(), StandardCharsets.ISO_8859_1));
+             Writer out = new OutputStreamWriter(socket.getOutputStream(), StandardCharsets.ISO_8859_1)) {
+            reply(out, "220 smtp-sink ready");
+            String line;
+            while ((line = in.readLine()) != null) {
+                String verb = (line.length() < 4 ? line : line.substring(0, 4)).toUpperCase();
+                switch (verb) {
+                    case "EHLO" -> reply(out, "250-smtp-sink\r\n250 8BITMIME");
+                    case "HELO" -> reply(out, "250 smtp-sink");
+                    case "MAIL", "RCPT", "RSET", "NOOP" -> reply(out, "250 OK");
+                    case "DATA" -> {
+                        reply(out, "354 End data with <CR><LF>.<CR><LF>");
+                        if (!receive(in, out)) {
+                            return;
+                        }
+                    }
+                    case "QUIT" -> {
+                        reply(out, "221 Bye");
+                        return;
+                    }
+                    default -> reply(out, "502 Command not implemented");
+                }
+            }
+        } catch (IOException | InterruptedException ignored) {
+            // client went away or the sink is shutting down
+        }
+    }
+
+    // Returns false when the connection should be closed without a reply.
+    private boolean receive(BufferedReader in, Writer out) throws IOException, InterruptedException {
+        StringBuilder body = keepMessages ? new StringBuilder() : null;
+        String line;
+        while ((line = in.readLine()) != null && !line.equals(".")) {
+            if (body != null) {
+                body.append(line.startsWith("..") ? line.substring(1) : line).append("\r\n");
+            }
+        }
+        if (line == null) {
+            return false;
+        }
+
+        if (!latency.isZero()) {
+            Thread.sleep(latency);
+        }
+
+        double roll = random.nextDouble();
+        if (roll < dropRate) {
+            drops.incrementAndGet();
+            return false;
+        }
+        roll -= dropRate;
+        if (roll < transientFailureRate) {
+            transientFailures.incrementAndGet();
+            reply(out, "451 4.3.0 Temporary failure, try again later");
+            return true;
+        }
+        roll -= transientFailureRate;
+        if (roll < permanentFailureRate) {
+            permanentFailures.incrementAndGet();
+            reply(out, "554 5.0.0 Transaction failed");
+            return true;
+        }
+
+        delivered.incrementAndGet();
+        if (body != null) {
+            messages.add(body.toString());
+        }
+        reply(out, "250 OK queued");
+        return true;
+    }
+
+    private void reply(Writer out, String text) throws IOException {
+        out.write(text);
+        out.write("\r\n");
+        out.flush();
+    }
+}
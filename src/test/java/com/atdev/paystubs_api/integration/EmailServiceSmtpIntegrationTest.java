@@ -0,0 +1,167 @@
+package com.atdev.paystubs_api.integration;
+
+import com.atdev.paystubs_api.email.Delivery;
+import com.atdev.paystubs_api.email.DeferredMailStore;
+import com.atdev.paystubs_api.email.EmailService;
+import com.atdev.paystubs_api.email.MailCircuitBreaker;
+import com.atdev.paystubs_api.email.SendLimiter;
+import com.atdev.paystubs_api.email.PdfAttachment;
+import com.atdev.paystubs_api.email.SmtpSink;
+import com.atdev.paystubs_api.payment.PayrollRecord;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import org.springframework.mail.MailSendException;
+import org.springframework.mail.javamail.JavaMailSenderImpl;
+import org.springframework.test.util.ReflectionTestUtils;
+
+import java.nio.file.Path;
+import java.time.Duration;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+/**
+ * Sends through the real {@link JavaMailSenderImpl} to an in-process {@link SmtpSink}.
+ */
+class EmailServiceSmtpIntegrationTest {
+
+    @TempDir
+    Path deferredDir;
+
+    private SmtpSink sink;
+    private EmailService emailService;
+    private PayrollRecord testRecord;
+
+    @BeforeEach
+    void setUp() throws Exception {
+        sink = SmtpSink.start().keepMessages(true);
+
+        JavaMailSenderImpl mailSender = new JavaMailSenderImpl();
+        mailSender.setHost("localhost");
+        mailSender.setPort(sink.port());
+        emailService = new EmailService(mailSender, SendLimiter.unbounded(), MailCircuitBreaker.disabled(),
+                new DeferredMailStore(deferredDir));
+        ReflectionTestUtils.setField(emailService, "from", "noreply@company.com");
+
+        testRecord = new PayrollRecord(
+                "John Doe",
+                "john@example.com",
+                "Engineer",
+                100.0, 200.0, 300.0, 50.0, 5000.0, 4500.0, 3850.0,
+                "2024-01"
+        );
+    }
+
+    @AfterEach
+    void tearDown() throws Exception {
+        sink.close();
+    }
+
+    @Test
+    void shouldDeliverMessageOverSmtp() throws Exception {
+        // When
+        emailService.sendEmail(testRecord, "TestCompany", "%PDF-1.4".getBytes(), Locale.ENGLISH);
+
+        // Then
+        assertThat(sink.delivered()).isEqualTo(1);
+        String raw = sink.messages().get(0);
+        assertThat(raw).contains("Subject: Paystub Payment - TestCompany");
+        assertThat(raw).contains("To: john@example.com");
+        assertThat(raw).contains("filename=paystub-John_Doe.pdf");
+        assertThat(raw).contains("Content-Transfer-Encoding: base64");
+    }
+
+    @Test
+    void shouldSurfaceTransientRejection() {
+        // Given
+        sink.transientFailureRate(1.0);
+
+        // When/Then
+        MailSendException e = assertThrows(MailSendException.class, () ->
+                emailService.sendEmail(testRecord, "TestCompany", "%PDF-1.4".getBytes(), Locale.ENGLISH)
+        );
+        assertThat(e.getMessage()).contains("451");
+        assertThat(sink.transientFailures()).isEqualTo(1);
+        assertThat(sink.delivered()).isZero();
+    }
+
+    @Test
+    void shouldSurfacePermanentRejection() {
+        // Given
+        sink.permanentFailureRate(1.0);
+
+        // When/Then
+        MailSendException e = assertThrows(MailSendException.class, () ->
+                emailService.sendEmail(testRecord, "TestCompany", "%PDF-1.4".getBytes(), Locale.ENGLISH)
+        );
+        assertThat(e.getMessage()).contains("554");
+    }
+
+    @Test
+    void shouldFailWhenConnectionIsDropped() {
+        // Given
+        sink.dropRate(1.0);
+
+        // When/Then
+        assertThrows(MailSendException.class, () ->
+                emailService.sendEmail(testRecord, "TestCompany", "%PDF-1.4".getBytes(), Locale.ENGLISH)
+        );
+        assertThat(sink.drops()).isEqualTo(1);
+    }
+
+    @Test
+    void shouldWaitForConfiguredLatency() throws Exception {
+        // Given
+        sink.latency(Duration.ofMillis(200));
+
+        // When
+        long start = System.nanoTime();
+        emailService.sendEmail(testRecord, "TestCompany", "%PDF-1.4".getBytes(), Locale.ENGLISH);
+
+        // Then
+        assertThat(Duration.ofNanos(System.nanoTime() - start)).isGreaterThanOrEqualTo(Duration.ofMillis(200));
+        assertThat(sink.delivered()).isEqualTo(1);
+    }
+
+    @Test
+    void shouldSendBatchOverSingleConnection() throws Exception {
+        // Given
+        PdfAttachment pdf = PdfAttachment.of("%PDF-1.4".getBytes());
+        List<Delivery> batch = List.of(
+                new Delivery(List.of(testRecord), List.of(pdf)),
+                new Delivery(List.of(testRecord), List.of(pdf)),
+                new Delivery(List.of(testRecord), List.of(pdf))
+        );
+
+        // When
+        emailService.sendBatch(batch, "TestCompany", Locale.ENGLISH);
+
+        // Then
+        assertThat(sink.delivered()).isEqualTo(3);
+        assertThat(sink.connections()).isEqualTo(1);
+    }
+
+    @Test
+    void shouldReportRefusedDeliveriesOfBatchByIndex() throws Exception {
+        // Given
+        sink.permanentFailureRate(1.0);
+        PdfAttachment pdf = PdfAttachment.of("%PDF-1.4".getBytes());
+        List<Delivery> batch = List.of(
+                new Delivery(List.of(testRecord), List.of(pdf)),
+                new Delivery(List.of(testRecord), List.of(pdf))
+        );
+
+        // When
+        Map<Integer, Exception> refused = emailService.sendBatch(batch, "TestCompany", Locale.ENGLISH);
+
+        // Then
+        assertThat(refused).containsOnlyKeys(0, 1);
+        assertThat(refused.get(0).getMessage()).contains("554");
+        assertThat(sink.delivered()).isZero();
+    }
+}
@@ -2,6 +2,7 @@ package com.atdev.paystubs_api.integration;
 
 import com.atdev.paystubs_api.email.EmailService;
 import com.atdev.paystubs_api.payment.Country;
+import com.jayway.jsonpath.JsonPath;
 import org.junit.jupiter.api.BeforeEach;
 import org.junit.jupiter.api.Test;
 import org.springframework.beans.factory.annotation.Autowired;
@@ -9,12 +10,23 @@ import org.springframework.beans.factory.annotation.Value;
 import org.springframework.boot.test.autoconfigure.web.servlet.AutoConfigureMockMvc;
 import org.springframework.boot.test.context.SpringBootTest;
 import org.springframework.boot.test.mock.mockito.MockBean;
+import org.springframework.http.MediaType;
 import org.springframework.mock.web.MockMultipartFile;
 import org.springframework.test.web.servlet.MockMvc;
+import org.springframework.test.web.servlet.MvcResult;
+import org.springframework.test.web.servlet.RequestBuilder;
+import org.springframework.test.web.servlet.ResultActions;
 
+import java.io.ByteArrayInputStream;
+import java.util.zip.ZipInputStream;
+
+import static org.assertj.core.api.Assertions.assertThat;
 import static org.mockito.ArgumentMatchers.any;
 import static org.mockito.Mockito.*;
+import static org.springframework.test.web.servlet.request.MockMvcRequestBuilders.asyncDispatch;
+import static org.springframework.test.web.servlet.request.MockMvcRequestBuilders.get;
 import static org.springframework.test.web.servlet.request.MockMvcRequestBuilders.multipart;
+import static org.springframework.test.web.servlet.request.MockMvcRequestBuilders.post;
 import static org.springframework.test.web.servlet.result.MockMvcResultMatchers.*;
 
 /**
@@ -59,9 +71,9 @@ class PaymentControllerIntegrationTest {
     @Test
     void shouldProcessPaymentWithValidCredentials() throws Exception {
         // Mock email service to prevent actual email sending
-        doNothing().when(emailService).sendEmail(any(), any(), any(), any());
+        doNothing().when(emailService).sendAttachment(any(), any(), any(), any());
 
-        mockMvc.perform(multipart("/process")
+        process(multipart("/process")
                         .file(testCsvFile)
                         .param("country", "do")
                         .param("credentials", validCredentials)
@@ -73,7 +85,7 @@ class PaymentControllerIntegrationTest {
                 .andExpect(jsonPath("$.sent[0].email").value("john@example.com"))
                 .andExpect(jsonPath("$.sent[0].full_name").value("John Doe"));
 
-        verify(emailService, times(1)).sendEmail(any(), eq("TestCompany"), any(), any());
+        verify(emailService, times(1)).sendAttachment(any(), eq("TestCompany"), any(), any());
     }
 
     @Test
@@ -85,7 +97,7 @@ class PaymentControllerIntegrationTest {
                         .param("company", "TestCompany"))
                 .andExpect(status().isForbidden());
 
-        verify(emailService, never()).sendEmail(any(), any(), any(), any());
+        verify(emailService, never()).sendAttachment(any(), any(), any(), any());
     }
 
     @Test
@@ -96,12 +108,12 @@ class PaymentControllerIntegrationTest {
                         .param("company", "TestCompany"))
                 .andExpect(status().isForbidden());
 
-        verify(emailService, never()).sendEmail(any(), any(), any(), any());
+        verify(emailService, never()).sendAttachment(any(), any(), any(), any());
     }
 
     @Test
     void shouldReturnBadRequestForInvalidCountry() throws Exception {
-        mockMvc.perform(multipart("/process")
+        process(multipart("/process")
                         .file(testCsvFile)
                         .param("country", "INVALID")
                         .param("credentials", validCredentials)
@@ -109,15 +121,15 @@ class PaymentControllerIntegrationTest {
                 .andExpect(status().isBadRequest())
                 .andExpect(jsonPath("$.error").value("Invalid country option."));
 
-        verify(emailService, never()).sendEmail(any(), any(), any(), any());
+        verify(emailService, never()).sendAttachment(any(), any(), any(), any());
     }
 
     @Test
     void shouldProcessPaymentForUSACountry() throws Exception {
         // Mock email service to prevent actual email sending
-        doNothing().when(emailService).sendEmail(any(), any(), any(), any());
+        doNothing().when(emailService).sendAttachment(any(), any(), any(), any());
 
-        mockMvc.perform(multipart("/process")
+        process(multipart("/process")
                         .file(testCsvFile)
                         .param("country", "USA")
                         .param("credentials", validCredentials)
@@ -125,13 +137,13 @@ class PaymentControllerIntegrationTest {
                 .andExpect(status().isOk())
                 .andExpect(jsonPath("$.country").value("US"));
 
-        verify(emailService, times(1)).sendEmail(any(), any(), any(), any());
+        verify(emailService, times(1)).sendAttachment(any(), any(), any(), any());
     }
 
     @Test
     void shouldProcessMultipleEmployees() throws Exception {
         // Mock email service to prevent actual email sending
-        doNothing().when(emailService).sendEmail(any(), any(), any(), any());
+        doNothing().when(emailService).sendAttachment(any(), any(), any(), any());
 
         String csvWithMultipleEmployees = """
                 full_name,email,position,health_discount_amount,social_discount_amount,taxes_discount_amount,other_discount_amount,gross_salary,gross_payment,net_payment,period
@@ -147,7 +159,7 @@ class PaymentControllerIntegrationTest {
                 csvWithMultipleEmployees.getBytes()
         );
 
-        mockMvc.perform(multipart("/process")
+        process(multipart("/process")
                         .file(multiEmployeeCsv)
                         .param("country", "do")
                         .param("credentials", validCredentials)
@@ -159,7 +171,7 @@ class PaymentControllerIntegrationTest {
                 .andExpect(jsonPath("$.sent[1].email").value("jane@example.com"))
                 .andExpect(jsonPath("$.sent[2].email").value("bob@example.com"));
 
-        verify(emailService, times(3)).sendEmail(any(), any(), any(), any());
+        verify(emailService, times(3)).sendAttachment(any(), any(), any(), any());
     }
 
     @Test
@@ -175,7 +187,7 @@ class PaymentControllerIntegrationTest {
                 emptyCsv.getBytes()
         );
 
-        mockMvc.perform(multipart("/process")
+        process(multipart("/process")
                         .file(emptyCsvFile)
                         .param("country", "do")
                         .param("credentials", validCredentials)
@@ -184,19 +196,243 @@ class PaymentControllerIntegrationTest {
                 .andExpect(jsonPath("$.sent").isArray())
                 .andExpect(jsonPath("$.sent.length()").value(0));
 
-        verify(emailService, never()).sendEmail(any(), any(), any(), any());
+        verify(emailService, never()).sendAttachment(any(), any(), any(), any());
     }
 
     @Test
     void shouldUseDefaultCountryWhenNotProvided() throws Exception {
         // Mock email service to prevent actual email sending
-        doNothing().when(emailService).sendEmail(any(), any(), any(), any());
+        doNothing().when(emailService).sendAttachment(any(), any(), any(), any());
 
-        mockMvc.perform(multipart("/process")
+        process(multipart("/process")
                         .file(testCsvFile)
                         .param("credentials", validCredentials)
                         .param("company", "TestCompany"))
                 .andExpect(status().isOk())
                 .andExpect(jsonPath("$.country").value("DO"));
     }
+
+    @Test
+    void shouldProcessAsynchronouslyAndReportProgress() throws Exception {
+        // Mock email service to prevent actual email sending
+        doNothing().when(emailService).sendAttachment(any(), any(), any(), any());
+
+        MvcResult accepted = process(multipart("/process")
+                        .file(testCsvFile)
+                        .param("country", "do")
+                        .param("credentials", validCredentials)
+                        .param("company", "TestCompany")
+                        .param("async", "true"))
+                .andExpect(status().isAccepted())
+                .andExpect(header().exists("Location"))
+                .andExpect(jsonPath("$.job_id").isNotEmpty())
+                .andExpect(jsonPath("$.total").value(1))
+                .andReturn();
+
+        String location = accepted.getResponse().getHeader("Location");
+        String status = "";
+        for (int i = 0; i < 50 && !status.equals("COMPLETED"); i++) {
+            Thread.sleep(100);
+            String body = mockMvc.perform(get(location).param("credentials", validCredentials))
+                    .andExpect(status().isOk())
+                    .andReturn().getResponse().getContentAsString();
+            status = JsonPath.read(body, "$.status");
+        }
+        assertThat(status).isEqualTo("COMPLETED");
+
+        mockMvc.perform(get(location).param("credentials", validCredentials))
+                .andExpect(jsonPath("$.sent_count").value(1))
+                .andExpect(jsonPath("$.sent[0].email").value("john@example.com"));
+        verify(emailService, times(1)).sendAttachment(any(), eq("TestCompany"), any(), any());
+    }
+
+    @Test
+    void shouldReturnNotFoundForUnknownJob() throws Exception {
+        mockMvc.perform(get("/jobs/unknown").param("credentials", validCredentials))
+                .andExpect(status().isNotFound())
+                .andExpect(jsonPath("$.error").value("Unknown job id."));
+    }
+
+    @Test
+    void shouldStreamNdjsonWhenRequestedByAcceptHeader() throws Exception {
+        // Mock email service to prevent actual email sending
+        doNothing().when(emailService).sendAttachment(any(), any(), any(), any());
+
+        MvcResult started = mockMvc.perform(multipart("/process")
+                        .file(testCsvFile)
+                        .param("country", "do")
+                        .param("credentials", validCredentials)
+                        .param("company", "TestCompany")
+                        .accept(MediaType.APPLICATION_NDJSON))
+                .andExpect(request().asyncStarted())
+                .andReturn();
+
+        String body = mockMvc.perform(asyncDispatch(started))
+                .andExpect(status().isOk())
+                .andExpect(content().contentTypeCompatibleWith(MediaType.APPLICATION_NDJSON))
+                .andReturn().getResponse().getContentAsString();
+
+        String[] lines = body.split("\n");
+        assertThat(lines).hasSize(2);
+        assertThat((String) JsonPath.read(lines[0], "$.sent.email")).isEqualTo("john@example.com");
+        assertThat((Integer) JsonPath.read(lines[1], "$.summary.sent_count")).isEqualTo(1);
+    }
+
+    @Test
+    void shouldRejectSendAtOnStreamedRequestWithoutSending() throws Exception {
+        MvcResult started = mockMvc.perform(multipart("/process")
+                        .file(testCsvFile)
+                        .param("country", "do")
+                        .param("credentials", validCredentials)
+                        .param("company", "TestCompany")
+                        .param("send_at", "2999-01-01T09:00:00Z")
+                        .accept(MediaType.APPLICATION_NDJSON))
+                .andExpect(request().asyncStarted())
+                .andReturn();
+
+        mockMvc.perform(asyncDispatch(started))
+                .andExpect(status().isBadRequest())
+                .andExpect(jsonPath("$.error").value("send_at cannot be used with a streamed response."));
+
+        verifyNoInteractions(emailService);
+    }
+
+    @Test
+    void shouldPreviewPdfWithoutSendingAndHonorEtag() throws Exception {
+        String json = """
+                {"full_name":"John Doe","email":"john@example.com","position":"Engineer",
+                 "gross_salary":5000.0,"gross_payment":4500.0,"net_payment":3850.0,"period":"2024-01"}
+                """;
+
+        MvcResult first = mockMvc.perform(post("/preview")
+                        .param("country", "do")
+                        .param("credentials", validCredentials)
+                        .param("company", "TestCompany")
+                        .contentType(MediaType.APPLICATION_JSON)
+                        .content(json))
+                .andExpect(status().isOk())
+                .andExpect(content().contentType(MediaType.APPLICATION_PDF))
+                .andExpect(header().exists("ETag"))
+                .andReturn();
+        assertThat(first.getResponse().getContentAsByteArray()).startsWith("%PDF".getBytes());
+
+        mockMvc.perform(post("/preview")
+                        .param("country", "do")
+                        .param("credentials", validCredentials)
+                        .param("company", "TestCompany")
+                        .header("If-None-Match", first.getResponse().getHeader("ETag"))
+                        .contentType(MediaType.APPLICATION_JSON)
+                        .content(json))
+                .andExpect(status().isNotModified());
+
+        verifyNoInteractions(emailService);
+    }
+
+    @Test
+    void shouldDownloadPaystubsAsZipWithoutSending() throws Exception {
+        MvcResult started = mockMvc.perform(multipart("/archive")
+                        .file(testCsvFile)
+                        .param("country", "do")
+                        .param("credentials", validCredentials)
+                        .param("company", "TestCompany"))
+                .andExpect(request().asyncStarted())
+                .andReturn();
+
+        byte[] zip = mockMvc.perform(asyncDispatch(started))
+                .andExpect(status().isOk())
+                .andExpect(content().contentType("application/zip"))
+                .andReturn().getResponse().getContentAsByteArray();
+
+        try (ZipInputStream in = new ZipInputStream(new ByteArrayInputStream(zip))) {
+            assertThat(in.getNextEntry().getName()).isEqualTo("paystub-John_Doe-2024-01.pdf");
+            assertThat(in.readAllBytes()).startsWith("%PDF".getBytes());
+            assertThat(in.getNextEntry()).isNull();
+        }
+        verifyNoInteractions(emailService);
+    }
+
+    @Test
+    void shouldNotResendBatchForRepeatedIdempotencyKey() throws Exception {
+        doNothing().when(emailService).sendAttachment(any(), any(), any(), any());
+
+        for (int attempt = 0; attempt < 2; attempt++) {
+            process(multipart("/process")
+                            .file(testCsvFile)
+                            .param("country", "do")
+                            .param("credentials", validCredentials)
+                            .param("company", "TestCompany")
+                            .header("Idempotency-Key", "integration-key-1"))
+                    .andExpect(status().isOk())
+                    .andExpect(jsonPath("$.sent[0].email").value("john@example.com"));
+        }
+
+        verify(emailService, times(1)).sendAttachment(any(), any(), any(), any());
+    }
+
+    @Test
+    void shouldReturnSummaryWithoutSentEntries() throws Exception {
+        doNothing().when(emailService).sendAttachment(any(), any(), any(), any());
+
+        process(multipart("/process")
+                        .file(testCsvFile)
+                        .param("country", "do")
+                        .param("credentials", validCredentials)
+                        .param("company", "TestCompany")
+                        .param("summary", "true"))
+                .andExpect(status().isOk())
+                .andExpect(jsonPath("$.total").value(1))
+                .andExpect(jsonPath("$.sent_count").value(1))
+                .andExpect(jsonPath("$.duration_ms").isNumber())
+                .andExpect(jsonPath("$.failed").isEmpty())
+                .andExpect(jsonPath("$.sent").doesNotExist());
+    }
+
+    @Test
+    void shouldReportFailedRowAndSendOnlyItOnRetry() throws Exception {
+        doThrow(new RuntimeException("554 Transaction failed")).doNothing()
+                .when(emailService).sendAttachment(any(), any(), any(), any());
+
+        MvcResult first = process(multipart("/process")
+                        .file(testCsvFile)
+                        .param("country", "do")
+                        .param("credentials", validCredentials)
+                        .param("company", "TestCompany"))
+                .andExpect(status().isOk())
+                .andExpect(jsonPath("$.sent").isEmpty())
+                .andExpect(jsonPath("$.failed[0].row").value(0))
+                .andExpect(jsonPath("$.failed[0].reason").value("554 Transaction failed"))
+                .andExpect(jsonPath("$.retry_id").isString())
+                .andReturn();
+        String retryId = JsonPath.read(first.getResponse().getContentAsString(), "$.retry_id");
+
+        mockMvc.perform(post("/process/" + retryId + "/retry")
+                        .param("credentials", validCredentials))
+                .andExpect(status().isOk())
+                .andExpect(jsonPath("$.company").value("TestCompany"))
+                .andExpect(jsonPath("$.sent[0].row").value(0))
+                .andExpect(jsonPath("$.failed").isEmpty())
+                .andExpect(jsonPath("$.retry_id").doesNotExist());
+
+        mockMvc.perform(post("/process/" + retryId + "/retry")
+                        .param("credentials", validCredentials))
+                .andExpect(status().isNotFound());
+        verify(emailService, times(2)).sendAttachment(any(), any(), any(), any());
+    }
+
+    @Test
+    void shouldExposeAdmissionStateForMonitoring() throws Exception {
+        mockMvc.perform(get("/actuator/admission")
+                        .param("credentials", validCredentials))
+                .andExpect(status().isOk())
+                .andExpect(jsonPath("$.running").value(0))
+                .andExpect(jsonPath("$.max_concurrent").isNumber());
+    }
+
+    // a JSON /process answers asynchronously too, so a client that goes away can stop its batch
+    private ResultActions process(RequestBuilder builder) throws Exception {
+        MvcResult started = mockMvc.perform(builder)
+                .andExpect(request().asyncStarted())
+                .andReturn();
+        return mockMvc.perform(asyncDispatch(started));
+    }
 }
@@ -0,0 +1,107 @@
+package com.atdev.paystubs_api.job;
+
+import com.atdev.paystubs_api.job.dto.JobStatusResponse;
+import com.atdev.paystubs_api.payment.Country;
+import com.atdev.paystubs_api.payment.BatchResult;
+import com.atdev.paystubs_api.payment.FailedPaystub;
+import com.atdev.paystubs_api.payment.SentPaystub;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.extension.ExtendWith;
+import org.mockito.Mock;
+import org.mockito.junit.jupiter.MockitoExtension;
+import org.springframework.http.HttpStatus;
+import org.springframework.http.ResponseEntity;
+
+import java.time.Instant;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.tuple;
+import static org.mockito.Mockito.when;
+
+@ExtendWith(MockitoExtension.class)
+class JobControllerTest {
+
+    @Mock
+    private JobService jobService;
+
+    private JobController jobController;
+
+    @BeforeEach
+    void setUp() {
+        jobController = new JobController(jobService);
+    }
+
+    @Test
+    void shouldReturnJobProgress() {
+        // Given
+        PayrollJob job = new PayrollJob("job-1", "TestCompany", Country.US, 2);
+        job.start();
+        job.recordSent(new SentPaystub(0, "john@example.com", "John Doe", Instant.now()));
+        when(jobService.find("job-1")).thenReturn(Optional.of(job));
+
+        // When
+        ResponseEntity<Object> response = jobController.status("job-1", false);
+
+        // Then
+        assertThat(response.getStatusCode()).isEqualTo(HttpStatus.OK);
+        JobStatusResponse body = (JobStatusResponse) response.getBody();
+        assertThat(body.getStatus()).isEqualTo(JobStatus.RUNNING);
+        assertThat(body.getTotal()).isEqualTo(2);
+        assertThat(body.getSent_count()).isEqualTo(1);
+        assertThat(body.getCompleted_at()).isNull();
+    }
+
+    @Test
+    void shouldReturnCompletedJobResults() {
+        // Given
+        PayrollJob job = new PayrollJob("job-1", "TestCompany", Country.US, 1);
+        job.complete(new BatchResult(List.of(new SentPaystub(0, "john@example.com", "John Doe", Instant.now())), List.of(), null));
+        when(jobService.find("job-1")).thenReturn(Optional.of(job));
+
+        // When
+        JobStatusResponse body = (JobStatusResponse) jobController.status("job-1", false).getBody();
+
+        // Then
+        assertThat(body.getStatus()).isEqualTo(JobStatus.COMPLETED);
+        assertThat(body.getSent()).hasSize(1);
+        assertThat(body.getCompleted_at()).isNotNull();
+    }
+
+    @Test
+    void shouldReturnNotFoundForUnknownJob() {
+        // Given
+        when(jobService.find("missing")).thenReturn(Optional.empty());
+
+        // When
+        ResponseEntity<Object> response = jobController.status("missing", false);
+
+        // Then
+        assertThat(response.getStatusCode()).isEqualTo(HttpStatus.NOT_FOUND);
+        assertThat(response.getBody()).isEqualTo(Map.of("error", "Unknown job id."));
+    }
+
+    @Test
+    void shouldLeaveOutSentEntriesInSummaryMode() {
+        // Given
+        PayrollJob job = new PayrollJob("job-1", "TestCompany", Country.US, 2);
+        job.complete(new BatchResult(
+                List.of(new SentPaystub(0, "john@example.com", "John Doe", Instant.now())),
+                List.of(new FailedPaystub(1, "jane@example.com", "Jane Smith", "Mailbox unavailable")),
+                "retry-1"));
+        when(jobService.find("job-1")).thenReturn(Optional.of(job));
+
+        // When
+        JobStatusResponse body = (JobStatusResponse) jobController.status("job-1", true).getBody();
+
+        // Then
+        assertThat(body.getSent_count()).isEqualTo(1);
+        assertThat(body.getSent()).isNull();
+        assertThat(body.getFailed_count()).isEqualTo(1);
+        assertThat(body.getFailed()).extracting(FailedPaystub::row, FailedPaystub::reason)
+                .containsExactly(tuple(1, "Mailbox unavailable"));
+    }
+}
@@ -0,0 +1,351 @@
+package com.atdev.paystubs_api.job;
+
+import com.atdev.paystubs_api.admission.AdmissionRejectedException;
+import com.atdev.paystubs_api.admission.BatchAdmission;
+import com.atdev.paystubs_api.checkpoint.Checkpoint;
+import com.atdev.paystubs_api.checkpoint.CheckpointStore;
+import com.atdev.paystubs_api.checkpoint.ResumableBatch;
+import com.atdev.paystubs_api.payment.Country;
+import com.atdev.paystubs_api.payment.CsvService;
+import com.atdev.paystubs_api.payment.PayrollRecord;
+import com.atdev.paystubs_api.payment.PayrollService;
+import com.atdev.paystubs_api.payment.ProcessOptions;
+import com.atdev.paystubs_api.payment.BatchResult;
+import com.atdev.paystubs_api.payment.FailedPaystub;
+import com.atdev.paystubs_api.payment.SentListener;
+import com.atdev.paystubs_api.payment.SentPaystub;
+import com.atdev.paystubs_api.pipeline.Priority;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.extension.ExtendWith;
+import org.junit.jupiter.api.io.TempDir;
+import org.mockito.ArgumentCaptor;
+import org.mockito.Mock;
+import org.mockito.junit.jupiter.MockitoExtension;
+import org.springframework.mock.web.MockMultipartFile;
+import org.springframework.test.util.ReflectionTestUtils;
+import org.springframework.web.multipart.MultipartFile;
+
+import java.io.Reader;
+import java.io.Writer;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.Duration;
+import java.time.Instant;
+import java.util.List;
+import java.util.Properties;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.mockito.ArgumentMatchers.*;
+import static org.mockito.Mockito.*;
+
+@ExtendWith(MockitoExtension.class)
+class JobServiceTest {
+
+    @Mock
+    private PayrollService payrollService;
+
+    @Mock
+    private CsvService csvService;
+
+    private ExecutorService executor;
+    private final BatchAdmission admission = new BatchAdmission(4, 20000, 16, Duration.ofSeconds(1), Duration.ofSeconds(30));
+    @TempDir
+    Path checkpointDir;
+
+    private CheckpointStore checkpoints;
+    private final TimingWheel wheel = new TimingWheel(Duration.ofMillis(10), 64);
+    private Path scheduleDir;
+    private JobService jobService;
+    private MultipartFile testCsvFile;
+    private List<PayrollRecord> testRecords;
+
+    @BeforeEach
+    void setUp() {
+        checkpoints = new CheckpointStore(true, checkpointDir, 1, 1);
+        executor = Executors.newSingleThreadExecutor();
+        scheduleDir = checkpointDir.resolve("scheduled");
+        jobService = new JobService(payrollService, csvService, admission, checkpoints, executor, Duration.ofHours(1), wheel, scheduleDir);
+        testCsvFile = new MockMultipartFile("file", "payroll.csv", "text/csv", "test,data".getBytes());
+        testRecords = List.of(new PayrollRecord(
+                "John Doe", "john@example.com", "Engineer",
+                100.0, 200.0, 300.0, 50.0, 5000.0, 4500.0, 3850.0, "2024-01"
+        ));
+    }
+
+    @Test
+    void shouldParseOnSubmitAndProcessInBackground() throws Exception {
+        // Given
+        SentPaystub entry = new SentPaystub(0, "john@example.com", "John Doe", Instant.now());
+        when(csvService.parse(testCsvFile)).thenReturn(testRecords);
+        when(payrollService.processRows(eq(Country.DO), eq("TestCompany"), eq(testRecords), any(ProcessOptions.class), any()))
+                .thenAnswer(inv -> {
+                    inv.getArgument(4, SentListener.class).onSent(0, entry);
+                    return new BatchResult(List.of(entry), List.of(), null);
+                });
+
+        // When
+        PayrollJob job = jobService.submit(Country.DO, "TestCompany", testCsvFile, ProcessOptions.defaults());
+        awaitJobs();
+
+        // Then
+        assertThat(job.getTotal()).isEqualTo(1);
+        assertThat(job.getStatus()).isEqualTo(JobStatus.COMPLETED);
+        assertThat(job.getSent()).containsExactly(entry);
+        assertThat(job.getCompletedAt()).isNotNull();
+        assertThat(jobService.find(job.getId())).contains(job);
+    }
+
+    @Test
+    void shouldKeepFailedRowsOfCompletedJob() throws Exception {
+        // Given
+        FailedPaystub failed = new FailedPaystub(0, "john@example.com", "John Doe", "Mailbox unavailable");
+        when(csvService.parse(testCsvFile)).thenReturn(testRecords);
+        when(payrollService.processRows(any(), anyString(), anyList(), any(), any()))
+                .thenAnswer(inv -> {
+                    inv.getArgument(4, SentListener.class).onFailed(0, failed);
+                    return new BatchResult(List.of(), List.of(failed), "retry-1");
+                });
+
+        // When
+        PayrollJob job = jobService.submit(Country.DO, "TestCompany", testCsvFile, ProcessOptions.defaults());
+        awaitJobs();
+
+        // Then
+        assertThat(job.getStatus()).isEqualTo(JobStatus.COMPLETED);
+        assertThat(job.getFailed()).containsExactly(failed);
+        assertThat(job.getRetryId()).isEqualTo("retry-1");
+    }
+
+    @Test
+    void shouldMarkJobFailedWhenProcessingThrows() throws Exception {
+        // Given
+        when(csvService.parse(testCsvFile)).thenReturn(testRecords);
+        when(payrollService.processRows(any(), anyString(), anyList(), any(), any()))
+                .thenThrow(new RuntimeException("Mail server error"));
+
+        // When
+        PayrollJob job = jobService.submit(Country.US, "TestCompany", testCsvFile, ProcessOptions.defaults());
+        awaitJobs();
+
+        // Then
+        assertThat(job.getStatus()).isEqualTo(JobStatus.FAILED);
+        assertThat(job.getError()).isEqualTo("Mail server error");
+    }
+
+    @Test
+    void shouldPropagateParseErrorsWithoutCreatingJob() throws Exception {
+        // Given
+        when(csvService.parse(testCsvFile)).thenThrow(new IllegalArgumentException("bad csv"));
+
+        // When/Then
+        assertThrows(IllegalArgumentException.class, () ->
+                jobService.submit(Country.US, "TestCompany", testCsvFile, ProcessOptions.defaults())
+        );
+        verifyNoInteractions(payrollService);
+    }
+
+    @Test
+    void shouldForgetJobRejectedByFullQueue() throws Exception {
+        // Given
+        ExecutorService full = mock(ExecutorService.class);
+        doThrow(new RejectedExecutionException("full")).when(full).execute(any());
+        jobService = new JobService(payrollService, csvService, admission, checkpoints, full, Duration.ofHours(1), wheel, scheduleDir);
+        when(csvService.parse(testCsvFile)).thenReturn(testRecords);
+
+        // When/Then
+        assertThrows(RejectedExecutionException.class, () ->
+                jobService.submit(Country.US, "TestCompany", testCsvFile, ProcessOptions.defaults())
+        );
+    }
+
+    @Test
+    void shouldRejectBeforeParsingWhenNoAdmissionSlotFreesUp() throws Exception {
+        // Given
+        BatchAdmission busy = new BatchAdmission(1, 100, 0, Duration.ofMillis(10), Duration.ofSeconds(30));
+        jobService = new JobService(payrollService, csvService, busy, checkpoints, executor, Duration.ofHours(1), wheel, scheduleDir);
+        BatchAdmission.Permit running = busy.admit(1);
+
+        // When/Then
+        assertThrows(AdmissionRejectedException.class, () ->
+                jobService.submit(Country.US, "TestCompany", testCsvFile, ProcessOptions.defaults())
+        );
+        verifyNoInteractions(csvService, payrollService);
+        running.close();
+    }
+
+    @Test
+    void shouldEvictFinishedJobsAfterRetention() throws Exception {
+        // Given
+        jobService = new JobService(payrollService, csvService, admission, checkpoints, executor, Duration.ZERO, wheel, scheduleDir);
+        when(csvService.parse(testCsvFile)).thenReturn(testRecords);
+        when(payrollService.processRows(any(), anyString(), anyList(), any(), any())).thenReturn(new BatchResult(List.of(), List.of(), null));
+        PayrollJob first = jobService.submit(Country.US, "TestCompany", testCsvFile, ProcessOptions.defaults());
+        executor.submit(() -> {}).get();
+
+        // When
+        Thread.sleep(5);
+        jobService.submit(Country.US, "TestCompany", testCsvFile, ProcessOptions.defaults());
+
+        // Then
+        assertThat(jobService.find(first.getId())).isEmpty();
+    }
+
+    @Test
+    void shouldResumeInterruptedBatchAsJob() throws Exception {
+        // Given
+        List<PayrollRecord> rows = List.of(testRecords.get(0), record("Jane Smith", "jane@example.com"));
+        Checkpoint interrupted = checkpoints.begin(Country.DO, "TestCompany", ProcessOptions.defaults(), rows);
+        interrupted.tracking((row, entry) -> {}).onSent(0, new SentPaystub(0, "john@example.com", "John Doe", Instant.now()));
+        interrupted.release();
+        when(payrollService.resume(any(), any())).thenReturn(new BatchResult(List.of(), List.of(), null));
+
+        // When
+        PayrollJob job = jobService.resume(interrupted.id()).orElseThrow();
+        awaitJobs();
+
+        // Then
+        assertThat(job.getId()).isEqualTo(interrupted.id());
+        assertThat(job.getTotal()).isEqualTo(1);
+        assertThat(job.getAlreadySent()).isEqualTo(1);
+        assertThat(job.getStatus()).isEqualTo(JobStatus.COMPLETED);
+        ArgumentCaptor<ResumableBatch> batch = ArgumentCaptor.forClass(ResumableBatch.class);
+        verify(payrollService).resume(batch.capture(), any());
+        assertThat(batch.getValue().rows()).containsExactly(1);
+        assertThat(batch.getValue().company()).isEqualTo("TestCompany");
+        assertThat(jobService.resume(interrupted.id())).isEmpty();
+    }
+
+    @Test
+    void shouldResumePendingBatchesAtStartup() throws Exception {
+        // Given
+        ReflectionTestUtils.setField(jobService, "resumeOnStartup", true);
+        Checkpoint interrupted = checkpoints.begin(Country.DO, "TestCompany", ProcessOptions.defaults(), testRecords);
+        interrupted.release();
+        when(payrollService.resume(any(), any())).thenReturn(new BatchResult(List.of(), List.of(), null));
+
+        // When
+        jobService.resumePending();
+        awaitJobs();
+
+        // Then
+        assertThat(jobService.find(interrupted.id())).isPresent();
+        verify(payrollService).resume(any(), any());
+    }
+
+    @Test
+    void shouldRenderScheduledJobNowAndSendItAtSendTime() throws Exception {
+        // Given
+        Instant sendAt = Instant.now().plusMillis(300);
+        when(csvService.parse(testCsvFile)).thenReturn(testRecords);
+        when(payrollService.processPrerendered(eq(Country.DO), eq("TestCompany"), eq(testRecords), any(ProcessOptions.class),
+                any(Path.class), any()))
+                .thenReturn(new BatchResult(List.of(), List.of(), null));
+
+        // When
+        PayrollJob job = jobService.submit(Country.DO, "TestCompany", testCsvFile, ProcessOptions.builder().sendAt(sendAt).build());
+        awaitJobs();
+
+        // Then
+        assertThat(job.getStatus()).isEqualTo(JobStatus.SCHEDULED);
+        assertThat(job.getSendAt()).isEqualTo(sendAt);
+        verify(payrollService).prerender(Country.DO, "TestCompany", testRecords, scheduleDir.resolve(job.getId()));
+        awaitStatus(job, JobStatus.COMPLETED);
+        assertThat(Instant.now()).isAfterOrEqualTo(sendAt);
+        verify(payrollService).processPrerendered(eq(Country.DO), eq("TestCompany"), eq(testRecords), any(ProcessOptions.class),
+                eq(scheduleDir.resolve(job.getId())), any());
+        verify(payrollService, never()).processRows(any(), any(), any(), any(), any());
+    }
+
+    @Test
+    void shouldRestoreScheduledJobAfterRestartAndSendItWhenDue() throws Exception {
+        // Given
+        Instant sendAt = Instant.now().plusSeconds(3600);
+        when(csvService.parse(testCsvFile)).thenReturn(testRecords);
+        ProcessOptions options = ProcessOptions.builder().sendAt(sendAt).priority(Priority.HIGH).timeout(Duration.ofSeconds(30)).build();
+        PayrollJob submitted = jobService.submit(Country.DO, "TestCompany", testCsvFile, options);
+        awaitJobs();
+        Path saved = scheduleDir.resolve(submitted.getId());
+        Properties schedule = new Properties();
+        try (Reader in = Files.newBufferedReader(saved.resolve(ScheduleStore.SCHEDULE))) {
+            schedule.load(in);
+        }
+        schedule.setProperty("send_at", Instant.now().minusSeconds(60).toString());
+        try (Writer out = Files.newBufferedWriter(saved.resolve(ScheduleStore.SCHEDULE))) {
+            schedule.store(out, null);
+        }
+        when(payrollService.processPrerendered(eq(Country.DO), eq("TestCompany"), eq(testRecords), any(ProcessOptions.class),
+                eq(saved), any()))
+                .thenReturn(new BatchResult(List.of(), List.of(), null));
+        JobService restarted = new JobService(payrollService, csvService, admission, checkpoints, executor, Duration.ofHours(1),
+                new TimingWheel(Duration.ofMillis(10), 64), scheduleDir);
+
+        // When
+        restarted.restoreSchedules();
+
+        // Then
+        PayrollJob restored = restarted.find(submitted.getId()).orElseThrow();
+        assertThat(restored.getTotal()).isEqualTo(1);
+        awaitStatus(restored, JobStatus.COMPLETED);
+        ArgumentCaptor<ProcessOptions> sentWith = ArgumentCaptor.forClass(ProcessOptions.class);
+        verify(payrollService).processPrerendered(eq(Country.DO), eq("TestCompany"), eq(testRecords), sentWith.capture(),
+                eq(saved), any());
+        assertThat(sentWith.getValue().priority()).isEqualTo(Priority.HIGH);
+        assertThat(sentWith.getValue().timeout()).isEqualTo(Duration.ofSeconds(30));
+        awaitDeleted(saved);
+    }
+
+    @Test
+    void shouldDeleteScheduledJobsSavedIncompletely() throws Exception {
+        // Given
+        Files.createDirectories(scheduleDir.resolve("stale"));
+        Files.write(scheduleDir.resolve("stale").resolve("0.pdf"), new byte[]{1});
+
+        // When
+        jobService.restoreSchedules();
+
+        // Then
+        assertThat(scheduleDir.resolve("stale")).doesNotExist();
+        assertThat(jobService.find("stale")).isEmpty();
+    }
+
+    @Test
+    void shouldReturnEmptyForUnknownJob() {
+        assertThat(jobService.find("missing")).isEmpty();
+    }
+
+    private PayrollRecord record(String name, String email) {
+        return new PayrollRecord(name, email, "Engineer",
+                100.0, 200.0, 300.0, 50.0, 5000.0, 4500.0, 3850.0, "2024-01");
+    }
+
+    private static void awaitStatus(PayrollJob job, JobStatus status) throws InterruptedException {
+        long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(5);
+        while (job.getStatus() != status) {
+            if (System.nanoTime() > deadline) {
+                throw new AssertionError("job is " + job.getStatus() + " after 5s");
+            }
+            Thread.sleep(10);
+        }
+    }
+
+    private static void awaitDeleted(Path dir) throws InterruptedException {
+        long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(5);
+        while (Files.exists(dir)) {
+            if (System.nanoTime() > deadline) {
+                throw new AssertionError(dir + " still exists after 5s");
+            }
+            Thread.sleep(10);
+        }
+    }
+
+    private void awaitJobs() throws InterruptedException {
+        executor.shutdown();
+        assertThat(executor.awaitTermination(5, TimeUnit.SECONDS)).isTrue();
+    }
+}
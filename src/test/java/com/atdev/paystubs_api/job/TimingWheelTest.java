@@ -0,0 +1,69 @@
+package com.atdev.paystubs_api.job;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+
+import java.time.Clock;
+import java.time.Duration;
+import java.time.Instant;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+class TimingWheelTest {
+
+    private final TimingWheel wheel = new TimingWheel(Duration.ofMillis(10), 8, Clock.systemUTC());
+
+    @AfterEach
+    void tearDown() {
+        wheel.close();
+    }
+
+    @Test
+    void shouldRunTaskNotBeforeItsTime() throws Exception {
+        // Given: more than one turn of the wheel away
+        Instant at = Instant.now().plusMillis(250);
+        CountDownLatch ran = new CountDownLatch(1);
+        Instant[] ranAt = new Instant[1];
+
+        // When
+        wheel.schedule(at, () -> {
+            ranAt[0] = Instant.now();
+            ran.countDown();
+        });
+
+        // Then
+        assertThat(wheel.pending()).isEqualTo(1);
+        assertThat(ran.await(5, TimeUnit.SECONDS)).isTrue();
+        assertThat(ranAt[0]).isAfterOrEqualTo(at);
+        assertThat(wheel.pending()).isZero();
+    }
+
+    @Test
+    void shouldRunPastTaskOnNextTick() throws Exception {
+        // Given
+        CountDownLatch ran = new CountDownLatch(1);
+
+        // When
+        wheel.schedule(Instant.now().minusSeconds(60), ran::countDown);
+
+        // Then
+        assertThat(ran.await(1, TimeUnit.SECONDS)).isTrue();
+    }
+
+    @Test
+    void shouldKeepTickingAfterTaskFails() throws Exception {
+        // Given
+        CountDownLatch ran = new CountDownLatch(1);
+        wheel.schedule(Instant.now(), () -> {
+            throw new IllegalStateException("boom");
+        });
+
+        // When
+        wheel.schedule(Instant.now().plusMillis(50), ran::countDown);
+
+        // Then
+        assertThat(ran.await(5, TimeUnit.SECONDS)).isTrue();
+    }
+}
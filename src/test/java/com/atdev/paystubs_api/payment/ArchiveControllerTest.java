@@ -0,0 +1,131 @@
+package com.atdev.paystubs_api.payment;
+
+import com.atdev.paystubs_api.admission.BatchAdmission;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.extension.ExtendWith;
+import org.mockito.Mock;
+import org.mockito.junit.jupiter.MockitoExtension;
+import org.springframework.core.task.TaskRejectedException;
+import org.springframework.http.HttpStatus;
+import org.springframework.http.ResponseEntity;
+import org.springframework.mock.web.MockHttpServletRequest;
+import org.springframework.mock.web.MockHttpServletResponse;
+import org.springframework.mock.web.MockMultipartFile;
+import org.springframework.web.context.request.NativeWebRequest;
+import org.springframework.web.context.request.ServletWebRequest;
+import org.springframework.web.context.request.async.StandardServletAsyncWebRequest;
+import org.springframework.web.context.request.async.WebAsyncManager;
+import org.springframework.web.context.request.async.WebAsyncUtils;
+import org.springframework.web.multipart.MultipartFile;
+import org.springframework.web.servlet.mvc.method.annotation.StreamingResponseBody;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.time.Duration;
+import java.util.List;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.mockito.ArgumentMatchers.*;
+import static org.mockito.Mockito.*;
+
+@ExtendWith(MockitoExtension.class)
+class ArchiveControllerTest {
+
+    @Mock
+    private CsvService csvService;
+
+    @Mock
+    private ArchiveService archiveService;
+
+    private BatchAdmission admission;
+    private MockHttpServletRequest servletRequest;
+    private MockHttpServletResponse servletResponse;
+    private NativeWebRequest request;
+
+    private ArchiveController controller;
+    private MultipartFile testCsvFile;
+    private List<PayrollRecord> testRecords;
+
+    @BeforeEach
+    void setUp() {
+        admission = new BatchAdmission(4, 20000, 16, Duration.ofSeconds(1), Duration.ofSeconds(30));
+        servletRequest = new MockHttpServletRequest();
+        servletRequest.setAsyncSupported(true);
+        servletResponse = new MockHttpServletResponse();
+        request = new ServletWebRequest(servletRequest, servletResponse);
+        controller = new ArchiveController(csvService, archiveService, admission);
+        testCsvFile = new MockMultipartFile("file", "payroll.csv", "text/csv", "test,data".getBytes());
+        testRecords = List.of(new PayrollRecord("John Doe", "john@example.com", "Engineer",
+                100.0, 200.0, 300.0, 50.0, 5000.0, 4500.0, 3850.0, "2024-01"));
+    }
+
+    @Test
+    void shouldStreamZipAttachment() throws Exception {
+        // Given
+        when(csvService.parse(testCsvFile)).thenReturn(testRecords);
+
+        // When
+        ResponseEntity<StreamingResponseBody> response = controller.archive("do", "TestCompany", testCsvFile, request);
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        response.getBody().writeTo(out);
+
+        // Then
+        assertThat(response.getStatusCode()).isEqualTo(HttpStatus.OK);
+        assertThat(response.getHeaders().getContentType().toString()).isEqualTo("application/zip");
+        assertThat(response.getHeaders().getContentDisposition().getFilename()).isEqualTo("TestCompany-paystubs.zip");
+        assertThat(response.getHeaders().getContentLength()).isEqualTo(-1);
+        verify(archiveService).writeZip(Country.DO, "TestCompany", testRecords, out);
+    }
+
+    @Test
+    void shouldFailTheResponseWhenRenderingFails() throws Exception {
+        // Given
+        when(csvService.parse(testCsvFile)).thenReturn(testRecords);
+        doThrow(new IllegalStateException("Bad logo")).when(archiveService).writeZip(any(), anyString(), anyList(), any());
+
+        // When
+        StreamingResponseBody body = controller.archive("do", "TestCompany", testCsvFile, request).getBody();
+
+        // Then
+        IOException e = assertThrows(IOException.class, () -> body.writeTo(new ByteArrayOutputStream()));
+        assertThat(e.getCause()).hasMessage("Bad logo");
+    }
+
+    @Test
+    void shouldRejectInvalidCountry() throws Exception {
+        // When
+        ResponseEntity<StreamingResponseBody> response = controller.archive("INVALID", "TestCompany", testCsvFile, request);
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        response.getBody().writeTo(out);
+
+        // Then
+        assertThat(response.getStatusCode()).isEqualTo(HttpStatus.BAD_REQUEST);
+        assertThat(out.toString()).isEqualTo("{\"error\":\"Invalid country option.\"}");
+        verifyNoInteractions(csvService, archiveService);
+    }
+
+    @Test
+    void shouldReleaseAdmissionWhenResponseBodyNeverRuns() throws Exception {
+        // Given: the executor that would run the response body is full
+        when(csvService.parse(testCsvFile)).thenReturn(testRecords);
+        StreamingResponseBody body = controller.archive("do", "TestCompany", testCsvFile, request).getBody();
+        assertThat(admission.state().running()).isEqualTo(1);
+        WebAsyncManager async = WebAsyncUtils.getAsyncManager(request);
+        async.setAsyncWebRequest(new StandardServletAsyncWebRequest(servletRequest, servletResponse));
+        async.setTaskExecutor(task -> {
+            throw new TaskRejectedException("Executor is full");
+        });
+
+        // When
+        async.startCallableProcessing(() -> {
+            body.writeTo(new ByteArrayOutputStream());
+            return null;
+        });
+        servletRequest.getAsyncContext().complete();
+
+        // Then
+        assertThat(admission.state().running()).isZero();
+    }
+}
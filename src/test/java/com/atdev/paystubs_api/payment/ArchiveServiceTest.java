@@ -0,0 +1,197 @@
+package com.atdev.paystubs_api.payment;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.extension.ExtendWith;
+import org.mockito.Mock;
+import org.mockito.junit.jupiter.MockitoExtension;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.stream.IntStream;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipInputStream;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.mockito.ArgumentMatchers.*;
+import static org.mockito.Mockito.*;
+
+@ExtendWith(MockitoExtension.class)
+class ArchiveServiceTest {
+
+    @Mock
+    private PdfService pdfService;
+
+    @Mock
+    private LogoService logoService;
+
+    private ExecutorService renderers;
+    private ArchiveService archiveService;
+
+    @BeforeEach
+    void setUp() {
+        renderers = Executors.newFixedThreadPool(4);
+        archiveService = new ArchiveService(pdfService, logoService, renderers, 3);
+    }
+
+    @AfterEach
+    void tearDown() {
+        renderers.shutdownNow();
+    }
+
+    @Test
+    void shouldWriteEntriesInCsvOrderWhenRendersFinishOutOfOrder() throws Exception {
+        // Given
+        List<PayrollRecord> rows = IntStream.range(0, 10).mapToObj(i -> record("Employee " + i)).toList();
+        when(pdfService.render(any(), anyString(), any(), anyMap())).thenAnswer(inv -> {
+            PayrollRecord rec = inv.getArgument(0);
+            int i = Integer.parseInt(rec.fullName().substring("Employee ".length()));
+            Thread.sleep((10 - i) * 3L);
+            return ("%PDF-" + i).getBytes();
+        });
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+
+        // When
+        archiveService.writeZip(Country.DO, "TestCompany", rows, out);
+
+        // Then
+        List<String> names = new ArrayList<>();
+        try (ZipInputStream zip = new ZipInputStream(new ByteArrayInputStream(out.toByteArray()))) {
+            ZipEntry entry;
+            while ((entry = zip.getNextEntry()) != null) {
+                names.add(entry.getName());
+                assertThat(entry.getMethod()).isEqualTo(ZipEntry.STORED);
+                assertThat(new String(zip.readAllBytes())).isEqualTo("%PDF-" + (names.size() - 1));
+            }
+        }
+        assertThat(names).hasSize(10);
+        assertThat(names.get(0)).isEqualTo("paystub-Employee_0-2024-01.pdf");
+        assertThat(names.get(9)).isEqualTo("paystub-Employee_9-2024-01.pdf");
+    }
+
+    @Test
+    void shouldSuffixDuplicateEntryNames() throws Exception {
+        // Given
+        when(pdfService.render(any(), anyString(), any(), anyMap())).thenReturn("%PDF".getBytes());
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+
+        // When
+        archiveService.writeZip(Country.US, "TestCompany", List.of(record("John Doe"), record("John Doe")), out);
+
+        // Then
+        try (ZipInputStream zip = new ZipInputStream(new ByteArrayInputStream(out.toByteArray()))) {
+            assertThat(zip.getNextEntry().getName()).isEqualTo("paystub-John_Doe-2024-01.pdf");
+            assertThat(zip.getNextEntry().getName()).isEqualTo("paystub-John_Doe-2024-01-2.pdf");
+        }
+    }
+
+    @Test
+    void shouldKeepCsvValuesFromAddingPathsToEntryNames() throws Exception {
+        // Given
+        when(pdfService.render(any(), anyString(), any(), anyMap())).thenReturn("%PDF".getBytes());
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+
+        // When
+        archiveService.writeZip(Country.US, "TestCompany", List.of(record("a/../../x"), record("C:\\evil\tname")), out);
+
+        // Then
+        try (ZipInputStream zip = new ZipInputStream(new ByteArrayInputStream(out.toByteArray()))) {
+            assertThat(zip.getNextEntry().getName()).isEqualTo("paystub-a_.._.._x-2024-01.pdf");
+            assertThat(zip.getNextEntry().getName()).isEqualTo("paystub-C__evil_name-2024-01.pdf");
+        }
+    }
+
+    @Test
+    void shouldNotCollideWithNamesThatAlreadyEndInSuffix() throws Exception {
+        // Given: "Ana"/"x" twice would take paystub-Ana-x-2.pdf from "Ana"/"x-2"
+        when(pdfService.render(any(), anyString(), any(), anyMap())).thenReturn("%PDF".getBytes());
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+
+        // When
+        archiveService.writeZip(Country.US, "TestCompany", List.of(record("Ana", "x"), record("Ana", "x"), record("Ana", "x-2")), out);
+
+        // Then
+        try (ZipInputStream zip = new ZipInputStream(new ByteArrayInputStream(out.toByteArray()))) {
+            assertThat(zip.getNextEntry().getName()).isEqualTo("paystub-Ana-x.pdf");
+            assertThat(zip.getNextEntry().getName()).isEqualTo("paystub-Ana-x-2.pdf");
+            assertThat(zip.getNextEntry().getName()).isEqualTo("paystub-Ana-x-2-2.pdf");
+        }
+    }
+
+    @Test
+    void shouldKeepAtMostWindowRendersAheadOfTheWriter() throws Exception {
+        // Given
+        AtomicInteger rendered = new AtomicInteger();
+        AtomicInteger written = new AtomicInteger();
+        AtomicInteger maxAhead = new AtomicInteger();
+        when(pdfService.render(any(), anyString(), any(), anyMap())).thenAnswer(inv -> {
+            maxAhead.accumulateAndGet(rendered.incrementAndGet() - written.get(), Math::max);
+            return new byte[1024];
+        });
+        OutputStream slowClient = new OutputStream() {
+            @Override
+            public void write(int b) {
+            }
+
+            @Override
+            public void flush() {
+                written.incrementAndGet();
+            }
+        };
+
+        // When
+        archiveService.writeZip(Country.DO, "TestCompany",
+                IntStream.range(0, 50).mapToObj(i -> record("Employee " + i)).toList(), slowClient);
+
+        // Then
+        verify(pdfService, times(50)).render(any(), anyString(), any(), anyMap());
+        assertThat(maxAhead.get()).isLessThanOrEqualTo(4);
+    }
+
+    @Test
+    void shouldPropagateRenderFailure() throws Exception {
+        // Given
+        when(pdfService.render(any(), anyString(), any(), anyMap())).thenThrow(new IllegalStateException("Bad logo"));
+
+        // When/Then
+        IllegalStateException e = assertThrows(IllegalStateException.class, () ->
+                archiveService.writeZip(Country.DO, "TestCompany", List.of(record("John Doe")), new ByteArrayOutputStream())
+        );
+        assertThat(e.getMessage()).isEqualTo("Bad logo");
+    }
+
+    @Test
+    void shouldStopWhenClientDisconnects() throws Exception {
+        // Given
+        lenient().when(pdfService.render(any(), anyString(), any(), anyMap())).thenReturn(new byte[1024]);
+        OutputStream closed = new OutputStream() {
+            @Override
+            public void write(int b) throws IOException {
+                throw new IOException("Broken pipe");
+            }
+        };
+
+        // When/Then
+        assertThrows(IOException.class, () -> archiveService.writeZip(Country.DO, "TestCompany",
+                IntStream.range(0, 100).mapToObj(i -> record("Employee " + i)).toList(), closed));
+        verify(pdfService, atMost(4)).render(any(), anyString(), any(), anyMap());
+    }
+
+    private PayrollRecord record(String name) {
+        return record(name, "2024-01");
+    }
+
+    private PayrollRecord record(String name, String period) {
+        return new PayrollRecord(name, "employee@example.com", "Engineer",
+                100.0, 200.0, 300.0, 50.0, 5000.0, 4500.0, 3850.0, period);
+    }
+}
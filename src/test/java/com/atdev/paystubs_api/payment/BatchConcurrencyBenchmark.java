@@ -0,0 +1,173 @@
+package com.atdev.paystubs_api.payment;
+
+import com.atdev.paystubs_api.admission.BatchAdmission;
+import com.atdev.paystubs_api.batch.RunningBatches;
+import com.atdev.paystubs_api.bulkhead.CompanyBulkheads;
+import com.atdev.paystubs_api.checkpoint.CheckpointStore;
+import com.atdev.paystubs_api.email.AttachmentStore;
+import com.atdev.paystubs_api.email.EmailService;
+import com.atdev.paystubs_api.email.DeferredMailStore;
+import com.atdev.paystubs_api.email.MailCircuitBreaker;
+import com.atdev.paystubs_api.email.SendLimiter;
+import com.atdev.paystubs_api.email.SmtpSink;
+import com.atdev.paystubs_api.pipeline.FairScheduler;
+import com.atdev.paystubs_api.pipeline.MemoryBudget;
+import com.atdev.paystubs_api.pipeline.StagedPipeline;
+import org.springframework.mail.javamail.JavaMailSenderImpl;
+import org.springframework.test.util.ReflectionTestUtils;
+import org.springframework.util.unit.DataSize;
+
+import java.nio.file.Path;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.stream.IntStream;
+
+/**
+ * Load harness for the request and send execution model: starts {@code N} batches at once, each
+ * rendered by the real {@link PdfService} and sent through the real {@link EmailService} to an
+ * in-process {@link SmtpSink}, and reports rows per second, p50/p99 batch latency, how long a
+ * trivial request (standing in for {@code /actuator/health}) waited for a thread meanwhile and the
+ * utilization of the render and send stages of {@link StagedPipeline}, and how long render workers
+ * waited for the {@link MemoryBudget} of rendered PDFs.
+ *
+ * <p>Each concurrency level runs in three modes:
+ * <ul>
+ *   <li>{@code platform}: requests on a fixed pool of {@code requestThreads} platform threads, like
+ *       Tomcat's worker pool, one render and one send worker per batch;</li>
+ *   <li>{@code virtual}: one virtual thread per request ({@code spring.threads.virtual.enabled}),
+ *       one render and one send worker per batch;</li>
+ *   <li>{@code virtual+pipeline}: as {@code virtual}, with {@code renderWorkers} and
+ *       {@code sendWorkers} per batch.</li>
+ * </ul>
+ * A stage near 100% utilization while the other mostly waits is the one to give more workers.
+ * Configure with system properties, e.g. {@code -Dbatches=1,2,4,8,16 -Drows=50 -DlatencyMs=20
+ * -DrequestThreads=8 -DrenderWorkers=2 -DsendWorkers=8 -DqueueCapacity=16 -DmemoryBudgetKb=65536}.
+ */
+public class BatchConcurrencyBenchmark {
+
+    public static void main(String[] args) throws Exception {
+        int[] levels = Arrays.stream(System.getProperty("batches", "1,2,4,8,16").split(","))
+                .mapToInt(level -> Integer.parseInt(level.trim()))
+                .toArray();
+        int rows = Integer.getInteger("rows", 50);
+        int requestThreads = Integer.getInteger("requestThreads", 8);
+        int renderWorkers = Integer.getInteger("renderWorkers", 2);
+        int sendWorkers = Integer.getInteger("sendWorkers", 8);
+        int queueCapacity = Integer.getInteger("queueCapacity", 16);
+        DataSize memoryBudget = DataSize.ofKilobytes(Long.getLong("memoryBudgetKb", 64 * 1024));
+
+        try (SmtpSink sink = SmtpSink.start().latency(Duration.ofMillis(Long.getLong("latencyMs", 20)))) {
+            // warms up PDF rendering and JavaMail so the first level is not measured cold
+            run(sink, Mode.PLATFORM, 1, rows, requestThreads, pipeline(1, 1, queueCapacity, memoryBudget));
+            for (int batches : levels) {
+                System.out.println(run(sink, Mode.PLATFORM, batches, rows, requestThreads, pipeline(1, 1, queueCapacity, memoryBudget)));
+                System.out.println(run(sink, Mode.VIRTUAL, batches, rows, requestThreads, pipeline(1, 1, queueCapacity, memoryBudget)));
+                System.out.println(run(sink, Mode.VIRTUAL_PIPELINE, batches, rows, requestThreads,
+                        pipeline(renderWorkers, sendWorkers, queueCapacity, memoryBudget)));
+            }
+        }
+    }
+
+    static Result run(SmtpSink sink, Mode mode, int batches, int rows, int requestThreads, StagedPipeline pipeline) throws Exception {
+        PayrollService payrollService = payrollService(sink, batches, rows * batches, pipeline);
+        List<PayrollRecord> records = IntStream.range(0, rows)
+                .mapToObj(i -> new PayrollRecord("Employee " + i, "employee" + i + "@example.com", "Engineer",
+                        100.0, 200.0, 300.0, 50.0, 5000.0, 4500.0, 3850.0, "2024-01"))
+                .toList();
+        AtomicInteger sent = new AtomicInteger();
+        long[] latencies = new long[batches];
+        long probeWait;
+
+        long start = System.nanoTime();
+        try (ExecutorService requests = mode == Mode.PLATFORM
+                ? Executors.newFixedThreadPool(requestThreads)
+                : Executors.newVirtualThreadPerTaskExecutor()) {
+            List<Future<?>> running = new ArrayList<>(batches);
+            for (int b = 0; b < batches; b++) {
+                int id = b;
+                running.add(requests.submit(() -> {
+                    long t0 = System.nanoTime();
+                    payrollService.sendRows(Country.US, "AcmeCorp", records, ProcessOptions.defaults(),
+                            (row, entry) -> sent.incrementAndGet());
+                    latencies[id] = System.nanoTime() - t0;
+                    return null;
+                }));
+            }
+            long probeSubmitted = System.nanoTime();
+            probeWait = requests.submit(() -> System.nanoTime() - probeSubmitted).get();
+            for (Future<?> batch : running) {
+                batch.get();
+            }
+        }
+        long elapsed = System.nanoTime() - start;
+
+        Arrays.sort(latencies);
+        return new Result(mode, batches, rows, sent.get(), sent.get() / (elapsed / 1e9),
+                percentile(latencies, 0.50), percentile(latencies, 0.99), Duration.ofNanos(probeWait), pipeline.state());
+    }
+
+    // Admission is sized so every batch runs at once: the harness measures threads, not queueing.
+    private static PayrollService payrollService(SmtpSink sink, int batches, int rows, StagedPipeline pipeline) {
+        JavaMailSenderImpl mailSender = new JavaMailSenderImpl();
+        mailSender.setHost("localhost");
+        mailSender.setPort(sink.port());
+        mailSender.getJavaMailProperties().setProperty("mail.smtp.localhost", "localhost");
+        EmailService emailService = new EmailService(mailSender, SendLimiter.unbounded(), MailCircuitBreaker.disabled(),
+                new DeferredMailStore(Path.of("target", "deferred")));
+        ReflectionTestUtils.setField(emailService, "from", "no-reply@example.com");
+
+        return new PayrollService(new CsvService(), new PdfService(), new LogoService(), emailService,
+                new BatchAdmission(batches, rows, 0, Duration.ZERO, Duration.ofSeconds(30)),
+                new FailedRowStore(100, Duration.ofHours(1)),
+                new CheckpointStore(false, Path.of("target", "checkpoints"), 500, 1000),
+                new RunningBatches(Duration.ZERO),
+                pipeline,
+                new AttachmentStore(false, 0, DataSize.ofBytes(0), Path.of("target")));
+    }
+
+    private static StagedPipeline pipeline(int renderWorkers, int sendWorkers, int queueCapacity, DataSize memoryBudget) {
+        return new StagedPipeline(renderWorkers, sendWorkers, queueCapacity,
+                new MemoryBudget(memoryBudget, DataSize.ofKilobytes(64)), CompanyBulkheads.unbounded(), FairScheduler.unbounded());
+    }
+
+    private static Duration percentile(long[] sorted, double p) {
+        if (sorted.length == 0) {
+            return Duration.ZERO;
+        }
+        return Duration.ofNanos(sorted[(int) Math.min(sorted.length - 1, Math.ceil(p * sorted.length) - 1)]);
+    }
+
+    enum Mode {
+        PLATFORM("platform"),
+        VIRTUAL("virtual"),
+        VIRTUAL_PIPELINE("virtual+pipeline");
+
+        private final String label;
+
+        Mode(String label) {
+            this.label = label;
+        }
+    }
+
+    record Result(Mode mode, int batches, int rows, int sent, double rowsPerSecond,
+                  Duration p50, Duration p99, Duration probeWait, StagedPipeline.State stages) {
+        @Override
+        public String toString() {
+            return String.format(Locale.ROOT,
+                    "mode=%-16s batches=%-3d rows/batch=%d sent=%d throughput=%.1f rows/s "
+                            + "batch_p50=%.0f ms batch_p99=%.0f ms health_wait=%.2f ms render_util=%.0f%% send_util=%.0f%% "
+                            + "memory_waits=%d memory_wait=%.0f ms",
+                    mode.label, batches, rows, sent, rowsPerSecond,
+                    p50.toNanos() / 1e6, p99.toNanos() / 1e6, probeWait.toNanos() / 1e6,
+                    stages.render().utilization() * 100, stages.send().utilization() * 100,
+                    stages.memory().waits(), stages.memory().wait_seconds() * 1e3);
+        }
+    }
+}
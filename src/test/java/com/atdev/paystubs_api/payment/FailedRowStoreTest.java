@@ -0,0 +1,187 @@
+package com.atdev.paystubs_api.payment;
+
+import com.atdev.paystubs_api.email.DeferredMailStore;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import java.nio.file.Path;
+import java.time.Clock;
+import java.time.Duration;
+import java.time.Instant;
+import java.time.ZoneId;
+import java.time.ZoneOffset;
+import java.util.List;
+import java.util.Map;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+class FailedRowStoreTest {
+
+    private MutableClock clock;
+    private FailedRowStore store;
+    private PayrollRecord john;
+    private PayrollRecord jane;
+
+    @BeforeEach
+    void setUp() {
+        clock = new MutableClock();
+        store = new FailedRowStore(2, Duration.ofMinutes(10), clock);
+        john = record("John Doe", "john@example.com");
+        jane = record("Jane Smith", "jane@example.com");
+    }
+
+    @Test
+    void shouldTakeEveryFailedRowWhenNoneRequested() {
+        // Given
+        String id = store.save(Country.DO, "TestCompany", ProcessOptions.defaults(), Map.of(3, jane, 1, john));
+
+        // When
+        FailedRowStore.FailedBatch batch = store.take(id, null).orElseThrow();
+
+        // Then
+        assertThat(batch.company()).isEqualTo("TestCompany");
+        assertThat(batch.country()).isEqualTo(Country.DO);
+        assertThat(batch.rows()).containsExactly(Map.entry(1, john), Map.entry(3, jane));
+    }
+
+    @Test
+    void shouldNotHandTheSameRowToTwoRetries() {
+        // Given
+        String id = store.save(Country.DO, "TestCompany", ProcessOptions.defaults(), Map.of(1, john, 3, jane));
+
+        // When
+        FailedRowStore.FailedBatch first = store.take(id, List.of(1)).orElseThrow();
+        FailedRowStore.FailedBatch second = store.take(id, null).orElseThrow();
+
+        // Then
+        assertThat(first.rows()).containsOnlyKeys(1);
+        assertThat(second.rows()).containsOnlyKeys(3);
+        assertThrows(IllegalArgumentException.class, () -> store.take(id, List.of(1)));
+    }
+
+    @Test
+    void shouldKeepRowsThatFailAgainAndForgetBatchOnceAllSent() {
+        // Given
+        String id = store.save(Country.DO, "TestCompany", ProcessOptions.defaults(), Map.of(1, john, 3, jane));
+        FailedRowStore.FailedBatch batch = store.take(id, null).orElseThrow();
+
+        // When
+        store.restore(id, batch, Map.of(3, jane));
+
+        // Then
+        FailedRowStore.FailedBatch again = store.take(id, null).orElseThrow();
+        assertThat(again.rows()).containsOnlyKeys(3);
+        store.restore(id, again, Map.of());
+        assertThat(store.take(id, null)).isEmpty();
+    }
+
+    @Test
+    void shouldSaveDeferredRowsUnderTheirRetryIdOnceRefused() {
+        // Given
+        String id = store.newId();
+        Path refused = Path.of("deferred", "1.eml");
+        Path delivered = Path.of("deferred", "2.eml");
+        store.deferred(refused, id, Country.DO, "TestCompany", ProcessOptions.defaults(), Map.of(1, john));
+        store.deferred(delivered, id, Country.DO, "TestCompany", ProcessOptions.defaults(), Map.of(3, jane));
+
+        // When
+        store.resolved(new DeferredMailStore.Resolved(delivered, null));
+        store.resolved(new DeferredMailStore.Resolved(refused, new IllegalStateException("550 No such user")));
+
+        // Then
+        FailedRowStore.FailedBatch batch = store.take(id, null).orElseThrow();
+        assertThat(batch.company()).isEqualTo("TestCompany");
+        assertThat(batch.rows()).containsOnlyKeys(1);
+    }
+
+    @Test
+    void shouldAddRowsSavedUnderExistingRetryId() {
+        // Given
+        String id = store.save(Country.DO, "TestCompany", ProcessOptions.defaults(), Map.of(1, john));
+
+        // When
+        store.save(id, Country.DO, "TestCompany", ProcessOptions.defaults(), Map.of(3, jane));
+
+        // Then
+        assertThat(store.take(id, null).orElseThrow().rows()).containsOnlyKeys(1, 3);
+    }
+
+    @Test
+    void shouldExpireBatchesAfterTtl() {
+        // Given
+        String id = store.save(Country.DO, "TestCompany", ProcessOptions.defaults(), Map.of(1, john));
+
+        // When
+        clock.advance(Duration.ofMinutes(11));
+
+        // Then
+        assertThat(store.take(id, null)).isEmpty();
+    }
+
+    @Test
+    void shouldEvictOldestBatchWhenFull() {
+        // Given
+        String oldest = store.save(Country.DO, "TestCompany", ProcessOptions.defaults(), Map.of(1, john));
+        store.save(Country.DO, "TestCompany", ProcessOptions.defaults(), Map.of(1, john));
+
+        // When
+        store.save(Country.DO, "TestCompany", ProcessOptions.defaults(), Map.of(1, john));
+
+        // Then
+        assertThat(store.size()).isEqualTo(2);
+        assertThat(store.take(oldest, null)).isEmpty();
+    }
+
+    @Test
+    void shouldExpireAndEvictDeferredRowsLikeFailedBatches() {
+        // Given: room for two batches; the relay never resolves their messages
+        store.deferred(Path.of("deferred", "1.eml"), store.newId(), Country.DO, "TestCompany", ProcessOptions.defaults(), Map.of(1, john));
+        String second = store.newId();
+        store.deferred(Path.of("deferred", "2.eml"), second, Country.DO, "TestCompany", ProcessOptions.defaults(), Map.of(1, john));
+        store.deferred(Path.of("deferred", "3.eml"), second, Country.DO, "TestCompany", ProcessOptions.defaults(), Map.of(2, jane));
+
+        // When
+        store.deferred(Path.of("deferred", "4.eml"), store.newId(), Country.DO, "TestCompany", ProcessOptions.defaults(), Map.of(1, john));
+
+        // Then
+        assertThat(store.deferredSize()).isEqualTo(3);
+
+        // When
+        clock.advance(Duration.ofMinutes(11));
+        store.deferred(Path.of("deferred", "5.eml"), store.newId(), Country.DO, "TestCompany", ProcessOptions.defaults(), Map.of(1, john));
+        store.resolved(new DeferredMailStore.Resolved(Path.of("deferred", "2.eml"), new IllegalStateException("550 No such user")));
+
+        // Then
+        assertThat(store.deferredSize()).isEqualTo(1);
+        assertThat(store.take(second, null)).isEmpty();
+    }
+
+    private PayrollRecord record(String name, String email) {
+        return new PayrollRecord(name, email, "Engineer",
+                100.0, 200.0, 300.0, 50.0, 5000.0, 4500.0, 3850.0, "2024-01");
+    }
+
+    private static class MutableClock extends Clock {
+        private Instant now = Instant.parse("2024-01-15T10:00:00Z");
+
+        void advance(Duration duration) {
+            now = now.plus(duration);
+        }
+
+        @Override
+        public ZoneId getZone() {
+            return ZoneOffset.UTC;
+        }
+
+        @Override
+        public Clock withZone(ZoneId zone) {
+            return this;
+        }
+
+        @Override
+        public Instant instant() {
+            return now;
+        }
+    }
+}
@@ -0,0 +1,121 @@
+package com.atdev.paystubs_api.payment;
+
+import com.atdev.paystubs_api.payment.dto.ProcessPaymentResponse;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import java.time.Clock;
+import java.time.Duration;
+import java.time.Instant;
+import java.time.ZoneId;
+import java.time.ZoneOffset;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.RejectedExecutionException;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+class IdempotencyStoreTest {
+
+    private MutableClock clock;
+    private IdempotencyStore store;
+
+    @BeforeEach
+    void setUp() {
+        clock = new MutableClock();
+        store = new IdempotencyStore(2, Duration.ofMinutes(10), clock);
+    }
+
+    @Test
+    void shouldHandOwnershipToFirstClaimOnly() throws Exception {
+        // When
+        IdempotencyStore.Claim first = store.claim("key-1", "fp");
+        IdempotencyStore.Claim second = store.claim("key-1", "fp");
+
+        // Then
+        assertThat(first.owner()).isTrue();
+        assertThat(second.owner()).isFalse();
+        assertThat(second.submission()).isSameAs(first.submission());
+
+        ProcessPaymentResponse response = new ProcessPaymentResponse();
+        store.complete("key-1", first.submission(), IdempotencyStore.Outcome.response(response));
+        assertThat(second.submission().outcome().get().body()).isSameAs(response);
+    }
+
+    @Test
+    void shouldExpireFinishedSubmissionsAfterTtl() {
+        // Given
+        IdempotencyStore.Claim claim = store.claim("key-1", "fp");
+        store.complete("key-1", claim.submission(), IdempotencyStore.Outcome.job("job-1"));
+
+        // When
+        clock.advance(Duration.ofMinutes(11));
+
+        // Then
+        assertThat(store.claim("key-1", "fp").owner()).isTrue();
+    }
+
+    @Test
+    void shouldForgetFailedSubmissionAndFailWaiters() {
+        // Given
+        IdempotencyStore.Claim claim = store.claim("key-1", "fp");
+        IdempotencyStore.Claim waiter = store.claim("key-1", "fp");
+
+        // When
+        store.fail("key-1", claim.submission(), new IllegalStateException("boom"));
+
+        // Then
+        ExecutionException e = assertThrows(ExecutionException.class, () -> waiter.submission().outcome().get());
+        assertThat(e.getCause()).hasMessage("boom");
+        assertThat(store.claim("key-1", "fp").owner()).isTrue();
+    }
+
+    @Test
+    void shouldEvictOldestFinishedSubmissionWhenFull() {
+        // Given
+        IdempotencyStore.Claim first = store.claim("key-1", "fp");
+        store.complete("key-1", first.submission(), IdempotencyStore.Outcome.job("job-1"));
+        store.claim("key-2", "fp");
+
+        // When
+        IdempotencyStore.Claim third = store.claim("key-3", "fp");
+
+        // Then
+        assertThat(third.owner()).isTrue();
+        assertThat(store.size()).isEqualTo(2);
+        assertThat(store.claim("key-2", "fp").owner()).isFalse();
+    }
+
+    @Test
+    void shouldRejectWhenFullOfInFlightSubmissions() {
+        // Given
+        store.claim("key-1", "fp");
+        store.claim("key-2", "fp");
+
+        // When/Then
+        assertThrows(RejectedExecutionException.class, () -> store.claim("key-3", "fp"));
+    }
+
+    private static class MutableClock extends Clock {
+        private Instant now = Instant.parse("2024-01-15T10:00:00Z");
+
+        void advance(Duration duration) {
+            now = now.plus(duration);
+        }
+
+        @Override
+        public ZoneId getZone() {
+            return ZoneOffset.UTC;
+        }
+
+        @Override
+        public Clock withZone(ZoneId zone) {
+            return this;
+        }
+
+        @Override
+        public Instant instant() {
+            return now;
+        }
+    }
+}
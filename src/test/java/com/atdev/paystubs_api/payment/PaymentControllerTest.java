@@ -1,20 +1,47 @@
 package com.atdev.paystubs_api.payment;
 
+import com.atdev.paystubs_api.batch.RunningBatches;
+import com.atdev.paystubs_api.job.JobService;
+import com.atdev.paystubs_api.job.JobStatus;
+import com.atdev.paystubs_api.job.PayrollJob;
+import com.atdev.paystubs_api.job.dto.JobStatusResponse;
 import com.atdev.paystubs_api.payment.dto.ProcessPaymentResponse;
+import com.atdev.paystubs_api.payment.dto.ProcessSummaryResponse;
+import com.atdev.paystubs_api.pipeline.Priority;
+import jakarta.servlet.AsyncEvent;
+import jakarta.servlet.AsyncListener;
 import org.junit.jupiter.api.BeforeEach;
 import org.junit.jupiter.api.Test;
 import org.junit.jupiter.api.extension.ExtendWith;
 import org.mockito.Mock;
 import org.mockito.junit.jupiter.MockitoExtension;
 import org.springframework.http.HttpStatus;
+import org.springframework.core.task.SimpleAsyncTaskExecutor;
 import org.springframework.http.ResponseEntity;
+import org.springframework.mock.web.MockAsyncContext;
+import org.springframework.mock.web.MockHttpServletRequest;
+import org.springframework.mock.web.MockHttpServletResponse;
 import org.springframework.mock.web.MockMultipartFile;
+import org.springframework.web.context.request.ServletWebRequest;
+import org.springframework.web.context.request.async.StandardServletAsyncWebRequest;
+import org.springframework.web.context.request.async.WebAsyncManager;
+import org.springframework.web.context.request.async.WebAsyncTask;
+import org.springframework.web.context.request.async.WebAsyncUtils;
 import org.springframework.web.multipart.MultipartFile;
 
+import java.io.IOException;
+import java.time.Duration;
+import java.time.Instant;
 import java.util.List;
 import java.util.Map;
+import java.util.Optional;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
 
 import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.tuple;
 import static org.junit.jupiter.api.Assertions.assertThrows;
 import static org.mockito.ArgumentMatchers.*;
 import static org.mockito.Mockito.*;
@@ -25,13 +52,22 @@ class PaymentControllerTest {
     @Mock
     private PayrollService payrollService;
 
+    @Mock
+    private JobService jobService;
+
+    @Mock
+    private RunningBatches batches;
+
+    private IdempotencyStore idempotencyStore;
+
     private PaymentController paymentController;
 
     private MultipartFile testCsvFile;
 
     @BeforeEach
     void setUp() {
-        paymentController = new PaymentController(payrollService);
+        idempotencyStore = new IdempotencyStore(100, Duration.ofHours(1));
+        paymentController = new PaymentController(payrollService, jobService, idempotencyStore, batches);
 
         String csvContent = """
                 full_name,email,position,health_discount_amount,social_discount_amount,taxes_discount_amount,other_discount_amount,gross_salary,gross_payment,net_payment,period
@@ -49,20 +85,27 @@ class PaymentControllerTest {
     @Test
     void shouldProcessPaymentSuccessfully() throws Exception {
         // Given
-        List<Map<String, Object>> expectedResults = List.of(
-                Map.of("email", "john@example.com", "full_name", "John Doe", "sent_at", "2024-01-15T10:00:00Z")
+        List<SentPaystub> expectedResults = List.of(
+                new SentPaystub(0, "john@example.com", "John Doe", Instant.parse("2024-01-15T10:00:00Z"))
         );
 
-        when(payrollService.processCsvAndSend(any(Country.class), anyString(), anyString(), any(MultipartFile.class)))
-                .thenReturn(expectedResults);
+        when(payrollService.processCsvAndSend(any(Country.class), anyString(), anyString(), any(MultipartFile.class), any(ProcessOptions.class), any()))
+                .thenReturn(new BatchResult(expectedResults, List.of(), null));
 
         // When
-        ResponseEntity<Object> response = paymentController.process(
+        ResponseEntity<Object> response = call(paymentController.process(
                 "do",
                 "user+password",
                 "TestCompany",
-                testCsvFile
-        );
+                testCsvFile,
+                false,
+                false,
+                false,
+                null,
+                "normal",
+                null,
+                null
+        ));
 
         // Then
         assertThat(response.getStatusCode()).isEqualTo(HttpStatus.OK);
@@ -73,84 +116,112 @@ class PaymentControllerTest {
         assertThat(body.getCountry()).isEqualTo(Country.DO);
         assertThat(body.getSent()).hasSize(1);
 
-        verify(payrollService).processCsvAndSend(eq(Country.DO), eq("user+password"), eq("TestCompany"), eq(testCsvFile));
+        verify(payrollService).processCsvAndSend(eq(Country.DO), eq("user+password"), eq("TestCompany"), eq(testCsvFile), any(ProcessOptions.class), any());
     }
 
     @Test
     void shouldHandleUSACountry() throws Exception {
         // Given
-        List<Map<String, Object>> expectedResults = List.of();
-        when(payrollService.processCsvAndSend(any(Country.class), anyString(), anyString(), any(MultipartFile.class)))
-                .thenReturn(expectedResults);
+        List<SentPaystub> expectedResults = List.of();
+        when(payrollService.processCsvAndSend(any(Country.class), anyString(), anyString(), any(MultipartFile.class), any(ProcessOptions.class), any()))
+                .thenReturn(new BatchResult(expectedResults, List.of(), null));
 
         // When
-        ResponseEntity<Object> response = paymentController.process(
+        ResponseEntity<Object> response = call(paymentController.process(
                 "USA",
                 "user+password",
                 "TestCompany",
-                testCsvFile
-        );
+                testCsvFile,
+                false,
+                false,
+                false,
+                null,
+                "normal",
+                null,
+                null
+        ));
 
         // Then
         assertThat(response.getStatusCode()).isEqualTo(HttpStatus.OK);
         ProcessPaymentResponse body = (ProcessPaymentResponse) response.getBody();
         assertThat(body.getCountry()).isEqualTo(Country.US);
 
-        verify(payrollService).processCsvAndSend(eq(Country.US), anyString(), anyString(), any(MultipartFile.class));
+        verify(payrollService).processCsvAndSend(eq(Country.US), anyString(), anyString(), any(MultipartFile.class), any(ProcessOptions.class), any());
     }
 
     @Test
     void shouldHandleDOCountry() throws Exception {
         // Given
-        List<Map<String, Object>> expectedResults = List.of();
-        when(payrollService.processCsvAndSend(any(Country.class), anyString(), anyString(), any(MultipartFile.class)))
-                .thenReturn(expectedResults);
+        List<SentPaystub> expectedResults = List.of();
+        when(payrollService.processCsvAndSend(any(Country.class), anyString(), anyString(), any(MultipartFile.class), any(ProcessOptions.class), any()))
+                .thenReturn(new BatchResult(expectedResults, List.of(), null));
 
         // When
-        ResponseEntity<Object> response = paymentController.process(
+        ResponseEntity<Object> response = call(paymentController.process(
                 "do",
                 "user+password",
                 "TestCompany",
-                testCsvFile
-        );
+                testCsvFile,
+                false,
+                false,
+                false,
+                null,
+                "normal",
+                null,
+                null
+        ));
 
         // Then
         assertThat(response.getStatusCode()).isEqualTo(HttpStatus.OK);
         ProcessPaymentResponse body = (ProcessPaymentResponse) response.getBody();
         assertThat(body.getCountry()).isEqualTo(Country.DO);
 
-        verify(payrollService).processCsvAndSend(eq(Country.DO), anyString(), anyString(), any(MultipartFile.class));
+        verify(payrollService).processCsvAndSend(eq(Country.DO), anyString(), anyString(), any(MultipartFile.class), any(ProcessOptions.class), any());
     }
 
     @Test
     void shouldUseDefaultCountryWhenNotProvided() throws Exception {
         // Given
-        List<Map<String, Object>> expectedResults = List.of();
-        when(payrollService.processCsvAndSend(any(Country.class), anyString(), anyString(), any(MultipartFile.class)))
-                .thenReturn(expectedResults);
+        List<SentPaystub> expectedResults = List.of();
+        when(payrollService.processCsvAndSend(any(Country.class), anyString(), anyString(), any(MultipartFile.class), any(ProcessOptions.class), any()))
+                .thenReturn(new BatchResult(expectedResults, List.of(), null));
 
         // When
-        ResponseEntity<Object> response = paymentController.process(
+        ResponseEntity<Object> response = call(paymentController.process(
                 "do", // default value
                 "user+password",
                 "TestCompany",
-                testCsvFile
-        );
+                testCsvFile,
+                false,
+                false,
+                false,
+                null,
+                "normal",
+                null,
+                null
+        ));
 
         // Then
         assertThat(response.getStatusCode()).isEqualTo(HttpStatus.OK);
-        verify(payrollService).processCsvAndSend(eq(Country.DO), anyString(), anyString(), any(MultipartFile.class));
+        verify(payrollService).processCsvAndSend(eq(Country.DO), anyString(), anyString(), any(MultipartFile.class), any(ProcessOptions.class), any());
     }
 
     @Test
     void shouldReturnBadRequestForInvalidCountry() throws Exception {
         // When
-        ResponseEntity<Object> response = paymentController.process(
+        ResponseEntity<Object> response = call(paymentController.process(
                 "INVALID",
                 "user+password",
                 "TestCompany",
-                testCsvFile
-        );
+                testCsvFile,
+                false,
+                false,
+                false,
+                null,
+                "normal",
+                null,
+                null
+        ));
 
         // Then
         assertThat(response.getStatusCode()).isEqualTo(HttpStatus.BAD_REQUEST);
@@ -160,7 +231,7 @@ class PaymentControllerTest {
         Map<String, String> body = (Map<String, String>) response.getBody();
         assertThat(body).containsEntry("error", "Invalid country option.");
 
-        verify(payrollService, never()).processCsvAndSend(any(), anyString(), anyString(), any());
+        verify(payrollService, never()).processCsvAndSend(any(), anyString(), anyString(), any(), any(), any());
     }
 
     @Test
@@ -178,66 +249,73 @@ class PaymentControllerTest {
     @Test
     void shouldPassCredentialsToService() throws Exception {
         // Given
-        List<Map<String, Object>> expectedResults = List.of();
-        when(payrollService.processCsvAndSend(any(Country.class), anyString(), anyString(), any(MultipartFile.class)))
-                .thenReturn(expectedResults);
+        List<SentPaystub> expectedResults = List.of();
+        when(payrollService.processCsvAndSend(any(Country.class), anyString(), anyString(), any(MultipartFile.class), any(ProcessOptions.class), any()))
+                .thenReturn(new BatchResult(expectedResults, List.of(), null));
 
         String credentials = "admin+secret123";
 
         // When
-        paymentController.process("do", credentials, "TestCompany", testCsvFile);
+        call(paymentController.process("do", credentials, "TestCompany", testCsvFile, false, false, false, null, "normal", null, null));
 
         // Then
-        verify(payrollService).processCsvAndSend(any(Country.class), eq(credentials), anyString(), any(MultipartFile.class));
+        verify(payrollService).processCsvAndSend(any(Country.class), eq(credentials), anyString(), any(MultipartFile.class), any(ProcessOptions.class), any());
     }
 
     @Test
     void shouldPassCompanyNameToService() throws Exception {
         // Given
-        List<Map<String, Object>> expectedResults = List.of();
-        when(payrollService.processCsvAndSend(any(Country.class), anyString(), anyString(), any(MultipartFile.class)))
-                .thenReturn(expectedResults);
+        List<SentPaystub> expectedResults = List.of();
+        when(payrollService.processCsvAndSend(any(Country.class), anyString(), anyString(), any(MultipartFile.class), any(ProcessOptions.class), any()))
+                .thenReturn(new BatchResult(expectedResults, List.of(), null));
 
         String company = "Acme Corporation";
 
         // When
-        paymentController.process("do", "user+password", company, testCsvFile);
+        call(paymentController.process("do", "user+password", company, testCsvFile, false, false, false, null, "normal", null, null));
 
         // Then
-        verify(payrollService).processCsvAndSend(any(Country.class), anyString(), eq(company), any(MultipartFile.class));
+        verify(payrollService).processCsvAndSend(any(Country.class), anyString(), eq(company), any(MultipartFile.class), any(ProcessOptions.class), any());
     }
 
     @Test
     void shouldPropagateServiceException() throws Exception {
         // Given
-        when(payrollService.processCsvAndSend(any(Country.class), anyString(), anyString(), any(MultipartFile.class)))
+        when(payrollService.processCsvAndSend(any(Country.class), anyString(), anyString(), any(MultipartFile.class), any(ProcessOptions.class), any()))
                 .thenThrow(new RuntimeException("Service error"));
 
         // When/Then
         assertThrows(RuntimeException.class, () ->
-                paymentController.process("do", "user+password", "TestCompany", testCsvFile)
+                call(paymentController.process("do", "user+password", "TestCompany", testCsvFile, false, false, false, null, "normal", null, null))
         );
     }
 
     @Test
     void shouldHandleMultipleEmployeesInResponse() throws Exception {
         // Given
-        List<Map<String, Object>> expectedResults = List.of(
-                Map.of("email", "john@example.com", "full_name", "John Doe", "sent_at", "2024-01-15T10:00:00Z"),
-                Map.of("email", "jane@example.com", "full_name", "Jane Smith", "sent_at", "2024-01-15T10:01:00Z"),
-                Map.of("email", "bob@example.com", "full_name", "Bob Johnson", "sent_at", "2024-01-15T10:02:00Z")
+        List<SentPaystub> expectedResults = List.of(
+                new SentPaystub(0, "john@example.com", "John Doe", Instant.parse("2024-01-15T10:00:00Z")),
+                new SentPaystub(1, "jane@example.com", "Jane Smith", Instant.parse("2024-01-15T10:01:00Z")),
+                new SentPaystub(2, "bob@example.com", "Bob Johnson", Instant.parse("2024-01-15T10:02:00Z"))
         );
 
-        when(payrollService.processCsvAndSend(any(Country.class), anyString(), anyString(), any(MultipartFile.class)))
-                .thenReturn(expectedResults);
+        when(payrollService.processCsvAndSend(any(Country.class), anyString(), anyString(), any(MultipartFile.class), any(ProcessOptions.class), any()))
+                .thenReturn(new BatchResult(expectedResults, List.of(), null));
 
         // When
-        ResponseEntity<Object> response = paymentController.process(
+        ResponseEntity<Object> response = call(paymentController.process(
                 "USA",
                 "user+password",
                 "TestCompany",
-                testCsvFile
-        );
+                testCsvFile,
+                false,
+                false,
+                false,
+                null,
+                "normal",
+                null,
+                null
+        ));
 
         // Then
         assertThat(response.getStatusCode()).isEqualTo(HttpStatus.OK);
@@ -248,20 +326,402 @@ class PaymentControllerTest {
     @Test
     void shouldHandleEmptyResultsList() throws Exception {
         // Given
-        when(payrollService.processCsvAndSend(any(Country.class), anyString(), anyString(), any(MultipartFile.class)))
-                .thenReturn(List.of());
+        when(payrollService.processCsvAndSend(any(Country.class), anyString(), anyString(), any(MultipartFile.class), any(ProcessOptions.class), any()))
+                .thenReturn(sent());
 
         // When
-        ResponseEntity<Object> response = paymentController.process(
+        ResponseEntity<Object> response = call(paymentController.process(
                 "do",
                 "user+password",
                 "TestCompany",
-                testCsvFile
-        );
+                testCsvFile,
+                false,
+                false,
+                false,
+                null,
+                "normal",
+                null,
+                null
+        ));
 
         // Then
         assertThat(response.getStatusCode()).isEqualTo(HttpStatus.OK);
         ProcessPaymentResponse body = (ProcessPaymentResponse) response.getBody();
         assertThat(body.getSent()).isEmpty();
     }
+
+    @Test
+    void shouldPassGroupByRecipientOption() throws Exception {
+        // Given
+        when(payrollService.processCsvAndSend(any(Country.class), anyString(), anyString(), any(MultipartFile.class), any(ProcessOptions.class), any()))
+                .thenReturn(sent());
+
+        // When
+        call(paymentController.process("do", "user+password", "TestCompany", testCsvFile, true, false, false, null, "normal", null, null));
+
+        // Then
+        verify(payrollService).processCsvAndSend(any(Country.class), anyString(), anyString(), any(MultipartFile.class),
+                eq(ProcessOptions.builder().groupByRecipient(true).build()), any());
+    }
+
+    @Test
+    void shouldPassTimeoutOption() throws Exception {
+        // Given
+        when(payrollService.processCsvAndSend(any(Country.class), anyString(), anyString(), any(MultipartFile.class), any(ProcessOptions.class), any()))
+                .thenReturn(sent());
+
+        // When
+        call(paymentController.process("do", "user+password", "TestCompany", testCsvFile, false, false, false, 30000L, "normal", null, null));
+
+        // Then
+        verify(payrollService).processCsvAndSend(any(Country.class), anyString(), anyString(), any(MultipartFile.class),
+                eq(ProcessOptions.builder().timeout(Duration.ofSeconds(30)).build()), any());
+    }
+
+    @Test
+    void shouldRejectTimeoutThatIsNotPositive() throws Exception {
+        // When
+        ResponseEntity<Object> response = call(paymentController.process("do", "user+password", "TestCompany", testCsvFile, false, false, false, 0L, "normal", null, null));
+
+        // Then
+        assertThat(response.getStatusCode()).isEqualTo(HttpStatus.BAD_REQUEST);
+        assertThat(response.getBody()).isEqualTo(Map.of("error", "timeout_ms must be positive."));
+        verifyNoInteractions(payrollService);
+    }
+
+    @Test
+    void shouldPassPriorityOption() throws Exception {
+        // Given
+        when(payrollService.processCsvAndSend(any(Country.class), anyString(), anyString(), any(MultipartFile.class), any(ProcessOptions.class), any()))
+                .thenReturn(sent());
+
+        // When
+        call(paymentController.process("do", "user+password", "TestCompany", testCsvFile, false, false, false, null, "LOW", null, null));
+
+        // Then
+        verify(payrollService).processCsvAndSend(any(Country.class), anyString(), anyString(), any(MultipartFile.class),
+                eq(ProcessOptions.builder().priority(Priority.LOW).build()), any());
+    }
+
+    @Test
+    void shouldRejectUnknownPriority() throws Exception {
+        // When
+        ResponseEntity<Object> response = call(paymentController.process("do", "user+password", "TestCompany", testCsvFile, false, false, false, null, "urgent", null, null));
+
+        // Then
+        assertThat(response.getStatusCode()).isEqualTo(HttpStatus.BAD_REQUEST);
+        assertThat(response.getBody()).isEqualTo(Map.of("error", "Invalid priority option."));
+        verifyNoInteractions(payrollService);
+    }
+
+    @Test
+    void shouldSubmitScheduledSendAsJob() throws Exception {
+        // Given
+        Instant sendAt = Instant.now().plus(Duration.ofHours(2));
+        PayrollJob job = new PayrollJob("job-1", "TestCompany", Country.DO, 1);
+        when(jobService.submit(any(), anyString(), any(), any())).thenReturn(job);
+
+        // When
+        ResponseEntity<Object> response = call(paymentController.process("do", "user+password", "TestCompany", testCsvFile, false, false, false, null, "normal", sendAt.toString(), null));
+
+        // Then
+        assertThat(response.getStatusCode()).isEqualTo(HttpStatus.ACCEPTED);
+        verify(jobService).submit(eq(Country.DO), eq("TestCompany"), eq(testCsvFile),
+                eq(ProcessOptions.builder().sendAt(sendAt).build()));
+        verifyNoInteractions(payrollService);
+    }
+
+    @Test
+    void shouldRejectSendAtInThePast() throws Exception {
+        // When
+        ResponseEntity<Object> response = call(paymentController.process("do", "user+password", "TestCompany", testCsvFile, false, false, false, null, "normal", "2020-01-01T09:00:00Z", null));
+
+        // Then
+        assertThat(response.getStatusCode()).isEqualTo(HttpStatus.BAD_REQUEST);
+        assertThat(response.getBody()).isEqualTo(Map.of("error", "send_at must be in the future."));
+        verifyNoInteractions(jobService);
+    }
+
+    @Test
+    void shouldRejectSendAtWithoutOffset() throws Exception {
+        // When
+        ResponseEntity<Object> response = call(paymentController.process("do", "user+password", "TestCompany", testCsvFile, false, false, false, null, "normal", "2099-01-01T09:00:00", null));
+
+        // Then
+        assertThat(response.getStatusCode()).isEqualTo(HttpStatus.BAD_REQUEST);
+        assertThat(response.getBody()).isEqualTo(Map.of("error", "send_at must be an ISO-8601 date-time with offset."));
+        verifyNoInteractions(jobService);
+    }
+
+    @Test
+    void shouldSubmitJobAndReturnAcceptedInAsyncMode() throws Exception {
+        // Given
+        PayrollJob job = new PayrollJob("job-1", "TestCompany", Country.DO, 1);
+        when(jobService.submit(eq(Country.DO), eq("TestCompany"), eq(testCsvFile), any(ProcessOptions.class)))
+                .thenReturn(job);
+
+        // When
+        ResponseEntity<Object> response = call(paymentController.process("do", "user+password", "TestCompany", testCsvFile, false, true, false, null, "normal", null, null));
+
+        // Then
+        assertThat(response.getStatusCode()).isEqualTo(HttpStatus.ACCEPTED);
+        assertThat(response.getHeaders().getLocation()).hasToString("/jobs/job-1");
+        JobStatusResponse body = (JobStatusResponse) response.getBody();
+        assertThat(body.getJob_id()).isEqualTo("job-1");
+        assertThat(body.getStatus()).isEqualTo(JobStatus.QUEUED);
+        assertThat(body.getTotal()).isEqualTo(1);
+        verify(payrollService, never()).processCsvAndSend(any(), anyString(), anyString(), any(), any(), any());
+    }
+
+    @Test
+    void shouldReturnServiceUnavailableWhenJobQueueIsFull() throws Exception {
+        // Given
+        when(jobService.submit(any(), anyString(), any(), any())).thenThrow(new RejectedExecutionException("full"));
+
+        // When
+        ResponseEntity<Object> response = call(paymentController.process("do", "user+password", "TestCompany", testCsvFile, false, true, false, null, "normal", null, null));
+
+        // Then
+        assertThat(response.getStatusCode()).isEqualTo(HttpStatus.SERVICE_UNAVAILABLE);
+    }
+
+    @Test
+    void shouldReplayStoredResponseForRepeatedIdempotencyKey() throws Exception {
+        // Given
+        when(payrollService.processCsvAndSend(any(Country.class), anyString(), anyString(), any(MultipartFile.class), any(ProcessOptions.class), any()))
+                .thenReturn(sent(new SentPaystub(0, "john@example.com", "John Doe", Instant.now())));
+
+        // When
+        ResponseEntity<Object> first = call(paymentController.process("do", "user+password", "TestCompany", testCsvFile, false, false, false, null, "normal", null, "key-1"));
+        ResponseEntity<Object> second = call(paymentController.process("do", "user+password", "TestCompany", testCsvFile, false, false, false, null, "normal", null, "key-1"));
+
+        // Then
+        assertThat(second.getStatusCode()).isEqualTo(HttpStatus.OK);
+        assertThat(second.getBody()).isSameAs(first.getBody());
+        assertThat(second.getHeaders().getFirst("Idempotent-Replayed")).isEqualTo("true");
+        verify(payrollService, times(1)).processCsvAndSend(any(), anyString(), anyString(), any(), any(), any());
+    }
+
+    @Test
+    void shouldAttachDuplicateToInFlightRequest() throws Exception {
+        // Given
+        CountDownLatch started = new CountDownLatch(1);
+        CountDownLatch release = new CountDownLatch(1);
+        when(payrollService.processCsvAndSend(any(Country.class), anyString(), anyString(), any(MultipartFile.class), any(ProcessOptions.class), any()))
+                .thenAnswer(inv -> {
+                    started.countDown();
+                    release.await(5, TimeUnit.SECONDS);
+                    return sent(new SentPaystub(0, "john@example.com", "John Doe", Instant.now()));
+                });
+        CompletableFuture<ResponseEntity<Object>> first = CompletableFuture.supplyAsync(() -> {
+            try {
+                return call(paymentController.process("do", "user+password", "TestCompany", testCsvFile, false, false, false, null, "normal", null, "key-1"));
+            } catch (Exception e) {
+                throw new RuntimeException(e);
+            }
+        });
+        assertThat(started.await(5, TimeUnit.SECONDS)).isTrue();
+
+        // When
+        CompletableFuture<ResponseEntity<Object>> second = CompletableFuture.supplyAsync(() -> {
+            try {
+                return call(paymentController.process("do", "user+password", "TestCompany", testCsvFile, false, false, false, null, "normal", null, "key-1"));
+            } catch (Exception e) {
+                throw new RuntimeException(e);
+            }
+        });
+        release.countDown();
+
+        // Then
+        assertThat(second.get(5, TimeUnit.SECONDS).getBody()).isSameAs(first.get(5, TimeUnit.SECONDS).getBody());
+        verify(payrollService, times(1)).processCsvAndSend(any(), anyString(), anyString(), any(), any(), any());
+    }
+
+    @Test
+    void shouldReturnSameJobForRepeatedAsyncSubmission() throws Exception {
+        // Given
+        PayrollJob job = new PayrollJob("job-1", "TestCompany", Country.DO, 1);
+        when(jobService.submit(any(), anyString(), any(), any())).thenReturn(job);
+        when(jobService.find("job-1")).thenReturn(Optional.of(job));
+
+        // When
+        call(paymentController.process("do", "user+password", "TestCompany", testCsvFile, false, true, false, null, "normal", null, "key-1"));
+        ResponseEntity<Object> second = call(paymentController.process("do", "user+password", "TestCompany", testCsvFile, false, true, false, null, "normal", null, "key-1"));
+
+        // Then
+        assertThat(second.getStatusCode()).isEqualTo(HttpStatus.ACCEPTED);
+        assertThat(second.getHeaders().getLocation()).hasToString("/jobs/job-1");
+        verify(jobService, times(1)).submit(any(), anyString(), any(), any());
+    }
+
+    @Test
+    void shouldRejectIdempotencyKeyReusedForDifferentRequest() throws Exception {
+        // Given
+        when(payrollService.processCsvAndSend(any(Country.class), anyString(), anyString(), any(MultipartFile.class), any(ProcessOptions.class), any()))
+                .thenReturn(sent());
+        call(paymentController.process("do", "user+password", "TestCompany", testCsvFile, false, false, false, null, "normal", null, "key-1"));
+
+        // When
+        ResponseEntity<Object> response = call(paymentController.process("do", "user+password", "OtherCompany", testCsvFile, false, false, false, null, "normal", null, "key-1"));
+
+        // Then
+        assertThat(response.getStatusCode()).isEqualTo(HttpStatus.UNPROCESSABLE_ENTITY);
+        verify(payrollService, times(1)).processCsvAndSend(any(), anyString(), anyString(), any(), any(), any());
+    }
+
+    @Test
+    void shouldProcessAgainAfterFailedAttempt() throws Exception {
+        // Given
+        when(payrollService.processCsvAndSend(any(Country.class), anyString(), anyString(), any(MultipartFile.class), any(ProcessOptions.class), any()))
+                .thenThrow(new RuntimeException("Mail server down"))
+                .thenReturn(sent());
+
+        // When
+        assertThrows(RuntimeException.class, () ->
+                call(paymentController.process("do", "user+password", "TestCompany", testCsvFile, false, false, false, null, "normal", null, "key-1")));
+        ResponseEntity<Object> retry = call(paymentController.process("do", "user+password", "TestCompany", testCsvFile, false, false, false, null, "normal", null, "key-1"));
+
+        // Then
+        assertThat(retry.getStatusCode()).isEqualTo(HttpStatus.OK);
+        assertThat(retry.getHeaders().containsKey("Idempotent-Replayed")).isFalse();
+        verify(payrollService, times(2)).processCsvAndSend(any(), anyString(), anyString(), any(), any(), any());
+    }
+
+    @Test
+    void shouldReturnOnlyCountsInSummaryMode() throws Exception {
+        // Given
+        when(payrollService.processCsvAndCount(any(Country.class), anyString(), anyString(), any(MultipartFile.class), any(ProcessOptions.class), any()))
+                .thenReturn(new ProcessTotals(3, 2, 0,
+                        List.of(new FailedPaystub(1, "jane@example.com", "Jane Smith", "Mailbox unavailable")), "retry-1"));
+
+        // When
+        ResponseEntity<Object> response = call(paymentController.process("do", "user+password", "TestCompany", testCsvFile, false, false, true, null, "normal", null, null));
+
+        // Then
+        assertThat(response.getStatusCode()).isEqualTo(HttpStatus.OK);
+        ProcessSummaryResponse body = (ProcessSummaryResponse) response.getBody();
+        assertThat(body.getCompany()).isEqualTo("TestCompany");
+        assertThat(body.getCountry()).isEqualTo(Country.DO);
+        assertThat(body.getTotal()).isEqualTo(3);
+        assertThat(body.getSent_count()).isEqualTo(2);
+        assertThat(body.getFailed_count()).isEqualTo(1);
+        assertThat(body.getFailed()).extracting(FailedPaystub::email).containsExactly("jane@example.com");
+        assertThat(body.getRetry_id()).isEqualTo("retry-1");
+        assertThat(body.getStarted_at()).isNotNull();
+        assertThat(body.getDuration_ms()).isNotNegative();
+        verify(payrollService, never()).processCsvAndSend(any(), anyString(), anyString(), any(), any(), any());
+    }
+
+    @Test
+    void shouldListFailedRowsWithRetryId() throws Exception {
+        // Given
+        when(payrollService.processCsvAndSend(any(Country.class), anyString(), anyString(), any(MultipartFile.class), any(ProcessOptions.class), any()))
+                .thenReturn(new BatchResult(
+                        List.of(new SentPaystub(0, "john@example.com", "John Doe", Instant.now())),
+                        List.of(new FailedPaystub(1, "jane@example.com", "Jane Smith", "Mailbox unavailable")),
+                        "retry-1"));
+
+        // When
+        ResponseEntity<Object> response = call(paymentController.process("do", "user+password", "TestCompany", testCsvFile, false, false, false, null, "normal", null, null));
+
+        // Then
+        assertThat(response.getStatusCode()).isEqualTo(HttpStatus.OK);
+        ProcessPaymentResponse body = (ProcessPaymentResponse) response.getBody();
+        assertThat(body.getSent()).extracting(SentPaystub::row).containsExactly(0);
+        assertThat(body.getFailed()).extracting(FailedPaystub::row, FailedPaystub::reason)
+                .containsExactly(tuple(1, "Mailbox unavailable"));
+        assertThat(body.getRetry_id()).isEqualTo("retry-1");
+    }
+
+    @Test
+    void shouldRetryFailedRows() throws Exception {
+        // Given
+        when(payrollService.retryFailed("retry-1", List.of(1))).thenReturn(Optional.of(new PayrollService.Retry(
+                Country.DO, "TestCompany", sent(new SentPaystub(1, "jane@example.com", "Jane Smith", Instant.now())))));
+
+        // When
+        ResponseEntity<Object> response = paymentController.retry("retry-1", List.of(1));
+
+        // Then
+        assertThat(response.getStatusCode()).isEqualTo(HttpStatus.OK);
+        ProcessPaymentResponse body = (ProcessPaymentResponse) response.getBody();
+        assertThat(body.getCompany()).isEqualTo("TestCompany");
+        assertThat(body.getCountry()).isEqualTo(Country.DO);
+        assertThat(body.getSent()).extracting(SentPaystub::row).containsExactly(1);
+        assertThat(body.getFailed()).isEmpty();
+        assertThat(body.getRetry_id()).isNull();
+    }
+
+    @Test
+    void shouldReturnNotFoundForUnknownRetryId() throws Exception {
+        // Given
+        when(payrollService.retryFailed("unknown", null)).thenReturn(Optional.empty());
+
+        // When
+        ResponseEntity<Object> response = paymentController.retry("unknown", null);
+
+        // Then
+        assertThat(response.getStatusCode()).isEqualTo(HttpStatus.NOT_FOUND);
+        assertThat(response.getBody()).isEqualTo(Map.of("error", "Unknown or expired retry id."));
+    }
+
+    @Test
+    void shouldRejectRetryOfRowThatDidNotFail() throws Exception {
+        // Given
+        when(payrollService.retryFailed("retry-1", List.of(0)))
+                .thenThrow(new IllegalArgumentException("Row 0 is not a failed row of this batch."));
+
+        // When
+        ResponseEntity<Object> response = paymentController.retry("retry-1", List.of(0));
+
+        // Then
+        assertThat(response.getStatusCode()).isEqualTo(HttpStatus.BAD_REQUEST);
+        assertThat(response.getBody()).isEqualTo(Map.of("error", "Row 0 is not a failed row of this batch."));
+    }
+
+    @Test
+    void shouldAbortBatchWhenClientDisconnects() throws Exception {
+        // Given
+        CountDownLatch started = new CountDownLatch(1);
+        CountDownLatch aborted = new CountDownLatch(1);
+        when(payrollService.processCsvAndSend(any(Country.class), anyString(), anyString(), any(MultipartFile.class), any(ProcessOptions.class), any()))
+                .thenAnswer(inv -> {
+                    inv.getArgument(5, SentListener.class).onStarted("batch-1");
+                    started.countDown();
+                    aborted.await(5, TimeUnit.SECONDS);
+                    return sent();
+                });
+        when(batches.abort("batch-1")).thenAnswer(inv -> {
+            aborted.countDown();
+            return true;
+        });
+        MockHttpServletRequest servletRequest = new MockHttpServletRequest();
+        servletRequest.setAsyncSupported(true);
+        MockHttpServletResponse servletResponse = new MockHttpServletResponse();
+        WebAsyncManager async = WebAsyncUtils.getAsyncManager(new ServletWebRequest(servletRequest, servletResponse));
+        async.setAsyncWebRequest(new StandardServletAsyncWebRequest(servletRequest, servletResponse));
+        async.setTaskExecutor(new SimpleAsyncTaskExecutor());
+        async.startCallableProcessing(paymentController.process(
+                "do", "user+password", "TestCompany", testCsvFile, false, false, false, null, "normal", null, null));
+        assertThat(started.await(5, TimeUnit.SECONDS)).isTrue();
+
+        // When
+        MockAsyncContext context = (MockAsyncContext) servletRequest.getAsyncContext();
+        for (AsyncListener listener : context.getListeners()) {
+            listener.onError(new AsyncEvent(context, new IOException("Broken pipe")));
+        }
+
+        // Then
+        verify(batches).abort("batch-1");
+        assertThat(aborted.getCount()).isZero();
+    }
+
+    @SuppressWarnings("unchecked")
+    private static ResponseEntity<Object> call(WebAsyncTask<ResponseEntity<Object>> task) throws Exception {
+        return (ResponseEntity<Object>) task.getCallable().call();
+    }
+
+    private static BatchResult sent(SentPaystub... entries) {
+        return new BatchResult(List.of(entries), List.of(), null);
+    }
 }
@@ -1,19 +1,53 @@
 package com.atdev.paystubs_api.payment;
 
+import com.atdev.paystubs_api.admission.AdmissionRejectedException;
+import com.atdev.paystubs_api.admission.BatchAdmission;
+import com.atdev.paystubs_api.batch.RunningBatches;
+import com.atdev.paystubs_api.bulkhead.CompanyBulkheads;
+import com.atdev.paystubs_api.checkpoint.Checkpoint;
+import com.atdev.paystubs_api.checkpoint.CheckpointStore;
+import com.atdev.paystubs_api.checkpoint.ResumableBatch;
+import com.atdev.paystubs_api.email.AttachmentStore;
+import com.atdev.paystubs_api.email.DeferredMailStore;
+import com.atdev.paystubs_api.email.Delivery;
 import com.atdev.paystubs_api.email.EmailService;
+import com.atdev.paystubs_api.email.MailDeferredException;
+import com.atdev.paystubs_api.pipeline.FairScheduler;
+import com.atdev.paystubs_api.pipeline.MemoryBudget;
+import com.atdev.paystubs_api.pipeline.StagedPipeline;
+import jakarta.activation.DataSource;
 import org.junit.jupiter.api.BeforeEach;
 import org.junit.jupiter.api.Test;
 import org.junit.jupiter.api.extension.ExtendWith;
+import org.junit.jupiter.api.io.TempDir;
+import org.mockito.ArgumentCaptor;
 import org.mockito.Mock;
+import org.mockito.stubbing.Answer;
 import org.mockito.junit.jupiter.MockitoExtension;
 import org.springframework.mock.web.MockMultipartFile;
+import org.springframework.test.util.ReflectionTestUtils;
+import org.springframework.util.unit.DataSize;
 import org.springframework.web.multipart.MultipartFile;
 
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.Duration;
+import java.util.Arrays;
 import java.util.List;
 import java.util.Locale;
 import java.util.Map;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CyclicBarrier;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.stream.IntStream;
 
 import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.tuple;
 import static org.junit.jupiter.api.Assertions.assertThrows;
 import static org.mockito.ArgumentMatchers.*;
 import static org.mockito.Mockito.*;
@@ -33,8 +67,20 @@ class PayrollServiceTest {
     @Mock
     private EmailService emailService;
 
+    @TempDir
+    Path checkpointDir;
+
+    @TempDir
+    Path spillDir;
+
     private PayrollService payrollService;
 
+    private final FailedRowStore failedRows = new FailedRowStore(100, Duration.ofHours(1));
+
+    private final RunningBatches batches = new RunningBatches(Duration.ZERO);
+
+    private MemoryBudget budget = new MemoryBudget(DataSize.ofMegabytes(64), DataSize.ofKilobytes(64));
+
     private MultipartFile testCsvFile;
     private List<PayrollRecord> testRecords;
     private byte[] testLogo;
@@ -42,7 +88,13 @@ class PayrollServiceTest {
 
     @BeforeEach
     void setUp() {
-        payrollService = new PayrollService(csvService, pdfService, logoService, emailService);
+        payrollService = new PayrollService(csvService, pdfService, logoService, emailService,
+                new BatchAdmission(4, 20000, 16, Duration.ofSeconds(1), Duration.ofSeconds(30)),
+                failedRows,
+                new CheckpointStore(false, checkpointDir, 500, 1000),
+                batches,
+                new StagedPipeline(1, 1, 4, budget, CompanyBulkheads.unbounded(), FairScheduler.unbounded()),
+                new AttachmentStore(true, 1000, DataSize.ofMegabytes(1), spillDir));
 
         testCsvFile = new MockMultipartFile(
                 "file",
@@ -79,11 +131,10 @@ class PayrollServiceTest {
         // Given
         when(csvService.parse(testCsvFile)).thenReturn(testRecords);
         when(logoService.loadLogo("TestCompany")).thenReturn(testLogo);
-        when(pdfService.render(any(PayrollRecord.class), eq("TestCompany"), eq(testLogo), any()))
-                .thenReturn(testPdf);
+        doAnswer(writes(testPdf)).when(pdfService).render(any(PayrollRecord.class), eq("TestCompany"), eq(testLogo), any(), any(OutputStream.class));
 
         // When
-        List<Map<String, Object>> result = payrollService.processCsvAndSend(
+        BatchResult result = payrollService.processCsvAndSend(
                 Country.US,
                 "user:password",
                 "TestCompany",
@@ -91,12 +142,14 @@ class PayrollServiceTest {
         );
 
         // Then
-        assertThat(result).hasSize(2);
+        assertThat(result.sent()).hasSize(2);
+        assertThat(result.failed()).isEmpty();
+        assertThat(result.retryId()).isNull();
 
         verify(csvService).parse(testCsvFile);
         verify(logoService).loadLogo("TestCompany");
-        verify(pdfService, times(2)).render(any(PayrollRecord.class), eq("TestCompany"), eq(testLogo), any());
-        verify(emailService, times(2)).sendEmail(any(PayrollRecord.class), eq("TestCompany"), eq(testPdf), any(Locale.class));
+        verify(pdfService, times(2)).render(any(PayrollRecord.class), eq("TestCompany"), eq(testLogo), any(), any(OutputStream.class));
+        verify(emailService, times(2)).sendAttachment(any(PayrollRecord.class), eq("TestCompany"), attachmentOf(testPdf), any(Locale.class));
     }
 
     @Test
@@ -104,16 +157,16 @@ class PayrollServiceTest {
         // Given
         when(csvService.parse(testCsvFile)).thenReturn(testRecords);
         when(logoService.loadLogo(anyString())).thenReturn(testLogo);
-        when(pdfService.render(any(), anyString(), any(), any())).thenReturn(testPdf);
+        doAnswer(writes(testPdf)).when(pdfService).render(any(), anyString(), any(), any(), any(OutputStream.class));
 
         // When
         payrollService.processCsvAndSend(Country.US, "user:password", "TestCompany", testCsvFile);
 
         // Then
-        verify(emailService, times(2)).sendEmail(
+        verify(emailService, times(2)).sendAttachment(
                 any(PayrollRecord.class),
                 anyString(),
-                any(byte[].class),
+                any(DataSource.class),
                 eq(Locale.ENGLISH)
         );
     }
@@ -123,16 +176,16 @@ class PayrollServiceTest {
         // Given
         when(csvService.parse(testCsvFile)).thenReturn(testRecords);
         when(logoService.loadLogo(anyString())).thenReturn(testLogo);
-        when(pdfService.render(any(), anyString(), any(), any())).thenReturn(testPdf);
+        doAnswer(writes(testPdf)).when(pdfService).render(any(), anyString(), any(), any(), any(OutputStream.class));
 
         // When
         payrollService.processCsvAndSend(Country.DO, "user:password", "TestCompany", testCsvFile);
 
         // Then
-        verify(emailService, times(2)).sendEmail(
+        verify(emailService, times(2)).sendAttachment(
                 any(PayrollRecord.class),
                 anyString(),
-                any(byte[].class),
+                any(DataSource.class),
                 eq(new Locale("es", "DO"))
         );
     }
@@ -142,10 +195,10 @@ class PayrollServiceTest {
         // Given
         when(csvService.parse(testCsvFile)).thenReturn(testRecords);
         when(logoService.loadLogo(anyString())).thenReturn(testLogo);
-        when(pdfService.render(any(), anyString(), any(), any())).thenReturn(testPdf);
+        doAnswer(writes(testPdf)).when(pdfService).render(any(), anyString(), any(), any(), any(OutputStream.class));
 
         // When
-        List<Map<String, Object>> result = payrollService.processCsvAndSend(
+        BatchResult result = payrollService.processCsvAndSend(
                 Country.US,
                 "user:password",
                 "TestCompany",
@@ -153,17 +206,20 @@ class PayrollServiceTest {
         );
 
         // Then
-        assertThat(result).hasSize(2);
-
-        Map<String, Object> first = result.get(0);
-        assertThat(first).containsKeys("email", "full_name", "sent_at");
-        assertThat(first.get("email")).isEqualTo("john@example.com");
-        assertThat(first.get("full_name")).isEqualTo("John Doe");
-        assertThat(first.get("sent_at")).isNotNull();
-
-        Map<String, Object> second = result.get(1);
-        assertThat(second.get("email")).isEqualTo("jane@example.com");
-        assertThat(second.get("full_name")).isEqualTo("Jane Smith");
+        assertThat(result.sent()).hasSize(2);
+        assertThat(result.failed()).isEmpty();
+        assertThat(result.retryId()).isNull();
+
+        SentPaystub first = result.sent().get(0);
+        assertThat(first.row()).isZero();
+        assertThat(first.email()).isEqualTo("john@example.com");
+        assertThat(first.fullName()).isEqualTo("John Doe");
+        assertThat(first.sentAt()).isNotNull();
+
+        SentPaystub second = result.sent().get(1);
+        assertThat(second.row()).isEqualTo(1);
+        assertThat(second.email()).isEqualTo("jane@example.com");
+        assertThat(second.fullName()).isEqualTo("Jane Smith");
     }
 
     @Test
@@ -173,7 +229,7 @@ class PayrollServiceTest {
         when(logoService.loadLogo(anyString())).thenReturn(testLogo);
 
         // When
-        List<Map<String, Object>> result = payrollService.processCsvAndSend(
+        BatchResult result = payrollService.processCsvAndSend(
                 Country.US,
                 "user:password",
                 "TestCompany",
@@ -181,9 +237,9 @@ class PayrollServiceTest {
         );
 
         // Then
-        assertThat(result).isEmpty();
-        verify(pdfService, never()).render(any(), anyString(), any(), any());
-        verify(emailService, never()).sendEmail(any(), anyString(), any(), any());
+        assertThat(result.sent()).isEmpty();
+        verify(pdfService, never()).render(any(), anyString(), any(), any(), any(OutputStream.class));
+        verify(emailService, never()).sendAttachment(any(), anyString(), any(), any());
     }
 
     @Test
@@ -197,8 +253,8 @@ class PayrollServiceTest {
         );
 
         verify(logoService, never()).loadLogo(anyString());
-        verify(pdfService, never()).render(any(), anyString(), any(), any());
-        verify(emailService, never()).sendEmail(any(), anyString(), any(), any());
+        verify(pdfService, never()).render(any(), anyString(), any(), any(), any(OutputStream.class));
+        verify(emailService, never()).sendAttachment(any(), anyString(), any(), any());
     }
 
     @Test
@@ -213,45 +269,201 @@ class PayrollServiceTest {
         );
 
         verify(csvService).parse(testCsvFile);
-        verify(pdfService, never()).render(any(), anyString(), any(), any());
-        verify(emailService, never()).sendEmail(any(), anyString(), any(), any());
+        verify(pdfService, never()).render(any(), anyString(), any(), any(), any(OutputStream.class));
+        verify(emailService, never()).sendAttachment(any(), anyString(), any(), any());
     }
 
     @Test
-    void shouldPropagateExceptionFromPdfService() throws Exception {
+    void shouldReportRowWhosePdfFailsAndSendTheRest() throws Exception {
         // Given
         when(csvService.parse(testCsvFile)).thenReturn(testRecords);
         when(logoService.loadLogo(anyString())).thenReturn(testLogo);
-        when(pdfService.render(any(), anyString(), any(), any()))
-                .thenThrow(new RuntimeException("PDF generation error"));
+        doThrow(new RuntimeException("PDF generation error"))
+                .when(pdfService).render(eq(testRecords.get(0)), anyString(), any(), any(), any(OutputStream.class));
+        doAnswer(writes(testPdf)).when(pdfService).render(eq(testRecords.get(1)), anyString(), any(), any(), any(OutputStream.class));
 
-        // When/Then
-        assertThrows(RuntimeException.class, () ->
-                payrollService.processCsvAndSend(Country.US, "user:password", "TestCompany", testCsvFile)
-        );
+        // When
+        BatchResult result = payrollService.processCsvAndSend(Country.US, "user:password", "TestCompany", testCsvFile);
 
-        verify(csvService).parse(testCsvFile);
-        verify(logoService).loadLogo(anyString());
-        verify(emailService, never()).sendEmail(any(), anyString(), any(), any());
+        // Then
+        assertThat(result.sent()).extracting(SentPaystub::row).containsExactly(1);
+        assertThat(result.failed()).containsExactly(
+                new FailedPaystub(0, "john@example.com", "John Doe", "PDF generation error"));
+        assertThat(result.retryId()).isNotNull();
+        verify(emailService).sendAttachment(eq(testRecords.get(1)), anyString(), any(), any());
+        verify(emailService, never()).sendAttachment(eq(testRecords.get(0)), anyString(), any(), any());
+    }
+
+    @Test
+    void shouldReportRowWhoseEmailFailsAndSendTheRest() throws Exception {
+        // Given
+        when(csvService.parse(testCsvFile)).thenReturn(testRecords);
+        when(logoService.loadLogo(anyString())).thenReturn(testLogo);
+        doAnswer(writes(testPdf)).when(pdfService).render(any(), anyString(), any(), any(), any(OutputStream.class));
+        lenient().doThrow(new RuntimeException("Email send error"))
+                .when(emailService).sendAttachment(eq(testRecords.get(1)), anyString(), any(), any());
+
+        // When
+        BatchResult result = payrollService.processCsvAndSend(Country.US, "user:password", "TestCompany", testCsvFile);
+
+        // Then
+        assertThat(result.sent()).extracting(SentPaystub::email).containsExactly("john@example.com");
+        assertThat(result.failed()).extracting(FailedPaystub::row, FailedPaystub::reason)
+                .containsExactly(tuple(1, "Email send error"));
+    }
+
+    @Test
+    void shouldReportDeferredRowAndMakeItRetryableOnceRelayRefusesIt() throws Exception {
+        // Given: the relay is down when Jane's paystub is sent
+        Path file = Path.of("deferred", "0000000000001-000000001.eml");
+        when(csvService.parse(testCsvFile)).thenReturn(testRecords);
+        when(logoService.loadLogo(anyString())).thenReturn(testLogo);
+        doAnswer(writes(testPdf)).when(pdfService).render(any(), anyString(), any(), any(), any(OutputStream.class));
+        lenient().doThrow(new MailDeferredException(List.of(file))).doNothing()
+                .when(emailService).sendAttachment(eq(testRecords.get(1)), anyString(), any(), any());
+
+        // When
+        BatchResult result = payrollService.processCsvAndSend(Country.US, "user:password", "TestCompany", testCsvFile);
+
+        // Then
+        assertThat(result.sent()).extracting(SentPaystub::row, SentPaystub::status)
+                .containsExactly(tuple(0, "sent"), tuple(1, "deferred"));
+        assertThat(result.sent().get(1).sentAt()).isNull();
+        assertThat(result.failed()).isEmpty();
+        assertThat(result.retryId()).isNotNull();
+        assertThat(payrollService.retryFailed(result.retryId(), null)).isEmpty();
+
+        // When: the relay refuses the deferred message for good
+        failedRows.resolved(new DeferredMailStore.Resolved(file, new RuntimeException("550 No such user")));
+        PayrollService.Retry retry = payrollService.retryFailed(result.retryId(), null).orElseThrow();
+
+        // Then
+        assertThat(retry.result().sent()).extracting(SentPaystub::row, SentPaystub::status)
+                .containsExactly(tuple(1, "sent"));
+        verify(emailService, times(2)).sendAttachment(eq(testRecords.get(1)), anyString(), any(), any());
     }
 
     @Test
-    void shouldPropagateExceptionFromEmailService() throws Exception {
+    void shouldRetryOnlyFailedRowsOfEarlierBatch() throws Exception {
         // Given
         when(csvService.parse(testCsvFile)).thenReturn(testRecords);
         when(logoService.loadLogo(anyString())).thenReturn(testLogo);
-        when(pdfService.render(any(), anyString(), any(), any())).thenReturn(testPdf);
+        doAnswer(writes(testPdf)).when(pdfService).render(any(), anyString(), any(), any(), any(OutputStream.class));
+        lenient().doThrow(new RuntimeException("Email send error")).doNothing()
+                .when(emailService).sendAttachment(eq(testRecords.get(1)), anyString(), any(), any());
+        BatchResult first = payrollService.processCsvAndSend(Country.US, "user:password", "TestCompany", testCsvFile);
+
+        // When
+        PayrollService.Retry retry = payrollService.retryFailed(first.retryId(), null).orElseThrow();
+
+        // Then
+        assertThat(retry.company()).isEqualTo("TestCompany");
+        assertThat(retry.country()).isEqualTo(Country.US);
+        assertThat(retry.result().sent()).extracting(SentPaystub::row, SentPaystub::email)
+                .containsExactly(tuple(1, "jane@example.com"));
+        assertThat(retry.result().failed()).isEmpty();
+        assertThat(retry.result().retryId()).isNull();
+        verify(emailService, times(1)).sendAttachment(eq(testRecords.get(0)), anyString(), any(), any());
+        verify(emailService, times(2)).sendAttachment(eq(testRecords.get(1)), anyString(), any(), any());
+        assertThat(payrollService.retryFailed(first.retryId(), null)).isEmpty();
+    }
+
+    @Test
+    void shouldKeepRowsThatFailAgainUnderSameRetryId() throws Exception {
+        // Given
+        when(csvService.parse(testCsvFile)).thenReturn(testRecords);
+        when(logoService.loadLogo(anyString())).thenReturn(testLogo);
+        doAnswer(writes(testPdf)).when(pdfService).render(any(), anyString(), any(), any(), any(OutputStream.class));
         doThrow(new RuntimeException("Email send error"))
-                .when(emailService).sendEmail(any(), anyString(), any(), any());
+                .when(emailService).sendAttachment(any(), anyString(), any(), any());
+        BatchResult first = payrollService.processCsvAndSend(Country.US, "user:password", "TestCompany", testCsvFile);
+
+        // When
+        PayrollService.Retry retry = payrollService.retryFailed(first.retryId(), List.of(1)).orElseThrow();
+
+        // Then
+        assertThat(retry.result().failed()).extracting(FailedPaystub::row).containsExactly(1);
+        assertThat(retry.result().retryId()).isEqualTo(first.retryId());
+        verify(emailService, times(1)).sendAttachment(eq(testRecords.get(0)), anyString(), any(), any());
+        assertThat(payrollService.retryFailed(first.retryId(), null).orElseThrow().result().failed())
+                .extracting(FailedPaystub::row).containsExactly(0, 1);
+    }
+
+    @Test
+    void shouldRejectRetryOfRowThatDidNotFail() throws Exception {
+        // Given
+        when(csvService.parse(testCsvFile)).thenReturn(testRecords);
+        when(logoService.loadLogo(anyString())).thenReturn(testLogo);
+        doAnswer(writes(testPdf)).when(pdfService).render(any(), anyString(), any(), any(), any(OutputStream.class));
+        lenient().doThrow(new RuntimeException("Email send error"))
+                .when(emailService).sendAttachment(eq(testRecords.get(1)), anyString(), any(), any());
+        BatchResult first = payrollService.processCsvAndSend(Country.US, "user:password", "TestCompany", testCsvFile);
 
         // When/Then
-        assertThrows(RuntimeException.class, () ->
-                payrollService.processCsvAndSend(Country.US, "user:password", "TestCompany", testCsvFile)
-        );
+        assertThrows(IllegalArgumentException.class, () -> payrollService.retryFailed(first.retryId(), List.of(0)));
+        assertThat(payrollService.retryFailed("unknown", null)).isEmpty();
+    }
 
-        verify(csvService).parse(testCsvFile);
-        verify(logoService).loadLogo(anyString());
-        verify(pdfService).render(any(), anyString(), any(), any());
+    @Test
+    @SuppressWarnings("unchecked")
+    void shouldReportDeliveriesRefusedWithinDomainBatch() throws Exception {
+        // Given
+        ReflectionTestUtils.setField(payrollService, "domainBatchSize", 2);
+        List<PayrollRecord> rows = List.of(record("A One", "a1@alpha.com"), record("A Two", "a2@alpha.com"));
+        when(csvService.parse(testCsvFile)).thenReturn(rows);
+        when(logoService.loadLogo(anyString())).thenReturn(testLogo);
+        doAnswer(writes(testPdf)).when(pdfService).render(any(), anyString(), any(), any(), any(OutputStream.class));
+        when(emailService.sendBatch(anyList(), anyString(), any()))
+                .thenReturn(Map.of(1, new RuntimeException("554 Transaction failed")));
+
+        // When
+        BatchResult result = payrollService.processCsvAndSend(Country.US, "user:password", "TestCompany", testCsvFile);
+
+        // Then
+        assertThat(result.sent()).extracting(SentPaystub::email).containsExactly("a1@alpha.com");
+        assertThat(result.failed()).extracting(FailedPaystub::email, FailedPaystub::reason)
+                .containsExactly(tuple("a2@alpha.com", "554 Transaction failed"));
+    }
+
+    @Test
+    void shouldFailWholeRecipientGroupWhenItsMessageFails() throws Exception {
+        // Given
+        PayrollRecord johnAgain = record("John Doe", "john@example.com");
+        List<PayrollRecord> rows = List.of(testRecords.get(0), testRecords.get(1), johnAgain);
+        when(csvService.parse(testCsvFile)).thenReturn(rows);
+        when(logoService.loadLogo(anyString())).thenReturn(testLogo);
+        doAnswer(writes(testPdf)).when(pdfService).render(any(), anyString(), any(), any(), any(OutputStream.class));
+        lenient().doThrow(new RuntimeException("Email send error"))
+                .when(emailService).sendEmails(eq(List.of(testRecords.get(0), johnAgain)), anyString(), anyList(), any());
+
+        // When
+        BatchResult result = payrollService.processCsvAndSend(Country.US, "user:password", "TestCompany", testCsvFile,
+                ProcessOptions.builder().groupByRecipient(true).build());
+
+        // Then
+        assertThat(result.sent()).extracting(SentPaystub::row).containsExactly(1);
+        assertThat(result.failed()).extracting(FailedPaystub::row).containsExactly(0, 2);
+    }
+
+    @Test
+    void shouldSendOtherRecipientsWhenEveryPdfOfOneFails() throws Exception {
+        // Given
+        PayrollRecord johnAgain = record("John Doe", "john@example.com");
+        List<PayrollRecord> rows = List.of(testRecords.get(0), testRecords.get(1), johnAgain);
+        when(csvService.parse(testCsvFile)).thenReturn(rows);
+        when(logoService.loadLogo(anyString())).thenReturn(testLogo);
+        lenient().doAnswer(writes(testPdf)).when(pdfService).render(any(), anyString(), any(), any(), any(OutputStream.class));
+        lenient().doThrow(new RuntimeException("PDF generation error"))
+                .when(pdfService).render(eq(testRecords.get(0)), anyString(), any(), any(), any(OutputStream.class));
+
+        // When
+        BatchResult result = payrollService.processCsvAndSend(Country.US, "user:password", "TestCompany", testCsvFile,
+                ProcessOptions.builder().groupByRecipient(true).build());
+
+        // Then
+        assertThat(result.sent()).extracting(SentPaystub::row).containsExactly(1);
+        assertThat(result.failed()).extracting(FailedPaystub::row).containsExactly(0, 2);
+        verify(emailService, times(1)).sendEmails(anyList(), anyString(), anyList(), any());
     }
 
     @Test
@@ -259,7 +471,7 @@ class PayrollServiceTest {
         // Given
         when(csvService.parse(testCsvFile)).thenReturn(testRecords);
         when(logoService.loadLogo("TestCompany")).thenReturn(testLogo);
-        when(pdfService.render(any(), anyString(), any(), any())).thenReturn(testPdf);
+        doAnswer(writes(testPdf)).when(pdfService).render(any(), anyString(), any(), any(), any(OutputStream.class));
 
         // When
         payrollService.processCsvAndSend(Country.US, "user:password", "TestCompany", testCsvFile);
@@ -273,13 +485,408 @@ class PayrollServiceTest {
         // Given
         when(csvService.parse(testCsvFile)).thenReturn(testRecords);
         when(logoService.loadLogo(anyString())).thenReturn(testLogo);
-        when(pdfService.render(any(), anyString(), any(), any())).thenReturn(testPdf);
+        doAnswer(writes(testPdf)).when(pdfService).render(any(), anyString(), any(), any(), any(OutputStream.class));
 
         // When
         payrollService.processCsvAndSend(Country.US, "user:password", "TestCompany", testCsvFile);
 
         // Then
-        verify(pdfService).render(eq(testRecords.get(0)), eq("TestCompany"), eq(testLogo), any());
-        verify(pdfService).render(eq(testRecords.get(1)), eq("TestCompany"), eq(testLogo), any());
+        verify(pdfService).render(eq(testRecords.get(0)), eq("TestCompany"), eq(testLogo), any(), any(OutputStream.class));
+        verify(pdfService).render(eq(testRecords.get(1)), eq("TestCompany"), eq(testLogo), any(), any(OutputStream.class));
+    }
+
+    @Test
+    void shouldSendOneMessagePerRecipientWhenGrouping() throws Exception {
+        // Given
+        PayrollRecord johnSecondPosition = new PayrollRecord(
+                "John Doe",
+                "JOHN@example.com",
+                "Consultant",
+                10.0, 20.0, 30.0, 5.0,
+                500.0, 450.0, 385.0,
+                "2024-01"
+        );
+        List<PayrollRecord> rows = List.of(testRecords.get(0), testRecords.get(1), johnSecondPosition);
+        when(csvService.parse(testCsvFile)).thenReturn(rows);
+        when(logoService.loadLogo(anyString())).thenReturn(testLogo);
+        doAnswer(writes(testPdf)).when(pdfService).render(any(), anyString(), any(), any(), any(OutputStream.class));
+        ProcessOptions options = ProcessOptions.builder().groupByRecipient(true).build();
+
+        // When
+        BatchResult result = payrollService.processCsvAndSend(
+                Country.US, "user:password", "TestCompany", testCsvFile, options);
+
+        // Then
+        assertThat(result.sent()).extracting(SentPaystub::email)
+                .containsExactly("john@example.com", "jane@example.com", "JOHN@example.com");
+        verify(pdfService, times(3)).render(any(), anyString(), any(), any(), any(OutputStream.class));
+        verify(emailService).sendEmails(eq(List.of(testRecords.get(0), johnSecondPosition)), eq("TestCompany"), anyList(), eq(Locale.ENGLISH));
+        verify(emailService).sendEmails(eq(List.of(testRecords.get(1))), eq("TestCompany"), anyList(), eq(Locale.ENGLISH));
+        verify(emailService, never()).sendAttachment(any(), anyString(), any(), any());
+    }
+
+    @Test
+    @SuppressWarnings("unchecked")
+    void shouldSendInDomainBatchesAndReportInCsvOrder() throws Exception {
+        // Given
+        ReflectionTestUtils.setField(payrollService, "domainBatchSize", 2);
+        List<PayrollRecord> rows = List.of(
+                record("A One", "a1@alpha.com"),
+                record("B One", "b1@beta.com"),
+                record("A Two", "a2@alpha.com"),
+                record("A Three", "a3@alpha.com")
+        );
+        when(csvService.parse(testCsvFile)).thenReturn(rows);
+        when(logoService.loadLogo(anyString())).thenReturn(testLogo);
+        doAnswer(writes(testPdf)).when(pdfService).render(any(), anyString(), any(), any(), any(OutputStream.class));
+
+        // When
+        BatchResult result = payrollService.processCsvAndSend(
+                Country.US, "user:password", "TestCompany", testCsvFile);
+
+        // Then
+        ArgumentCaptor<List<Delivery>> batches = ArgumentCaptor.forClass(List.class);
+        verify(emailService, times(3)).sendBatch(batches.capture(), eq("TestCompany"), eq(Locale.ENGLISH));
+        assertThat(batches.getAllValues())
+                .extracting(batch -> batch.stream().map(Delivery::email).toList())
+                .containsExactly(
+                        List.of("a1@alpha.com", "a2@alpha.com"),
+                        List.of("b1@beta.com"),
+                        List.of("a3@alpha.com")
+                );
+        assertThat(result.sent()).extracting(SentPaystub::email)
+                .containsExactly("a1@alpha.com", "b1@beta.com", "a2@alpha.com", "a3@alpha.com");
+        verify(emailService, never()).sendAttachment(any(), anyString(), any(), any());
+    }
+
+    @Test
+    void shouldRejectBeforeParsingWhenAdmissionQueueIsFull() throws Exception {
+        // Given
+        BatchAdmission busy = new BatchAdmission(1, 100, 0, Duration.ofSeconds(1), Duration.ofSeconds(30));
+        ReflectionTestUtils.setField(payrollService, "admission", busy);
+        BatchAdmission.Permit running = busy.admit(1);
+
+        // When/Then
+        assertThrows(AdmissionRejectedException.class, () ->
+                payrollService.processCsvAndSend(Country.US, "user:password", "TestCompany", testCsvFile, ProcessOptions.defaults()));
+        assertThrows(AdmissionRejectedException.class, () ->
+                payrollService.processCsvAndCount(Country.US, "user:password", "TestCompany", testCsvFile, ProcessOptions.defaults()));
+        verify(csvService, never()).parse(any());
+        running.close();
+    }
+
+    @Test
+    void shouldCountFailedRowsInSummary() throws Exception {
+        // Given
+        when(csvService.parse(testCsvFile)).thenReturn(testRecords);
+        when(logoService.loadLogo(anyString())).thenReturn(testLogo);
+        doAnswer(writes(testPdf)).when(pdfService).render(any(), anyString(), any(), any(), any(OutputStream.class));
+        lenient().doThrow(new RuntimeException("Email send error"))
+                .when(emailService).sendAttachment(eq(testRecords.get(0)), anyString(), any(), any());
+
+        // When
+        ProcessTotals totals = payrollService.processCsvAndCount(
+                Country.US, "user:password", "TestCompany", testCsvFile, ProcessOptions.defaults());
+
+        // Then
+        assertThat(totals.total()).isEqualTo(2);
+        assertThat(totals.sent()).isEqualTo(1);
+        assertThat(totals.failed()).extracting(FailedPaystub::row, FailedPaystub::reason)
+                .containsExactly(tuple(0, "Email send error"));
+        assertThat(totals.retryId()).isNotNull();
+    }
+
+    @Test
+    void shouldResumeRowsUnderTheirOriginalIndex() throws Exception {
+        // Given
+        when(logoService.loadLogo(anyString())).thenReturn(testLogo);
+        doAnswer(writes(testPdf)).when(pdfService).render(any(), anyString(), any(), any(), any(OutputStream.class));
+        ResumableBatch batch = new ResumableBatch("batch-1", Country.US, "TestCompany", ProcessOptions.defaults(),
+                5, new int[]{3, 4}, testRecords, Checkpoint.NONE);
+
+        // When
+        BatchResult result = payrollService.resume(batch, (row, entry) -> {});
+
+        // Then
+        assertThat(result.sent()).extracting(SentPaystub::row, SentPaystub::email)
+                .containsExactly(tuple(3, "john@example.com"), tuple(4, "jane@example.com"));
+        verify(emailService, times(2)).sendAttachment(any(), eq("TestCompany"), attachmentOf(testPdf), eq(Locale.ENGLISH));
+        verify(csvService, never()).parse(any());
+    }
+
+    @Test
+    void shouldDeleteCheckpointOfFinishedBatch() throws Exception {
+        // Given
+        CheckpointStore checkpoints = new CheckpointStore(true, checkpointDir, 1, 1);
+        ReflectionTestUtils.setField(payrollService, "checkpoints", checkpoints);
+        when(logoService.loadLogo(anyString())).thenReturn(testLogo);
+        doAnswer(writes(testPdf)).when(pdfService).render(any(), anyString(), any(), any(), any(OutputStream.class));
+
+        // When
+        payrollService.sendRows(Country.US, "TestCompany", testRecords, ProcessOptions.defaults(), (row, entry) -> {});
+
+        // Then
+        try (var dirs = Files.list(checkpointDir)) {
+            assertThat(dirs).isEmpty();
+        }
+    }
+
+    @Test
+    void shouldKeepCheckpointOfInterruptedBatchForResume() throws Exception {
+        // Given
+        CheckpointStore checkpoints = new CheckpointStore(true, checkpointDir, 1, 1);
+        ReflectionTestUtils.setField(payrollService, "checkpoints", checkpoints);
+        when(logoService.loadLogo(anyString())).thenReturn(testLogo);
+        doAnswer(writes(testPdf)).when(pdfService).render(any(), anyString(), any(), any(), any(OutputStream.class));
+        lenient().doThrow(new InterruptedException())
+                .when(emailService).sendAttachment(eq(testRecords.get(1)), anyString(), any(), any());
+
+        // When
+        assertThrows(InterruptedException.class, () ->
+                payrollService.sendRows(Country.US, "TestCompany", testRecords, ProcessOptions.defaults(), (row, entry) -> {}));
+
+        // Then
+        ResumableBatch batch = checkpoints.claim(checkpoints.pending().get(0)).orElseThrow();
+        assertThat(batch.rows()).containsExactly(1);
+        assertThat(batch.records()).containsExactly(testRecords.get(1));
+    }
+
+    @Test
+    void shouldCountSentRowsWithoutCollectingResults() throws Exception {
+        // Given
+        when(csvService.parse(testCsvFile)).thenReturn(testRecords);
+        when(logoService.loadLogo(anyString())).thenReturn(testLogo);
+        doAnswer(writes(testPdf)).when(pdfService).render(any(), anyString(), any(), any(), any(OutputStream.class));
+
+        // When
+        ProcessTotals totals = payrollService.processCsvAndCount(
+                Country.US, "user:password", "TestCompany", testCsvFile, ProcessOptions.defaults());
+
+        // Then
+        assertThat(totals).isEqualTo(new ProcessTotals(2, 2, 0, List.of(), null));
+        verify(emailService, times(2)).sendAttachment(any(PayrollRecord.class), eq("TestCompany"), attachmentOf(testPdf), eq(Locale.ENGLISH));
+    }
+
+    @Test
+    void shouldSendOnEverySendWorkerAtOnce() throws Exception {
+        // Given
+        ReflectionTestUtils.setField(payrollService, "pipeline", new StagedPipeline(1, 3, 4, budget, CompanyBulkheads.unbounded(), FairScheduler.unbounded()));
+        List<PayrollRecord> rows = IntStream.range(0, 6)
+                .mapToObj(i -> record("Employee " + i, "employee" + i + "@example.com"))
+                .toList();
+        CyclicBarrier allInFlight = new CyclicBarrier(3);
+        when(logoService.loadLogo(anyString())).thenReturn(testLogo);
+        doAnswer(writes(testPdf)).when(pdfService).render(any(), anyString(), any(), any(), any(OutputStream.class));
+        doAnswer(invocation -> allInFlight.await(5, TimeUnit.SECONDS))
+                .when(emailService).sendAttachment(any(), anyString(), any(), any());
+
+        // When
+        BatchResult result = payrollService.processRows(Country.US, "TestCompany", rows, ProcessOptions.defaults(), (row, entry) -> {});
+
+        // Then
+        assertThat(result.failed()).isEmpty();
+        assertThat(result.sent()).extracting(SentPaystub::row).containsExactly(0, 1, 2, 3, 4, 5);
+    }
+
+    @Test
+    void shouldStopPipelineWhenListenerFails() throws Exception {
+        // Given
+        ReflectionTestUtils.setField(payrollService, "pipeline", new StagedPipeline(1, 2, 4, budget, CompanyBulkheads.unbounded(), FairScheduler.unbounded()));
+        List<PayrollRecord> rows = IntStream.range(0, 10)
+                .mapToObj(i -> record("Employee " + i, "employee" + i + "@example.com"))
+                .toList();
+        when(logoService.loadLogo(anyString())).thenReturn(testLogo);
+        doAnswer(writes(testPdf)).when(pdfService).render(any(), anyString(), any(), any(), any(OutputStream.class));
+
+        // When
+        IOException e = assertThrows(IOException.class, () ->
+                payrollService.sendRows(Country.US, "TestCompany", rows, ProcessOptions.defaults(), (row, entry) -> {
+                    throw new IOException("client went away");
+                }));
+
+        // Then
+        assertThat(e).hasMessage("client went away");
+        verify(emailService, atMost(2)).sendAttachment(any(), anyString(), any(), any());
+    }
+
+    @Test
+    void shouldReportRowsNotStartedBeforeDeadlineAsNotSent() throws Exception {
+        // Given
+        ReflectionTestUtils.setField(payrollService, "pipeline", new StagedPipeline(1, 1, 1, budget, CompanyBulkheads.unbounded(), FairScheduler.unbounded()));
+        List<PayrollRecord> rows = IntStream.range(0, 4)
+                .mapToObj(i -> record("Employee " + i, "employee" + i + "@example.com"))
+                .toList();
+        ProcessOptions options = ProcessOptions.builder().timeout(Duration.ofMillis(200)).build();
+        when(logoService.loadLogo(anyString())).thenReturn(testLogo);
+        doAnswer(writes(testPdf)).when(pdfService).render(any(), anyString(), any(), any(), any(OutputStream.class));
+        doAnswer(invocation -> {
+            Thread.sleep(300);
+            return null;
+        }).when(emailService).sendAttachment(any(), anyString(), any(), any());
+
+        // When
+        BatchResult result = payrollService.processRows(Country.US, "TestCompany", rows, options, (row, entry) -> {});
+
+        // Then: row 0 was being sent; 1 waited in the queue and 2 was rendered, but neither had started sending
+        assertThat(result.sent()).extracting(SentPaystub::row).containsExactly(0);
+        assertThat(result.failed()).extracting(FailedPaystub::row, FailedPaystub::reason).containsExactly(
+                tuple(1, "Not sent: batch deadline of PT0.2S exceeded"),
+                tuple(2, "Not sent: batch deadline of PT0.2S exceeded"),
+                tuple(3, "Not sent: batch deadline of PT0.2S exceeded"));
+        assertThat(result.retryId()).isNotNull();
+        verify(emailService, times(1)).sendAttachment(any(), anyString(), any(), any());
+        assertThat(batches.states()).isEmpty();
+    }
+
+    @Test
+    void shouldSkipRowsNotStartedWhenBatchIsAborted() throws Exception {
+        // Given
+        ReflectionTestUtils.setField(payrollService, "pipeline", new StagedPipeline(1, 1, 1, budget, CompanyBulkheads.unbounded(), FairScheduler.unbounded()));
+        List<PayrollRecord> rows = IntStream.range(0, 6)
+                .mapToObj(i -> record("Employee " + i, "employee" + i + "@example.com"))
+                .toList();
+        when(logoService.loadLogo(anyString())).thenReturn(testLogo);
+        doAnswer(writes(testPdf)).when(pdfService).render(any(), anyString(), any(), any(), any(OutputStream.class));
+        doAnswer(invocation -> batches.abort(batches.states().get(0).id()))
+                .when(emailService).sendAttachment(any(), anyString(), any(), any());
+
+        // When
+        BatchResult result = payrollService.processRows(Country.US, "TestCompany", rows, ProcessOptions.defaults(), (row, entry) -> {});
+
+        // Then: rows rendered before the abort are not sent either
+        assertThat(result.sent()).hasSize(1);
+        assertThat(result.sent().size() + result.failed().size()).isEqualTo(6);
+        assertThat(result.failed()).extracting(FailedPaystub::reason).containsOnly("Not sent: batch aborted");
+        verify(emailService, times(1)).sendAttachment(any(), anyString(), any(), any());
+    }
+
+    @Test
+    void shouldReportEachRowOnceWhenRenderedGroupIsDroppedOnAbort() throws Exception {
+        // Given: Carl's second paystub cannot be rendered, and the batch is aborted once every group was rendered
+        ReflectionTestUtils.setField(payrollService, "pipeline", new StagedPipeline(1, 1, 1, budget, CompanyBulkheads.unbounded(), FairScheduler.unbounded()));
+        PayrollRecord broken = record("Carl Cox", "carl@example.com");
+        List<PayrollRecord> rows = List.of(testRecords.get(0), testRecords.get(1), record("Carl Cox", "carl@example.com"), broken);
+        AtomicInteger renders = new AtomicInteger();
+        when(logoService.loadLogo(anyString())).thenReturn(testLogo);
+        doAnswer(invocation -> {
+            renders.incrementAndGet();
+            if (invocation.getArgument(0) == broken) {
+                throw new IllegalStateException("PDF error");
+            }
+            return writes(testPdf).answer(invocation);
+        }).when(pdfService).render(any(), anyString(), any(), any(), any(OutputStream.class));
+        doAnswer(invocation -> {
+            long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(5);
+            while (renders.get() < 4 && System.nanoTime() < deadline) {
+                Thread.sleep(10);
+            }
+            return batches.abort(batches.states().get(0).id());
+        }).when(emailService).sendEmails(anyList(), anyString(), anyList(), any());
+
+        // When
+        BatchResult result = payrollService.processRows(Country.US, "TestCompany", rows,
+                ProcessOptions.builder().groupByRecipient(true).build(), (row, entry) -> {});
+
+        // Then
+        assertThat(result.sent()).extracting(SentPaystub::row).containsExactly(0);
+        assertThat(result.failed()).extracting(FailedPaystub::row, FailedPaystub::reason).containsExactly(
+                tuple(1, "Not sent: batch aborted"),
+                tuple(2, "Not sent: batch aborted"),
+                tuple(3, "PDF error"));
+        verify(emailService, times(1)).sendEmails(anyList(), anyString(), anyList(), any());
+    }
+
+    @Test
+    void shouldHoldRenderedPdfsWithinMemoryBudget() throws Exception {
+        // Given: room for two rendered PDFs
+        budget = new MemoryBudget(DataSize.ofBytes(2L * testPdf.length), DataSize.ofBytes(testPdf.length));
+        ReflectionTestUtils.setField(payrollService, "pipeline", new StagedPipeline(2, 1, 4, budget, CompanyBulkheads.unbounded(), FairScheduler.unbounded()));
+        List<PayrollRecord> rows = IntStream.range(0, 6)
+                .mapToObj(i -> record("Employee " + i, "employee" + i + "@example.com"))
+                .toList();
+        AtomicLong mostUsed = new AtomicLong();
+        when(logoService.loadLogo(anyString())).thenReturn(testLogo);
+        doAnswer(writes(testPdf)).when(pdfService).render(any(), anyString(), any(), any(), any(OutputStream.class));
+        doAnswer(invocation -> {
+            Thread.sleep(20);
+            mostUsed.accumulateAndGet(budget.state().used_bytes(), Math::max);
+            return null;
+        }).when(emailService).sendAttachment(any(), anyString(), any(), any());
+
+        // When
+        BatchResult result = payrollService.processRows(Country.US, "TestCompany", rows, ProcessOptions.defaults(), (row, entry) -> {});
+
+        // Then
+        assertThat(result.sent()).hasSize(6);
+        assertThat(mostUsed.get()).isEqualTo(2L * testPdf.length);
+        assertThat(budget.state().used_bytes()).isZero();
+        assertThat(budget.state().waits()).isPositive();
+    }
+
+    @Test
+    void shouldKeepPdfsOfLargeBatchOffHeap() throws Exception {
+        // Given: batches of two rows or more keep their PDFs in the attachment store
+        AttachmentStore attachments = new AttachmentStore(true, 2, DataSize.ofKilobytes(64), spillDir);
+        ReflectionTestUtils.setField(payrollService, "attachments", attachments);
+        when(logoService.loadLogo(anyString())).thenReturn(testLogo);
+        doAnswer(writes(testPdf)).when(pdfService).render(any(), anyString(), any(), any(), any(OutputStream.class));
+        List<byte[]> attached = new CopyOnWriteArrayList<>();
+        doAnswer(invocation -> {
+            try (InputStream in = invocation.getArgument(2, DataSource.class).getInputStream()) {
+                attached.add(in.readAllBytes());
+            }
+            return null;
+        }).when(emailService).sendAttachment(any(), anyString(), any(), any());
+
+        // When
+        BatchResult result = payrollService.processRows(Country.US, "TestCompany", testRecords, ProcessOptions.defaults(), (row, entry) -> {});
+
+        // Then
+        assertThat(result.sent()).extracting(SentPaystub::row).containsExactly(0, 1);
+        assertThat(attached).containsExactly(testPdf, testPdf);
+        assertThat(attachments.state().off_heap_used_bytes()).isZero();
+        verify(emailService, times(2)).sendAttachment(any(), anyString(), isA(AttachmentStore.Stored.class), any());
+    }
+
+    @Test
+    void shouldSendPdfsRenderedAheadOfTime() throws Exception {
+        // Given
+        Path dir = spillDir.resolve("job-1");
+        when(logoService.loadLogo("TestCompany")).thenReturn(testLogo);
+        doAnswer(writes(testPdf)).when(pdfService).render(any(), anyString(), any(), any(), any(OutputStream.class));
+        payrollService.prerender(Country.US, "TestCompany", testRecords, dir);
+        clearInvocations(pdfService);
+
+        // When
+        BatchResult result = payrollService.processPrerendered(Country.US, "TestCompany", testRecords, ProcessOptions.defaults(),
+                dir, (row, entry) -> {});
+
+        // Then
+        assertThat(result.sent()).extracting(SentPaystub::row).containsExactly(0, 1);
+        verifyNoInteractions(pdfService);
+        verify(emailService, times(2)).sendAttachment(any(PayrollRecord.class), eq("TestCompany"), attachmentOf(testPdf), any(Locale.class));
+    }
+
+    // Streams pdf into the OutputStream PdfService was given.
+    private static Answer<Void> writes(byte[] pdf) {
+        return invocation -> {
+            invocation.getArgument(4, OutputStream.class).write(pdf);
+            return null;
+        };
+    }
+
+    private static DataSource attachmentOf(byte[] pdf) {
+        return argThat(attachment -> {
+            try (InputStream in = attachment.getInputStream()) {
+                return Arrays.equals(in.readAllBytes(), pdf);
+            } catch (IOException e) {
+                return false;
+            }
+        });
+    }
+
+    private PayrollRecord record(String name, String email) {
+        return new PayrollRecord(name, email, "Engineer",
+                100.0, 200.0, 300.0, 50.0, 5000.0, 4500.0, 3850.0, "2024-01");
     }
 }
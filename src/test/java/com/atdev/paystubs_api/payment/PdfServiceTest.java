@@ -1,5 +1,6 @@
 package com.atdev.paystubs_api.payment;
 
+import com.atdev.paystubs_api.email.PdfAttachment;
 import org.junit.jupiter.api.BeforeEach;
 import org.junit.jupiter.api.Test;
 
@@ -261,4 +262,18 @@ class PdfServiceTest {
         assertThat(pdf2.length).isGreaterThan(500);
         // PDFs generated with different company names
     }
+
+    @Test
+    void shouldRenderDirectlyIntoAttachmentBuffer() throws Exception {
+        // Given
+        PdfAttachment.Buffer buffer = PdfAttachment.buffer();
+
+        // When
+        pdfService.render(testRecord, "TestCompany", null, englishLabels, buffer);
+
+        // Then
+        PdfAttachment attachment = buffer.toAttachment();
+        assertThat(attachment.size()).isEqualTo(buffer.size()).isGreaterThan(0);
+        assertThat(attachment.getInputStream().readNBytes(4)).isEqualTo("%PDF".getBytes());
+    }
 }
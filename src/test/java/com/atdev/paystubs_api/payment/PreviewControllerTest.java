@@ -0,0 +1,123 @@
+package com.atdev.paystubs_api.payment;
+
+import com.atdev.paystubs_api.payment.dto.PreviewRequest;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.extension.ExtendWith;
+import org.mockito.Mock;
+import org.mockito.junit.jupiter.MockitoExtension;
+import org.springframework.http.HttpStatus;
+import org.springframework.http.MediaType;
+import org.springframework.http.ResponseEntity;
+import org.springframework.mock.web.MockMultipartFile;
+import org.springframework.web.multipart.MultipartFile;
+
+import java.util.List;
+import java.util.Map;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.mockito.ArgumentMatchers.*;
+import static org.mockito.Mockito.*;
+
+@ExtendWith(MockitoExtension.class)
+class PreviewControllerTest {
+
+    @Mock
+    private CsvService csvService;
+
+    @Mock
+    private PreviewService previewService;
+
+    private PreviewController controller;
+    private PreviewRequest request;
+    private PayrollRecord testRecord;
+    private MultipartFile testCsvFile;
+
+    @BeforeEach
+    void setUp() {
+        controller = new PreviewController(csvService, previewService);
+        request = PreviewRequest.builder()
+                .full_name("John Doe")
+                .email("john@example.com")
+                .position("Engineer")
+                .gross_salary(5000.0)
+                .net_payment(3850.0)
+                .period("2024-01")
+                .build();
+        testRecord = request.toRecord();
+        testCsvFile = new MockMultipartFile("file", "payroll.csv", "text/csv", "test,data".getBytes());
+    }
+
+    @Test
+    void shouldReturnPdfWithEtag() throws Exception {
+        // Given
+        byte[] pdf = "%PDF-1.4".getBytes();
+        when(previewService.preview(Country.DO, "TestCompany", testRecord, null))
+                .thenReturn(new PreviewService.Preview("abc123", pdf));
+
+        // When
+        ResponseEntity<Object> response = controller.preview("do", "TestCompany", request, null);
+
+        // Then
+        assertThat(response.getStatusCode()).isEqualTo(HttpStatus.OK);
+        assertThat(response.getHeaders().getContentType()).isEqualTo(MediaType.APPLICATION_PDF);
+        assertThat(response.getHeaders().getETag()).isEqualTo("\"abc123\"");
+        assertThat(response.getHeaders().getCacheControl()).contains("no-cache");
+        assertThat(response.getHeaders().getContentDisposition().getFilename()).isEqualTo("paystub-John_Doe.pdf");
+        assertThat(response.getBody()).isSameAs(pdf);
+    }
+
+    @Test
+    void shouldReturnNotModifiedWhenEtagMatches() throws Exception {
+        // Given
+        when(previewService.preview(Country.DO, "TestCompany", testRecord, "\"abc123\""))
+                .thenReturn(new PreviewService.Preview("abc123", null));
+
+        // When
+        ResponseEntity<Object> response = controller.preview("do", "TestCompany", request, "\"abc123\"");
+
+        // Then
+        assertThat(response.getStatusCode()).isEqualTo(HttpStatus.NOT_MODIFIED);
+        assertThat(response.getHeaders().getETag()).isEqualTo("\"abc123\"");
+        assertThat(response.getBody()).isNull();
+    }
+
+    @Test
+    void shouldPreviewSingleRowCsv() throws Exception {
+        // Given
+        when(csvService.parse(testCsvFile)).thenReturn(List.of(testRecord));
+        when(previewService.preview(Country.US, "TestCompany", testRecord, null))
+                .thenReturn(new PreviewService.Preview("abc123", "%PDF-1.4".getBytes()));
+
+        // When
+        ResponseEntity<Object> response = controller.previewCsv("USA", "TestCompany", testCsvFile, null);
+
+        // Then
+        assertThat(response.getStatusCode()).isEqualTo(HttpStatus.OK);
+    }
+
+    @Test
+    void shouldRejectCsvWithMoreThanOneRow() throws Exception {
+        // Given
+        when(csvService.parse(testCsvFile)).thenReturn(List.of(testRecord, testRecord));
+
+        // When
+        ResponseEntity<Object> response = controller.previewCsv("do", "TestCompany", testCsvFile, null);
+
+        // Then
+        assertThat(response.getStatusCode()).isEqualTo(HttpStatus.BAD_REQUEST);
+        assertThat(response.getBody()).isEqualTo(Map.of("error", "Preview expects exactly one row."));
+        verifyNoInteractions(previewService);
+    }
+
+    @Test
+    void shouldRejectInvalidCountry() throws Exception {
+        // When
+        ResponseEntity<Object> response = controller.preview("INVALID", "TestCompany", request, null);
+
+        // Then
+        assertThat(response.getStatusCode()).isEqualTo(HttpStatus.BAD_REQUEST);
+        assertThat(response.getBody()).isEqualTo(Map.of("error", "Invalid country option."));
+        verifyNoInteractions(previewService);
+    }
+}
@@ -0,0 +1,101 @@
+package com.atdev.paystubs_api.payment;
+
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.extension.ExtendWith;
+import org.mockito.Mock;
+import org.mockito.junit.jupiter.MockitoExtension;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.mockito.ArgumentMatchers.*;
+import static org.mockito.Mockito.*;
+
+@ExtendWith(MockitoExtension.class)
+class PreviewServiceTest {
+
+    @Mock
+    private PdfService pdfService;
+
+    @Mock
+    private LogoService logoService;
+
+    private PreviewService previewService;
+    private PayrollRecord testRecord;
+
+    @BeforeEach
+    void setUp() throws Exception {
+        previewService = new PreviewService(pdfService, logoService, 2);
+        testRecord = new PayrollRecord("John Doe", "john@example.com", "Engineer",
+                100.0, 200.0, 300.0, 50.0, 5000.0, 4500.0, 3850.0, "2024-01");
+        lenient().when(logoService.loadLogo(anyString())).thenReturn(new byte[]{1, 2, 3});
+        lenient().when(pdfService.render(any(), anyString(), any(), anyMap())).thenReturn("%PDF-1.4".getBytes());
+    }
+
+    @Test
+    void shouldRenderOnceForRepeatedPreviews() throws Exception {
+        // When
+        PreviewService.Preview first = previewService.preview(Country.DO, "TestCompany", testRecord, null);
+        PreviewService.Preview second = previewService.preview(Country.DO, "TestCompany", testRecord, null);
+
+        // Then
+        assertThat(second.etag()).isEqualTo(first.etag());
+        assertThat(second.pdf()).isSameAs(first.pdf());
+        verify(pdfService, times(1)).render(any(), anyString(), any(), anyMap());
+    }
+
+    @Test
+    void shouldSkipRenderingWhenIfNoneMatchIsCurrent() throws Exception {
+        // Given
+        String etag = previewService.preview(Country.DO, "TestCompany", testRecord, null).etag();
+
+        // When
+        PreviewService.Preview preview = previewService.preview(Country.DO, "TestCompany", testRecord, "W/\"other\", \"" + etag + "\"");
+
+        // Then
+        assertThat(preview.notModified()).isTrue();
+        assertThat(preview.etag()).isEqualTo(etag);
+        verify(pdfService, times(1)).render(any(), anyString(), any(), anyMap());
+    }
+
+    @Test
+    void shouldChangeEtagWhenInputsChange() throws Exception {
+        // Given
+        PayrollRecord raised = new PayrollRecord("John Doe", "john@example.com", "Engineer",
+                100.0, 200.0, 300.0, 50.0, 6000.0, 4500.0, 3850.0, "2024-01");
+
+        // When
+        String base = previewService.preview(Country.DO, "TestCompany", testRecord, null).etag();
+        String otherRecord = previewService.preview(Country.DO, "TestCompany", raised, null).etag();
+        String otherLocale = previewService.preview(Country.US, "TestCompany", testRecord, null).etag();
+        when(logoService.loadLogo("TestCompany")).thenReturn(new byte[]{9});
+        String otherLogo = previewService.preview(Country.DO, "TestCompany", testRecord, null).etag();
+
+        // Then
+        assertThat(base).isNotIn(otherRecord, otherLocale, otherLogo);
+    }
+
+    @Test
+    void shouldEvictLeastRecentlyUsedRender() throws Exception {
+        // Given
+        previewService.preview(Country.DO, "A", testRecord, null);
+        previewService.preview(Country.DO, "B", testRecord, null);
+        previewService.preview(Country.DO, "A", testRecord, null);
+
+        // When
+        previewService.preview(Country.DO, "C", testRecord, null);
+        previewService.preview(Country.DO, "A", testRecord, null);
+        previewService.preview(Country.DO, "B", testRecord, null);
+
+        // Then
+        verify(pdfService, times(1)).render(any(), eq("A"), any(), anyMap());
+        verify(pdfService, times(2)).render(any(), eq("B"), any(), anyMap());
+    }
+
+    @Test
+    void shouldMatchWildcardAndIgnoreMissingHeader() {
+        assertThat(PreviewService.matches("*", "abc")).isTrue();
+        assertThat(PreviewService.matches("\"abc\"", "abc")).isTrue();
+        assertThat(PreviewService.matches("\"abd\"", "abc")).isFalse();
+        assertThat(PreviewService.matches(null, "abc")).isFalse();
+    }
+}
@@ -0,0 +1,294 @@
+package com.atdev.paystubs_api.payment;
+
+import com.atdev.paystubs_api.admission.AdmissionRejectedException;
+import com.atdev.paystubs_api.admission.BatchAdmission;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.extension.ExtendWith;
+import org.mockito.Mock;
+import org.mockito.junit.jupiter.MockitoExtension;
+import org.springframework.core.task.TaskRejectedException;
+import org.springframework.http.HttpStatus;
+import org.springframework.http.MediaType;
+import org.springframework.http.ResponseEntity;
+import org.springframework.http.converter.json.Jackson2ObjectMapperBuilder;
+import org.springframework.mock.web.MockHttpServletRequest;
+import org.springframework.mock.web.MockHttpServletResponse;
+import org.springframework.mock.web.MockMultipartFile;
+import org.springframework.web.context.request.NativeWebRequest;
+import org.springframework.web.context.request.ServletWebRequest;
+import org.springframework.web.context.request.async.StandardServletAsyncWebRequest;
+import org.springframework.web.context.request.async.WebAsyncManager;
+import org.springframework.web.context.request.async.WebAsyncUtils;
+import org.springframework.web.multipart.MultipartFile;
+import org.springframework.web.servlet.mvc.method.annotation.StreamingResponseBody;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.time.Duration;
+import java.time.Instant;
+import java.util.List;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.mockito.ArgumentMatchers.*;
+import static org.mockito.Mockito.*;
+
+@ExtendWith(MockitoExtension.class)
+class ProcessStreamControllerTest {
+
+    @Mock
+    private CsvService csvService;
+
+    @Mock
+    private PayrollService payrollService;
+
+    private BatchAdmission admission;
+    private MockHttpServletRequest servletRequest;
+    private MockHttpServletResponse servletResponse;
+    private NativeWebRequest request;
+
+    private ProcessStreamController controller;
+    private MultipartFile testCsvFile;
+    private List<PayrollRecord> testRecords;
+
+    @BeforeEach
+    void setUp() {
+        admission = new BatchAdmission(4, 20000, 16, Duration.ofSeconds(1), Duration.ofSeconds(30));
+        servletRequest = new MockHttpServletRequest();
+        servletRequest.setAsyncSupported(true);
+        servletResponse = new MockHttpServletResponse();
+        request = new ServletWebRequest(servletRequest, servletResponse);
+        controller = new ProcessStreamController(csvService, payrollService, admission, Jackson2ObjectMapperBuilder.json().build());
+        testCsvFile = new MockMultipartFile("file", "payroll.csv", "text/csv", "test,data".getBytes());
+        testRecords = List.of(
+                new PayrollRecord("John Doe", "john@example.com", "Engineer",
+                        100.0, 200.0, 300.0, 50.0, 5000.0, 4500.0, 3850.0, "2024-01"),
+                new PayrollRecord("Jane Smith", "jane@example.com", "Manager",
+                        150.0, 250.0, 400.0, 75.0, 7000.0, 6500.0, 5625.0, "2024-01")
+        );
+    }
+
+    @Test
+    void shouldStreamSentEntriesAsNdjsonFollowedBySummary() throws Exception {
+        // Given
+        when(csvService.parse(testCsvFile)).thenReturn(testRecords);
+        answerWithSentEntries();
+
+        // When
+        ResponseEntity<StreamingResponseBody> response = controller.process(
+                "USA", "user+password", "TestCompany", testCsvFile, false, null, "normal", null, null, MediaType.APPLICATION_NDJSON_VALUE, request);
+        String body = drain(response.getBody());
+
+        // Then
+        assertThat(response.getStatusCode()).isEqualTo(HttpStatus.OK);
+        assertThat(response.getHeaders().getContentType()).isEqualTo(MediaType.APPLICATION_NDJSON);
+        String[] lines = body.split("\n");
+        assertThat(lines).hasSize(3);
+        assertThat(lines[0]).startsWith("{\"sent\":{").contains("\"email\":\"john@example.com\"");
+        assertThat(lines[1]).contains("\"email\":\"jane@example.com\"");
+        assertThat(lines[2]).startsWith("{\"summary\":{").contains("\"total\":2", "\"sent_count\":2", "\"country\":\"US\"");
+    }
+
+    @Test
+    void shouldStreamServerSentEventsWhenRequested() throws Exception {
+        // Given
+        when(csvService.parse(testCsvFile)).thenReturn(testRecords);
+        answerWithSentEntries();
+
+        // When
+        ResponseEntity<StreamingResponseBody> response = controller.process(
+                "do", "user+password", "TestCompany", testCsvFile, false, null, "normal", null, null, MediaType.TEXT_EVENT_STREAM_VALUE, request);
+        String body = drain(response.getBody());
+
+        // Then
+        assertThat(response.getHeaders().getContentType()).isEqualTo(MediaType.TEXT_EVENT_STREAM);
+        assertThat(body).startsWith("event: sent\ndata: {");
+        assertThat(body).contains("event: summary\ndata: {");
+        assertThat(body.split("\n\n")).hasSize(3);
+    }
+
+    @Test
+    void shouldEndStreamWithErrorEventWhenBatchFails() throws Exception {
+        // Given
+        when(csvService.parse(testCsvFile)).thenReturn(testRecords);
+        doAnswer(inv -> {
+            inv.getArgument(4, SentListener.class).onSent(0, new SentPaystub(0, "john@example.com", "John Doe", Instant.now()));
+            throw new RuntimeException("Mail server error");
+        }).when(payrollService).sendRows(any(), anyString(), anyList(), any(), any());
+
+        // When
+        String body = drain(controller.process(
+                "do", "user+password", "TestCompany", testCsvFile, false, null, "normal", null, null, MediaType.APPLICATION_NDJSON_VALUE, request).getBody());
+
+        // Then
+        String[] lines = body.split("\n");
+        assertThat(lines).hasSize(2);
+        assertThat(lines[1]).contains("\"error\":\"Mail server error\"", "\"sent_count\":1");
+    }
+
+    @Test
+    void shouldStreamFailedRowsAndRetryIdInSummary() throws Exception {
+        // Given
+        when(csvService.parse(testCsvFile)).thenReturn(testRecords);
+        doAnswer(inv -> {
+            inv.getArgument(4, SentListener.class).onFailed(0, new FailedPaystub(0, "john@example.com", "John Doe", "Mailbox unavailable"));
+            return "retry-1";
+        }).when(payrollService).sendRows(any(), anyString(), anyList(), any(), any());
+
+        // When
+        String body = drain(controller.process(
+                "do", "user+password", "TestCompany", testCsvFile, false, null, "normal", null, null, MediaType.APPLICATION_NDJSON_VALUE, request).getBody());
+
+        // Then
+        String[] lines = body.split("\n");
+        assertThat(lines).hasSize(2);
+        assertThat(lines[0]).startsWith("{\"failed\":{\"row\":0,").contains("\"reason\":\"Mailbox unavailable\"");
+        assertThat(lines[1]).contains("\"sent_count\":0", "\"failed_count\":1", "\"retry_id\":\"retry-1\"",
+                "\"failed\":[{\"row\":0,\"email\":\"john@example.com\"");
+    }
+
+    @Test
+    void shouldStreamDeferredRowsAsTheirOwnEvent() throws Exception {
+        // Given
+        when(csvService.parse(testCsvFile)).thenReturn(testRecords);
+        doAnswer(inv -> {
+            SentListener listener = inv.getArgument(4);
+            listener.onSent(0, SentPaystub.of(0, testRecords.get(0)));
+            listener.onSent(1, SentPaystub.deferred(1, testRecords.get(1)));
+            return "retry-1";
+        }).when(payrollService).sendRows(any(), anyString(), anyList(), any(), any());
+
+        // When
+        String body = drain(controller.process(
+                "do", "user+password", "TestCompany", testCsvFile, false, null, "normal", null, null, MediaType.APPLICATION_NDJSON_VALUE, request).getBody());
+
+        // Then
+        String[] lines = body.split("\n");
+        assertThat(lines).hasSize(3);
+        assertThat(lines[1]).startsWith("{\"deferred\":{\"row\":1,").contains("\"status\":\"deferred\"").doesNotContain("sent_at");
+        assertThat(lines[2]).contains("\"sent_count\":1", "\"deferred_count\":1", "\"retry_id\":\"retry-1\"");
+    }
+
+    @Test
+    void shouldStopBatchWhenClientDisconnects() throws Exception {
+        // Given
+        when(csvService.parse(testCsvFile)).thenReturn(testRecords);
+        answerWithSentEntries();
+        OutputStream closed = new OutputStream() {
+            @Override
+            public void write(int b) throws IOException {
+                throw new IOException("Broken pipe");
+            }
+        };
+
+        // When/Then
+        StreamingResponseBody body = controller.process(
+                "do", "user+password", "TestCompany", testCsvFile, false, null, "normal", null, null, MediaType.APPLICATION_NDJSON_VALUE, request).getBody();
+        assertThrows(IOException.class, () -> body.writeTo(closed));
+    }
+
+    @Test
+    void shouldRejectInvalidCountryBeforeParsing() throws Exception {
+        // When
+        ResponseEntity<StreamingResponseBody> response = controller.process(
+                "INVALID", "user+password", "TestCompany", testCsvFile, false, null, "normal", null, null, MediaType.APPLICATION_NDJSON_VALUE, request);
+
+        // Then
+        assertThat(response.getStatusCode()).isEqualTo(HttpStatus.BAD_REQUEST);
+        assertThat(drain(response.getBody())).isEqualTo("{\"error\":\"Invalid country option.\"}");
+        verifyNoInteractions(csvService, payrollService);
+    }
+
+    @Test
+    void shouldRejectBeforeParsingWhenAdmissionQueueIsFull() throws Exception {
+        // Given
+        BatchAdmission busy = new BatchAdmission(1, 100, 0, Duration.ofSeconds(1), Duration.ofSeconds(30));
+        controller = new ProcessStreamController(csvService, payrollService, busy, Jackson2ObjectMapperBuilder.json().build());
+        BatchAdmission.Permit running = busy.admit(1);
+
+        // When/Then
+        assertThrows(AdmissionRejectedException.class, () -> controller.process(
+                "do", "user+password", "TestCompany", testCsvFile, false, null, "normal", null, null, MediaType.APPLICATION_NDJSON_VALUE, request));
+        verifyNoInteractions(csvService, payrollService);
+        running.close();
+    }
+
+    @Test
+    void shouldReleaseAdmissionWhenCsvCannotBeParsed() throws Exception {
+        // Given
+        when(csvService.parse(testCsvFile)).thenThrow(new IllegalArgumentException("Missing header"));
+
+        // When/Then
+        assertThrows(IllegalArgumentException.class, () -> controller.process(
+                "do", "user+password", "TestCompany", testCsvFile, false, null, "normal", null, null, MediaType.APPLICATION_NDJSON_VALUE, request));
+        assertThat(admission.state().running()).isZero();
+    }
+
+    @Test
+    void shouldRejectSendAtInsteadOfSendingNow() throws Exception {
+        // When
+        ResponseEntity<StreamingResponseBody> response = controller.process(
+                "do", "user+password", "TestCompany", testCsvFile, false, null, "normal", "2999-01-01T09:00:00Z", null, MediaType.APPLICATION_NDJSON_VALUE, request);
+
+        // Then
+        assertThat(response.getStatusCode()).isEqualTo(HttpStatus.BAD_REQUEST);
+        assertThat(drain(response.getBody())).isEqualTo("{\"error\":\"send_at cannot be used with a streamed response.\"}");
+        verifyNoInteractions(csvService, payrollService);
+    }
+
+    @Test
+    void shouldRejectIdempotencyKeyInsteadOfSendingAgain() throws Exception {
+        // When
+        ResponseEntity<StreamingResponseBody> response = controller.process(
+                "do", "user+password", "TestCompany", testCsvFile, false, null, "normal", null, "key-1", MediaType.APPLICATION_NDJSON_VALUE, request);
+
+        // Then
+        assertThat(response.getStatusCode()).isEqualTo(HttpStatus.BAD_REQUEST);
+        assertThat(drain(response.getBody())).isEqualTo("{\"error\":\"Idempotency-Key cannot be used with a streamed response.\"}");
+        verifyNoInteractions(csvService, payrollService);
+    }
+
+    @Test
+    void shouldReleaseAdmissionWhenResponseBodyNeverRuns() throws Exception {
+        // Given: the executor that would run the response body is full
+        when(csvService.parse(testCsvFile)).thenReturn(testRecords);
+        StreamingResponseBody body = controller.process(
+                "do", "user+password", "TestCompany", testCsvFile, false, null, "normal", null, null, MediaType.APPLICATION_NDJSON_VALUE, request).getBody();
+        assertThat(admission.state().running()).isEqualTo(1);
+        WebAsyncManager async = WebAsyncUtils.getAsyncManager(request);
+        async.setAsyncWebRequest(new StandardServletAsyncWebRequest(servletRequest, servletResponse));
+        async.setTaskExecutor(task -> {
+            throw new TaskRejectedException("Executor is full");
+        });
+
+        // When
+        async.startCallableProcessing(() -> {
+            body.writeTo(new ByteArrayOutputStream());
+            return null;
+        });
+        servletRequest.getAsyncContext().complete();
+
+        // Then
+        assertThat(admission.state().running()).isZero();
+    }
+
+    private void answerWithSentEntries() throws Exception {
+        doAnswer(inv -> {
+            List<PayrollRecord> rows = inv.getArgument(2);
+            SentListener listener = inv.getArgument(4);
+            for (int i = 0; i < rows.size(); i++) {
+                listener.onSent(i, SentPaystub.of(i, rows.get(i)));
+            }
+            return null;
+        }).when(payrollService).sendRows(any(), anyString(), anyList(), any(), any());
+    }
+
+    private String drain(StreamingResponseBody body) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        body.writeTo(out);
+        return out.toString(StandardCharsets.UTF_8);
+    }
+}
@@ -0,0 +1,139 @@
+package com.atdev.paystubs_api.pipeline;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+class FairSchedulerTest {
+
+    @Test
+    void shouldNotWaitWhileSlotsAreFree() throws Exception {
+        // Given
+        FairScheduler scheduler = new FairScheduler(true, 2, 1);
+        FairScheduler.Batch batch = scheduler.register(10, Priority.NORMAL);
+
+        // When
+        FairScheduler.Slot first = scheduler.acquire(batch, FairScheduler.Kind.RENDER);
+        FairScheduler.Slot second = scheduler.acquire(batch, FairScheduler.Kind.RENDER);
+
+        // Then
+        assertThat(scheduler.state().render_used()).isEqualTo(2);
+        assertThat(scheduler.state().waits()).isZero();
+        first.close();
+        first.close();
+        second.close();
+        assertThat(scheduler.state().render_used()).isZero();
+    }
+
+    @Test
+    void shouldGiveFreedSlotToBatchWithFewestItemsLeft() throws Exception {
+        // Given
+        FairScheduler scheduler = new FairScheduler(true, 1, 1);
+        FairScheduler.Batch bulk = scheduler.register(80_000, Priority.NORMAL);
+        FairScheduler.Batch correction = scheduler.register(20, Priority.NORMAL);
+        FairScheduler.Slot held = scheduler.acquire(bulk, FairScheduler.Kind.SEND);
+        ConcurrentLinkedQueue<String> granted = new ConcurrentLinkedQueue<>();
+
+        // When
+        List<Thread> waiters = new ArrayList<>();
+        waiters.add(waiter(scheduler, bulk, "bulk", granted));
+        waitUntilWaiting(scheduler, 1);
+        waiters.add(waiter(scheduler, correction, "correction", granted));
+        waitUntilWaiting(scheduler, 2);
+        held.close();
+        join(waiters);
+
+        // Then
+        assertThat(granted).containsExactly("correction", "bulk");
+    }
+
+    @Test
+    void shouldPutHigherPriorityFirst() throws Exception {
+        // Given
+        FairScheduler scheduler = new FairScheduler(true, 1, 1);
+        FairScheduler.Batch urgent = scheduler.register(80_000, Priority.HIGH);
+        FairScheduler.Batch small = scheduler.register(20, Priority.NORMAL);
+        FairScheduler.Batch background = scheduler.register(5, Priority.LOW);
+        FairScheduler.Slot held = scheduler.acquire(small, FairScheduler.Kind.SEND);
+        ConcurrentLinkedQueue<String> granted = new ConcurrentLinkedQueue<>();
+
+        // When
+        List<Thread> waiters = new ArrayList<>();
+        waiters.add(waiter(scheduler, background, "background", granted));
+        waitUntilWaiting(scheduler, 1);
+        waiters.add(waiter(scheduler, small, "small", granted));
+        waitUntilWaiting(scheduler, 2);
+        waiters.add(waiter(scheduler, urgent, "urgent", granted));
+        waitUntilWaiting(scheduler, 3);
+        held.close();
+        join(waiters);
+
+        // Then
+        assertThat(granted).containsExactly("urgent", "small", "background");
+        assertThat(scheduler.state().waits()).isEqualTo(3);
+    }
+
+    @Test
+    void shouldRankByItemsLeftAsBatchesProgress() throws Exception {
+        // Given
+        FairScheduler scheduler = new FairScheduler(true, 1, 1);
+        FairScheduler.Batch first = scheduler.register(10, Priority.NORMAL);
+        FairScheduler.Batch second = scheduler.register(5, Priority.NORMAL);
+
+        // When
+        first.finished(8);
+        second.close();
+
+        // Then
+        assertThat(scheduler.state().batches()).singleElement()
+                .satisfies(batch -> assertThat(batch.remaining()).isEqualTo(2));
+    }
+
+    @Test
+    void shouldNeverWaitWhenDisabled() throws Exception {
+        // Given
+        FairScheduler scheduler = FairScheduler.unbounded();
+        FairScheduler.Batch batch = scheduler.register(100, Priority.LOW);
+
+        // When
+        for (int i = 0; i < 100; i++) {
+            scheduler.acquire(batch, FairScheduler.Kind.RENDER);
+        }
+
+        // Then
+        assertThat(scheduler.state().render_used()).isZero();
+    }
+
+    // Takes a send slot, records it and gives it back right away, so the order shows who was granted first.
+    private static Thread waiter(FairScheduler scheduler, FairScheduler.Batch batch, String name,
+                                 ConcurrentLinkedQueue<String> granted) {
+        return Thread.ofVirtual().start(() -> {
+            try (FairScheduler.Slot slot = scheduler.acquire(batch, FairScheduler.Kind.SEND)) {
+                granted.add(name);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        });
+    }
+
+    private static void join(List<Thread> threads) throws InterruptedException {
+        for (Thread thread : threads) {
+            thread.join(TimeUnit.SECONDS.toMillis(5));
+        }
+    }
+
+    private static void waitUntilWaiting(FairScheduler scheduler, int waiting) throws InterruptedException {
+        long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(5);
+        while (scheduler.state().send_waiting() < waiting) {
+            if (System.nanoTime() > deadline) {
+                throw new AssertionError("no waiter within 5s");
+            }
+            Thread.sleep(10);
+        }
+    }
+}
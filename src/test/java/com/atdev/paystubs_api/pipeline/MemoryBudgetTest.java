@@ -0,0 +1,80 @@
+package com.atdev.paystubs_api.pipeline;
+
+import org.junit.jupiter.api.Test;
+import org.springframework.util.unit.DataSize;
+
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+class MemoryBudgetTest {
+
+    private final MemoryBudget budget = new MemoryBudget(DataSize.ofBytes(1000), DataSize.ofBytes(300));
+
+    @Test
+    void shouldReserveEstimateUntilActualSizeIsKnown() throws Exception {
+        // Given
+        MemoryBudget.Reservation reservation = budget.reserve(2);
+        long estimated = budget.state().used_bytes();
+
+        // When
+        reservation.resize(500);
+
+        // Then
+        assertThat(estimated).isEqualTo(600);
+        assertThat(budget.state().used_bytes()).isEqualTo(500);
+        assertThat(budget.state().pdf_estimate_bytes()).isEqualTo(250);
+    }
+
+    @Test
+    void shouldWaitUntilReservedBytesAreGivenBack() throws Exception {
+        // Given
+        MemoryBudget.Reservation first = budget.reserve(3);
+
+        // When
+        CompletableFuture<MemoryBudget.Reservation> second = CompletableFuture.supplyAsync(() -> {
+            try {
+                return budget.reserve(1);
+            } catch (InterruptedException e) {
+                throw new IllegalStateException(e);
+            }
+        });
+        Thread.sleep(100);
+        boolean waitedWhileFull = !second.isDone() && budget.state().waiting() == 1;
+        first.close();
+
+        // Then
+        assertThat(waitedWhileFull).isTrue();
+        assertThat(second.get(5, TimeUnit.SECONDS)).isNotNull();
+        assertThat(budget.state().used_bytes()).isEqualTo(300);
+        assertThat(budget.state().waits()).isEqualTo(1);
+        assertThat(budget.state().wait_seconds()).isPositive();
+    }
+
+    @Test
+    void shouldGrantReservationLargerThanBudgetWhenNothingElseIsHeld() throws Exception {
+        // When
+        MemoryBudget.Reservation reservation = budget.reserve(10);
+
+        // Then
+        assertThat(budget.state().used_bytes()).isEqualTo(3000);
+        reservation.close();
+        reservation.close();
+        assertThat(budget.state().used_bytes()).isZero();
+    }
+
+    @Test
+    void shouldOnlyCountWithoutBudget() throws Exception {
+        // Given
+        MemoryBudget unbounded = new MemoryBudget(DataSize.ofBytes(0), DataSize.ofBytes(300));
+
+        // When
+        unbounded.reserve(5);
+        unbounded.reserve(5);
+
+        // Then
+        assertThat(unbounded.state().used_bytes()).isEqualTo(3000);
+        assertThat(unbounded.state().waits()).isZero();
+    }
+}
@@ -0,0 +1,259 @@
+package com.atdev.paystubs_api.pipeline;
+
+import com.atdev.paystubs_api.bulkhead.CompanyBulkheads;
+import org.junit.jupiter.api.Test;
+import org.springframework.util.unit.DataSize;
+
+import java.io.IOException;
+import java.util.List;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.BooleanSupplier;
+import java.util.stream.IntStream;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+class StagedPipelineTest {
+
+    private static final List<Integer> ITEMS = IntStream.range(0, 20).boxed().toList();
+
+    private final MemoryBudget budget = new MemoryBudget(DataSize.ofMegabytes(1), DataSize.ofKilobytes(1));
+
+    @Test
+    void shouldSendEveryRenderedItem() throws Exception {
+        // Given
+        StagedPipeline pipeline = new StagedPipeline(3, 2, 4, budget, CompanyBulkheads.unbounded(), FairScheduler.unbounded());
+        ConcurrentLinkedQueue<String> sent = new ConcurrentLinkedQueue<>();
+
+        // When
+        pipeline.run("TestCompany", Priority.NORMAL, ITEMS, onePdf(), () -> false, item -> {}, item -> item % 5 == 0 ? null : "pdf-" + item, sent::add);
+
+        // Then
+        assertThat(sent).hasSize(16).doesNotContain("pdf-0", "pdf-5");
+        StagedPipeline.State state = pipeline.state();
+        assertThat(state.render().items()).isEqualTo(20);
+        assertThat(state.send().items()).isEqualTo(16);
+        assertThat(state.render().workers()).isZero();
+        assertThat(state.queue_depth()).isZero();
+        assertThat(state.queue_capacity()).isZero();
+        assertThat(state.memory().used_bytes()).isZero();
+    }
+
+    @Test
+    void shouldBlockRenderingWhenQueueIsFull() throws Exception {
+        // Given
+        StagedPipeline pipeline = new StagedPipeline(1, 1, 2, budget, CompanyBulkheads.unbounded(), FairScheduler.unbounded());
+        CountDownLatch sendAllowed = new CountDownLatch(1);
+        AtomicInteger rendered = new AtomicInteger();
+        AtomicInteger renderedWhileSendBlocked = new AtomicInteger();
+
+        // When
+        Thread caller = Thread.ofVirtual().start(() -> {
+            try {
+                pipeline.run("TestCompany", Priority.NORMAL, ITEMS, onePdf(), () -> false, item -> {}, item -> rendered.incrementAndGet(), item -> sendAllowed.await());
+            } catch (Exception e) {
+                throw new IllegalStateException(e);
+            }
+        });
+        waitUntil(() -> pipeline.state().queue_depth() == 2);
+        Thread.sleep(100);
+        renderedWhileSendBlocked.set(rendered.get());
+        sendAllowed.countDown();
+        caller.join(TimeUnit.SECONDS.toMillis(5));
+
+        // Then: one item being sent, two queued, one rendered and waiting to be queued
+        assertThat(renderedWhileSendBlocked.get()).isEqualTo(4);
+        assertThat(rendered.get()).isEqualTo(20);
+        assertThat(pipeline.state().render().wait_seconds()).isPositive();
+    }
+
+    @Test
+    void shouldNotLetOneCompanyStarveAnother() throws Exception {
+        // Given: each company may have one item rendering, one sending and one queued, with nothing to borrow
+        CompanyBulkheads bulkheads = new CompanyBulkheads(true, 1, 1, 1, 0, 0, 0);
+        StagedPipeline pipeline = new StagedPipeline(4, 4, 16, budget, bulkheads, FairScheduler.unbounded());
+        CountDownLatch sendAllowed = new CountDownLatch(1);
+        AtomicInteger rendered = new AtomicInteger();
+        ConcurrentLinkedQueue<Object> sent = new ConcurrentLinkedQueue<>();
+
+        // When
+        Thread large = Thread.ofVirtual().start(() -> {
+            try {
+                pipeline.run("LargeCompany", Priority.NORMAL, ITEMS, onePdf(), () -> false, item -> {}, item -> rendered.incrementAndGet(), item -> sendAllowed.await());
+            } catch (Exception e) {
+                throw new IllegalStateException(e);
+            }
+        });
+        waitUntil(() -> bulkheads.state().companies().stream().anyMatch(c -> c.waiting().queue() == 4));
+        pipeline.run("SmallCompany", Priority.NORMAL, ITEMS.subList(0, 5), onePdf(), () -> false, item -> {}, item -> item, sent::add);
+        int renderedForLarge = rendered.get();
+        sendAllowed.countDown();
+        large.join(TimeUnit.SECONDS.toMillis(5));
+
+        // Then: the small batch went through while the large one held everything its company may use
+        assertThat(sent).hasSize(5);
+        assertThat(renderedForLarge).isEqualTo(2);
+        assertThat(rendered.get()).isEqualTo(20);
+        assertThat(bulkheads.state().companies()).isEmpty();
+    }
+
+    @Test
+    void shouldSendSmallBatchAheadOfLargeOne() throws Exception {
+        // Given: one send slot on the node, held by the large batch
+        FairScheduler scheduler = new FairScheduler(true, 1, 1);
+        StagedPipeline pipeline = new StagedPipeline(1, 2, 4, budget, CompanyBulkheads.unbounded(), scheduler);
+        CountDownLatch sendAllowed = new CountDownLatch(1);
+        ConcurrentLinkedQueue<String> sent = new ConcurrentLinkedQueue<>();
+
+        // When
+        Thread large = Thread.ofVirtual().start(() -> {
+            try {
+                pipeline.run("Bulk", Priority.NORMAL, ITEMS, onePdf(), () -> false, item -> {}, item -> item, item -> {
+                    if (item == 0) {
+                        sendAllowed.await();
+                    }
+                    sent.add("large-" + item);
+                });
+            } catch (Exception e) {
+                throw new IllegalStateException(e);
+            }
+        });
+        waitUntil(() -> scheduler.state().send_used() == 1);
+        Thread small = Thread.ofVirtual().start(() -> {
+            try {
+                pipeline.run("Correction", Priority.NORMAL, ITEMS.subList(0, 2), onePdf(), () -> false, item -> {}, item -> item,
+                        item -> sent.add("small-" + item));
+            } catch (Exception e) {
+                throw new IllegalStateException(e);
+            }
+        });
+        waitUntil(() -> scheduler.state().send_waiting() == 3);
+        sendAllowed.countDown();
+        small.join(TimeUnit.SECONDS.toMillis(5));
+        large.join(TimeUnit.SECONDS.toMillis(5));
+
+        // Then: the small batch took the slot before the large batch's next message
+        assertThat(sent).hasSize(22);
+        assertThat(sent).startsWith("large-0");
+        assertThat(List.copyOf(sent).subList(1, 3)).containsExactlyInAnyOrder("small-0", "small-1");
+        assertThat(scheduler.state().batches()).isEmpty();
+        assertThat(scheduler.state().send_used()).isZero();
+    }
+
+    @Test
+    void shouldWaitForMemoryBudgetBeforeRendering() throws Exception {
+        // Given: room for two rendered items
+        MemoryBudget small = new MemoryBudget(DataSize.ofBytes(2000), DataSize.ofBytes(1000));
+        StagedPipeline pipeline = new StagedPipeline(1, 1, 4, small, CompanyBulkheads.unbounded(), FairScheduler.unbounded());
+        CountDownLatch sendAllowed = new CountDownLatch(1);
+        AtomicInteger rendered = new AtomicInteger();
+
+        // When
+        Thread caller = Thread.ofVirtual().start(() -> {
+            try {
+                pipeline.run("TestCompany", Priority.NORMAL, ITEMS, onePdf(), () -> false, item -> {}, item -> rendered.incrementAndGet(), item -> sendAllowed.await());
+            } catch (Exception e) {
+                throw new IllegalStateException(e);
+            }
+        });
+        waitUntil(() -> small.state().waiting() == 1);
+        int renderedWhileOverBudget = rendered.get();
+        sendAllowed.countDown();
+        caller.join(TimeUnit.SECONDS.toMillis(5));
+
+        // Then: one item being sent and one queued, although the queue has room for four
+        assertThat(renderedWhileOverBudget).isEqualTo(2);
+        assertThat(rendered.get()).isEqualTo(20);
+        assertThat(small.state().used_bytes()).isZero();
+    }
+
+    @Test
+    void shouldSkipItemsOnceStopped() throws Exception {
+        // Given
+        StagedPipeline pipeline = new StagedPipeline(1, 1, 4, budget, CompanyBulkheads.unbounded(), FairScheduler.unbounded());
+        AtomicInteger sent = new AtomicInteger();
+        ConcurrentLinkedQueue<Integer> skipped = new ConcurrentLinkedQueue<>();
+
+        // When
+        pipeline.run("TestCompany", Priority.NORMAL, ITEMS, onePdf(), () -> sent.get() >= 1, skipped::add, item -> item, item -> {
+            Thread.sleep(20);
+            sent.incrementAndGet();
+        });
+
+        // Then
+        assertThat(skipped.size() + sent.get()).isEqualTo(20);
+        assertThat(skipped).isNotEmpty();
+    }
+
+    @Test
+    void shouldDropRenderedItemsStillQueuedWhenStopped() throws Exception {
+        // Given
+        StagedPipeline pipeline = new StagedPipeline(1, 1, 4, budget, CompanyBulkheads.unbounded(), FairScheduler.unbounded());
+        CountDownLatch sendAllowed = new CountDownLatch(1);
+        AtomicBoolean stopped = new AtomicBoolean();
+        ConcurrentLinkedQueue<Integer> sent = new ConcurrentLinkedQueue<>();
+        ConcurrentLinkedQueue<Integer> skipped = new ConcurrentLinkedQueue<>();
+
+        // When: the batch stops while the first item is being sent and the queue is full
+        Thread caller = Thread.ofVirtual().start(() -> {
+            try {
+                pipeline.run("TestCompany", Priority.NORMAL, ITEMS, onePdf(), stopped::get, skipped::add, item -> item, item -> {
+                    sendAllowed.await();
+                    sent.add(item);
+                });
+            } catch (Exception e) {
+                throw new IllegalStateException(e);
+            }
+        });
+        waitUntil(() -> pipeline.state().queue_depth() == 4);
+        stopped.set(true);
+        sendAllowed.countDown();
+        caller.join(TimeUnit.SECONDS.toMillis(5));
+
+        // Then: only the send in progress finished
+        assertThat(sent).containsExactly(0);
+        assertThat(skipped).containsExactlyInAnyOrderElementsOf(ITEMS.subList(1, 20));
+        assertThat(pipeline.state().queue_depth()).isZero();
+        assertThat(budget.state().used_bytes()).isZero();
+    }
+
+    @Test
+    void shouldRethrowFailureOfStepAndStopWorkers() {
+        // Given
+        StagedPipeline pipeline = new StagedPipeline(2, 2, 4, budget, CompanyBulkheads.unbounded(), FairScheduler.unbounded());
+        AtomicInteger sent = new AtomicInteger();
+
+        // When
+        IOException e = assertThrows(IOException.class, () ->
+                pipeline.run("TestCompany", Priority.NORMAL, ITEMS, onePdf(), () -> false, item -> {}, item -> item, item -> {
+                    if (sent.incrementAndGet() == 3) {
+                        throw new IOException("client went away");
+                    }
+                }));
+
+        // Then
+        assertThat(e).hasMessage("client went away");
+        assertThat(sent.get()).isLessThan(20);
+        assertThat(pipeline.state().send().workers()).isZero();
+        assertThat(pipeline.state().queue_depth()).isZero();
+        assertThat(budget.state().used_bytes()).isZero();
+    }
+
+    private static <R> StagedPipeline.Footprint<Integer, R> onePdf() {
+        return StagedPipeline.Footprint.of(item -> 1, rendered -> 1000);
+    }
+
+    private static void waitUntil(BooleanSupplier condition) throws InterruptedException {
+        long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(5);
+        while (!condition.getAsBoolean()) {
+            if (System.nanoTime() > deadline) {
+                throw new AssertionError("condition not met within 5s");
+            }
+            Thread.sleep(10);
+        }
+    }
+}